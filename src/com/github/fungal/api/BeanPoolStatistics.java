@@ -0,0 +1,84 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.api;
+
+/**
+ * The statistics of a pooled, or prototype, scoped bean
+ *
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ * @see com.github.fungal.api.Kernel
+ */
+public interface BeanPoolStatistics
+{
+   /**
+    * Get the minimum number of pooled instances
+    * @return The value
+    */
+   public int getMinSize();
+
+   /**
+    * Get the maximum number of pooled instances
+    * @return The value
+    */
+   public int getMaxSize();
+
+   /**
+    * Get the number of idle instances
+    * @return The value
+    */
+   public int getIdleCount();
+
+   /**
+    * Get the number of borrowed instances
+    * @return The value
+    */
+   public int getActiveCount();
+
+   /**
+    * Get the number of instances that have been created
+    * @return The value
+    */
+   public long getCreatedCount();
+
+   /**
+    * Get the number of instances that have been destroyed
+    * @return The value
+    */
+   public long getDestroyedCount();
+
+   /**
+    * Get the number of idle instances that have been evicted
+    * @return The value
+    */
+   public long getEvictedCount();
+
+   /**
+    * Get the number of borrows
+    * @return The value
+    */
+   public long getBorrowCount();
+
+   /**
+    * Get the number of borrows that were served by an idle instance
+    * @return The value
+    */
+   public long getHitCount();
+}
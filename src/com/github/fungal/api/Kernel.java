@@ -22,14 +22,17 @@ package com.github.fungal.api;
 
 import com.github.fungal.api.classloading.KernelClassLoader;
 import com.github.fungal.api.deployer.MainDeployer;
+import com.github.fungal.api.events.BeanListener;
 import com.github.fungal.spi.deployers.Deployment;
 
 import java.net.URL;
+import java.util.Map;
 
 /**
  * The kernel API
  *
  * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ * @see com.github.fungal.api.BeanPoolStatistics
  * @see com.github.fungal.api.classloading.KernelClassLoader
  * @see com.github.fungal.api.deployer.MainDeployer
  * @see com.github.fungal.spi.deployers.Deployment;
@@ -64,6 +67,52 @@ public interface Kernel
     */
    public <T> T getBean(String name, Class<T> expectedType) throws Throwable;
 
+   /**
+    * Get the beans of a type
+    * @param type The type; a class or an interface
+    * @return A snapshot of the bean names and instances
+    */
+   public <T> Map<String, T> getBeansOfType(Class<T> type);
+
+   /**
+    * Add a listener for the beans of a type. The listener is notified of the beans
+    * that are added or removed after the registration
+    * @param type The type; a class or an interface
+    * @param listener The listener
+    */
+   public void addBeanListener(Class<?> type, BeanListener listener);
+
+   /**
+    * Remove a listener for the beans of a type
+    * @param type The type
+    * @param listener The listener
+    */
+   public void removeBeanListener(Class<?> type, BeanListener listener);
+
+   /**
+    * Borrow an instance of a pooled, or prototype, scoped bean
+    * @param name The bean name
+    * @param expectedType The expected type for the bean
+    * @return The bean instance
+    * @exception Throwable If an error occurs
+    */
+   public <T> T borrowBean(String name, Class<T> expectedType) throws Throwable;
+
+   /**
+    * Return an instance of a pooled, or prototype, scoped bean
+    * @param name The bean name
+    * @param bean The bean instance
+    * @exception Throwable If an error occurs
+    */
+   public void returnBean(String name, Object bean) throws Throwable;
+
+   /**
+    * Get the statistics of a pooled, or prototype, scoped bean
+    * @param name The bean name
+    * @return The statistics; <code>null</code> if the bean isn't scoped
+    */
+   public BeanPoolStatistics getBeanPoolStatistics(String name);
+
    /**
     * Startup
     * @exception Throwable Thrown if an error occurs
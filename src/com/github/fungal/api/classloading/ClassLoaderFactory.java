@@ -20,8 +20,10 @@
 
 package com.github.fungal.api.classloading;
 
+import java.io.File;
 import java.lang.reflect.Constructor;
 import java.net.URL;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Class loader factory
@@ -69,49 +71,104 @@ public class ClassLoaderFactory
    public static synchronized KernelClassLoader create(int type, URL[] urls, ClassLoader parent)
       throws IllegalArgumentException, IllegalStateException
    {
+      return create(type, urls, parent, false, null, null);
+   }
+
+   /**
+    * Create a class loader that locates classes and resources through a package index
+    * of the URLs. The index is built in parallel, and persisted if a file is specified
+    * @param type The class loader type
+    * @param urls The resource URLs
+    * @param parent The parent class loader
+    * @param indexCache The file that persists the index; <code>null</code> if it shouldn't be persisted
+    * @return The kernel class loader
+    * @exception IllegalArgumentException Thrown if unknown type is passed
+    * @exception IllegalStateException Thrown if a classloader can't be created
+    */
+   public static synchronized KernelClassLoader create(int type, URL[] urls, ClassLoader parent, File indexCache)
+      throws IllegalArgumentException, IllegalStateException
+   {
+      return create(type, urls, parent, true, indexCache, null);
+   }
+
+   /**
+    * Create a class loader that locates classes and resources through a package index
+    * of the URLs. The index is built on the executor service, and persisted if a file is specified
+    * @param type The class loader type
+    * @param urls The resource URLs
+    * @param parent The parent class loader
+    * @param indexCache The file that persists the index; <code>null</code> if it shouldn't be persisted
+    * @param executorService The executor service; <code>null</code> if the index should be built
+    *                        by the calling thread
+    * @return The kernel class loader
+    * @exception IllegalArgumentException Thrown if unknown type is passed
+    * @exception IllegalStateException Thrown if a classloader can't be created
+    */
+   public static synchronized KernelClassLoader create(int type, URL[] urls, ClassLoader parent, File indexCache,
+                                                       ExecutorService executorService)
+      throws IllegalArgumentException, IllegalStateException
+   {
+      return create(type, urls, parent, true, indexCache, executorService);
+   }
+
+   /**
+    * Create a class loader
+    * @param type The class loader type
+    * @param urls The resource URLs
+    * @param parent The parent class loader
+    * @param indexed Should the class loader use an index
+    * @param indexCache The file that persists the index; <code>null</code> if it shouldn't be persisted
+    * @param executorService The executor service; <code>null</code> if none
+    * @return The kernel class loader
+    * @exception IllegalArgumentException Thrown if unknown type is passed
+    * @exception IllegalStateException Thrown if a classloader can't be created
+    */
+   private static KernelClassLoader create(int type, URL[] urls, ClassLoader parent,
+                                           boolean indexed, File indexCache, ExecutorService executorService)
+      throws IllegalArgumentException, IllegalStateException
+   {
+      String className = null;
+      String description = null;
+
       if (type == TYPE_PARENT_FIRST)
       {
-         try
-         {
-            Class<?> clz = Class.forName(CLASSLOADER_PARENT_FIRST, true, ClassLoaderFactory.class.getClassLoader());
-            Constructor<?> constructor = clz.getDeclaredConstructor(URL[].class, ClassLoader.class);
-
-            return (KernelClassLoader)constructor.newInstance(urls, parent);
-         }
-         catch (Throwable t)
-         {
-            throw new IllegalStateException("Unable to create parent first classloader", t);
-         }
+         className = CLASSLOADER_PARENT_FIRST;
+         description = "parent first";
       }
       else if (type == TYPE_PARENT_LAST)
       {
-         try
-         {
-            Class<?> clz = Class.forName(CLASSLOADER_PARENT_LAST, true, ClassLoaderFactory.class.getClassLoader());
-            Constructor<?> constructor = clz.getDeclaredConstructor(URL[].class, ClassLoader.class);
-
-            return (KernelClassLoader)constructor.newInstance(urls, parent);
-         }
-         catch (Throwable t)
-         {
-            throw new IllegalStateException("Unable to create parent last classloader", t);
-         }
+         className = CLASSLOADER_PARENT_LAST;
+         description = "parent last";
       }
       else if (type == TYPE_EXPORT)
       {
-         try
-         {
-            Class<?> clz = Class.forName(CLASSLOADER_EXPORT, true, ClassLoaderFactory.class.getClassLoader());
-            Constructor<?> constructor = clz.getDeclaredConstructor(URL[].class, ClassLoader.class);
+         className = CLASSLOADER_EXPORT;
+         description = "export";
+      }
+      else
+      {
+         throw new IllegalArgumentException("Unknown type: " + type);
+      }
 
-            return (KernelClassLoader)constructor.newInstance(urls, parent);
-         }
-         catch (Throwable t)
+      try
+      {
+         Class<?> clz = Class.forName(className, true, ClassLoaderFactory.class.getClassLoader());
+
+         if (indexed)
          {
-            throw new IllegalStateException("Unable to create export classloader", t);
+            Constructor<?> constructor = clz.getDeclaredConstructor(URL[].class, ClassLoader.class, File.class,
+                                                                    ExecutorService.class);
+
+            return (KernelClassLoader)constructor.newInstance(urls, parent, indexCache, executorService);
          }
-      }
 
-      throw new IllegalArgumentException("Unknown type: " + type);
+         Constructor<?> constructor = clz.getDeclaredConstructor(URL[].class, ClassLoader.class);
+
+         return (KernelClassLoader)constructor.newInstance(urls, parent);
+      }
+      catch (Throwable t)
+      {
+         throw new IllegalStateException("Unable to create " + description + " classloader", t);
+      }
    }
 }
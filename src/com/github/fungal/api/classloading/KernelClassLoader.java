@@ -22,10 +22,17 @@ package com.github.fungal.api.classloading;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Manifest;
 
 /**
  * Kernel class loader
@@ -50,6 +57,27 @@ public abstract class KernelClassLoader extends URLClassLoader implements Closea
       simpleTypes.put(double.class.getName(), double.class);
    }
 
+   static
+   {
+      // Register as parallel capable, such that the platform doesn't lock the class loader;
+      // the method is caller sensitive so each class loader class registers itself
+      try
+      {
+         Method m = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+         m.invoke(null);
+      }
+      catch (Throwable t)
+      {
+         // Not supported by the platform
+      }
+   }
+
+   /** Recorded classes; <code>null</code> if not recording */
+   private volatile ConcurrentMap<String, Boolean> recorded;
+
+   /** Class loading locks of the names being loaded */
+   private ConcurrentMap<String, LoadingLock> loadingLocks;
+
    /**
     * Constructor
     * @param urls The URLs for JAR archives or directories
@@ -58,6 +86,47 @@ public abstract class KernelClassLoader extends URLClassLoader implements Closea
    protected KernelClassLoader(URL[] urls, ClassLoader parent)
    {
       super(urls, parent);
+
+      this.recorded = null;
+      this.loadingLocks = new ConcurrentHashMap<String, LoadingLock>();
+   }
+
+   /**
+    * Start recording the names of the classes loaded through this class loader
+    */
+   public void startRecording()
+   {
+      recorded = new ConcurrentHashMap<String, Boolean>();
+   }
+
+   /**
+    * Stop recording
+    * @return The names of the classes loaded since recording was started
+    */
+   public Set<String> stopRecording()
+   {
+      ConcurrentMap<String, Boolean> r = recorded;
+      recorded = null;
+
+      if (r == null)
+         return Collections.emptySet();
+
+      return new HashSet<String>(r.keySet());
+   }
+
+   /**
+    * Record a loaded class
+    * @param c The class; can be <code>null</code>
+    * @return The class
+    */
+   protected Class<?> record(Class<?> c)
+   {
+      ConcurrentMap<String, Boolean> r = recorded;
+
+      if (r != null && c != null && c.getClassLoader() != null)
+         r.putIfAbsent(c.getName(), Boolean.TRUE);
+
+      return c;
    }
    
    /**
@@ -69,7 +138,184 @@ public abstract class KernelClassLoader extends URLClassLoader implements Closea
    @Override
    public Class<?> loadClass(String name) throws ClassNotFoundException
    {
-      return simpleTypes.get(name);
+      Class<?> result = simpleTypes.get(name);
+
+      if (result != null)
+         return result;
+
+      return record(findLoadedClass(name));
+   }
+
+   /**
+    * Load a class while holding the lock for the class name only, such that
+    * classes with different names can be loaded in parallel
+    * @param name The fully qualified class name
+    * @param resolve Should the class be resolved
+    * @return The class
+    * @throws ClassNotFoundException If the class could not be found 
+    */
+   @Override
+   protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+   {
+      Object lock = acquireLoadingLock(name);
+      try
+      {
+         synchronized (lock)
+         {
+            Class<?> result = findLoadedClass(name);
+
+            if (result == null)
+            {
+               try
+               {
+                  if (getParent() != null)
+                  {
+                     result = getParent().loadClass(name);
+                  }
+                  else
+                  {
+                     result = Class.forName(name, false, null);
+                  }
+               }
+               catch (ClassNotFoundException cnfe)
+               {
+                  // Not found in the parent
+               }
+
+               if (result == null)
+                  result = findClass(name);
+            }
+
+            if (resolve)
+               resolveClass(result);
+
+            return result;
+         }
+      }
+      finally
+      {
+         releaseLoadingLock(name, lock);
+      }
+   }
+
+   /**
+    * Find a class in the URLs of this class loader. A class defined concurrently
+    * through another delegation path is returned instead of failing
+    * @param name The fully qualified class name
+    * @return The class
+    * @throws ClassNotFoundException If the class could not be found 
+    */
+   @Override
+   protected Class<?> findClass(String name) throws ClassNotFoundException
+   {
+      Class<?> result = findLoadedClass(name);
+
+      if (result != null)
+         return result;
+
+      try
+      {
+         return super.findClass(name);
+      }
+      catch (LinkageError le)
+      {
+         result = findLoadedClass(name);
+
+         if (result != null)
+            return result;
+
+         throw le;
+      }
+   }
+
+   /**
+    * Define a class from a class file located by the class loader itself, such as
+    * through an index. The package is defined from the manifest, if any. A class
+    * defined concurrently through another delegation path is returned instead of failing
+    * @param name The fully qualified class name
+    * @param bytes The class file
+    * @param codeSource The code source
+    * @param manifest The manifest; can be <code>null</code>
+    * @return The class
+    */
+   protected Class<?> defineClass(String name, byte[] bytes, CodeSource codeSource, Manifest manifest)
+   {
+      int index = name.lastIndexOf('.');
+
+      if (index != -1)
+      {
+         String packageName = name.substring(0, index);
+
+         if (getPackage(packageName) == null)
+         {
+            try
+            {
+               if (manifest != null)
+               {
+                  definePackage(packageName, manifest, codeSource.getLocation());
+               }
+               else
+               {
+                  definePackage(packageName, null, null, null, null, null, null, null);
+               }
+            }
+            catch (IllegalArgumentException iae)
+            {
+               // Already defined
+            }
+         }
+      }
+
+      try
+      {
+         return defineClass(name, bytes, 0, bytes.length, codeSource);
+      }
+      catch (LinkageError le)
+      {
+         Class<?> result = findLoadedClass(name);
+
+         if (result != null)
+            return result;
+
+         throw le;
+      }
+   }
+
+   /**
+    * Acquire the lock for loading a class; the lock has to be released once the
+    * class is loaded, such that only the names being loaded have a lock
+    * @param name The fully qualified class name
+    * @return The lock
+    */
+   protected Object acquireLoadingLock(String name)
+   {
+      while (true)
+      {
+         LoadingLock lock = loadingLocks.get(name);
+
+         if (lock == null)
+         {
+            lock = new LoadingLock();
+
+            if (loadingLocks.putIfAbsent(name, lock) == null)
+               return lock;
+         }
+         else if (lock.acquire())
+         {
+            return lock;
+         }
+      }
+   }
+
+   /**
+    * Release the lock for loading a class
+    * @param name The fully qualified class name
+    * @param lock The lock
+    */
+   protected void releaseLoadingLock(String name, Object lock)
+   {
+      if (((LoadingLock)lock).release())
+         loadingLocks.remove(name, lock);
    }
 
    /**
@@ -87,4 +333,49 @@ public abstract class KernelClassLoader extends URLClassLoader implements Closea
    public void shutdown() throws IOException
    {
    }
+
+   /**
+    * A class loading lock that counts the threads using it. A lock that is no
+    * longer used can't be acquired again, as it is about to be removed
+    */
+   private static final class LoadingLock
+   {
+      /** The number of threads using the lock */
+      private AtomicInteger users;
+
+      /**
+       * Constructor
+       */
+      LoadingLock()
+      {
+         this.users = new AtomicInteger(1);
+      }
+
+      /**
+       * Acquire
+       * @return True if acquired; false if the lock is no longer used
+       */
+      boolean acquire()
+      {
+         while (true)
+         {
+            int u = users.get();
+
+            if (u == 0)
+               return false;
+
+            if (users.compareAndSet(u, u + 1))
+               return true;
+         }
+      }
+
+      /**
+       * Release
+       * @return True if the lock is no longer used
+       */
+      boolean release()
+      {
+         return users.decrementAndGet() == 0;
+      }
+   }
 }
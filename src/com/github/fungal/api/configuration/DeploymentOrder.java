@@ -73,19 +73,8 @@ public class DeploymentOrder implements Comparator<URL>, Serializable
       String f1 = o1.getFile();
       String f2 = o2.getFile();
 
-      int v1 = Integer.MAX_VALUE;
-      int v2 = Integer.MAX_VALUE;
-
-      for (int i = 0; i < order.size(); i++)
-      {
-         String extension = order.get(i);
-
-         if (f1.endsWith(extension))
-            v1 = i;
-
-         if (f2.endsWith(extension))
-            v2 = i;
-      }
+      int v1 = getGroup(o1);
+      int v2 = getGroup(o2);
 
       if (v1 < v2)
       {
@@ -101,6 +90,29 @@ public class DeploymentOrder implements Comparator<URL>, Serializable
       }
    }
 
+   /**
+    * Get the deployment group of an URL. URLs in the same group can be deployed
+    * concurrently, and groups are deployed in increasing order
+    * @param url The URL
+    * @return The group; <code>Integer.MAX_VALUE</code> if the URL doesn't match a defined extension
+    */
+   public int getGroup(URL url)
+   {
+      if (url == null)
+         throw new IllegalArgumentException("Url is null");
+
+      String f = url.getFile();
+      int v = Integer.MAX_VALUE;
+
+      for (int i = 0; i < order.size(); i++)
+      {
+         if (f.endsWith(order.get(i)))
+            v = i;
+      }
+
+      return v;
+   }
+
    /**
     * Hash code
     * @return The hash
@@ -23,11 +23,15 @@ package com.github.fungal.api.configuration;
 import com.github.fungal.api.classloading.ClassLoaderFactory;
 import com.github.fungal.api.events.EventListener;
 import com.github.fungal.api.remote.Command;
+import com.github.fungal.api.util.Converter;
+import com.github.fungal.api.util.PropertyResolver;
 
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Kernel configuration implementation
@@ -35,6 +39,8 @@ import java.util.List;
  * @see com.github.fungal.api.classloading.ClassLoaderFactory
  * @see com.github.fungal.api.events.EventListener
  * @see com.github.fungal.api.remote.Command
+ * @see com.github.fungal.api.util.Converter
+ * @see com.github.fungal.api.util.PropertyResolver
  */
 public class KernelConfiguration
 {
@@ -77,6 +83,15 @@ public class KernelConfiguration
    /** Remote port */
    private int remotePort;
 
+   /** Remote maximum connections */
+   private int remoteMaxConnections;
+
+   /** Remote maximum commands per client */
+   private int remoteMaxClientCommands;
+
+   /** Remote queue depth */
+   private int remoteQueueDepth;
+
    /** Hot deployment */
    private boolean hotDeployment;
 
@@ -92,6 +107,36 @@ public class KernelConfiguration
    /** Deployment order */
    private DeploymentOrder deploymentOrder;
 
+   /** Converters */
+   private Map<Class<?>, Converter> converters;
+
+   /** Properties file */
+   private String properties;
+
+   /** Environment properties */
+   private boolean environmentProperties;
+
+   /** Property resolvers */
+   private List<PropertyResolver> propertyResolvers;
+
+   /** Class preloading */
+   private boolean classPreload;
+
+   /** Class loader index */
+   private boolean classLoaderIndex;
+
+   /** Watchdog timeout */
+   private int watchdogTimeout;
+
+   /** Watchdog fail */
+   private boolean watchdogFail;
+
+   /** Bean pool idle timeout */
+   private int beanPoolIdleTimeout;
+
+   /** Leak detection grace period */
+   private int leakDetectionGracePeriod;
+
    /**
     * Constructor
     */
@@ -110,11 +155,24 @@ public class KernelConfiguration
       threadGroup = null;
       remoteAccess = true;
       remotePort = 1202;
+      remoteMaxConnections = 16;
+      remoteMaxClientCommands = 4;
+      remoteQueueDepth = 16;
       hotDeployment = true;
       hotDeploymentInterval = 5;
       eventListeners = null;
       commands = null;
       deploymentOrder = null;
+      converters = null;
+      properties = "kernel.properties";
+      environmentProperties = false;
+      propertyResolvers = null;
+      classPreload = false;
+      classLoaderIndex = true;
+      watchdogTimeout = 300;
+      watchdogFail = false;
+      beanPoolIdleTimeout = 60;
+      leakDetectionGracePeriod = 0;
    }
 
    /**
@@ -392,6 +450,72 @@ public class KernelConfiguration
       return remotePort;
    }
 
+   /**
+    * Set the maximum number of concurrent connections for remote access; default <code>16</code>.
+    * Connections above the limit are rejected
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration remoteMaxConnections(int v)
+   {
+      this.remoteMaxConnections = v;
+
+      return this;
+   }
+
+   /**
+    * Get the maximum number of concurrent connections for remote access
+    * @return The value
+    */
+   public int getRemoteMaxConnections()
+   {
+      return remoteMaxConnections;
+   }
+
+   /**
+    * Set the maximum number of commands in flight per client for remote access;
+    * default <code>4</code>
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration remoteMaxClientCommands(int v)
+   {
+      this.remoteMaxClientCommands = v;
+
+      return this;
+   }
+
+   /**
+    * Get the maximum number of commands in flight per client for remote access
+    * @return The value
+    */
+   public int getRemoteMaxClientCommands()
+   {
+      return remoteMaxClientCommands;
+   }
+
+   /**
+    * Set the number of deploy commands that can wait for execution; default <code>16</code>.
+    * Deploy commands above the limit are rejected
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration remoteQueueDepth(int v)
+   {
+      this.remoteQueueDepth = v;
+
+      return this;
+   }
+
+   /**
+    * Get the number of deploy commands that can wait for execution
+    * @return The value
+    */
+   public int getRemoteQueueDepth()
+   {
+      return remoteQueueDepth;
+   }
+
    /**
     * Should hot deployment be enabled for the deploy directory; default <code>true</code>
     * @param v The value
@@ -511,4 +635,237 @@ public class KernelConfiguration
 
       return deploymentOrder;
    }
+
+   /**
+    * Add a converter for property and parameter values
+    * @param type The target type
+    * @param c The converter
+    * @return The configuration
+    */
+   public KernelConfiguration converter(Class<?> type, Converter c)
+   {
+      if (converters == null)
+         converters = new HashMap<Class<?>, Converter>(1);
+
+      converters.put(type, c);
+
+      return this;
+   }
+
+   /**
+    * Get the converters
+    * @return The value
+    */
+   public Map<Class<?>, Converter> getConverters()
+   {
+      if (converters == null)
+         return Collections.emptyMap();
+
+      return Collections.unmodifiableMap(converters);
+   }
+
+   /**
+    * Set the properties file in the configuration directory used for 
+    * <code>${property}</code> substitution; default <code>kernel.properties</code>
+    * @param value The value; <code>null</code> to disable
+    * @return The configuration
+    */
+   public KernelConfiguration properties(String value)
+   {
+      this.properties = value;
+
+      return this;
+   }
+
+   /**
+    * Get the properties file
+    * @return The value
+    */
+   public String getProperties()
+   {
+      return properties;
+   }
+
+   /**
+    * Should environment variables be used for <code>${property}</code> substitution; default <code>false</code>
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration environmentProperties(boolean v)
+   {
+      this.environmentProperties = v;
+
+      return this;
+   }
+
+   /**
+    * Are environment variables used for <code>${property}</code> substitution
+    * @return The value
+    */
+   public boolean isEnvironmentProperties()
+   {
+      return environmentProperties;
+   }
+
+   /**
+    * Add a property resolver; resolvers are consulted after the system properties
+    * and before the properties file and the environment variables
+    * @param pr The property resolver
+    * @return The configuration
+    */
+   public KernelConfiguration propertyResolver(PropertyResolver pr)
+   {
+      if (propertyResolvers == null)
+         propertyResolvers = new ArrayList<PropertyResolver>(1);
+
+      propertyResolvers.add(pr);
+
+      return this;
+   }
+
+   /**
+    * Get the property resolvers
+    * @return The value
+    */
+   public List<PropertyResolver> getPropertyResolvers()
+   {
+      if (propertyResolvers == null)
+         return Collections.emptyList();
+
+      return Collections.unmodifiableList(propertyResolvers);
+   }
+
+   /**
+    * Should the classes loaded during startup be recorded in <code>classes.preload</code> 
+    * in the home directory, and preloaded in parallel during the next startup; default <code>false</code>
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration classPreload(boolean v)
+   {
+      this.classPreload = v;
+
+      return this;
+   }
+
+   /**
+    * Is class preloading enabled
+    * @return The value
+    */
+   public boolean isClassPreload()
+   {
+      return classPreload;
+   }
+
+   /**
+    * Should the kernel class loader locate classes and resources through a package index
+    * of its archives, persisted in <code>classloader.index</code> in the home directory; default <code>true</code>
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration classLoaderIndex(boolean v)
+   {
+      this.classLoaderIndex = v;
+
+      return this;
+   }
+
+   /**
+    * Is the class loader index enabled
+    * @return The value
+    */
+   public boolean isClassLoaderIndex()
+   {
+      return classLoaderIndex;
+   }
+
+   /**
+    * Set the number of seconds a bean can wait for its dependencies, or be created, before
+    * the deployment watchdog reports it as stuck; default <code>300</code>. A value of 0 disables the watchdog
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration watchdogTimeout(int v)
+   {
+      this.watchdogTimeout = v;
+
+      return this;
+   }
+
+   /**
+    * Get the watchdog timeout in seconds
+    * @return The value
+    */
+   public int getWatchdogTimeout()
+   {
+      return watchdogTimeout;
+   }
+
+   /**
+    * Should the deployment watchdog fail the beans that are stuck waiting for their
+    * dependencies, or are part of a dependency cycle; default <code>false</code>
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration watchdogFail(boolean v)
+   {
+      this.watchdogFail = v;
+
+      return this;
+   }
+
+   /**
+    * Does the watchdog fail stuck beans
+    * @return The value
+    */
+   public boolean isWatchdogFail()
+   {
+      return watchdogFail;
+   }
+
+   /**
+    * Set the number of seconds that an idle instance of a pooled bean is kept before
+    * it is evicted, down to the minimum size of the pool; default <code>60</code>.
+    * A value of 0 disables the eviction
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration beanPoolIdleTimeout(int v)
+   {
+      this.beanPoolIdleTimeout = v;
+
+      return this;
+   }
+
+   /**
+    * Get the bean pool idle timeout in seconds
+    * @return The value
+    */
+   public int getBeanPoolIdleTimeout()
+   {
+      return beanPoolIdleTimeout;
+   }
+
+   /**
+    * Set the number of seconds that the class loader of an undeployed unit, or a removed
+    * bean, may stay reachable before it is reported as a leak; default <code>0</code>.
+    * A value of 0 disables the leak detection
+    * @param v The value
+    * @return The configuration
+    */
+   public KernelConfiguration leakDetectionGracePeriod(int v)
+   {
+      this.leakDetectionGracePeriod = v;
+
+      return this;
+   }
+
+   /**
+    * Get the leak detection grace period in seconds
+    * @return The value
+    */
+   public int getLeakDetectionGracePeriod()
+   {
+      return leakDetectionGracePeriod;
+   }
 }
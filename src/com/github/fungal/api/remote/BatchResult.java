@@ -0,0 +1,161 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.github.fungal.api.remote;
+
+import java.io.Serializable;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The result of a batch command; the outcome of each URL in the order of the request
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public class BatchResult implements Serializable
+{
+   /** Serial version UID */
+   private static final long serialVersionUID = 1L;
+
+   /** The failure messages by URL; <code>null</code> for a URL that succeeded */
+   private LinkedHashMap<URL, String> results;
+
+   /**
+    * Constructor
+    */
+   public BatchResult()
+   {
+      this.results = new LinkedHashMap<URL, String>();
+   }
+
+   /**
+    * Add a URL that succeeded
+    * @param url The URL
+    */
+   public void addSuccess(URL url)
+   {
+      if (url == null)
+         throw new IllegalArgumentException("URL is null");
+
+      results.put(url, null);
+   }
+
+   /**
+    * Add a URL that failed
+    * @param url The URL
+    * @param message The failure message
+    */
+   public void addFailure(URL url, String message)
+   {
+      if (url == null)
+         throw new IllegalArgumentException("URL is null");
+
+      results.put(url, message != null ? message : "Unknown failure");
+   }
+
+   /**
+    * Get the URLs
+    * @return The URLs
+    */
+   public Set<URL> getURLs()
+   {
+      return Collections.unmodifiableSet(results.keySet());
+   }
+
+   /**
+    * Did a URL succeed
+    * @param url The URL
+    * @return True if the URL succeeded; otherwise false
+    */
+   public boolean isSuccess(URL url)
+   {
+      return results.containsKey(url) && results.get(url) == null;
+   }
+
+   /**
+    * Did all URLs succeed
+    * @return True if all URLs succeeded; otherwise false
+    */
+   public boolean isSuccess()
+   {
+      return getFailures() == 0;
+   }
+
+   /**
+    * Get the failure message of a URL
+    * @param url The URL
+    * @return The message; <code>null</code> if the URL succeeded
+    */
+   public String getFailure(URL url)
+   {
+      return results.get(url);
+   }
+
+   /**
+    * Get the number of URLs that failed
+    * @return The number
+    */
+   public int getFailures()
+   {
+      int failures = 0;
+
+      for (String message : results.values())
+      {
+         if (message != null)
+            failures++;
+      }
+
+      return failures;
+   }
+
+   /**
+    * String representation
+    * @return The string
+    */
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder();
+
+      for (Map.Entry<URL, String> entry : results.entrySet())
+      {
+         sb = sb.append(entry.getKey());
+
+         if (entry.getValue() == null)
+         {
+            sb = sb.append(": OK");
+         }
+         else
+         {
+            sb = sb.append(": FAILED ");
+            sb = sb.append(entry.getValue());
+         }
+
+         sb = sb.append("\n");
+      }
+
+      sb = sb.append(results.size() - getFailures());
+      sb = sb.append(" succeeded, ");
+      sb = sb.append(getFailures());
+      sb = sb.append(" failed");
+
+      return sb.toString();
+   }
+}
@@ -0,0 +1,432 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.api.util;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of converters keyed by the target type.
+ *
+ * Converters for the primitive types, their wrappers, <code>String</code>, <code>InetAddress</code>,
+ * <code>Class</code> and <code>File</code> are precomputed. Converters for enums, and for types
+ * that have a public <code>String</code> constructor or a static <code>valueOf(String)</code> method,
+ * are resolved on first use and cached. User defined converters take precedence over both.
+ *
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ * @see com.github.fungal.api.util.Converter
+ */
+public class ConverterRegistry
+{
+   /** Marker for types that can't be converted */
+   private static final Converter NONE = new BuiltinConverter(-1);
+
+   /** Built-in converters */
+   private static final Map<Class<?>, Converter> BUILTIN;
+
+   /** User defined converters */
+   private ConcurrentMap<Class<?>, Converter> converters;
+
+   /** Resolved converters */
+   private ConcurrentMap<Class<?>, Converter> resolved;
+
+   static
+   {
+      Map<Class<?>, Converter> m = new HashMap<Class<?>, Converter>(32);
+
+      m.put(String.class, new BuiltinConverter(BuiltinConverter.STRING));
+      m.put(byte.class, new BuiltinConverter(BuiltinConverter.BYTE));
+      m.put(Byte.class, m.get(byte.class));
+      m.put(short.class, new BuiltinConverter(BuiltinConverter.SHORT));
+      m.put(Short.class, m.get(short.class));
+      m.put(int.class, new BuiltinConverter(BuiltinConverter.INTEGER));
+      m.put(Integer.class, m.get(int.class));
+      m.put(long.class, new BuiltinConverter(BuiltinConverter.LONG));
+      m.put(Long.class, m.get(long.class));
+      m.put(float.class, new BuiltinConverter(BuiltinConverter.FLOAT));
+      m.put(Float.class, m.get(float.class));
+      m.put(double.class, new BuiltinConverter(BuiltinConverter.DOUBLE));
+      m.put(Double.class, m.get(double.class));
+      m.put(boolean.class, new BuiltinConverter(BuiltinConverter.BOOLEAN));
+      m.put(Boolean.class, m.get(boolean.class));
+      m.put(char.class, new BuiltinConverter(BuiltinConverter.CHARACTER));
+      m.put(Character.class, m.get(char.class));
+      m.put(InetAddress.class, new BuiltinConverter(BuiltinConverter.INET_ADDRESS));
+      m.put(Class.class, new BuiltinConverter(BuiltinConverter.CLASS));
+      m.put(File.class, new BuiltinConverter(BuiltinConverter.FILE));
+
+      BUILTIN = Collections.unmodifiableMap(m);
+   }
+
+   /**
+    * Constructor
+    */
+   public ConverterRegistry()
+   {
+      this.converters = new ConcurrentHashMap<Class<?>, Converter>(1);
+      this.resolved = new ConcurrentHashMap<Class<?>, Converter>(32);
+   }
+
+   /**
+    * Register a converter for a type
+    * @param type The target type
+    * @param converter The converter
+    */
+   public void register(Class<?> type, Converter converter)
+   {
+      if (type == null)
+         throw new IllegalArgumentException("Type is null");
+
+      if (converter == null)
+         throw new IllegalArgumentException("Converter is null");
+
+      converters.put(type, converter);
+      resolved.remove(type);
+   }
+
+   /**
+    * Unregister the converter for a type
+    * @param type The target type
+    */
+   public void unregister(Class<?> type)
+   {
+      if (type == null)
+         throw new IllegalArgumentException("Type is null");
+
+      converters.remove(type);
+      resolved.remove(type);
+   }
+
+   /**
+    * Get the converter for a type
+    * @param type The target type
+    * @return The converter; <code>null</code> if the type can't be converted from a string
+    */
+   public Converter getConverter(Class<?> type)
+   {
+      if (type == null)
+         throw new IllegalArgumentException("Type is null");
+
+      Converter converter = resolved.get(type);
+
+      if (converter == null)
+      {
+         converter = resolve(type);
+
+         Converter existing = resolved.putIfAbsent(type, converter);
+         if (existing != null)
+            converter = existing;
+      }
+
+      if (converter == NONE)
+         return null;
+
+      return converter;
+   }
+
+   /**
+    * Clear the resolved converters. User defined converters are kept
+    */
+   public void clear()
+   {
+      resolved.clear();
+   }
+
+   /**
+    * Clear the resolved converters of the types that aren't defined by a class loader
+    * or one of its parents. The converters hold on to their types, so this is used when
+    * class loaders are discarded, such that their types can be collected.
+    * User defined converters are kept
+    * @param classLoader The class loader
+    */
+   public void clear(ClassLoader classLoader)
+   {
+      Iterator<Class<?>> it = resolved.keySet().iterator();
+
+      while (it.hasNext())
+      {
+         if (!isVisible(it.next(), classLoader))
+            it.remove();
+      }
+   }
+
+   /**
+    * Is a type defined by a class loader or one of its parents
+    * @param type The type
+    * @param classLoader The class loader
+    * @return True if defined by the hierarchy, otherwise false
+    */
+   private static boolean isVisible(Class<?> type, ClassLoader classLoader)
+   {
+      ClassLoader defining = type.getClassLoader();
+
+      if (defining == null)
+         return true;
+
+      for (ClassLoader cl = classLoader; cl != null; cl = cl.getParent())
+      {
+         if (cl == defining)
+            return true;
+      }
+
+      return false;
+   }
+
+   /**
+    * Resolve the converter for a type
+    * @param type The target type
+    * @return The converter; <code>NONE</code> if the type can't be converted
+    */
+   private Converter resolve(Class<?> type)
+   {
+      Converter converter = converters.get(type);
+
+      if (converter != null)
+         return converter;
+
+      converter = BUILTIN.get(type);
+
+      if (converter != null)
+         return converter;
+
+      if (type.isEnum())
+         return new EnumConverter(type);
+
+      try
+      {
+         Constructor<?> constructor = type.getConstructor(String.class);
+         return new ReflectiveConverter(constructor, null);
+      }
+      catch (NoSuchMethodException nsme)
+      {
+         // Try static String valueOf method
+      }
+      catch (SecurityException se)
+      {
+         // Try static String valueOf method
+      }
+
+      try
+      {
+         Method valueOf = type.getMethod("valueOf", String.class);
+
+         if (Modifier.isStatic(valueOf.getModifiers()))
+            return new ReflectiveConverter(null, valueOf);
+      }
+      catch (NoSuchMethodException nsme)
+      {
+         // No converter
+      }
+      catch (SecurityException se)
+      {
+         // No converter
+      }
+
+      return NONE;
+   }
+
+   /**
+    * Is the value blank
+    * @param value The value
+    * @return True if <code>null</code> or only whitespace; otherwise false
+    */
+   private static boolean isBlank(String value)
+   {
+      return value == null || value.trim().length() == 0;
+   }
+
+   /**
+    * Converter for the built-in types
+    */
+   static class BuiltinConverter implements Converter
+   {
+      /** String */
+      static final int STRING = 0;
+
+      /** Byte */
+      static final int BYTE = 1;
+
+      /** Short */
+      static final int SHORT = 2;
+
+      /** Integer */
+      static final int INTEGER = 3;
+
+      /** Long */
+      static final int LONG = 4;
+
+      /** Float */
+      static final int FLOAT = 5;
+
+      /** Double */
+      static final int DOUBLE = 6;
+
+      /** Boolean */
+      static final int BOOLEAN = 7;
+
+      /** Character */
+      static final int CHARACTER = 8;
+
+      /** InetAddress */
+      static final int INET_ADDRESS = 9;
+
+      /** Class */
+      static final int CLASS = 10;
+
+      /** File */
+      static final int FILE = 11;
+
+      /** The kind */
+      private int kind;
+
+      /**
+       * Constructor
+       * @param kind The kind
+       */
+      BuiltinConverter(int kind)
+      {
+         this.kind = kind;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      public Object convert(String value, ClassLoader cl) throws Exception
+      {
+         switch (kind)
+         {
+            case STRING :
+               return value;
+            case BYTE :
+               return isBlank(value) ? null : Byte.valueOf(value);
+            case SHORT :
+               return isBlank(value) ? null : Short.valueOf(value);
+            case INTEGER :
+               return isBlank(value) ? null : Integer.valueOf(value);
+            case LONG :
+               return isBlank(value) ? null : Long.valueOf(value);
+            case FLOAT :
+               return isBlank(value) ? null : Float.valueOf(value);
+            case DOUBLE :
+               return isBlank(value) ? null : Double.valueOf(value);
+            case BOOLEAN :
+               return isBlank(value) ? null : Boolean.valueOf(value);
+            case CHARACTER :
+               return isBlank(value) ? null : Character.valueOf(value.charAt(0));
+            case INET_ADDRESS :
+               return InetAddress.getByName(value);
+            case CLASS :
+               return Class.forName(value, true, cl);
+            case FILE :
+               return isBlank(value) ? null : new File(value);
+            default :
+               throw new IllegalArgumentException("Unsupported conversion: " + value);
+         }
+      }
+   }
+
+   /**
+    * Converter for enums
+    */
+   static class EnumConverter implements Converter
+   {
+      /** The enum type */
+      @SuppressWarnings("rawtypes")
+      private Class type;
+
+      /**
+       * Constructor
+       * @param type The enum type
+       */
+      EnumConverter(Class<?> type)
+      {
+         this.type = type;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @SuppressWarnings("unchecked")
+      public Object convert(String value, ClassLoader cl) throws Exception
+      {
+         if (isBlank(value))
+            return null;
+
+         return Enum.valueOf(type, value.trim());
+      }
+   }
+
+   /**
+    * Converter using a <code>String</code> constructor or a static <code>valueOf(String)</code> method
+    */
+   static class ReflectiveConverter implements Converter
+   {
+      /** The constructor */
+      private Constructor<?> constructor;
+
+      /** The valueOf method */
+      private Method valueOf;
+
+      /**
+       * Constructor
+       * @param constructor The constructor; can be <code>null</code>
+       * @param valueOf The valueOf method; can be <code>null</code>
+       */
+      ReflectiveConverter(Constructor<?> constructor, Method valueOf)
+      {
+         this.constructor = constructor;
+         this.valueOf = valueOf;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      public Object convert(String value, ClassLoader cl) throws Exception
+      {
+         try
+         {
+            if (constructor != null)
+               return constructor.newInstance(value);
+
+            return valueOf.invoke((Object)null, value);
+         }
+         catch (InvocationTargetException ite)
+         {
+            Throwable t = ite.getTargetException();
+
+            if (t instanceof Exception)
+               throw (Exception)t;
+
+            throw ite;
+         }
+      }
+   }
+}
@@ -22,19 +22,36 @@ package com.github.fungal.api.util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * An utility for JAR type files
@@ -42,6 +59,15 @@ import java.util.jar.Manifest;
  */
 public class FileUtil
 {
+   /** The DOS timestamp of the entries in deterministic mode; 1980-02-01 00:00:00 */
+   private static final int DETERMINISTIC_TIME = (2 << 21) | (1 << 16);
+
+   /** The file types that are stored instead of deflated, as they are compressed already */
+   private static final Set<String> COMPRESSED_TYPES =
+      new HashSet<String>(Arrays.asList(".jar", ".war", ".ear", ".zip", ".apk", ".gz", ".tgz", ".bz2",
+                                        ".xz", ".7z", ".png", ".jpg", ".jpeg", ".gif", ".webp",
+                                        ".mp3", ".mp4", ".ogg"));
+
    /**
     * Constructor
     */
@@ -56,6 +82,21 @@ public class FileUtil
     * @exception IOException Thrown if an error occurs
     */
    public void compress(File directory, File target) throws IOException
+   {
+      compress(directory, target, false);
+   }
+
+   /**
+    * Compress a directory in a JAR layout to a file. The entries are deflated in parallel
+    * and written in name order; entries that are compressed already - like archives and
+    * images - are stored. In deterministic mode all entries get a fixed timestamp, such
+    * that compressing the same content gives a byte identical file
+    * @param directory The directory
+    * @param target The JAR file
+    * @param deterministic Use a fixed timestamp for the entries
+    * @exception IOException Thrown if an error occurs
+    */
+   public void compress(File directory, File target, boolean deterministic) throws IOException
    {
       if (directory == null)
          throw new IllegalArgumentException("Directory is null");
@@ -96,60 +137,73 @@ public class FileUtil
          manifest = new Manifest();
       }
 
-      JarOutputStream jos = null;
+      List<File> entries = findEntries(directory);
+
+      if (entries == null)
+         entries = new ArrayList<File>(0);
+
+      entries.remove(new File("META-INF/MANIFEST.MF"));
+      Collections.sort(entries);
 
+      ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+      manifest.write(manifestBytes);
+
+      int now = toDosTime(System.currentTimeMillis());
+
+      ExecutorService executorService = null;
+      JarWriter writer = null;
       try
       {
-         FileOutputStream fos = new FileOutputStream(target);
-         jos = new JarOutputStream(fos, manifest);
+         writer = new JarWriter(new BufferedOutputStream(new FileOutputStream(target), 65536));
 
-         int bytesRead;
-         byte[] buffer = new byte[4096];
+         writer.write(new Compressor(JarFile.MANIFEST_NAME, null, manifestBytes.toByteArray(),
+                                     deterministic ? DETERMINISTIC_TIME : now).call());
 
-         List<File> entries = findEntries(directory);
+         int threads = Math.min(Runtime.getRuntime().availableProcessors(), entries.size());
 
-         if (entries != null)
+         if (threads > 1)
+            executorService = Executors.newFixedThreadPool(threads);
+
+         // The entries are written in order, with a bounded number of entries in flight
+         LinkedList<Future<Entry>> pending = new LinkedList<Future<Entry>>();
+
+         for (File file : entries)
          {
-            entries.remove(new File("META-INF/MANIFEST.MF"));
+            File f = new File(directory, file.getPath());
+            String name = file.getPath().replace(File.separatorChar, '/');
+            int time = deterministic ? DETERMINISTIC_TIME : toDosTime(f.lastModified());
 
-            for (File file : entries)
+            Compressor compressor = new Compressor(name, f, null, time);
+
+            if (executorService == null)
             {
-               File f = new File(directory, file.getPath());
-               JarEntry entry = new JarEntry(file.getPath());
-               jos.putNextEntry(entry);
+               writer.write(compressor.call());
+            }
+            else
+            {
+               pending.add(executorService.submit(compressor));
 
-               FileInputStream in = null;
-               try
-               {
-                  in = new FileInputStream(f);
-                  while ((bytesRead = in.read(buffer)) != -1)
-                     jos.write(buffer, 0, bytesRead);
-               }
-               finally
-               {
-                  if (in != null)
-                  {
-                     try
-                     {
-                        in.close(); 
-                     }
-                     catch (IOException ioe)
-                     {
-                        // Ignore
-                     }
-                  }
-               }
+               if (pending.size() >= threads * 4)
+                  writer.write(get(pending.removeFirst()));
             }
          }
 
-         jos.flush();
+         while (!pending.isEmpty())
+         {
+            writer.write(get(pending.removeFirst()));
+         }
+
+         writer.finish();
       }
       finally
       {
+         if (executorService != null)
+            executorService.shutdownNow();
+
          try
          {
-            if (jos != null)
-               jos.close();
+            if (writer != null)
+               writer.close();
          }
          catch (IOException ignore)
          {
@@ -354,6 +408,92 @@ public class FileUtil
       }
    }
 
+   /**
+    * Calculate the checksum of a file; for a directory the checksum covers
+    * the names and the content of all files in the directory tree
+    * @param f The file
+    * @return The checksum
+    * @exception IOException Thrown if a file could not be read
+    */
+   public String checksum(File f) throws IOException
+   {
+      if (f == null)
+         throw new IllegalArgumentException("F is null");
+
+      if (!f.exists())
+         throw new IOException("File doesn't exist: " + f.getAbsolutePath());
+
+      CRC32 crc = new CRC32();
+      byte[] buffer = new byte[65536];
+
+      long length = checksum(f, "", crc, buffer);
+
+      return Long.toHexString(crc.getValue()) + "-" + Long.toHexString(length);
+   }
+
+   /**
+    * Update a checksum with a file or directory tree
+    * @param f The file
+    * @param name The relative name of the file
+    * @param crc The checksum
+    * @param buffer The read buffer
+    * @return The number of bytes read
+    * @exception IOException Thrown if a file could not be read
+    */
+   private long checksum(File f, String name, CRC32 crc, byte[] buffer) throws IOException
+   {
+      long length = 0;
+
+      if (f.isDirectory())
+      {
+         String[] list = f.list();
+         if (list != null)
+         {
+            Arrays.sort(list);
+
+            for (String entry : list)
+            {
+               String entryName = name + "/" + entry;
+               byte[] data = entryName.getBytes("UTF-8");
+
+               crc.update(data, 0, data.length);
+               length += checksum(new File(f, entry), entryName, crc, buffer);
+            }
+         }
+      }
+      else
+      {
+         InputStream is = null;
+         try
+         {
+            is = new FileInputStream(f);
+
+            int n;
+            while ((n = is.read(buffer)) != -1)
+            {
+               crc.update(buffer, 0, n);
+               length += n;
+            }
+         }
+         finally
+         {
+            if (is != null)
+            {
+               try
+               {
+                  is.close();
+               }
+               catch (IOException ioe)
+               {
+                  // Ignore
+               }
+            }
+         }
+      }
+
+      return length;
+   }
+
    /**
     * Recursive delete
     * @param f The file handler
@@ -384,6 +524,79 @@ public class FileUtil
       }
    }
 
+   /**
+    * Get the result of a pending entry
+    * @param future The future
+    * @return The entry
+    * @exception IOException Thrown if the entry couldn't be compressed
+    */
+   private static Entry get(Future<Entry> future) throws IOException
+   {
+      try
+      {
+         return future.get();
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while compressing");
+      }
+      catch (ExecutionException ee)
+      {
+         Throwable cause = ee.getCause();
+
+         if (cause instanceof IOException)
+            throw (IOException)cause;
+
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+
+         if (cause instanceof Error)
+            throw (Error)cause;
+
+         IOException ioe = new IOException(cause != null ? cause.getMessage() : null);
+         ioe.initCause(cause);
+         throw ioe;
+      }
+   }
+
+   /**
+    * Convert a time to the DOS format used by JAR files
+    * @param time The time in milliseconds
+    * @return The DOS time
+    */
+   private static int toDosTime(long time)
+   {
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(time);
+
+      int year = calendar.get(Calendar.YEAR);
+      if (year < 1980)
+         return (1 << 21) | (1 << 16);
+
+      return ((year - 1980) << 25) |
+         ((calendar.get(Calendar.MONTH) + 1) << 21) |
+         (calendar.get(Calendar.DAY_OF_MONTH) << 16) |
+         (calendar.get(Calendar.HOUR_OF_DAY) << 11) |
+         (calendar.get(Calendar.MINUTE) << 5) |
+         (calendar.get(Calendar.SECOND) >> 1);
+   }
+
+   /**
+    * Is the entry of a type that is compressed already
+    * @param name The entry name
+    * @return True if the entry should be stored; otherwise false
+    */
+   private static boolean isCompressed(String name)
+   {
+      int index = name.lastIndexOf('.');
+
+      if (index == -1 || index < name.lastIndexOf('/'))
+         return false;
+
+      return COMPRESSED_TYPES.contains(name.substring(index).toLowerCase(Locale.US));
+   }
+
    /**
     * Find all file entries for a directory
     * @param file The root directory
@@ -426,4 +639,363 @@ public class FileUtil
 
       return result;
    }
+
+   /**
+    * A compressed JAR entry
+    */
+   private static final class Entry
+   {
+      /** The name */
+      private final String name;
+
+      /** The file; null if the content is in memory */
+      private final File file;
+
+      /** The content; null if the content is in the file */
+      private final byte[] content;
+
+      /** The DOS time */
+      private final int time;
+
+      /** The method */
+      private int method;
+
+      /** The CRC */
+      private long crc;
+
+      /** The uncompressed size */
+      private long size;
+
+      /** The deflated data; null if the entry is stored */
+      private byte[] data;
+
+      /**
+       * Constructor
+       * @param name The name
+       * @param file The file
+       * @param content The content
+       * @param time The DOS time
+       */
+      Entry(String name, File file, byte[] content, int time)
+      {
+         this.name = name;
+         this.file = file;
+         this.content = content;
+         this.time = time;
+         this.method = JarEntry.STORED;
+         this.crc = 0;
+         this.size = 0;
+         this.data = null;
+      }
+
+      /**
+       * Open the uncompressed content
+       * @return The input stream
+       * @exception IOException Thrown if the content can't be opened
+       */
+      InputStream open() throws IOException
+      {
+         if (content != null)
+            return new ByteArrayInputStream(content);
+
+         return new FileInputStream(file);
+      }
+
+      /**
+       * Get the compressed size
+       * @return The size
+       */
+      long getCompressedSize()
+      {
+         return data != null ? data.length : size;
+      }
+   }
+
+   /**
+    * Computes the CRC of an entry, and deflates it unless it is compressed already
+    */
+   private static final class Compressor implements Callable<Entry>
+   {
+      /** The entry */
+      private final Entry entry;
+
+      /**
+       * Constructor
+       * @param name The name
+       * @param file The file
+       * @param content The content
+       * @param time The DOS time
+       */
+      Compressor(String name, File file, byte[] content, int time)
+      {
+         this.entry = new Entry(name, file, content, time);
+      }
+
+      /**
+       * Compress the entry
+       * @return The entry
+       * @exception IOException Thrown if the entry can't be read
+       */
+      public Entry call() throws IOException
+      {
+         boolean store = isCompressed(entry.name);
+
+         CRC32 crc = new CRC32();
+         Deflater deflater = null;
+         ByteArrayOutputStream baos = null;
+         DeflaterOutputStream dos = null;
+         InputStream is = null;
+         try
+         {
+            if (!store)
+            {
+               deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+               baos = new ByteArrayOutputStream();
+               dos = new DeflaterOutputStream(baos, deflater, 65536);
+            }
+
+            is = entry.open();
+
+            long size = 0;
+            int bytesRead;
+            byte[] buffer = new byte[65536];
+
+            while ((bytesRead = is.read(buffer)) != -1)
+            {
+               crc.update(buffer, 0, bytesRead);
+               size += bytesRead;
+
+               if (dos != null)
+                  dos.write(buffer, 0, bytesRead);
+            }
+
+            entry.crc = crc.getValue();
+            entry.size = size;
+
+            if (dos != null)
+            {
+               dos.finish();
+
+               // Keep the entry stored if deflating doesn't make it smaller
+               if (baos.size() < size)
+               {
+                  entry.method = JarEntry.DEFLATED;
+                  entry.data = baos.toByteArray();
+               }
+            }
+         }
+         finally
+         {
+            if (deflater != null)
+               deflater.end();
+
+            if (is != null)
+            {
+               try
+               {
+                  is.close();
+               }
+               catch (IOException ignore)
+               {
+                  // Ignore
+               }
+            }
+         }
+
+         return entry;
+      }
+   }
+
+   /**
+    * Writes compressed entries in the JAR format
+    */
+   private static final class JarWriter
+   {
+      /** The maximum size and offset without ZIP64 extensions */
+      private static final long MAX_VALUE = 0xFFFFFFFFL;
+
+      /** The output stream */
+      private final OutputStream os;
+
+      /** The central directory */
+      private final ByteArrayOutputStream directory;
+
+      /** The number of entries */
+      private int count;
+
+      /** The offset */
+      private long offset;
+
+      /**
+       * Constructor
+       * @param os The output stream
+       */
+      JarWriter(OutputStream os)
+      {
+         this.os = os;
+         this.directory = new ByteArrayOutputStream();
+         this.count = 0;
+         this.offset = 0;
+      }
+
+      /**
+       * Write an entry
+       * @param entry The entry
+       * @exception IOException Thrown if an error occurs
+       */
+      void write(Entry entry) throws IOException
+      {
+         if (count >= 0xFFFF || entry.size > MAX_VALUE || offset > MAX_VALUE)
+            throw new IOException("JAR file too large for " + entry.name);
+
+         byte[] name = entry.name.getBytes("UTF-8");
+         int version = entry.method == JarEntry.DEFLATED ? 20 : 10;
+
+         // The first entry carries the JAR magic number
+         int extra = count == 0 ? 4 : 0;
+
+         ByteArrayOutputStream header = new ByteArrayOutputStream(30 + name.length + extra);
+         writeInt(header, 0x04034b50L);
+         writeShort(header, version);
+         writeShort(header, 0x0800);
+         writeShort(header, entry.method);
+         writeInt(header, entry.time & 0xFFFFFFFFL);
+         writeInt(header, entry.crc);
+         writeInt(header, entry.getCompressedSize());
+         writeInt(header, entry.size);
+         writeShort(header, name.length);
+         writeShort(header, extra);
+         header.write(name);
+         if (extra > 0)
+         {
+            writeShort(header, 0xCAFE);
+            writeShort(header, 0);
+         }
+         header.writeTo(os);
+
+         writeInt(directory, 0x02014b50L);
+         writeShort(directory, 20);
+         writeShort(directory, version);
+         writeShort(directory, 0x0800);
+         writeShort(directory, entry.method);
+         writeInt(directory, entry.time & 0xFFFFFFFFL);
+         writeInt(directory, entry.crc);
+         writeInt(directory, entry.getCompressedSize());
+         writeInt(directory, entry.size);
+         writeShort(directory, name.length);
+         writeShort(directory, extra);
+         writeShort(directory, 0);
+         writeShort(directory, 0);
+         writeShort(directory, 0);
+         writeInt(directory, 0);
+         writeInt(directory, offset);
+         directory.write(name);
+         if (extra > 0)
+         {
+            writeShort(directory, 0xCAFE);
+            writeShort(directory, 0);
+         }
+
+         if (entry.data != null)
+         {
+            os.write(entry.data);
+         }
+         else
+         {
+            InputStream is = null;
+            try
+            {
+               is = entry.open();
+
+               long size = 0;
+               int bytesRead;
+               byte[] buffer = new byte[65536];
+
+               while ((bytesRead = is.read(buffer)) != -1)
+               {
+                  os.write(buffer, 0, bytesRead);
+                  size += bytesRead;
+               }
+
+               if (size != entry.size)
+                  throw new IOException(entry.name + " changed while compressing");
+            }
+            finally
+            {
+               if (is != null)
+               {
+                  try
+                  {
+                     is.close();
+                  }
+                  catch (IOException ignore)
+                  {
+                     // Ignore
+                  }
+               }
+            }
+         }
+
+         offset += header.size() + entry.getCompressedSize();
+         count++;
+      }
+
+      /**
+       * Write the central directory
+       * @exception IOException Thrown if an error occurs
+       */
+      void finish() throws IOException
+      {
+         if (offset > MAX_VALUE)
+            throw new IOException("JAR file too large");
+
+         directory.writeTo(os);
+
+         ByteArrayOutputStream end = new ByteArrayOutputStream(22);
+         writeInt(end, 0x06054b50L);
+         writeShort(end, 0);
+         writeShort(end, 0);
+         writeShort(end, count);
+         writeShort(end, count);
+         writeInt(end, directory.size());
+         writeInt(end, offset);
+         writeShort(end, 0);
+         end.writeTo(os);
+
+         os.flush();
+      }
+
+      /**
+       * Close the output stream
+       * @exception IOException Thrown if an error occurs
+       */
+      void close() throws IOException
+      {
+         os.close();
+      }
+
+      /**
+       * Write a little endian short
+       * @param os The output stream
+       * @param value The value
+       */
+      private static void writeShort(ByteArrayOutputStream os, int value)
+      {
+         os.write(value & 0xFF);
+         os.write((value >>> 8) & 0xFF);
+      }
+
+      /**
+       * Write a little endian int
+       * @param os The output stream
+       * @param value The value
+       */
+      private static void writeInt(ByteArrayOutputStream os, long value)
+      {
+         os.write((int)(value & 0xFF));
+         os.write((int)((value >>> 8) & 0xFF));
+         os.write((int)((value >>> 16) & 0xFF));
+         os.write((int)((value >>> 24) & 0xFF));
+      }
+   }
 }
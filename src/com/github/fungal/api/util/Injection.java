@@ -20,12 +20,9 @@
 
 package com.github.fungal.api.util;
 
-import java.io.File;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.InetAddress;
 import java.util.Locale;
 
 /**
@@ -35,11 +32,62 @@ import java.util.Locale;
  */
 public class Injection
 {
+   /** The converters */
+   private ConverterRegistry converters;
+
+   /** The property resolver */
+   private PropertyResolver resolver;
+
    /**
     * Constructor
     */
    public Injection()
    {
+      this(new ConverterRegistry());
+   }
+
+   /**
+    * Constructor
+    * @param converters The converter registry
+    */
+   public Injection(ConverterRegistry converters)
+   {
+      this(converters, PropertyResolvers.system());
+   }
+
+   /**
+    * Constructor
+    * @param converters The converter registry
+    * @param resolver The property resolver used for substitution
+    */
+   public Injection(ConverterRegistry converters, PropertyResolver resolver)
+   {
+      if (converters == null)
+         throw new IllegalArgumentException("Converters is null");
+
+      if (resolver == null)
+         throw new IllegalArgumentException("Resolver is null");
+
+      this.converters = converters;
+      this.resolver = resolver;
+   }
+
+   /**
+    * Get the converter registry
+    * @return The registry
+    */
+   public ConverterRegistry getConverterRegistry()
+   {
+      return converters;
+   }
+
+   /**
+    * Get the property resolver
+    * @return The resolver
+    */
+   public PropertyResolver getPropertyResolver()
+   {
+      return resolver;
    }
 
    /**
@@ -235,155 +283,27 @@ public class Injection
       {
          String substituredValue = getSubstitutionValue((String)v);
 
-         if (clz.equals(String.class))
-         {
-            v = substituredValue;
-         }
-         else if (clz.equals(byte.class) || clz.equals(Byte.class))
-         {
-            if (substituredValue != null && !substituredValue.trim().equals(""))
-               v = Byte.valueOf(substituredValue);
-         }
-         else if (clz.equals(short.class) || clz.equals(Short.class))
-         {
-            if (substituredValue != null && !substituredValue.trim().equals(""))
-               v = Short.valueOf(substituredValue);
-         }
-         else if (clz.equals(int.class) || clz.equals(Integer.class))
-         {
-            if (substituredValue != null && !substituredValue.trim().equals(""))
-               v = Integer.valueOf(substituredValue);
-         }
-         else if (clz.equals(long.class) || clz.equals(Long.class))
-         {
-            if (substituredValue != null && !substituredValue.trim().equals(""))
-               v = Long.valueOf(substituredValue);
-         }
-         else if (clz.equals(float.class) || clz.equals(Float.class))
-         {
-            if (substituredValue != null && !substituredValue.trim().equals(""))
-               v = Float.valueOf(substituredValue);
-         }
-         else if (clz.equals(double.class) || clz.equals(Double.class))
-         {
-            if (substituredValue != null && !substituredValue.trim().equals(""))
-               v = Double.valueOf(substituredValue);
-         }
-         else if (clz.equals(boolean.class) || clz.equals(Boolean.class))
-         {
-            if (substituredValue != null && !substituredValue.trim().equals(""))
-               v = Boolean.valueOf(substituredValue);
-         }
-         else if (clz.equals(char.class) || clz.equals(Character.class))
-         {
-            if (substituredValue != null && !substituredValue.trim().equals(""))
-               v = Character.valueOf(substituredValue.charAt(0));
-         }
-         else if (clz.equals(InetAddress.class))
-         {
-            v = InetAddress.getByName(substituredValue);
-         }
-         else if (clz.equals(Class.class))
-         {
-            v = Class.forName(substituredValue, true, cl);
-         }
-         else
-         {
-            try
-            {
-               Constructor<?> constructor = clz.getConstructor(String.class);
-               v = constructor.newInstance(substituredValue);
-            }
-            catch (Throwable t)
-            {
-               // Try static String valueOf method
-               try
-               {
-                  Method valueOf = clz.getMethod("valueOf", String.class);
-                  v = valueOf.invoke((Object)null, substituredValue);
-               }
-               catch (Throwable inner)
-               {
-                  throw new IllegalArgumentException("Unknown property resolution for property " + name);
-               }
-            }
-         }
+         Converter converter = converters.getConverter(clz);
+
+         if (converter == null)
+            throw new IllegalArgumentException("Unknown property resolution for property " + name);
+
+         v = converter.convert(substituredValue, cl);
       }
 
       return v;
    }
 
    /**
-    * System property substitution
+    * Property substitution
     * @param input The input string
     * @return The output
     */
    protected String getSubstitutionValue(String input)
    {
-      if (input == null || input.trim().equals(""))
+      if (input == null || input.indexOf("${") == -1)
          return input;
 
-      while (input.indexOf("${") != -1)
-      {
-         int from = input.indexOf("${");
-         int to = input.indexOf("}");
-         int dv = input.indexOf(":", from + 2);
-
-         if (dv != -1)
-         {
-            if (dv > to)
-               dv = -1;
-         }
-         
-         String systemProperty = "";
-         String defaultValue = "";
-         if (dv == -1)
-         {
-            String s = input.substring(from + 2, to);
-            if ("/".equals(s))
-            {
-               systemProperty = File.separator;
-            }
-            else if (":".equals(s))
-            {
-               systemProperty = File.pathSeparator;
-            }
-            else
-            {
-               systemProperty = SecurityActions.getSystemProperty(s);
-            }
-         }
-         else
-         {
-            systemProperty = SecurityActions.getSystemProperty(input.substring(from + 2, dv));
-            defaultValue = input.substring(dv + 1, to);
-         }
-         String prefix = "";
-         String postfix = "";
-
-         if (from != 0)
-         {
-            prefix = input.substring(0, from);
-         }
-         
-         if (to + 1 < input.length() - 1)
-         {
-            postfix = input.substring(to + 1);
-         }
-
-         if (systemProperty != null && !systemProperty.trim().equals(""))
-         {
-            input = prefix + systemProperty + postfix;
-         }
-         else if (defaultValue != null && !defaultValue.trim().equals(""))
-         {
-            input = prefix + defaultValue + postfix;
-         }
-         else
-         {
-            input = prefix + postfix;
-         }
-      }
-      return input;
+      return PropertyTemplate.compile(input).resolve(resolver);
    }
 }
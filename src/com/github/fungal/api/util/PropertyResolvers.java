@@ -0,0 +1,153 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.api.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Factory for the standard property resolvers
+ *
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ * @see com.github.fungal.api.util.PropertyResolver
+ */
+public final class PropertyResolvers
+{
+   /** System properties */
+   private static final PropertyResolver SYSTEM = new PropertyResolver()
+   {
+      public String getProperty(String key)
+      {
+         return SecurityActions.getSystemProperty(key);
+      }
+
+      public String toString()
+      {
+         return "SystemProperties";
+      }
+   };
+
+   /** Environment variables */
+   private static final PropertyResolver ENVIRONMENT = new PropertyResolver()
+   {
+      public String getProperty(String key)
+      {
+         return SecurityActions.getEnvironmentVariable(key);
+      }
+
+      public String toString()
+      {
+         return "EnvironmentVariables";
+      }
+   };
+
+   /**
+    * Constructor
+    */
+   private PropertyResolvers()
+   {
+   }
+
+   /**
+    * Resolve against the system properties
+    * @return The resolver
+    */
+   public static PropertyResolver system()
+   {
+      return SYSTEM;
+   }
+
+   /**
+    * Resolve against the environment variables
+    * @return The resolver
+    */
+   public static PropertyResolver environment()
+   {
+      return ENVIRONMENT;
+   }
+
+   /**
+    * Resolve against a set of properties
+    * @param properties The properties
+    * @return The resolver
+    */
+   public static PropertyResolver properties(final Properties properties)
+   {
+      if (properties == null)
+         throw new IllegalArgumentException("Properties is null");
+
+      return new PropertyResolver()
+      {
+         public String getProperty(String key)
+         {
+            return properties.getProperty(key);
+         }
+
+         public String toString()
+         {
+            return "Properties@" + Integer.toHexString(System.identityHashCode(properties));
+         }
+      };
+   }
+
+   /**
+    * Resolve against a list of resolvers; the first defined value wins
+    * @param resolvers The resolvers in priority order
+    * @return The resolver
+    */
+   public static PropertyResolver chain(List<PropertyResolver> resolvers)
+   {
+      if (resolvers == null)
+         throw new IllegalArgumentException("Resolvers is null");
+
+      final PropertyResolver[] chain = resolvers.toArray(new PropertyResolver[resolvers.size()]);
+
+      if (chain.length == 1)
+         return chain[0];
+
+      return new PropertyResolver()
+      {
+         public String getProperty(String key)
+         {
+            for (int i = 0; i < chain.length; i++)
+            {
+               String value = chain[i].getProperty(key);
+
+               if (value != null)
+                  return value;
+            }
+
+            return null;
+         }
+
+         public String toString()
+         {
+            List<PropertyResolver> l = new ArrayList<PropertyResolver>(chain.length);
+            for (PropertyResolver pr : chain)
+            {
+               l.add(pr);
+            }
+            return "Chain" + l;
+         }
+      };
+   }
+}
@@ -0,0 +1,222 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.api.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A precompiled property substitution template.
+ *
+ * The supported expressions are <code>${property}</code>, <code>${property:default}</code>,
+ * <code>${/}</code> (file separator) and <code>${:}</code> (path separator). The input is
+ * parsed once and every resolution is a single pass over the parsed segments; resolved
+ * values are not substituted again.
+ *
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public final class PropertyTemplate
+{
+   /** The empty template */
+   private static final PropertyTemplate EMPTY = new PropertyTemplate("", null, null, null);
+
+   /** The input */
+   private String input;
+
+   /** The literal segments; one more than the number of expressions */
+   private String[] literals;
+
+   /** The expression keys */
+   private String[] keys;
+
+   /** The expression default values */
+   private String[] defaults;
+
+   /**
+    * Constructor
+    * @param input The input
+    * @param literals The literal segments
+    * @param keys The expression keys
+    * @param defaults The expression default values
+    */
+   private PropertyTemplate(String input, String[] literals, String[] keys, String[] defaults)
+   {
+      this.input = input;
+      this.literals = literals;
+      this.keys = keys;
+      this.defaults = defaults;
+   }
+
+   /**
+    * Compile a template
+    * @param input The input
+    * @return The template; <code>null</code> if the input is <code>null</code>
+    */
+   public static PropertyTemplate compile(String input)
+   {
+      if (input == null)
+         return null;
+
+      if (input.length() == 0)
+         return EMPTY;
+
+      int from = input.indexOf("${");
+
+      if (from == -1)
+         return new PropertyTemplate(input, null, null, null);
+
+      List<String> literals = new ArrayList<String>(2);
+      List<String> keys = new ArrayList<String>(1);
+      List<String> defaults = new ArrayList<String>(1);
+
+      StringBuilder literal = new StringBuilder(input.length());
+      int pos = 0;
+
+      while (from != -1)
+      {
+         int to = input.indexOf('}', from + 2);
+
+         if (to == -1)
+            break;
+
+         literal.append(input, pos, from);
+
+         String expression = input.substring(from + 2, to);
+
+         if ("/".equals(expression))
+         {
+            literal.append(File.separator);
+         }
+         else if (":".equals(expression))
+         {
+            literal.append(File.pathSeparator);
+         }
+         else
+         {
+            int dv = expression.indexOf(':');
+
+            literals.add(literal.toString());
+            literal.setLength(0);
+
+            if (dv == -1)
+            {
+               keys.add(expression);
+               defaults.add(null);
+            }
+            else
+            {
+               keys.add(expression.substring(0, dv));
+               defaults.add(expression.substring(dv + 1));
+            }
+         }
+
+         pos = to + 1;
+         from = input.indexOf("${", pos);
+      }
+
+      literal.append(input, pos, input.length());
+
+      if (keys.size() == 0)
+         return new PropertyTemplate(literal.toString(), null, null, null);
+
+      literals.add(literal.toString());
+
+      return new PropertyTemplate(input,
+                                  literals.toArray(new String[literals.size()]),
+                                  keys.toArray(new String[keys.size()]),
+                                  defaults.toArray(new String[defaults.size()]));
+   }
+
+   /**
+    * Is the template constant; i.e. without any property references
+    * @return True if constant, otherwise false
+    */
+   public boolean isConstant()
+   {
+      return keys == null;
+   }
+
+   /**
+    * Get the property keys referenced by the template
+    * @return The keys in order of first appearance
+    */
+   public Set<String> getKeys()
+   {
+      if (keys == null)
+         return Collections.emptySet();
+
+      Set<String> result = new LinkedHashSet<String>(keys.length);
+      for (String key : keys)
+      {
+         result.add(key);
+      }
+      return Collections.unmodifiableSet(result);
+   }
+
+   /**
+    * Resolve the template
+    * @param resolver The property resolver
+    * @return The resolved value
+    */
+   public String resolve(PropertyResolver resolver)
+   {
+      if (keys == null)
+         return input;
+
+      if (resolver == null)
+         throw new IllegalArgumentException("Resolver is null");
+
+      StringBuilder sb = new StringBuilder(input.length() + 16);
+
+      for (int i = 0; i < keys.length; i++)
+      {
+         sb.append(literals[i]);
+
+         String value = resolver.getProperty(keys[i]);
+
+         if (value != null && !value.trim().equals(""))
+         {
+            sb.append(value);
+         }
+         else if (defaults[i] != null && !defaults[i].trim().equals(""))
+         {
+            sb.append(defaults[i]);
+         }
+      }
+
+      sb.append(literals[keys.length]);
+
+      return sb.toString();
+   }
+
+   /**
+    * String representation
+    * @return The string
+    */
+   public String toString()
+   {
+      return input;
+   }
+}
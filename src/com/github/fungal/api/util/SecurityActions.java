@@ -58,4 +58,27 @@ class SecurityActions
          });
       }
    }
+
+   /**
+    * Get an environment variable
+    * @param name The variable name
+    * @return The variable value
+    */
+   static String getEnvironmentVariable(final String name)
+   {
+      if (System.getSecurityManager() == null)
+      {
+         return System.getenv(name);
+      }
+      else
+      {
+         return (String)AccessController.doPrivileged(new PrivilegedAction<Object>() 
+         {
+            public Object run()
+            {
+               return System.getenv(name);
+            }
+         });
+      }
+   }
 }
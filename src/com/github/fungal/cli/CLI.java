@@ -20,14 +20,20 @@
 
 package com.github.fungal.cli;
 
+import com.github.fungal.api.util.FileUtil;
+
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.lang.reflect.Array;
 import java.net.Socket;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 /**
  * The command line interface for the Fungal kernel
@@ -35,6 +41,15 @@ import java.net.URL;
  */
 public class CLI
 {
+   /** The upload deploy command */
+   private static final String UPLOAD_DEPLOY = "upload-deploy";
+
+   /** The chunk size of an upload */
+   private static final int CHUNK_SIZE = 1024 * 1024;
+
+   /** The number of attempts to resume an upload */
+   private static final int MAX_RETRIES = 5;
+
    /**
     * Constructor
     */
@@ -82,6 +97,12 @@ public class CLI
             if (host == null)
                host = "localhost";
 
+            if (UPLOAD_DEPLOY.equals(command))
+            {
+               uploadDeploy(host, port, new File(args[counter]));
+               return;
+            }
+
             socket = new Socket(host, port);
 
             ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
@@ -104,8 +125,25 @@ public class CLI
                   arguments = new Serializable[parameterTypes.length];
                   for (int i = 0; i < parameterTypes.length; i++)
                   {
-                     arguments[i] = getValue(parameterTypes[i], args[counter]);
-                     counter++;
+                     if (parameterTypes[i].isArray() && i == parameterTypes.length - 1)
+                     {
+                        // The remaining arguments are the elements of the array
+                        Class<?> type = parameterTypes[i].getComponentType();
+                        Object array = Array.newInstance(type, args.length - counter);
+
+                        for (int j = 0; counter < args.length; j++)
+                        {
+                           Array.set(array, j, getValue(type, args[counter]));
+                           counter++;
+                        }
+
+                        arguments[i] = (Serializable)array;
+                     }
+                     else
+                     {
+                        arguments[i] = getValue(parameterTypes[i], args[counter]);
+                        counter++;
+                     }
                   }
                }
 
@@ -144,6 +182,32 @@ public class CLI
     */
    private static void executeCommand(String host, int port, String command, Serializable[] arguments)
       throws Throwable
+   {
+      try
+      {
+         Serializable result = invokeCommand(host, port, command, arguments);
+
+         if (result != null)
+         {
+            System.out.println(result);
+         }
+      }
+      catch (EOFException ee)
+      {
+         // Nothing
+      }
+   }
+
+   /**
+    * Invoke command
+    * @param host The host
+    * @param port The port
+    * @param command The command
+    * @param arguments The arguments
+    * @return The result
+    */
+   private static Serializable invokeCommand(String host, int port, String command, Serializable[] arguments)
+      throws Throwable
    {
       Socket socket = null;
 
@@ -167,16 +231,7 @@ public class CLI
 
          ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
          
-         Serializable result = (Serializable)ois.readObject();
-
-         if (result != null)
-         {
-            System.out.println(result);
-         }
-      }
-      catch (EOFException ee)
-      {
-         // Nothing
+         return (Serializable)ois.readObject();
       }
       finally
       {
@@ -192,6 +247,110 @@ public class CLI
       }
    }
 
+   /**
+    * Upload a file in chunks and deploy it. The upload is resumed from the offset
+    * reported by the kernel if the connection is lost
+    * @param host The host
+    * @param port The port
+    * @param file The file
+    */
+   private static void uploadDeploy(String host, int port, File file) throws Throwable
+   {
+      if (!file.isFile())
+         throw new IOException("File not found: " + file);
+
+      String name = file.getName();
+      Long size = Long.valueOf(file.length());
+      String checksum = new FileUtil().checksum(file);
+
+      byte[] buffer = new byte[CHUNK_SIZE];
+      long offset = -1;
+      int retries = 0;
+
+      RandomAccessFile raf = null;
+      try
+      {
+         raf = new RandomAccessFile(file, "r");
+
+         while (true)
+         {
+            Serializable result = null;
+            try
+            {
+               if (offset < 0)
+               {
+                  // Ask for the offset to continue from
+                  result = invokeCommand(host, port, UPLOAD_DEPLOY,
+                                         new Serializable[] {name, size, checksum, Long.valueOf(0L), null, null});
+               }
+               else
+               {
+                  int length = (int)Math.min(CHUNK_SIZE, size.longValue() - offset);
+
+                  raf.seek(offset);
+                  raf.readFully(buffer, 0, length);
+
+                  byte[] data = length == CHUNK_SIZE ? buffer : Arrays.copyOf(buffer, length);
+
+                  CRC32 crc = new CRC32();
+                  crc.update(data);
+
+                  result = invokeCommand(host, port, UPLOAD_DEPLOY,
+                                         new Serializable[] {name, size, checksum, Long.valueOf(offset),
+                                                             data, Long.valueOf(crc.getValue())});
+               }
+
+               // Back off when the kernel rejects the request as busy
+               if (result instanceof IOException && ((IOException)result).getMessage() != null &&
+                   ((IOException)result).getMessage().startsWith("Server busy"))
+                  throw (IOException)result;
+
+               retries = 0;
+            }
+            catch (IOException ioe)
+            {
+               retries++;
+
+               if (retries > MAX_RETRIES)
+                  throw ioe;
+
+               System.err.println("Resuming upload of " + name + ": " + ioe.getMessage());
+
+               Thread.sleep(1000L * retries);
+
+               offset = -1;
+               continue;
+            }
+
+            if (result instanceof Long)
+            {
+               offset = ((Long)result).longValue();
+            }
+            else
+            {
+               if (result != null)
+                  System.out.println(result);
+
+               return;
+            }
+         }
+      }
+      finally
+      {
+         if (raf != null)
+         {
+            try
+            {
+               raf.close();
+            }
+            catch (IOException ignore)
+            {
+               // Ignore
+            }
+         }
+      }
+   }
+
    /**
     * Get an instance of the type
     * @param type The type
@@ -319,5 +478,6 @@ public class CLI
       System.out.println(" Commands:");
       System.out.println(" ---------");
       System.out.println(" For a list of commands use \"help\"");
+      System.out.println(" upload-deploy <file> (uploads and deploys the file)");
    }
 }
@@ -42,6 +42,9 @@ public class BeanType
    private String name;
    private String interfaze;
    private String clazz;
+   private Boolean lazy;
+   private String scope;
+   private Boolean asyncStart;
 
    /**
     * Constructor
@@ -62,6 +65,9 @@ public class BeanType
       name = null;
       interfaze = null;
       clazz = null;
+      lazy = null;
+      scope = null;
+      asyncStart = null;
    }
 
    /**
@@ -279,4 +285,58 @@ public class BeanType
    {
       clazz = value;
    }
+
+   /**
+    * Get the lazy value
+    * @return The value; <code>null</code> if the deployment default should be used
+    */
+   public Boolean getLazy()
+   {
+      return lazy;
+   }
+
+   /**
+    * Set the lazy value
+    * @param value The value
+    */
+   public void setLazy(Boolean value)
+   {
+      lazy = value;
+   }
+
+   /**
+    * Get the scope
+    * @return The value
+    */
+   public String getScope()
+   {
+      return scope;
+   }
+
+   /**
+    * Set the scope
+    * @param value The value
+    */
+   public void setScope(String value)
+   {
+      scope = value;
+   }
+
+   /**
+    * Get the async start value
+    * @return The value
+    */
+   public Boolean getAsyncStart()
+   {
+      return asyncStart;
+   }
+
+   /**
+    * Set the async start value
+    * @param value The value
+    */
+   public void setAsyncStart(Boolean value)
+   {
+      asyncStart = value;
+   }
 }
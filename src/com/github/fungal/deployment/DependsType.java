@@ -26,6 +26,7 @@ package com.github.fungal.deployment;
 public class DependsType
 {
    private String value;
+   private Boolean ready;
 
    /**
     * Constructor
@@ -33,6 +34,7 @@ public class DependsType
    public DependsType()
    {
       value = null;
+      ready = null;
    }
 
    /**
@@ -52,4 +54,22 @@ public class DependsType
    {
       this.value = value;
    }
+
+   /**
+    * Get the ready value
+    * @return The value
+    */
+   public Boolean getReady()
+   {
+      return ready;
+   }
+
+   /**
+    * Set the ready value
+    * @param value The value
+    */
+   public void setReady(Boolean value)
+   {
+      this.ready = value;
+   }
 }
@@ -29,6 +29,7 @@ import java.util.List;
 public class Deployment
 {
    private List<BeanType> bean;
+   private boolean lazy;
 
    /**
     * Constructor
@@ -36,6 +37,7 @@ public class Deployment
    public Deployment()
    {
       bean = null;
+      lazy = false;
    }
 
    /**
@@ -50,6 +52,24 @@ public class Deployment
       return bean;
    }
 
+   /**
+    * Are the beans lazy by default
+    * @return The value
+    */
+   public boolean isLazy()
+   {
+      return lazy;
+   }
+
+   /**
+    * Set if the beans are lazy by default
+    * @param value The value
+    */
+   public void setLazy(boolean value)
+   {
+      lazy = value;
+   }
+
    /**
     * String representation
     * @return The value
@@ -20,12 +20,15 @@
 
 package com.github.fungal.deployment;
 
+import com.github.fungal.api.util.PropertyTemplate;
+
 /**
  * Represents a key element
  */
 public class KeyType
 {
    private String value;
+   private PropertyTemplate template;
 
    /**
     * Constructor
@@ -33,6 +36,7 @@ public class KeyType
    public KeyType()
    {
       value = null;
+      template = null;
    }
 
    /**
@@ -51,5 +55,15 @@ public class KeyType
    public void setValue(String value)
    {
       this.value = value;
+      this.template = PropertyTemplate.compile(value);
+   }
+
+   /**
+    * Get the precompiled value template
+    * @return The value
+    */
+   public PropertyTemplate getTemplate()
+   {
+      return template;
    }
 }
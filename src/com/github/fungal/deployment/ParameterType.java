@@ -20,6 +20,8 @@
 
 package com.github.fungal.deployment;
 
+import com.github.fungal.api.util.PropertyTemplate;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,6 +31,7 @@ import java.util.List;
 public class ParameterType
 {
    private List<Object> content;
+   private PropertyTemplate template;
    private String clazz;
 
    /**
@@ -37,6 +40,7 @@ public class ParameterType
    public ParameterType()
    {
       content = null;
+      template = null;
       clazz = null;
    }
 
@@ -52,6 +56,27 @@ public class ParameterType
       return this.content;
    }
 
+   /**
+    * Get the precompiled template for a text value
+    * @return The value; <code>null</code> if the content isn't a text value
+    */
+   public PropertyTemplate getTemplate()
+   {
+      if (template == null && content != null && content.size() > 0 && content.get(0) instanceof String)
+         template = PropertyTemplate.compile((String)content.get(0));
+
+      return template;
+   }
+
+   /**
+    * Set the precompiled template for a text value
+    * @param value The value
+    */
+   public void setTemplate(PropertyTemplate value)
+   {
+      template = value;
+   }
+
    /**
     * Get the class
     * @return The value
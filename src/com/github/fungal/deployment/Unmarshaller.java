@@ -20,6 +20,8 @@
 
 package com.github.fungal.deployment;
 
+import com.github.fungal.api.util.PropertyTemplate;
+
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -60,8 +62,6 @@ public class Unmarshaller
       InputStream is = null;
       try
       {
-         Deployment deployment = new Deployment();
-
          if ("file".equals(url.getProtocol()))
          {
             File file = new File(url.toURI());
@@ -77,10 +77,47 @@ public class Unmarshaller
             throw new IOException("Unsupport protocol: " + url);
          }
 
-         is = new BufferedInputStream(is, 4096);
+         return unmarshal(is);
+      }
+      catch (IOException ioe)
+      {
+         throw ioe;
+      }
+      catch (Throwable t)
+      {
+         throw new IOException(t.getMessage(), t);
+      }
+      finally
+      {
+         try
+         {
+            if (is != null)
+               is.close();
+         }
+         catch (IOException ioe)
+         {
+            // Ignore
+         }
+      }
+   }
+
+   /**
+    * Unmarshal; the stream isn't closed
+    * @param is The input stream
+    * @return The result
+    * @exception IOException If an I/O error occurs
+    */
+   public Deployment unmarshal(InputStream is) throws IOException
+   {
+      if (is == null)
+         throw new IllegalArgumentException("InputStream is null");
+
+      try
+      {
+         Deployment deployment = new Deployment();
 
          XmlPullParser parser = Xml.newPullParser();
-         parser.setInput(is, null);
+         parser.setInput(new BufferedInputStream(is, 4096), null);
 
          int eventType = parser.getEventType();
          while (eventType != XmlPullParser.END_DOCUMENT)
@@ -90,7 +127,17 @@ public class Unmarshaller
                case XmlPullParser.START_TAG :
 
                   if ("bean".equals(parser.getName()))
+                  {
                      deployment.getBean().add(readBean(parser));
+                  }
+                  else if ("deployment".equals(parser.getName()))
+                  {
+                     for (int i = 0; i < parser.getAttributeCount(); i++)
+                     {
+                        if ("lazy".equals(parser.getAttributeName(i)))
+                           deployment.setLazy(Boolean.valueOf(parser.getAttributeValue(i)).booleanValue());
+                     }
+                  }
 
                   break;
                default :
@@ -105,18 +152,6 @@ public class Unmarshaller
       {
          throw new IOException(t.getMessage(), t);
       }
-      finally
-      {
-         try
-         {
-            if (is != null)
-               is.close();
-         }
-         catch (IOException ioe)
-         {
-            // Ignore
-         }
-      }
    }
 
    /**
@@ -145,6 +180,18 @@ public class Unmarshaller
          {
             result.setInterface(parser.getAttributeValue(i));
          }
+         else if ("lazy".equals(name))
+         {
+            result.setLazy(Boolean.valueOf(parser.getAttributeValue(i)));
+         }
+         else if ("scope".equals(name))
+         {
+            result.setScope(parser.getAttributeValue(i));
+         }
+         else if ("async-start".equals(name))
+         {
+            result.setAsyncStart(Boolean.valueOf(parser.getAttributeValue(i)));
+         }
       }
 
       int eventType = parser.getEventType();
@@ -310,7 +357,10 @@ public class Unmarshaller
 
             case XmlPullParser.TEXT :
                if (!parser.getText().trim().equals(""))
+               {
                   result.getContent().add(parser.getText());
+                  result.setTemplate(PropertyTemplate.compile(parser.getText()));
+               }
 
                break;
 
@@ -388,7 +438,10 @@ public class Unmarshaller
 
             case XmlPullParser.TEXT :
                if (!parser.getText().trim().equals(""))
+               {
                   result.getContent().add(parser.getText());
+                  result.setTemplate(PropertyTemplate.compile(parser.getText()));
+               }
 
                break;
 
@@ -461,6 +514,12 @@ public class Unmarshaller
    {
       DependsType result = new DependsType();
 
+      for (int i = 0; i < parser.getAttributeCount(); i++)
+      {
+         if ("ready".equals(parser.getAttributeName(i)))
+            result.setReady(Boolean.valueOf(parser.getAttributeValue(i)));
+      }
+
       int eventType = parser.getEventType();
 
       while (eventType != XmlPullParser.END_TAG)
@@ -0,0 +1,559 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.api.classloading.ClassLoaderFactory;
+import com.github.fungal.api.classloading.KernelClassLoader;
+import com.github.fungal.api.configuration.KernelConfiguration;
+import com.github.fungal.api.util.FileUtil;
+import com.github.fungal.deployment.Unmarshaller;
+import com.github.fungal.spi.deployers.CloneableDeployer;
+import com.github.fungal.spi.deployers.DeployException;
+import com.github.fungal.spi.deployers.Deployer;
+import com.github.fungal.spi.deployers.Deployment;
+import com.github.fungal.spi.deployers.MultiStageDeployer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The archive deployer (deploys .jar files with META-INF/*-beans.xml descriptors).
+ * Each archive gets its own class loader, and is exploded into a directory under the
+ * kernel home that is named by the checksum of the archive, such that an unchanged
+ * archive is reused on restart and redeploy instead of being extracted again
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public final class ArchiveDeployer implements CloneableDeployer, MultiStageDeployer
+{
+   /** The logger */
+   private Logger log = Logger.getLogger(ArchiveDeployer.class.getName());
+
+   /** The kernel */
+   private KernelImpl kernel;
+
+   /** The deployer of the bean descriptors */
+   private DeploymentDeployer deploymentDeployer;
+
+   /**
+    * Constructor
+    * @param kernel The kernel
+    */
+   public ArchiveDeployer(KernelImpl kernel)
+   {
+      if (kernel == null)
+         throw new IllegalArgumentException("Kernel is null");
+
+      this.kernel = kernel;
+      this.deploymentDeployer = new DeploymentDeployer(kernel);
+   }
+
+   /**
+    * Deploy
+    * @param url The URL
+    * @param parent The parent classloader
+    * @return The deployment; or null if no deployment was made
+    * @exception DeployException Thrown if an error occurs during deployment
+    */
+   public Deployment deploy(URL url, ClassLoader parent) throws DeployException
+   {
+      if (!isArchive(url))
+         return null;
+
+      KernelClassLoader classLoader = null;
+      BeanGraph graph = null;
+      List<BeanDeployment> deployments = Collections.synchronizedList(new ArrayList<BeanDeployment>(1));
+      try
+      {
+         File archive = new File(url.toURI());
+
+         if (!archive.isFile() || !hasDescriptors(archive))
+            return null;
+
+         File directory = explode(archive);
+
+         classLoader = createClassLoader(directory, parent);
+
+         // The descriptors form one graph, such that their beans can depend on each other
+         List<URL> urls = new ArrayList<URL>(1);
+         Map<URL, com.github.fungal.deployment.Deployment> descriptors =
+            new HashMap<URL, com.github.fungal.deployment.Deployment>(1);
+         graph = new BeanGraph();
+
+         for (File f : getDescriptors(directory))
+         {
+            URL descriptorUrl = f.toURI().toURL();
+            Unmarshaller deploymentU = new Unmarshaller();
+            com.github.fungal.deployment.Deployment descriptor = deploymentU.unmarshal(descriptorUrl);
+
+            urls.add(descriptorUrl);
+            descriptors.put(descriptorUrl, descriptor);
+
+            if (descriptor.getBean().size() > 0)
+               graph.add(descriptorUrl, descriptor);
+         }
+
+         graph.validate(kernel);
+
+         if (graph.getFailures().size() > 0)
+         {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<URL, String> failure : graph.getFailures().entrySet())
+            {
+               if (sb.length() > 0)
+                  sb.append(", ");
+
+               sb.append(failure.getKey()).append(": ").append(failure.getValue());
+            }
+
+            throw new DeployException("Invalid descriptors: " + sb.toString());
+         }
+
+         // All beans are known before the first one is created
+         for (String bean : graph.getBeans())
+         {
+            if (kernel.getBeanStatus(bean) == null)
+               kernel.setBeanStatus(bean, ServiceLifecycle.NOT_STARTED);
+         }
+
+         // A descriptor follows the descriptors it depends on; descriptors that depend
+         // on each other are deployed concurrently
+         for (List<URL> batch : graph.getSchedule(urls))
+         {
+            deploy(batch, descriptors, classLoader, deployments);
+         }
+
+         return new ArchiveDeployment(url, directory, new ArrayList<BeanDeployment>(deployments), classLoader);
+      }
+      catch (Throwable t)
+      {
+         log.log(Level.SEVERE, t.getMessage(), t);
+
+         Collections.reverse(deployments);
+         for (BeanDeployment bd : deployments)
+         {
+            try
+            {
+               bd.destroy();
+            }
+            catch (Throwable destroy)
+            {
+               log.log(Level.WARNING, destroy.getMessage(), destroy);
+            }
+         }
+
+         if (graph != null)
+         {
+            for (String bean : graph.getBeans())
+            {
+               if (kernel.getBeanStatus(bean) == ServiceLifecycle.NOT_STARTED)
+                  kernel.setBeanStatus(bean, ServiceLifecycle.ERROR);
+            }
+         }
+
+         if (classLoader != null)
+         {
+            try
+            {
+               classLoader.shutdown();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+
+         throw new DeployException("Deployment " + url + " failed", t);
+      }
+   }
+
+   /**
+    * Deploy a batch of descriptors. A single descriptor is deployed by the calling thread;
+    * otherwise the descriptors depend on each other, and are deployed concurrently
+    * @param batch The URLs of the descriptors
+    * @param descriptors The descriptors
+    * @param classLoader The class loader of the archive
+    * @param deployments The deployments that were made
+    * @exception Throwable Thrown if a descriptor can't be deployed
+    */
+   private void deploy(List<URL> batch, Map<URL, com.github.fungal.deployment.Deployment> descriptors,
+                       ClassLoader classLoader, List<BeanDeployment> deployments) throws Throwable
+   {
+      if (batch.size() == 1)
+      {
+         URL descriptorUrl = batch.get(0);
+         Deployment deployment = deploymentDeployer.deploy(descriptorUrl, descriptors.get(descriptorUrl), classLoader);
+
+         if (deployment instanceof BeanDeployment)
+            deployments.add((BeanDeployment)deployment);
+
+         return;
+      }
+
+      CountDownLatch latch = new CountDownLatch(batch.size());
+      List<DescriptorDeployer> deployers = new ArrayList<DescriptorDeployer>(batch.size());
+
+      for (URL descriptorUrl : batch)
+      {
+         deployers.add(new DescriptorDeployer(descriptorUrl, descriptors.get(descriptorUrl), classLoader,
+                                              deployments, latch));
+      }
+
+      for (int i = 1; i < deployers.size(); i++)
+      {
+         kernel.getExecutorService().execute(deployers.get(i));
+      }
+
+      deployers.get(0).run();
+
+      latch.await();
+
+      for (DescriptorDeployer deployer : deployers)
+      {
+         if (deployer.getThrowable() != null)
+            throw deployer.getThrowable();
+      }
+   }
+
+   /**
+    * Does an archive contain bean descriptors
+    * @param archive The archive
+    * @return True if META-INF contains a -beans.xml file; otherwise false
+    * @exception IOException Thrown if the archive can't be read
+    */
+   private boolean hasDescriptors(File archive) throws IOException
+   {
+      JarFile jar = new JarFile(archive);
+      try
+      {
+         Enumeration<JarEntry> entries = jar.entries();
+         while (entries.hasMoreElements())
+         {
+            if (isDescriptor(entries.nextElement().getName()))
+               return true;
+         }
+      }
+      finally
+      {
+         try
+         {
+            jar.close();
+         }
+         catch (IOException ignore)
+         {
+            // Ignore
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Read the bean descriptors of an archive into a single descriptor, such that the beans
+    * of the archive can be part of a bean graph before the archive is deployed
+    * @param archive The archive
+    * @return The descriptor; without beans if the archive doesn't contain bean descriptors
+    * @exception IOException Thrown if the archive or a descriptor can't be read
+    */
+   static com.github.fungal.deployment.Deployment readDescriptors(File archive) throws IOException
+   {
+      com.github.fungal.deployment.Deployment result = new com.github.fungal.deployment.Deployment();
+
+      JarFile jar = new JarFile(archive);
+      try
+      {
+         Enumeration<JarEntry> entries = jar.entries();
+         while (entries.hasMoreElements())
+         {
+            JarEntry entry = entries.nextElement();
+
+            if (isDescriptor(entry.getName()))
+            {
+               InputStream is = jar.getInputStream(entry);
+               try
+               {
+                  Unmarshaller deploymentU = new Unmarshaller();
+                  result.getBean().addAll(deploymentU.unmarshal(is).getBean());
+               }
+               finally
+               {
+                  is.close();
+               }
+            }
+         }
+      }
+      finally
+      {
+         try
+         {
+            jar.close();
+         }
+         catch (IOException ignore)
+         {
+            // Ignore
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Is an URL an archive that can be deployed by the archive deployer
+    * @param url The URL
+    * @return True if a .jar file URL; otherwise false
+    */
+   static boolean isArchive(URL url)
+   {
+      return url != null && "file".equals(url.getProtocol()) && url.toString().endsWith(".jar");
+   }
+
+   /**
+    * Is an archive entry a bean descriptor
+    * @param name The name of the entry
+    * @return True if a -beans.xml file in META-INF; otherwise false
+    */
+   private static boolean isDescriptor(String name)
+   {
+      return name.startsWith("META-INF/") && name.indexOf('/', 9) == -1 && name.endsWith("-beans.xml");
+   }
+
+   /**
+    * Get the bean descriptors of an exploded archive
+    * @param directory The exploded archive
+    * @return The descriptors in name order
+    */
+   private List<File> getDescriptors(File directory)
+   {
+      File[] files = new File(directory, "META-INF").listFiles();
+
+      if (files == null)
+         return Collections.emptyList();
+
+      List<File> result = new ArrayList<File>(files.length);
+      for (File f : files)
+      {
+         if (f.isFile() && f.getName().endsWith("-beans.xml"))
+            result.add(f);
+      }
+
+      Collections.sort(result);
+
+      return result;
+   }
+
+   /**
+    * Explode an archive. The directory is named after the archive, its location and its checksum;
+    * an existing directory is reused, and directories of other versions of the archive are removed
+    * @param archive The archive
+    * @return The exploded archive
+    * @exception IOException Thrown if the archive can't be extracted
+    */
+   private File explode(File archive) throws IOException
+   {
+      File root = kernel.getArchiveDirectory();
+
+      if (root == null)
+         throw new IOException("No archive directory");
+
+      FileUtil fileUtil = new FileUtil();
+      String prefix = archive.getName() + "-" + Integer.toHexString(archive.getAbsolutePath().hashCode()) + "-";
+      String name = prefix + fileUtil.checksum(archive);
+      File directory = new File(root, name);
+
+      if (directory.isDirectory())
+      {
+         if (log.isLoggable(Level.FINE))
+            log.fine("Using exploded archive " + directory);
+
+         return directory;
+      }
+
+      if (!root.mkdirs() && !root.isDirectory())
+         throw new IOException("Could not create " + root);
+
+      // Extract into a staging directory, and move it into place once complete
+      File staging = new File(root, "." + name + "." + System.nanoTime());
+      try
+      {
+         File exploded = fileUtil.extract(archive, staging);
+
+         if (!exploded.renameTo(directory) && !directory.isDirectory())
+            throw new IOException("Could not create " + directory);
+      }
+      finally
+      {
+         if (staging.exists())
+            fileUtil.delete(staging);
+      }
+
+      String[] list = root.list();
+      if (list != null)
+      {
+         for (String entry : list)
+         {
+            if (!entry.equals(name) && (isVersion(entry, prefix) || entry.startsWith("." + prefix)))
+            {
+               try
+               {
+                  fileUtil.delete(new File(root, entry));
+               }
+               catch (IOException ioe)
+               {
+                  log.log(Level.FINE, "Unable to delete " + entry, ioe);
+               }
+            }
+         }
+      }
+
+      return directory;
+   }
+
+   /**
+    * Is a directory a version of an exploded archive
+    * @param entry The name of the directory
+    * @param prefix The name prefix of the archive
+    * @return True if the name is the prefix followed by a checksum; otherwise false
+    */
+   private static boolean isVersion(String entry, String prefix)
+   {
+      if (!entry.startsWith(prefix))
+         return false;
+
+      return entry.substring(prefix.length()).matches("[0-9a-f]+-[0-9a-f]+");
+   }
+
+   /**
+    * Create the class loader of an exploded archive
+    * @param directory The exploded archive
+    * @param parent The parent class loader
+    * @return The class loader
+    * @exception IOException Thrown if the directory can't be converted to an URL
+    */
+   private KernelClassLoader createClassLoader(File directory, ClassLoader parent) throws IOException
+   {
+      KernelConfiguration kc = kernel.getKernelConfiguration();
+      URL[] urls = new URL[] {directory.toURI().toURL()};
+
+      if (kc.isClassLoaderIndex())
+         return ClassLoaderFactory.create(kc.getClassLoader(), urls, parent, null, kernel.getExecutorService());
+
+      return ClassLoaderFactory.create(kc.getClassLoader(), urls, parent);
+   }
+
+   /**
+    * Clone
+    * @return The copy of the object
+    * @exception CloneNotSupportedException Thrown if a copy can't be created
+    */
+   public Deployer clone() throws CloneNotSupportedException
+   {
+      ArchiveDeployer ad = (ArchiveDeployer)super.clone();
+      ad.kernel = kernel;
+      ad.deploymentDeployer = deploymentDeployer;
+
+      return ad;
+   }
+   /**
+    * Deploys a descriptor of an archive
+    */
+   class DescriptorDeployer implements Runnable
+   {
+      /** The URL of the descriptor */
+      private URL url;
+
+      /** The descriptor */
+      private com.github.fungal.deployment.Deployment descriptor;
+
+      /** The class loader */
+      private ClassLoader classLoader;
+
+      /** The deployments that were made */
+      private List<BeanDeployment> deployments;
+
+      /** The latch */
+      private CountDownLatch latch;
+
+      /** The error */
+      private volatile Throwable throwable;
+
+      /**
+       * Constructor
+       * @param url The URL of the descriptor
+       * @param descriptor The descriptor
+       * @param classLoader The class loader
+       * @param deployments The deployments that were made
+       * @param latch The latch
+       */
+      DescriptorDeployer(URL url, com.github.fungal.deployment.Deployment descriptor, ClassLoader classLoader,
+                         List<BeanDeployment> deployments, CountDownLatch latch)
+      {
+         this.url = url;
+         this.descriptor = descriptor;
+         this.classLoader = classLoader;
+         this.deployments = deployments;
+         this.latch = latch;
+         this.throwable = null;
+      }
+
+      /**
+       * Get the error
+       * @return The value; <code>null</code> if the descriptor was deployed
+       */
+      Throwable getThrowable()
+      {
+         return throwable;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         try
+         {
+            Deployment deployment = deploymentDeployer.deploy(url, descriptor, classLoader);
+
+            if (deployment instanceof BeanDeployment)
+               deployments.add((BeanDeployment)deployment);
+         }
+         catch (Throwable t)
+         {
+            throwable = t;
+         }
+         finally
+         {
+            latch.countDown();
+         }
+      }
+   }
+}
@@ -0,0 +1,160 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.api.classloading.KernelClassLoader;
+import com.github.fungal.spi.deployers.Deployment;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A deployment of a packaged unit; an archive with bean descriptors and classes
+ * that is deployed through its own class loader
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public class ArchiveDeployment implements Deployment
+{
+   /** The logger */
+   private static Logger log = Logger.getLogger(ArchiveDeployment.class.getName());
+
+   /** The deployment */
+   private URL deployment;
+
+   /** The exploded archive */
+   private File directory;
+
+   /** The deployments of the bean descriptors in deployment order */
+   private List<BeanDeployment> deployments;
+
+   /** The class loader */
+   private KernelClassLoader classLoader;
+
+   /**
+    * Constructor
+    * @param deployment The deployment
+    * @param directory The exploded archive
+    * @param deployments The deployments of the bean descriptors in deployment order
+    * @param classLoader The class loader
+    */
+   public ArchiveDeployment(URL deployment,
+                            File directory,
+                            List<BeanDeployment> deployments,
+                            KernelClassLoader classLoader)
+   {
+      if (deployment == null)
+         throw new IllegalArgumentException("Deployment is null");
+
+      if (directory == null)
+         throw new IllegalArgumentException("Directory is null");
+
+      if (deployments == null)
+         throw new IllegalArgumentException("Deployments is null");
+
+      if (classLoader == null)
+         throw new IllegalArgumentException("ClassLoader is null");
+
+      this.deployment = deployment;
+      this.directory = directory;
+      this.deployments = deployments;
+      this.classLoader = classLoader;
+   }
+
+   /**
+    * Get the unique URL for the deployment
+    * @return The URL
+    */
+   public URL getURL()
+   {
+      return deployment;
+   }
+
+   /**
+    * Get the classloader
+    * @return The classloader
+    */
+   public ClassLoader getClassLoader()
+   {
+      return classLoader;
+   }
+
+   /**
+    * Get the exploded archive
+    * @return The directory
+    */
+   File getDirectory()
+   {
+      return directory;
+   }
+
+   /**
+    * Get the deployments of the bean descriptors
+    * @return The deployments in deployment order
+    */
+   List<BeanDeployment> getDeployments()
+   {
+      return Collections.unmodifiableList(deployments);
+   }
+
+   /**
+    * Destroy the beans of the bean descriptors in reverse deployment order,
+    * and shutdown the class loader. The exploded archive is kept for the next deployment
+    * @exception Throwable If the unit cant be destroyed
+    */
+   public void onDestroy() throws Throwable
+   {
+      Throwable failure = null;
+
+      List<BeanDeployment> shutdownDeployments = new ArrayList<BeanDeployment>(deployments);
+      Collections.reverse(shutdownDeployments);
+
+      for (BeanDeployment bd : shutdownDeployments)
+      {
+         try
+         {
+            bd.destroy();
+         }
+         catch (Throwable t)
+         {
+            if (failure == null)
+               failure = t;
+         }
+      }
+
+      try
+      {
+         classLoader.shutdown();
+      }
+      catch (IOException ioe)
+      {
+         log.log(Level.FINE, "Unable to shutdown the class loader for " + deployment, ioe);
+      }
+
+      if (failure != null)
+         throw failure;
+   }
+}
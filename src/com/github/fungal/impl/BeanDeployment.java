@@ -25,33 +25,50 @@ import com.github.fungal.spi.deployers.Deployment;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * A bean deployment for Fungal
+ * A bean deployment for Fungal.
+ *
+ * The collections that the beans register themselves in during deployment are
+ * compacted into a bean table once the unit is deployed, such that a deployed unit
+ * only retains what is needed to undeploy it
  * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
  */
 public class BeanDeployment implements Deployment
 {
+   /** The logger */
+   private static Logger log = Logger.getLogger(BeanDeployment.class.getName());
+
+   /** Ignore stop */
+   private static final byte IGNORE_STOP = 1;
+
+   /** Ignore destroy */
+   private static final byte IGNORE_DESTROY = 2;
+
    /** The deployment */
    private URL deployment;
 
-   /** The bean names */
-   private List<String> beans;
-
-   /** Uninstall methods */
-   private Map<String, List<Method>> uninstall;
+   /** The bean table */
+   private volatile BeanTable table;
 
-   /** Ignore stop */
-   private Set<String> ignoreStops;
+   /** The registration of the lazy beans; <code>null</code> if the unit has none */
+   private Registration registration;
 
-   /** Ignore destroy */
-   private Set<String> ignoreDestroys;
+   /** The class loader */
+   private ClassLoader classLoader;
 
    /** The kernel */
    private KernelImpl kernel;
@@ -71,6 +88,75 @@ public class BeanDeployment implements Deployment
                          Set<String> ignoreStops,
                          Set<String> ignoreDestroys,
                          KernelImpl kernel)
+   {
+      this(deployment, beans, uninstall, ignoreStops, ignoreDestroys, null, kernel);
+   }
+
+   /**
+    * Constructor
+    * @param deployment The deployment
+    * @param beans The list of bean names for the deployment
+    * @param uninstall Uninstall methods for beans
+    * @param ignoreStops Ignore stop methods for beans
+    * @param ignoreDestroys Ignore destroy methods for beans
+    * @param signatures The signatures of the bean definitions
+    * @param kernel The kernel
+    */
+   public BeanDeployment(URL deployment, 
+                         List<String> beans, 
+                         Map<String, List<Method>> uninstall,
+                         Set<String> ignoreStops,
+                         Set<String> ignoreDestroys,
+                         Map<String, String> signatures,
+                         KernelImpl kernel)
+   {
+      this(deployment, beans, uninstall, ignoreStops, ignoreDestroys, signatures, null, kernel);
+   }
+
+   /**
+    * Constructor
+    * @param deployment The deployment
+    * @param beans The list of bean names for the deployment
+    * @param uninstall Uninstall methods for beans
+    * @param ignoreStops Ignore stop methods for beans
+    * @param ignoreDestroys Ignore destroy methods for beans
+    * @param signatures The signatures of the bean definitions
+    * @param classLoader The class loader of the beans
+    * @param kernel The kernel
+    */
+   public BeanDeployment(URL deployment, 
+                         List<String> beans, 
+                         Map<String, List<Method>> uninstall,
+                         Set<String> ignoreStops,
+                         Set<String> ignoreDestroys,
+                         Map<String, String> signatures,
+                         ClassLoader classLoader,
+                         KernelImpl kernel)
+   {
+      this(deployment, beans, uninstall, ignoreStops, ignoreDestroys, signatures, classLoader, true, kernel);
+   }
+
+   /**
+    * Constructor
+    * @param deployment The deployment
+    * @param beans The list of bean names for the deployment
+    * @param uninstall Uninstall methods for beans
+    * @param ignoreStops Ignore stop methods for beans
+    * @param ignoreDestroys Ignore destroy methods for beans
+    * @param signatures The signatures of the bean definitions
+    * @param classLoader The class loader of the beans
+    * @param lazy True if lazy beans can register themselves after the unit is deployed
+    * @param kernel The kernel
+    */
+   BeanDeployment(URL deployment, 
+                  List<String> beans, 
+                  Map<String, List<Method>> uninstall,
+                  Set<String> ignoreStops,
+                  Set<String> ignoreDestroys,
+                  Map<String, String> signatures,
+                  ClassLoader classLoader,
+                  boolean lazy,
+                  KernelImpl kernel)
    {
       if (deployment == null)
          throw new IllegalArgumentException("Deployment is null");
@@ -85,10 +171,9 @@ public class BeanDeployment implements Deployment
          throw new IllegalArgumentException("Kernel is null");
 
       this.deployment = deployment;
-      this.beans = beans;
-      this.uninstall = uninstall;
-      this.ignoreStops = ignoreStops;
-      this.ignoreDestroys = ignoreDestroys;
+      this.table = BeanTable.create(beans, uninstall, ignoreStops, ignoreDestroys, signatures);
+      this.registration = lazy ? new Registration(beans, uninstall, ignoreStops, ignoreDestroys, signatures) : null;
+      this.classLoader = classLoader;
       this.kernel = kernel;
    }
 
@@ -107,7 +192,94 @@ public class BeanDeployment implements Deployment
     */
    public ClassLoader getClassLoader()
    {
-      return null;
+      return classLoader;
+   }
+
+   /**
+    * Get the bean names in deployment order
+    * @return The bean names
+    */
+   List<String> getBeans()
+   {
+      return Collections.unmodifiableList(Arrays.asList(getTable().beans));
+   }
+
+   /**
+    * Get the uninstall methods for a bean
+    * @param name The name of the bean
+    * @return The methods; <code>null</code> if none
+    */
+   List<Method> getUninstall(String name)
+   {
+      BeanTable t = getTable();
+      int i = t.indexOf(name);
+
+      if (i < 0 || t.uninstall[i] == null)
+         return null;
+
+      return Collections.unmodifiableList(Arrays.asList(t.uninstall[i]));
+   }
+
+   /**
+    * Is the stop method ignored for a bean
+    * @param name The name of the bean
+    * @return True if ignored; otherwise false
+    */
+   boolean isIgnoreStop(String name)
+   {
+      return getTable().hasFlag(name, IGNORE_STOP);
+   }
+
+   /**
+    * Is the destroy method ignored for a bean
+    * @param name The name of the bean
+    * @return True if ignored; otherwise false
+    */
+   boolean isIgnoreDestroy(String name)
+   {
+      return getTable().hasFlag(name, IGNORE_DESTROY);
+   }
+
+   /**
+    * Get the signature of a bean definition
+    * @param name The name of the bean
+    * @return The signature; <code>null</code> if unknown
+    */
+   String getSignature(String name)
+   {
+      BeanTable t = getTable();
+      int i = t.indexOf(name);
+
+      if (i < 0 || t.signatures == null)
+         return null;
+
+      return t.signatures[i];
+   }
+
+   /**
+    * Get the bean table. The lazy beans that were created since the table was
+    * compacted are added to it
+    * @return The table
+    */
+   private BeanTable getTable()
+   {
+      BeanTable t = table;
+
+      if (registration != null && registration.size() != t.beans.length)
+      {
+         synchronized (this)
+         {
+            t = table;
+
+            if (registration.size() != t.beans.length)
+            {
+               t = registration.compact();
+               table = t;
+            }
+         }
+      }
+
+      return t;
    }
 
    /**
@@ -116,8 +288,10 @@ public class BeanDeployment implements Deployment
     */
    public void stop() throws Throwable
    {
-      Set<String> remaining = new HashSet<String>();
-      remaining.addAll(beans);
+      String[] beans = getTable().beans;
+
+      Set<String> remaining = new HashSet<String>(beans.length);
+      remaining.addAll(Arrays.asList(beans));
 
       for (String bean : beans)
       {
@@ -144,72 +318,455 @@ public class BeanDeployment implements Deployment
     */
    public void destroy() throws Throwable
    {
-      List<String> shutdownBeans = new LinkedList<String>(beans);
-      Collections.reverse(shutdownBeans);
+      kernel.removeLazyBeans(deployment);
+      destroy(null);
+   }
+
+   /**
+    * Stop the unit when it is undeployed
+    * @exception Throwable If the unit cant be stopped
+    */
+   public void onStop() throws Throwable
+   {
+      stop();
+   }
+
+   /**
+    * Destroy the unit when it is undeployed, so that the beans, and through them
+    * the class loader, don't outlive the deployment
+    * @exception Throwable If the unit cant be destroyed
+    */
+   public void onDestroy() throws Throwable
+   {
+      destroy();
+   }
+
+   /**
+    * Destroy a subset of the beans in reverse deployment order
+    * @param names The names of the beans; <code>null</code> for all
+    * @exception Throwable If a bean cant be stopped
+    */
+   void destroy(Collection<String> names) throws Throwable
+   {
+      String[] beans = getTable().beans;
+
+      for (int i = beans.length - 1; i >= 0; i--)
+      {
+         if (names != null && !names.contains(beans[i]))
+            continue;
+
+         destroyBean(beans[i]);
+      }
+   }
+
+   /**
+    * Destroy a subset of the beans in parallel, in reverse dependency order; a bean
+    * is destroyed once the beans in the subset that depend on it are destroyed.
+    * Errors are logged, and don't stop the remaining beans from being destroyed
+    * @param names The names of the beans
+    * @exception InterruptedException If the thread is interrupted
+    */
+   void destroyConcurrently(Collection<String> names) throws InterruptedException
+   {
+      BeanTable t = getTable();
 
-      for (String name : shutdownBeans)
+      Set<String> subset = new HashSet<String>(names.size());
+      for (String name : names)
       {
-         kernel.setBeanStatus(name, ServiceLifecycle.STOPPING);
+         if (t.indexOf(name) >= 0)
+            subset.add(name);
+      }
 
-         Object bean = kernel.getBean(name);
+      if (subset.size() == 0)
+         return;
 
-         if (bean != null)
+      Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>(subset.size());
+      Map<String, AtomicInteger> dependants = new HashMap<String, AtomicInteger>(subset.size());
+
+      for (String name : subset)
+      {
+         dependants.put(name, new AtomicInteger(0));
+      }
+
+      for (String name : subset)
+      {
+         Set<String> deps = new HashSet<String>(1);
+         Set<String> s = kernel.getBeanDependants(name);
+         if (s != null)
          {
-            List<Method> l = uninstall.get(name);
-            if (l != null)
+            synchronized (s)
             {
-               for (Method m : l)
-               {
-                  try
-                  {
-                     m.setAccessible(true);
-                     m.invoke(bean, (Object[])null);
-                  }
-                  catch (InvocationTargetException ite)
-                  {
-                     throw ite.getTargetException();
-                  }
-               }
+               deps.addAll(s);
             }
+            deps.retainAll(subset);
+            deps.remove(name);
+         }
 
-            if (ignoreStops == null || !ignoreStops.contains(name))
+         dependencies.put(name, deps);
+
+         for (String dependency : deps)
+         {
+            dependants.get(dependency).incrementAndGet();
+         }
+      }
+
+      CountDownLatch done = new CountDownLatch(subset.size());
+      for (String name : subset)
+      {
+         if (dependants.get(name).get() == 0)
+            kernel.getExecutorService().submit(new Destroyer(name, dependencies, dependants, done));
+      }
+
+      done.await();
+   }
+
+   /**
+    * Destroy a bean
+    * @param name The name of the bean
+    * @exception Throwable If the bean cant be stopped
+    */
+   private void destroyBean(String name) throws Throwable
+   {
+      kernel.setBeanStatus(name, ServiceLifecycle.STOPPING);
+      kernel.cancelBeanStart(name);
+
+      BeanTable t = getTable();
+      int i = t.indexOf(name);
+      Method[] methods = i >= 0 ? t.uninstall[i] : null;
+      byte flags = i >= 0 ? t.flags[i] : 0;
+
+      Object bean = kernel.getBeanInstance(name);
+
+      if (bean != null)
+      {
+         if (methods != null)
+         {
+            for (Method m : methods)
             {
                try
                {
-                  Method stopMethod = bean.getClass().getMethod("stop", (Class[])null);
-                  stopMethod.setAccessible(true);
-                  stopMethod.invoke(bean, (Object[])null);
-               }
-               catch (NoSuchMethodException nsme)
-               {
-                  // No stop method
+                  m.setAccessible(true);
+                  m.invoke(bean, (Object[])null);
                }
                catch (InvocationTargetException ite)
                {
                   throw ite.getTargetException();
                }
             }
+         }
 
-            if (ignoreDestroys == null || !ignoreDestroys.contains(name))
+         if ((flags & IGNORE_STOP) == 0)
+         {
+            try
             {
-               try
-               {
-                  Method destroyMethod = bean.getClass().getMethod("destroy", (Class[])null);
-                  destroyMethod.setAccessible(true);
-                  destroyMethod.invoke(bean, (Object[])null);
-               }
-               catch (NoSuchMethodException nsme)
-               {
-                  // No destroy method
-               }
-               catch (InvocationTargetException ite)
-               {
-                  throw ite.getTargetException();
-               }
+               Method stopMethod = bean.getClass().getMethod("stop", (Class[])null);
+               stopMethod.setAccessible(true);
+               stopMethod.invoke(bean, (Object[])null);
+            }
+            catch (NoSuchMethodException nsme)
+            {
+               // No stop method
+            }
+            catch (InvocationTargetException ite)
+            {
+               throw ite.getTargetException();
+            }
+         }
+
+         if ((flags & IGNORE_DESTROY) == 0)
+         {
+            try
+            {
+               Method destroyMethod = bean.getClass().getMethod("destroy", (Class[])null);
+               destroyMethod.setAccessible(true);
+               destroyMethod.invoke(bean, (Object[])null);
+            }
+            catch (NoSuchMethodException nsme)
+            {
+               // No destroy method
+            }
+            catch (InvocationTargetException ite)
+            {
+               throw ite.getTargetException();
+            }
+         }
+      }
+
+      kernel.removeBean(name);
+   }
+
+   /**
+    * Destroys a bean, and schedules its dependencies once their dependants are destroyed
+    */
+   private class Destroyer implements Runnable
+   {
+      /** The name of the bean */
+      private String name;
+
+      /** Bean name to dependencies */
+      private Map<String, Set<String>> dependencies;
+
+      /** Bean name to the number of dependants that haven't been destroyed */
+      private Map<String, AtomicInteger> dependants;
+
+      /** Done */
+      private CountDownLatch done;
+
+      /**
+       * Constructor
+       * @param name The name of the bean
+       * @param dependencies Bean name to dependencies
+       * @param dependants Bean name to the number of dependants that haven't been destroyed
+       * @param done Done
+       */
+      Destroyer(String name, Map<String, Set<String>> dependencies, Map<String, AtomicInteger> dependants,
+                CountDownLatch done)
+      {
+         this.name = name;
+         this.dependencies = dependencies;
+         this.dependants = dependants;
+         this.done = done;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         try
+         {
+            destroyBean(name);
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.WARNING, "Destroying bean " + name, t);
+         }
+         finally
+         {
+            for (String dependency : dependencies.get(name))
+            {
+               if (dependants.get(dependency).decrementAndGet() == 0)
+                  kernel.getExecutorService().submit(new Destroyer(dependency, dependencies, dependants, done));
+            }
+
+            done.countDown();
+         }
+      }
+   }
+
+   /**
+    * The compacted beans of a unit. The beans are held in arrays indexed by their
+    * position in deployment order, and are looked up by name through an index sorted
+    * by name. Besides the names, which are shared with the kernel, a bean costs
+    * three array references, an index entry and a flag byte - 17 bytes with 32-bit
+    * references - plus its uninstall methods, if any
+    */
+   private static final class BeanTable
+   {
+      /** The bean names in deployment order */
+      private final String[] beans;
+
+      /** The uninstall methods; <code>null</code> for a bean without */
+      private final Method[][] uninstall;
+
+      /** The flags */
+      private final byte[] flags;
+
+      /** The signatures; <code>null</code> if unknown */
+      private final String[] signatures;
+
+      /** The positions of the beans sorted by name */
+      private final int[] index;
+
+      /**
+       * Constructor
+       * @param beans The bean names in deployment order
+       * @param uninstall The uninstall methods
+       * @param flags The flags
+       * @param signatures The signatures
+       * @param index The positions of the beans sorted by name
+       */
+      private BeanTable(String[] beans, Method[][] uninstall, byte[] flags, String[] signatures, int[] index)
+      {
+         this.beans = beans;
+         this.uninstall = uninstall;
+         this.flags = flags;
+         this.signatures = signatures;
+         this.index = index;
+      }
+
+      /**
+       * Compact the collections of a unit
+       * @param beans The list of bean names
+       * @param uninstall Uninstall methods for beans
+       * @param ignoreStops Ignore stop methods for beans
+       * @param ignoreDestroys Ignore destroy methods for beans
+       * @param signatures The signatures of the bean definitions
+       * @return The table
+       */
+      static BeanTable create(List<String> beans,
+                              Map<String, List<Method>> uninstall,
+                              Set<String> ignoreStops,
+                              Set<String> ignoreDestroys,
+                              Map<String, String> signatures)
+      {
+         String[] names = null;
+         synchronized (beans)
+         {
+            names = beans.toArray(new String[beans.size()]);
+         }
+
+         Method[][] methods = new Method[names.length][];
+         byte[] flags = new byte[names.length];
+         String[] sigs = signatures != null ? new String[names.length] : null;
+
+         for (int i = 0; i < names.length; i++)
+         {
+            List<Method> l = uninstall.get(names[i]);
+            if (l != null && l.size() > 0)
+               methods[i] = l.toArray(new Method[l.size()]);
+
+            if (ignoreStops != null && ignoreStops.contains(names[i]))
+               flags[i] |= IGNORE_STOP;
+
+            if (ignoreDestroys != null && ignoreDestroys.contains(names[i]))
+               flags[i] |= IGNORE_DESTROY;
+
+            if (sigs != null)
+               sigs[i] = signatures.get(names[i]);
+         }
+
+         // Sort the positions by name
+         Integer[] positions = new Integer[names.length];
+         for (int i = 0; i < positions.length; i++)
+         {
+            positions[i] = Integer.valueOf(i);
+         }
+
+         final String[] sorted = names;
+         Arrays.sort(positions, new Comparator<Integer>()
+         {
+            public int compare(Integer o1, Integer o2)
+            {
+               return sorted[o1.intValue()].compareTo(sorted[o2.intValue()]);
+            }
+         });
+
+         int[] index = new int[positions.length];
+         for (int i = 0; i < index.length; i++)
+         {
+            index[i] = positions[i].intValue();
+         }
+
+         return new BeanTable(names, methods, flags, sigs, index);
+      }
+
+      /**
+       * Get the position of a bean
+       * @param name The name of the bean
+       * @return The position; <code>-1</code> if unknown
+       */
+      int indexOf(String name)
+      {
+         if (name == null)
+            return -1;
+
+         int low = 0;
+         int high = index.length - 1;
+
+         while (low <= high)
+         {
+            int mid = (low + high) >>> 1;
+            int c = beans[index[mid]].compareTo(name);
+
+            if (c < 0)
+            {
+               low = mid + 1;
+            }
+            else if (c > 0)
+            {
+               high = mid - 1;
+            }
+            else
+            {
+               return index[mid];
             }
          }
 
-         kernel.removeBean(name);
+         return -1;
+      }
+
+      /**
+       * Has a bean a flag
+       * @param name The name of the bean
+       * @param flag The flag
+       * @return True if set; otherwise false
+       */
+      boolean hasFlag(String name, byte flag)
+      {
+         int i = indexOf(name);
+         return i >= 0 && (flags[i] & flag) != 0;
+      }
+   }
+
+   /**
+    * The collections that lazy beans register themselves in when they are created
+    * after the unit was deployed
+    */
+   private static final class Registration
+   {
+      /** The bean names */
+      private List<String> beans;
+
+      /** Uninstall methods */
+      private Map<String, List<Method>> uninstall;
+
+      /** Ignore stop */
+      private Set<String> ignoreStops;
+
+      /** Ignore destroy */
+      private Set<String> ignoreDestroys;
+
+      /** The signatures of the bean definitions */
+      private Map<String, String> signatures;
+
+      /**
+       * Constructor
+       * @param beans The list of bean names
+       * @param uninstall Uninstall methods for beans
+       * @param ignoreStops Ignore stop methods for beans
+       * @param ignoreDestroys Ignore destroy methods for beans
+       * @param signatures The signatures of the bean definitions
+       */
+      Registration(List<String> beans,
+                   Map<String, List<Method>> uninstall,
+                   Set<String> ignoreStops,
+                   Set<String> ignoreDestroys,
+                   Map<String, String> signatures)
+      {
+         this.beans = beans;
+         this.uninstall = uninstall;
+         this.ignoreStops = ignoreStops;
+         this.ignoreDestroys = ignoreDestroys;
+         this.signatures = signatures;
+      }
+
+      /**
+       * Get the number of registered beans
+       * @return The value
+       */
+      int size()
+      {
+         return beans.size();
+      }
+
+      /**
+       * Compact the registered beans
+       * @return The table
+       */
+      BeanTable compact()
+      {
+         return BeanTable.create(beans, uninstall, ignoreStops, ignoreDestroys, signatures);
       }
    }
 }
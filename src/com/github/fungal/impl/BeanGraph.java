@@ -0,0 +1,554 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.deployment.BeanType;
+import com.github.fungal.deployment.ConstructorType;
+import com.github.fungal.deployment.DependsType;
+import com.github.fungal.deployment.Deployment;
+import com.github.fungal.deployment.InjectType;
+import com.github.fungal.deployment.ParameterType;
+import com.github.fungal.deployment.PropertyType;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The bean dependency graph across a set of deployment descriptors.
+ *
+ * The graph is validated before any of the descriptors are deployed, such that
+ * dependency cycles and unknown dependencies are reported up front instead of
+ * blocking the deployment. A descriptor fails if one of its beans is part of a
+ * cycle, has an unknown dependency or depends on a bean from a failed descriptor
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class BeanGraph
+{
+   /** URL -> descriptor */
+   private Map<String, Deployment> descriptors;
+
+   /** The URLs */
+   private Map<String, URL> urls;
+
+   /** Bean name -> URL */
+   private Map<String, String> owners;
+
+   /** Bean name -> dependencies */
+   private Map<String, Set<String>> dependencies;
+
+   /** URL -> failure */
+   private Map<String, String> failures;
+
+   /**
+    * Constructor
+    */
+   BeanGraph()
+   {
+      this.descriptors = new LinkedHashMap<String, Deployment>();
+      this.urls = new HashMap<String, URL>();
+      this.owners = new HashMap<String, String>();
+      this.dependencies = new HashMap<String, Set<String>>();
+      this.failures = new LinkedHashMap<String, String>();
+   }
+
+   /**
+    * Add a deployment descriptor
+    * @param url The URL of the descriptor
+    * @param descriptor The descriptor
+    */
+   void add(URL url, Deployment descriptor)
+   {
+      if (url == null)
+         throw new IllegalArgumentException("Url is null");
+
+      if (descriptor == null)
+         throw new IllegalArgumentException("Descriptor is null");
+
+      String key = url.toString();
+
+      descriptors.put(key, descriptor);
+      urls.put(key, url);
+
+      for (BeanType bt : descriptor.getBean())
+      {
+         String owner = owners.get(bt.getName());
+
+         if (owner != null && !owner.equals(key))
+         {
+            fail(key, "Bean " + bt.getName() + " is already defined in " + owner);
+         }
+         else
+         {
+            owners.put(bt.getName(), key);
+            dependencies.put(bt.getName(), getDependencies(bt));
+         }
+      }
+   }
+
+   /**
+    * Mark a descriptor as failed
+    * @param url The URL of the descriptor
+    * @param reason The reason
+    */
+   void fail(URL url, String reason)
+   {
+      urls.put(url.toString(), url);
+      fail(url.toString(), reason);
+   }
+
+   /**
+    * Get the descriptor for an URL
+    * @param url The URL
+    * @return The descriptor; <code>null</code> if not part of the graph
+    */
+   Deployment getDescriptor(URL url)
+   {
+      return descriptors.get(url.toString());
+   }
+
+   /**
+    * Get the beans defined by the descriptors
+    * @return The bean names
+    */
+   Set<String> getBeans()
+   {
+      return Collections.unmodifiableSet(owners.keySet());
+   }
+
+   /**
+    * Get the beans defined by a descriptor
+    * @param url The URL of the descriptor
+    * @return The bean names
+    */
+   List<String> getBeans(URL url)
+   {
+      Deployment descriptor = descriptors.get(url.toString());
+
+      if (descriptor == null)
+         return Collections.emptyList();
+
+      List<String> result = new ArrayList<String>(descriptor.getBean().size());
+      for (BeanType bt : descriptor.getBean())
+      {
+         result.add(bt.getName());
+      }
+
+      return result;
+   }
+
+   /**
+    * Is a descriptor failed
+    * @param url The URL of the descriptor
+    * @return True if failed; otherwise false
+    */
+   boolean isFailed(URL url)
+   {
+      return failures.containsKey(url.toString());
+   }
+
+   /**
+    * Get the failed descriptors
+    * @return URL -> reason
+    */
+   Map<URL, String> getFailures()
+   {
+      Map<URL, String> result = new LinkedHashMap<URL, String>(failures.size());
+
+      for (Map.Entry<String, String> entry : failures.entrySet())
+      {
+         result.put(urls.get(entry.getKey()), entry.getValue());
+      }
+
+      return result;
+   }
+
+   /**
+    * Validate the graph
+    * @param kernel The kernel, which knows the beans that are already deployed
+    */
+   void validate(KernelImpl kernel)
+   {
+      // Unknown dependencies
+      for (Map.Entry<String, Set<String>> entry : dependencies.entrySet())
+      {
+         for (String dependency : entry.getValue())
+         {
+            if (!owners.containsKey(dependency) && kernel.getBeanStatus(dependency) == null)
+               fail(owners.get(entry.getKey()), "Bean " + entry.getKey() + " has an unknown dependency: " + dependency);
+         }
+      }
+
+      // Cycles
+      for (Set<String> cycle : getCycles(getBeanEdges()))
+      {
+         for (String member : cycle)
+         {
+            fail(owners.get(member), "Bean " + member + " is part of a dependency cycle: " + cycle);
+         }
+      }
+
+      // Dependants of failed descriptors
+      boolean changed = failures.size() > 0;
+      while (changed)
+      {
+         changed = false;
+
+         for (Map.Entry<String, Set<String>> entry : dependencies.entrySet())
+         {
+            String owner = owners.get(entry.getKey());
+
+            if (!failures.containsKey(owner))
+            {
+               for (String dependency : entry.getValue())
+               {
+                  String dependencyOwner = owners.get(dependency);
+
+                  if (dependencyOwner != null && failures.containsKey(dependencyOwner))
+                  {
+                     fail(owner, "Bean " + entry.getKey() + " depends on " + dependency +
+                          " from failed deployment " + dependencyOwner);
+                     changed = true;
+                     break;
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Get the descriptors that a list of descriptors depends on, directly or transitively
+    * @param l The URLs
+    * @return The URLs of the descriptors that the list depends on, and which aren't part of it
+    */
+   Set<URL> getRequired(List<URL> l)
+   {
+      Set<String> visited = new HashSet<String>(l.size());
+      LinkedList<String> work = new LinkedList<String>();
+
+      for (URL url : l)
+      {
+         if (visited.add(url.toString()))
+            work.add(url.toString());
+      }
+
+      Set<URL> result = new HashSet<URL>(1);
+
+      while (work.size() > 0)
+      {
+         Deployment descriptor = descriptors.get(work.removeFirst());
+
+         if (descriptor != null)
+         {
+            for (BeanType bt : descriptor.getBean())
+            {
+               Set<String> s = dependencies.get(bt.getName());
+
+               if (s != null)
+               {
+                  for (String dependency : s)
+                  {
+                     String owner = owners.get(dependency);
+
+                     if (owner != null && visited.add(owner))
+                     {
+                        work.add(owner);
+                        result.add(urls.get(owner));
+                     }
+                  }
+               }
+            }
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Get the order in which a list of URLs can be deployed one at a time. A
+    * descriptor is placed after the descriptors that it depends on; descriptors
+    * that depend on each other are placed in the same batch
+    * @param l The URLs
+    * @return The batches
+    */
+   List<List<URL>> getSchedule(List<URL> l)
+   {
+      List<String> nodes = new ArrayList<String>(l.size());
+      Map<String, URL> lookup = new HashMap<String, URL>(l.size());
+
+      for (URL url : l)
+      {
+         nodes.add(url.toString());
+         lookup.put(url.toString(), url);
+      }
+
+      Map<String, Set<String>> edges = new HashMap<String, Set<String>>();
+
+      for (Map.Entry<String, Set<String>> entry : dependencies.entrySet())
+      {
+         String owner = owners.get(entry.getKey());
+
+         for (String dependency : entry.getValue())
+         {
+            String dependencyOwner = owners.get(dependency);
+
+            if (dependencyOwner != null && !dependencyOwner.equals(owner))
+            {
+               Set<String> s = edges.get(owner);
+               if (s == null)
+               {
+                  s = new HashSet<String>(1);
+                  edges.put(owner, s);
+               }
+
+               s.add(dependencyOwner);
+            }
+         }
+      }
+
+      List<List<URL>> result = new ArrayList<List<URL>>(l.size());
+
+      for (Set<String> component : getComponents(nodes, edges))
+      {
+         List<URL> batch = new ArrayList<URL>(component.size());
+
+         for (String node : component)
+         {
+            if (lookup.containsKey(node))
+               batch.add(lookup.get(node));
+         }
+
+         if (batch.size() > 0)
+            result.add(batch);
+      }
+
+      return result;
+   }
+
+   /**
+    * Mark a descriptor as failed
+    * @param key The key of the descriptor
+    * @param reason The reason
+    */
+   private void fail(String key, String reason)
+   {
+      if (!failures.containsKey(key))
+         failures.put(key, reason);
+   }
+
+   /**
+    * Get the edges between the beans of the graph
+    * @return Bean name -> dependencies that are part of the graph
+    */
+   private Map<String, Set<String>> getBeanEdges()
+   {
+      Map<String, Set<String>> result = new HashMap<String, Set<String>>(dependencies.size());
+
+      for (Map.Entry<String, Set<String>> entry : dependencies.entrySet())
+      {
+         Set<String> s = new HashSet<String>(entry.getValue().size());
+
+         for (String dependency : entry.getValue())
+         {
+            if (owners.containsKey(dependency))
+               s.add(dependency);
+         }
+
+         result.put(entry.getKey(), s);
+      }
+
+      return result;
+   }
+
+   /**
+    * Get the strongly connected components of a graph (Tarjan). The components are
+    * returned such that a component is placed after the components that it depends on
+    * @param nodes The nodes
+    * @param edges Node -> the nodes it depends on
+    * @return The components
+    */
+   private static List<Set<String>> getComponents(Iterable<String> nodes, Map<String, Set<String>> edges)
+   {
+      Tarjan tarjan = new Tarjan(edges);
+
+      for (String node : nodes)
+      {
+         if (!tarjan.index.containsKey(node))
+            tarjan.visit(node);
+      }
+
+      return tarjan.components;
+   }
+
+   /**
+    * Get the cycles of a graph
+    * @param edges Node -> the nodes it depends on
+    * @return The nodes of each cycle
+    */
+   static List<Set<String>> getCycles(Map<String, Set<String>> edges)
+   {
+      List<Set<String>> result = new ArrayList<Set<String>>(1);
+
+      for (Set<String> component : getComponents(edges.keySet(), edges))
+      {
+         String node = component.iterator().next();
+
+         if (component.size() > 1 || (edges.get(node) != null && edges.get(node).contains(node)))
+            result.add(component);
+      }
+
+      return result;
+   }
+
+   /**
+    * Get the names of the beans that a bean depends on
+    * @param bt The bean
+    * @return The bean names
+    */
+   static Set<String> getDependencies(BeanType bt)
+   {
+      Set<String> deps = new HashSet<String>(1);
+
+      for (DependsType dt : bt.getDepends())
+      {
+         deps.add(dt.getValue());
+      }
+
+      for (PropertyType pt : bt.getProperty())
+      {
+         Object element = pt.getContent().size() > 0 ? pt.getContent().get(0) : null;
+
+         if (element instanceof InjectType)
+            deps.add(((InjectType)element).getBean());
+      }
+
+      ConstructorType ct = bt.getConstructor();
+      if (ct != null)
+      {
+         if (ct.getFactory() != null)
+            deps.add(ct.getFactory().getBean());
+            
+         for (ParameterType pt : ct.getParameter())
+         {
+            Object element = pt.getContent().size() > 0 ? pt.getContent().get(0) : null;
+
+            if (element instanceof InjectType)
+               deps.add(((InjectType)element).getBean());
+         }
+      }
+
+      return deps;
+   }
+
+   /**
+    * Tarjan's strongly connected components algorithm
+    */
+   static class Tarjan
+   {
+      /** The edges */
+      private Map<String, Set<String>> edges;
+
+      /** Node -> index */
+      private Map<String, Integer> index;
+
+      /** Node -> low link */
+      private Map<String, Integer> lowLink;
+
+      /** The stack */
+      private LinkedList<String> stack;
+
+      /** The nodes on the stack */
+      private Set<String> onStack;
+
+      /** The components */
+      private List<Set<String>> components;
+
+      /**
+       * Constructor
+       * @param edges The edges
+       */
+      Tarjan(Map<String, Set<String>> edges)
+      {
+         this.edges = edges;
+         this.index = new HashMap<String, Integer>();
+         this.lowLink = new HashMap<String, Integer>();
+         this.stack = new LinkedList<String>();
+         this.onStack = new HashSet<String>();
+         this.components = new ArrayList<Set<String>>();
+      }
+
+      /**
+       * Visit a node
+       * @param node The node
+       */
+      void visit(String node)
+      {
+         int i = index.size();
+         index.put(node, Integer.valueOf(i));
+         lowLink.put(node, Integer.valueOf(i));
+         stack.push(node);
+         onStack.add(node);
+
+         Set<String> targets = edges.get(node);
+         if (targets != null)
+         {
+            for (String target : targets)
+            {
+               if (!index.containsKey(target))
+               {
+                  visit(target);
+                  lowLink.put(node, Integer.valueOf(Math.min(lowLink.get(node).intValue(),
+                                                             lowLink.get(target).intValue())));
+               }
+               else if (onStack.contains(target))
+               {
+                  lowLink.put(node, Integer.valueOf(Math.min(lowLink.get(node).intValue(),
+                                                             index.get(target).intValue())));
+               }
+            }
+         }
+
+         if (lowLink.get(node).intValue() == index.get(node).intValue())
+         {
+            Set<String> component = new TreeSet<String>();
+            String member;
+            do
+            {
+               member = stack.pop();
+               onStack.remove(member);
+               component.add(member);
+            }
+            while (!member.equals(node));
+
+            components.add(component);
+         }
+      }
+   }
+}
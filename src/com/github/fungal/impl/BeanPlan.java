@@ -0,0 +1,410 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The construction plan of a scoped bean.
+ *
+ * The constructor or factory method, the arguments, and the injection values are
+ * resolved once, such that new instances are created without looking up the
+ * definition again. The setters and the lifecycle methods are resolved against the
+ * class of the first instance
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class BeanPlan
+{
+   /** The name of the bean */
+   private String name;
+
+   /** The constructor */
+   private Constructor<?> constructor;
+
+   /** The factory method */
+   private Method factoryMethod;
+
+   /** The factory object */
+   private Object factoryObject;
+
+   /** The arguments */
+   private Object[] arguments;
+
+   /** The setter resolver */
+   private SetterResolver resolver;
+
+   /** The install methods */
+   private List<String> install;
+
+   /** The uninstall methods */
+   private List<String> uninstall;
+
+   /** Ignore create */
+   private boolean ignoreCreate;
+
+   /** Ignore start */
+   private boolean ignoreStart;
+
+   /** Ignore stop */
+   private boolean ignoreStop;
+
+   /** Ignore destroy */
+   private boolean ignoreDestroy;
+
+   /** The resolved class */
+   private volatile Shape shape;
+
+   /**
+    * Constructor
+    * @param name The name of the bean
+    * @param constructor The constructor; <code>null</code> if a factory method is used
+    * @param factoryMethod The factory method; <code>null</code> if a constructor is used
+    * @param factoryObject The factory object; <code>null</code> for a static factory method
+    * @param arguments The arguments; <code>null</code> if none
+    * @param resolver The setter resolver
+    * @param install The install methods
+    * @param uninstall The uninstall methods
+    * @param ignoreCreate Ignore the create method
+    * @param ignoreStart Ignore the start method
+    * @param ignoreStop Ignore the stop method
+    * @param ignoreDestroy Ignore the destroy method
+    */
+   BeanPlan(String name, Constructor<?> constructor, Method factoryMethod, Object factoryObject,
+            Object[] arguments, SetterResolver resolver, List<String> install, List<String> uninstall,
+            boolean ignoreCreate, boolean ignoreStart, boolean ignoreStop, boolean ignoreDestroy)
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Name is null");
+
+      if (constructor == null && factoryMethod == null)
+         throw new IllegalArgumentException("Constructor is null");
+
+      if (resolver == null)
+         throw new IllegalArgumentException("Resolver is null");
+
+      this.name = name;
+      this.constructor = constructor;
+      this.factoryMethod = factoryMethod;
+      this.factoryObject = factoryObject;
+      this.arguments = arguments;
+      this.resolver = resolver;
+      this.install = install;
+      this.uninstall = uninstall;
+      this.ignoreCreate = ignoreCreate;
+      this.ignoreStart = ignoreStart;
+      this.ignoreStop = ignoreStop;
+      this.ignoreDestroy = ignoreDestroy;
+      this.shape = null;
+   }
+
+   /**
+    * Get the name of the bean
+    * @return The value
+    */
+   String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Create a new instance; the properties are set, and the create, start and install
+    * methods are invoked
+    * @return The instance
+    * @exception Throwable Thrown if an error occurs
+    */
+   Object newInstance() throws Throwable
+   {
+      try
+      {
+         Object instance = null;
+
+         if (constructor != null)
+         {
+            instance = constructor.newInstance(arguments);
+         }
+         else
+         {
+            instance = factoryMethod.invoke(factoryObject, arguments);
+         }
+
+         if (instance == null)
+            throw new Exception("Factory method returned null for " + name);
+
+         Shape s = getShape(instance.getClass());
+
+         for (Setter setter : s.setters)
+         {
+            setter.method.invoke(instance, setter.self ? instance : copy(setter.value));
+         }
+
+         if (s.create != null)
+            s.create.invoke(instance);
+
+         if (s.start != null)
+            s.start.invoke(instance);
+
+         for (Method m : s.install)
+         {
+            m.invoke(instance);
+         }
+
+         return instance;
+      }
+      catch (InvocationTargetException ite)
+      {
+         throw ite.getTargetException();
+      }
+   }
+
+   /**
+    * Destroy an instance; the uninstall, stop and destroy methods are invoked
+    * @param instance The instance
+    * @exception Throwable Thrown if an error occurs
+    */
+   void destroy(Object instance) throws Throwable
+   {
+      try
+      {
+         Shape s = getShape(instance.getClass());
+
+         for (Method m : s.uninstall)
+         {
+            m.invoke(instance);
+         }
+
+         if (s.stop != null)
+            s.stop.invoke(instance);
+
+         if (s.destroy != null)
+            s.destroy.invoke(instance);
+      }
+      catch (InvocationTargetException ite)
+      {
+         throw ite.getTargetException();
+      }
+   }
+
+   /**
+    * Get the resolved methods for a class
+    * @param clz The class
+    * @return The resolved methods
+    * @exception Throwable Thrown if an error occurs
+    */
+   private Shape getShape(Class<?> clz) throws Throwable
+   {
+      Shape s = shape;
+
+      if (s == null || s.clz != clz)
+      {
+         s = new Shape(clz);
+         s.setters = resolver.resolve(clz);
+         s.create = ignoreCreate ? null : getMethod(clz, "onCreate");
+         s.start = ignoreStart ? null : getMethod(clz, "onStart");
+         s.stop = ignoreStop ? null : getMethod(clz, "stop");
+         s.destroy = ignoreDestroy ? null : getMethod(clz, "destroy");
+         s.install = getMethods(clz, install);
+         s.uninstall = getMethods(clz, uninstall);
+
+         shape = s;
+      }
+
+      return s;
+   }
+
+   /**
+    * Get an optional lifecycle method
+    * @param clz The class
+    * @param methodName The name of the method
+    * @return The method; <code>null</code> if not found
+    */
+   private static Method getMethod(Class<?> clz, String methodName)
+   {
+      try
+      {
+         Method m = clz.getMethod(methodName, (Class[])null);
+         m.setAccessible(true);
+         return m;
+      }
+      catch (NoSuchMethodException nsme)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * Get the required methods
+    * @param clz The class
+    * @param names The names of the methods
+    * @return The methods
+    * @exception Exception Thrown if a method doesn't exist
+    */
+   private static Method[] getMethods(Class<?> clz, List<String> names) throws Exception
+   {
+      if (names == null || names.size() == 0)
+         return new Method[0];
+
+      Method[] result = new Method[names.size()];
+
+      for (int i = 0; i < result.length; i++)
+      {
+         try
+         {
+            result[i] = clz.getMethod(names.get(i), (Class[])null);
+            result[i].setAccessible(true);
+         }
+         catch (NoSuchMethodException nsme)
+         {
+            throw new Exception("Unknown method:" + names.get(i));
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Copy a container value, such that the instances don't share it
+    * @param value The value
+    * @return The copy; or the value itself if it isn't a container
+    * @exception Exception Thrown if an error occurs
+    */
+   @SuppressWarnings("unchecked") 
+   private static Object copy(Object value) throws Exception
+   {
+      if (value instanceof Map)
+      {
+         Map<Object, Object> map = null;
+         try
+         {
+            map = (Map<Object, Object>)value.getClass().newInstance();
+         }
+         catch (Exception e)
+         {
+            map = new HashMap<Object, Object>();
+         }
+         map.putAll((Map<Object, Object>)value);
+         return map;
+      }
+      else if (value instanceof Collection)
+      {
+         Collection<Object> collection = null;
+         try
+         {
+            collection = (Collection<Object>)value.getClass().newInstance();
+         }
+         catch (Exception e)
+         {
+            collection = new ArrayList<Object>();
+         }
+         collection.addAll((Collection<Object>)value);
+         return collection;
+      }
+
+      return value;
+   }
+
+   /**
+    * Resolves the setters of a bean against a class
+    */
+   interface SetterResolver
+   {
+      /**
+       * Resolve the setters
+       * @param clz The class of the instance
+       * @return The setters
+       * @exception Throwable Thrown if an error occurs
+       */
+      public Setter[] resolve(Class<?> clz) throws Throwable;
+   }
+
+   /**
+    * A resolved setter
+    */
+   static final class Setter
+   {
+      /** The method */
+      private Method method;
+
+      /** The value */
+      private Object value;
+
+      /** Inject the instance itself */
+      private boolean self;
+
+      /**
+       * Constructor
+       * @param method The method
+       * @param value The value
+       * @param self Inject the instance itself
+       */
+      Setter(Method method, Object value, boolean self)
+      {
+         this.method = method;
+         this.value = value;
+         this.self = self;
+      }
+   }
+
+   /**
+    * The resolved methods of a class
+    */
+   private static final class Shape
+   {
+      /** The class */
+      private Class<?> clz;
+
+      /** The setters */
+      private Setter[] setters;
+
+      /** The create method */
+      private Method create;
+
+      /** The start method */
+      private Method start;
+
+      /** The stop method */
+      private Method stop;
+
+      /** The destroy method */
+      private Method destroy;
+
+      /** The install methods */
+      private Method[] install;
+
+      /** The uninstall methods */
+      private Method[] uninstall;
+
+      /**
+       * Constructor
+       * @param clz The class
+       */
+      Shape(Class<?> clz)
+      {
+         this.clz = clz;
+      }
+   }
+}
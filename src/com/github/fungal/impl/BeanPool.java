@@ -0,0 +1,412 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.api.BeanPoolStatistics;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The instances of a scoped bean.
+ *
+ * A prototype bean creates a new instance for each borrow, and destroys it when it is
+ * returned. A pooled bean keeps its returned instances in a lock-free idle queue. The
+ * maximum size is soft; borrows aren't blocked when the pool is exhausted, but the
+ * instances beyond the maximum are destroyed when they are returned
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class BeanPool implements BeanPoolStatistics
+{
+   /** The logger */
+   private static Logger log = Logger.getLogger(BeanPool.class.getName());
+
+   /** The construction plan */
+   private BeanPlan plan;
+
+   /** The minimum size */
+   private int minSize;
+
+   /** The maximum size */
+   private int maxSize;
+
+   /** The idle instances */
+   private ConcurrentLinkedQueue<Entry> idle;
+
+   /** The number of pooled instances */
+   private AtomicInteger size;
+
+   /** The number of idle instances */
+   private AtomicInteger idleCount;
+
+   /** The number of borrowed instances */
+   private AtomicInteger activeCount;
+
+   /** Created */
+   private AtomicLong created;
+
+   /** Destroyed */
+   private AtomicLong destroyed;
+
+   /** Evicted */
+   private AtomicLong evicted;
+
+   /** Borrows */
+   private AtomicLong borrows;
+
+   /** Hits */
+   private AtomicLong hits;
+
+   /** Closed */
+   private volatile boolean closed;
+
+   /**
+    * Constructor
+    * @param plan The construction plan
+    * @param minSize The minimum size
+    * @param maxSize The maximum size; 0 for a prototype bean
+    */
+   BeanPool(BeanPlan plan, int minSize, int maxSize)
+   {
+      if (plan == null)
+         throw new IllegalArgumentException("Plan is null");
+
+      if (minSize < 0 || maxSize < minSize)
+         throw new IllegalArgumentException("Invalid size: " + minSize + ", " + maxSize);
+
+      this.plan = plan;
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.idle = new ConcurrentLinkedQueue<Entry>();
+      this.size = new AtomicInteger(0);
+      this.idleCount = new AtomicInteger(0);
+      this.activeCount = new AtomicInteger(0);
+      this.created = new AtomicLong(0);
+      this.destroyed = new AtomicLong(0);
+      this.evicted = new AtomicLong(0);
+      this.borrows = new AtomicLong(0);
+      this.hits = new AtomicLong(0);
+      this.closed = false;
+   }
+
+   /**
+    * Get the construction plan
+    * @return The value
+    */
+   BeanPlan getPlan()
+   {
+      return plan;
+   }
+
+   /**
+    * Are the instances pooled
+    * @return True if pooled; false for a prototype bean
+    */
+   boolean isPooled()
+   {
+      return maxSize > 0;
+   }
+
+   /**
+    * Borrow an instance
+    * @return The instance
+    * @exception Throwable Thrown if an instance can't be created
+    */
+   Object borrow() throws Throwable
+   {
+      if (closed)
+         throw new IllegalStateException("Bean " + plan.getName() + " has been removed");
+
+      borrows.incrementAndGet();
+
+      Entry entry = idle.poll();
+      if (entry != null)
+      {
+         idleCount.decrementAndGet();
+         activeCount.incrementAndGet();
+         hits.incrementAndGet();
+
+         return entry.instance;
+      }
+
+      Object instance = plan.newInstance();
+      created.incrementAndGet();
+
+      if (isPooled())
+         size.incrementAndGet();
+
+      activeCount.incrementAndGet();
+
+      return instance;
+   }
+
+   /**
+    * Return an instance
+    * @param instance The instance
+    */
+   void release(Object instance)
+   {
+      activeCount.decrementAndGet();
+
+      if (isPooled())
+      {
+         if (!closed && size.get() <= maxSize)
+         {
+            idle.offer(new Entry(instance, System.currentTimeMillis()));
+            idleCount.incrementAndGet();
+
+            if (closed)
+               drain();
+
+            return;
+         }
+
+         size.decrementAndGet();
+      }
+
+      destroy(instance);
+   }
+
+   /**
+    * Create the minimum number of instances
+    * @exception Throwable Thrown if an instance can't be created
+    */
+   void fill() throws Throwable
+   {
+      int current = size.get();
+
+      while (!closed && current < minSize)
+      {
+         if (size.compareAndSet(current, current + 1))
+         {
+            try
+            {
+               Object instance = plan.newInstance();
+               created.incrementAndGet();
+
+               idle.offer(new Entry(instance, System.currentTimeMillis()));
+               idleCount.incrementAndGet();
+            }
+            catch (Throwable t)
+            {
+               size.decrementAndGet();
+               throw t;
+            }
+         }
+
+         current = size.get();
+      }
+   }
+
+   /**
+    * Evict the instances that have been idle longer than the timeout, down to the
+    * minimum size
+    * @param timeout The idle timeout in milliseconds
+    */
+   void evict(long timeout)
+   {
+      if (!isPooled() || idleCount.get() == 0)
+         return;
+
+      long deadline = System.currentTimeMillis() - timeout;
+
+      Iterator<Entry> it = idle.iterator();
+      while (it.hasNext() && size.get() > minSize)
+      {
+         Entry entry = it.next();
+
+         if (entry.since <= deadline && idle.remove(entry))
+         {
+            idleCount.decrementAndGet();
+            size.decrementAndGet();
+            evicted.incrementAndGet();
+
+            destroy(entry.instance);
+         }
+      }
+   }
+
+   /**
+    * Close the pool; the idle instances are destroyed, and the borrowed instances
+    * are destroyed when they are returned
+    */
+   void close()
+   {
+      closed = true;
+      drain();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int getMinSize()
+   {
+      return minSize;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int getIdleCount()
+   {
+      return idleCount.get();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int getActiveCount()
+   {
+      return activeCount.get();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public long getCreatedCount()
+   {
+      return created.get();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public long getDestroyedCount()
+   {
+      return destroyed.get();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public long getEvictedCount()
+   {
+      return evicted.get();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public long getBorrowCount()
+   {
+      return borrows.get();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public long getHitCount()
+   {
+      return hits.get();
+   }
+
+   /**
+    * String representation
+    * @return The string
+    */
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder("BeanPool[");
+      sb = sb.append("Name=" + plan.getName() + ",");
+      sb = sb.append("MinSize=" + minSize + ",");
+      sb = sb.append("MaxSize=" + maxSize + ",");
+      sb = sb.append("Idle=" + idleCount.get() + ",");
+      sb = sb.append("Active=" + activeCount.get() + ",");
+      sb = sb.append("Created=" + created.get() + ",");
+      sb = sb.append("Destroyed=" + destroyed.get() + ",");
+      sb = sb.append("Evicted=" + evicted.get() + ",");
+      sb = sb.append("Borrows=" + borrows.get() + ",");
+      sb = sb.append("Hits=" + hits.get());
+      sb = sb.append("]");
+
+      return sb.toString();
+   }
+
+   /**
+    * Destroy the idle instances
+    */
+   private void drain()
+   {
+      Entry entry = idle.poll();
+      while (entry != null)
+      {
+         idleCount.decrementAndGet();
+         size.decrementAndGet();
+
+         destroy(entry.instance);
+
+         entry = idle.poll();
+      }
+   }
+
+   /**
+    * Destroy an instance
+    * @param instance The instance
+    */
+   private void destroy(Object instance)
+   {
+      try
+      {
+         plan.destroy(instance);
+      }
+      catch (Throwable t)
+      {
+         log.log(Level.WARNING, "Destroying an instance of " + plan.getName(), t);
+      }
+
+      destroyed.incrementAndGet();
+   }
+
+   /**
+    * An idle instance
+    */
+   private static final class Entry
+   {
+      /** The instance */
+      private Object instance;
+
+      /** Idle since */
+      private long since;
+
+      /**
+       * Constructor
+       * @param instance The instance
+       * @param since Idle since
+       */
+      Entry(Object instance, long since)
+      {
+         this.instance = instance;
+         this.since = since;
+      }
+   }
+}
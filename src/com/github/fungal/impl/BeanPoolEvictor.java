@@ -0,0 +1,108 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evicts the idle instances of the pooled beans
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class BeanPoolEvictor implements Runnable
+{
+   /** The logger */
+   private static Logger log = Logger.getLogger(BeanPoolEvictor.class.getName());
+
+   /** The kernel */
+   private KernelImpl kernel;
+
+   /** The idle timeout in milliseconds */
+   private long timeout;
+
+   /** Running */
+   private AtomicBoolean running;
+
+   /**
+    * Constructor
+    * @param kernel The kernel
+    * @param timeout The idle timeout in seconds
+    */
+   BeanPoolEvictor(KernelImpl kernel, int timeout)
+   {
+      if (kernel == null)
+         throw new IllegalArgumentException("Kernel is null");
+
+      if (timeout <= 0)
+         throw new IllegalArgumentException("Timeout is invalid");
+
+      this.kernel = kernel;
+      this.timeout = timeout * 1000L;
+      this.running = new AtomicBoolean(false);
+   }
+
+   /**
+    * Start
+    */
+   void start()
+   {
+      running.set(true);
+      kernel.getExecutorService().submit(this);
+   }
+
+   /**
+    * Stop
+    */
+   void stop()
+   {
+      running.set(false);
+   }
+
+   /**
+    * Run
+    */
+   public void run()
+   {
+      long interval = Math.max(100L, Math.min(1000L, timeout / 4));
+
+      while (running.get())
+      {
+         try
+         {
+            Thread.sleep(interval);
+
+            for (BeanPool pool : kernel.getBeanPools())
+            {
+               pool.evict(timeout);
+            }
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.interrupted();
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.WARNING, t.getMessage(), t);
+         }
+      }
+   }
+}
@@ -0,0 +1,266 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.deployment.BeanType;
+import com.github.fungal.deployment.ConstructorType;
+import com.github.fungal.deployment.DependsType;
+import com.github.fungal.deployment.EntryType;
+import com.github.fungal.deployment.IncallbackType;
+import com.github.fungal.deployment.InjectType;
+import com.github.fungal.deployment.InstallType;
+import com.github.fungal.deployment.ListType;
+import com.github.fungal.deployment.MapType;
+import com.github.fungal.deployment.NullType;
+import com.github.fungal.deployment.ParameterType;
+import com.github.fungal.deployment.PropertyType;
+import com.github.fungal.deployment.SetType;
+import com.github.fungal.deployment.ThisType;
+import com.github.fungal.deployment.UncallbackType;
+import com.github.fungal.deployment.UninstallType;
+import com.github.fungal.deployment.ValueType;
+
+import java.util.List;
+
+/**
+ * Creates a canonical signature of a bean definition, such that two
+ * definitions with equal signatures will result in equal bean instances
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class BeanSignature
+{
+   /**
+    * Constructor
+    */
+   private BeanSignature()
+   {
+   }
+
+   /**
+    * Create the signature for a bean definition
+    * @param bt The bean definition
+    * @return The signature
+    */
+   static String create(BeanType bt)
+   {
+      if (bt == null)
+         throw new IllegalArgumentException("BeanType is null");
+
+      StringBuilder sb = new StringBuilder(128);
+
+      sb.append("bean[");
+      append(sb, bt.getName());
+      append(sb, bt.getClazz());
+      append(sb, bt.getInterface());
+      append(sb, bt.getLazy() != null ? bt.getLazy().toString() : null);
+      append(sb, bt.getScope());
+      append(sb, bt.getAsyncStart() != null ? bt.getAsyncStart().toString() : null);
+      sb.append(']');
+
+      ConstructorType ct = bt.getConstructor();
+      if (ct != null)
+      {
+         sb.append("constructor[");
+         append(sb, ct.getFactory() != null ? ct.getFactory().getBean() : null);
+         append(sb, ct.getFactoryMethod());
+         append(sb, ct.getFactoryClass());
+
+         for (ParameterType pt : ct.getParameter())
+         {
+            sb.append("parameter[");
+            append(sb, pt.getClazz());
+            appendContent(sb, pt.getContent());
+            sb.append(']');
+         }
+         sb.append(']');
+      }
+
+      for (PropertyType pt : bt.getProperty())
+      {
+         sb.append("property[");
+         append(sb, pt.getName());
+         append(sb, pt.getClazz());
+         appendContent(sb, pt.getContent());
+         sb.append(']');
+      }
+
+      for (DependsType dt : bt.getDepends())
+      {
+         sb.append("depends[");
+         append(sb, dt.getValue());
+         append(sb, dt.getReady() != null ? dt.getReady().toString() : null);
+         sb.append(']');
+      }
+
+      for (InstallType it : bt.getInstall())
+      {
+         sb.append("install[");
+         append(sb, it.getMethod());
+         sb.append(']');
+      }
+
+      for (UninstallType ut : bt.getUninstall())
+      {
+         sb.append("uninstall[");
+         append(sb, ut.getMethod());
+         sb.append(']');
+      }
+
+      for (IncallbackType it : bt.getIncallback())
+      {
+         sb.append("incallback[");
+         append(sb, it.getMethod());
+         sb.append(']');
+      }
+
+      for (UncallbackType ut : bt.getUncallback())
+      {
+         sb.append("uncallback[");
+         append(sb, ut.getMethod());
+         sb.append(']');
+      }
+
+      if (bt.getIgnoreCreate() != null)
+         sb.append("ignoreCreate[]");
+
+      if (bt.getIgnoreStart() != null)
+         sb.append("ignoreStart[]");
+
+      if (bt.getIgnoreStop() != null)
+         sb.append("ignoreStop[]");
+
+      if (bt.getIgnoreDestroy() != null)
+         sb.append("ignoreDestroy[]");
+
+      return sb.toString();
+   }
+
+   /**
+    * Append the content of a property or parameter
+    * @param sb The builder
+    * @param content The content
+    */
+   private static void appendContent(StringBuilder sb, List<Object> content)
+   {
+      for (Object element : content)
+      {
+         if (element instanceof InjectType)
+         {
+            InjectType it = (InjectType)element;
+
+            sb.append("inject[");
+            append(sb, it.getBean());
+            append(sb, it.getProperty());
+            append(sb, it.getValue());
+            sb.append(']');
+         }
+         else if (element instanceof MapType)
+         {
+            MapType mt = (MapType)element;
+
+            sb.append("map[");
+            append(sb, mt.getClazz());
+            append(sb, mt.getKeyClass());
+            append(sb, mt.getValueClass());
+
+            for (EntryType et : mt.getEntry())
+            {
+               append(sb, et.getKey() != null ? et.getKey().getValue() : null);
+               append(sb, et.getValue() != null ? et.getValue().getValue() : null);
+            }
+            sb.append(']');
+         }
+         else if (element instanceof ListType)
+         {
+            ListType lt = (ListType)element;
+
+            sb.append("list[");
+            append(sb, lt.getClazz());
+            append(sb, lt.getElementClass());
+            appendValues(sb, lt.getValue());
+            sb.append(']');
+         }
+         else if (element instanceof SetType)
+         {
+            SetType st = (SetType)element;
+
+            sb.append("set[");
+            append(sb, st.getClazz());
+            append(sb, st.getElementClass());
+            appendValues(sb, st.getValue());
+            sb.append(']');
+         }
+         else if (element instanceof ValueType)
+         {
+            sb.append("value[");
+            append(sb, ((ValueType)element).getValue());
+            sb.append(']');
+         }
+         else if (element instanceof NullType)
+         {
+            sb.append("null[]");
+         }
+         else if (element instanceof ThisType)
+         {
+            sb.append("this[]");
+         }
+         else if (element != null)
+         {
+            sb.append("text[");
+            append(sb, element.toString());
+            sb.append(']');
+         }
+      }
+   }
+
+   /**
+    * Append a list of values
+    * @param sb The builder
+    * @param values The values
+    */
+   private static void appendValues(StringBuilder sb, List<ValueType> values)
+   {
+      for (ValueType vt : values)
+      {
+         append(sb, vt.getValue());
+      }
+   }
+
+   /**
+    * Append a value, length prefixed so that the signature is unambiguous
+    * @param sb The builder
+    * @param value The value; can be <code>null</code>
+    */
+   private static void append(StringBuilder sb, String value)
+   {
+      if (value == null)
+      {
+         sb.append("-;");
+      }
+      else
+      {
+         sb.append(value.length());
+         sb.append(':');
+         sb.append(value);
+         sb.append(';');
+      }
+   }
+}
@@ -0,0 +1,115 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The cancellation token of a deployment.
+ *
+ * The first bean that fails cancels the deployment; the beans that haven't been
+ * scheduled are skipped, and the beans that are waiting for their dependencies
+ * are interrupted
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class CancellationToken
+{
+   /** Cancelled */
+   private volatile boolean cancelled;
+
+   /** The cause */
+   private volatile Throwable cause;
+
+   /** The waiting threads */
+   private Set<Thread> waiting;
+
+   /**
+    * Constructor
+    */
+   CancellationToken()
+   {
+      this.cancelled = false;
+      this.cause = null;
+      this.waiting = new HashSet<Thread>();
+   }
+
+   /**
+    * Is the deployment cancelled
+    * @return True if cancelled; otherwise false
+    */
+   boolean isCancelled()
+   {
+      return cancelled;
+   }
+
+   /**
+    * Get the cause of the cancellation
+    * @return The cause; <code>null</code> if not cancelled
+    */
+   Throwable getCause()
+   {
+      return cause;
+   }
+
+   /**
+    * Cancel the deployment; only the first cause is kept
+    * @param t The cause
+    */
+   synchronized void cancel(Throwable t)
+   {
+      if (cancelled)
+         return;
+
+      cause = t;
+      cancelled = true;
+
+      for (Thread thread : waiting)
+      {
+         thread.interrupt();
+      }
+   }
+
+   /**
+    * The current thread starts waiting, and is interrupted if the deployment is cancelled
+    * @return False if the deployment is already cancelled; otherwise true
+    */
+   synchronized boolean waiting()
+   {
+      if (cancelled)
+         return false;
+
+      waiting.add(Thread.currentThread());
+      return true;
+   }
+
+   /**
+    * The current thread is done waiting. An interrupt from a cancellation that raced with
+    * the end of the wait is cleared
+    */
+   synchronized void done()
+   {
+      waiting.remove(Thread.currentThread());
+
+      if (cancelled)
+         Thread.interrupted();
+   }
+}
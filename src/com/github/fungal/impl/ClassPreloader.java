@@ -0,0 +1,269 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Preloads the classes recorded during an earlier boot of the kernel
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class ClassPreloader
+{
+   /** The logger */
+   private Logger log = Logger.getLogger(ClassPreloader.class.getName());
+
+   /** Trace logging enabled */
+   private boolean trace = log.isLoggable(Level.FINEST);
+
+   /** The preload list */
+   private File file;
+
+   /** The class loader */
+   private ClassLoader classLoader;
+
+   /** The number of preloaded classes */
+   private AtomicInteger loaded;
+
+   /**
+    * Constructor
+    * @param file The preload list
+    * @param classLoader The class loader
+    */
+   ClassPreloader(File file, ClassLoader classLoader)
+   {
+      if (file == null)
+         throw new IllegalArgumentException("File is null");
+
+      if (classLoader == null)
+         throw new IllegalArgumentException("ClassLoader is null");
+
+      this.file = file;
+      this.classLoader = classLoader;
+      this.loaded = new AtomicInteger(0);
+   }
+
+   /**
+    * Start preloading the classes in parallel
+    * @param executorService The executor service
+    * @return The latch that is released when all classes have been processed; <code>null</code> 
+    *         if there is nothing to preload
+    */
+   CountDownLatch preload(ExecutorService executorService)
+   {
+      List<String> names = null;
+      try
+      {
+         names = read();
+      }
+      catch (IOException ioe)
+      {
+         log.log(Level.WARNING, "Unable to read preload list: " + file.getAbsolutePath(), ioe);
+      }
+
+      if (names == null || names.size() == 0)
+         return null;
+
+      int threads = Math.min(Runtime.getRuntime().availableProcessors(), names.size());
+      CountDownLatch latch = new CountDownLatch(threads);
+
+      for (int i = 0; i < threads; i++)
+      {
+         executorService.execute(new Preloader(names, i, threads, latch));
+      }
+
+      return latch;
+   }
+
+   /**
+    * Get the number of preloaded classes
+    * @return The value
+    */
+   int getLoaded()
+   {
+      return loaded.get();
+   }
+
+   /**
+    * Store the preload list
+    * @param names The class names
+    * @exception IOException Thrown if the list can't be written
+    */
+   void store(Collection<String> names) throws IOException
+   {
+      File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+      BufferedWriter bw = null;
+      try
+      {
+         bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+         for (String name : new TreeSet<String>(names))
+         {
+            bw.write(name);
+            bw.newLine();
+         }
+
+         bw.flush();
+      }
+      finally
+      {
+         if (bw != null)
+         {
+            try
+            {
+               bw.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+
+      if (file.exists() && !file.delete())
+         throw new IOException("Could not delete " + file.getAbsolutePath());
+
+      if (!tmp.renameTo(file))
+         throw new IOException("Could not rename " + tmp.getAbsolutePath());
+   }
+
+   /**
+    * Read the preload list
+    * @return The class names; <code>null</code> if there is no list
+    * @exception IOException Thrown if the list can't be read
+    */
+   private List<String> read() throws IOException
+   {
+      if (!file.exists())
+         return null;
+
+      List<String> result = new ArrayList<String>();
+      BufferedReader br = null;
+      try
+      {
+         br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+         String line = br.readLine();
+         while (line != null)
+         {
+            line = line.trim();
+
+            if (!line.equals("") && !line.startsWith("#"))
+               result.add(line);
+
+            line = br.readLine();
+         }
+      }
+      finally
+      {
+         if (br != null)
+         {
+            try
+            {
+               br.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Preloads a stripe of the class names
+    */
+   class Preloader implements Runnable
+   {
+      /** The class names */
+      private List<String> names;
+
+      /** The offset */
+      private int offset;
+
+      /** The stride */
+      private int stride;
+
+      /** The latch */
+      private CountDownLatch latch;
+
+      /**
+       * Constructor
+       * @param names The class names
+       * @param offset The offset
+       * @param stride The stride
+       * @param latch The latch
+       */
+      Preloader(List<String> names, int offset, int stride, CountDownLatch latch)
+      {
+         this.names = names;
+         this.offset = offset;
+         this.stride = stride;
+         this.latch = latch;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         try
+         {
+            for (int i = offset; i < names.size(); i += stride)
+            {
+               String name = names.get(i);
+               try
+               {
+                  Class.forName(name, false, classLoader);
+                  loaded.incrementAndGet();
+               }
+               catch (Throwable t)
+               {
+                  if (trace)
+                     log.finest("Unable to preload " + name + ": " + t.getMessage());
+               }
+            }
+         }
+         finally
+         {
+            latch.countDown();
+         }
+      }
+   }
+}
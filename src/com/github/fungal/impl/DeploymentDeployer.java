@@ -20,6 +20,8 @@
 
 package com.github.fungal.impl;
 
+import com.github.fungal.api.util.Converter;
+import com.github.fungal.api.util.PropertyTemplate;
 import com.github.fungal.deployment.BeanType;
 import com.github.fungal.deployment.ConstructorType;
 import com.github.fungal.deployment.DependsType;
@@ -44,6 +46,7 @@ import com.github.fungal.spi.deployers.Deployer;
 import com.github.fungal.spi.deployers.DeployerPhases;
 import com.github.fungal.spi.deployers.Deployment;
 
+import java.io.File;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -103,35 +106,284 @@ public final class DeploymentDeployer implements CloneableDeployer
       if (url == null || !url.toString().endsWith(".xml"))
          return null;
 
+      com.github.fungal.deployment.Deployment deployment = kernel.removeDescriptor(url);
+
+      if (deployment == null)
+      {
+         try
+         {
+            Unmarshaller deploymentU = new Unmarshaller();
+            deployment = deploymentU.unmarshal(url);
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.SEVERE, t.getMessage(), t);
+            throw new DeployException("Deployment " + url + " failed", t);
+         }
+      }
+
+      return deploy(url, deployment, parent);
+   }
+
+   /**
+    * Deploy a descriptor that has been read already
+    * @param url The URL of the descriptor
+    * @param deployment The descriptor
+    * @param parent The parent classloader
+    * @return The deployment; or null if no deployment was made
+    * @exception DeployException Thrown if an error occurs during deployment
+    */
+   Deployment deploy(URL url, com.github.fungal.deployment.Deployment deployment, ClassLoader parent)
+      throws DeployException
+   {
       DeployException deployException = null;
       try
       {
-         Unmarshaller deploymentU = new Unmarshaller();
-         com.github.fungal.deployment.Deployment deployment = 
-            deploymentU.unmarshal(url);
-
          if (deployment != null && deployment.getBean().size() > 0)
          {
+            List<BeanType> eager = new ArrayList<BeanType>(deployment.getBean().size());
+            List<BeanType> lazyBeans = new ArrayList<BeanType>(1);
             for (BeanType bt : deployment.getBean())
             {
                kernel.setBeanStatus(bt.getName(), ServiceLifecycle.NOT_STARTED);
-            }
 
-            kernel.beansRegistered();
+               if (!isLazy(deployment, bt))
+               {
+                  eager.add(bt);
+               }
+               else
+               {
+                  lazyBeans.add(bt);
+               }
+            }
 
-            List<BeanDeployer> deployers = new ArrayList<BeanDeployer>(deployment.getBean().size());
             List<String> beans = Collections.synchronizedList(new ArrayList<String>(deployment.getBean().size()));
             Map<String, List<Method>> uninstall = 
                new ConcurrentHashMap<String, List<Method>>(deployment.getBean().size());
             Set<String> ignoreStops = Collections.synchronizedSet(new HashSet<String>(deployment.getBean().size()));
             Set<String> ignoreDestroys = Collections.synchronizedSet(new HashSet<String>(deployment.getBean().size()));
-
-            final CountDownLatch beansLatch = new CountDownLatch(deployment.getBean().size());
+            Map<String, String> signatures = new HashMap<String, String>(deployment.getBean().size());
 
             for (BeanType bt : deployment.getBean())
+            {
+               signatures.put(bt.getName(), BeanSignature.create(bt));
+            }
+
+            for (BeanType bt : lazyBeans)
+            {
+               addLazyBean(url, bt, beans, uninstall, ignoreStops, ignoreDestroys, parent);
+            }
+
+            final CountDownLatch beansLatch = new CountDownLatch(eager.size());
+            final CancellationToken token = new CancellationToken();
+
+            for (BeanType bt : eager)
+            {
+               if (token.isCancelled())
+               {
+                  kernel.setBeanStatus(bt.getName(), ServiceLifecycle.ERROR);
+                  beansLatch.countDown();
+               }
+               else
+               {
+                  BeanDeployer deployer = new BeanDeployer(bt, beans, uninstall, ignoreStops, ignoreDestroys, kernel,
+                                                           beansLatch, token, parent, log);
+
+                  kernel.getExecutorService().submit(deployer);
+               }
+            }
+
+            beansLatch.await();
+
+            BeanDeployment result =
+               new BeanDeployment(url, beans, uninstall, ignoreStops, ignoreDestroys, signatures, parent,
+                                  lazyBeans.size() > 0, kernel);
+
+            if (!token.isCancelled())
+               return result;
+
+            // Tear down the beans that were started
+            kernel.removeLazyBeans(url);
+            result.destroyConcurrently(new ArrayList<String>(beans));
+
+            if (token.getCause() instanceof DeployException)
+            {
+               deployException = (DeployException)token.getCause();
+            }
+            else
+            {
+               deployException = new DeployException("Deployment " + url + " cancelled", token.getCause());
+            }
+         }
+      }
+      catch (Throwable t)
+      {
+         log.log(Level.SEVERE, t.getMessage(), t);
+         throw new DeployException("Deployment " + url + " failed", t);
+      }
+
+      if (deployException != null)
+         throw new DeployException("Deployment " + url + " failed", deployException);
+
+      return null;
+   }
+
+   /**
+    * Redeploy a deployment incrementally. The new version is diffed against the
+    * deployed version, and only the beans whose definitions changed - plus their
+    * transitive dependants - are stopped and recreated. Removed beans are stopped and
+    * added beans are started, while the remaining beans stay live.
+    * @param url The URL
+    * @param current The current deployment
+    * @param parent The parent classloader
+    * @return True if the deployment was redeployed; false if a full redeploy is required
+    * @exception DeployException Thrown if an error occurs during deployment
+    */
+   boolean redeploy(URL url, BeanDeployment current, ClassLoader parent) throws DeployException
+   {
+      if (url == null || !url.toString().endsWith(".xml"))
+         return false;
+
+      if (current == null)
+         throw new IllegalArgumentException("Current is null");
+
+      DeployException deployException = null;
+      try
+      {
+         com.github.fungal.deployment.Deployment deployment = kernel.removeDescriptor(url);
+         boolean prescanned = deployment != null;
+
+         if (deployment == null)
+         {
+            Unmarshaller deploymentU = new Unmarshaller();
+            deployment = deploymentU.unmarshal(url);
+         }
+
+         if (deployment == null || deployment.getBean().size() == 0)
+            return false;
+
+         // A prescanned descriptor is validated by the kernel already
+         if (!prescanned)
+         {
+            BeanGraph graph = new BeanGraph();
+            graph.add(url, deployment);
+            graph.validate(kernel);
+
+            if (graph.isFailed(url))
+               throw new DeployException(graph.getFailures().get(url));
+         }
+
+         List<String> currentBeans = current.getBeans();
+         Map<String, String> signatures = new HashMap<String, String>(deployment.getBean().size());
+
+         for (BeanType bt : deployment.getBean())
+         {
+            signatures.put(bt.getName(), BeanSignature.create(bt));
+         }
+
+         // The beans that are removed are known to the kernel until they are stopped
+         for (BeanType bt : deployment.getBean())
+         {
+            for (String dependency : BeanGraph.getDependencies(bt))
+            {
+               if (currentBeans.contains(dependency) && !signatures.containsKey(dependency))
+                  throw new DeployException("Bean " + bt.getName() + " depends on the removed bean " + dependency);
+            }
+         }
+
+         // Changed and removed beans
+         Set<String> affected = new HashSet<String>();
+         for (String name : currentBeans)
+         {
+            String signature = current.getSignature(name);
+            if (signature == null || !signature.equals(signatures.get(name)))
+               affected.add(name);
+         }
+
+         // Transitive dependants
+         List<String> work = new ArrayList<String>(affected);
+         while (work.size() > 0)
+         {
+            String name = work.remove(work.size() - 1);
+            for (String dependant : kernel.getDependantBeans(name))
+            {
+               if (!currentBeans.contains(dependant))
+               {
+                  log.info("Bean " + dependant + " depends on " + name + " from " + url + 
+                           " - full redeploy required");
+                  return false;
+               }
+
+               if (affected.add(dependant))
+                  work.add(dependant);
+            }
+         }
+
+         List<BeanType> deploy = new ArrayList<BeanType>(deployment.getBean().size());
+         for (BeanType bt : deployment.getBean())
+         {
+            if (affected.contains(bt.getName()) || !currentBeans.contains(bt.getName()))
+               deploy.add(bt);
+         }
+
+         if (affected.size() == 0 && deploy.size() == 0)
+            return true;
+
+         // Lazy beans that haven't been created are registered again from the new version
+         kernel.removeLazyBeans(url);
+
+         if (log.isLoggable(Level.FINE))
+            log.fine("Redeploy " + url + ": Stopping " + affected + ", starting " + deploy.size() + " beans");
+
+         if (affected.size() > 0)
+            current.destroy(affected);
+
+         List<String> kept = new ArrayList<String>(currentBeans.size());
+         for (String name : currentBeans)
+         {
+            if (!affected.contains(name))
+               kept.add(name);
+         }
+
+         List<String> beans = Collections.synchronizedList(new ArrayList<String>(kept));
+         Map<String, List<Method>> uninstall = new ConcurrentHashMap<String, List<Method>>(getUninstall(current, kept));
+         Set<String> ignoreStops = Collections.synchronizedSet(getIgnoreStops(current, kept));
+         Set<String> ignoreDestroys = Collections.synchronizedSet(getIgnoreDestroys(current, kept));
+         boolean lazy = false;
+
+         if (deploy.size() > 0)
+         {
+            List<BeanType> eager = new ArrayList<BeanType>(deploy.size());
+            List<BeanType> lazyBeans = new ArrayList<BeanType>(1);
+            for (BeanType bt : deploy)
+            {
+               kernel.setBeanStatus(bt.getName(), ServiceLifecycle.NOT_STARTED);
+
+               if (!isLazy(deployment, bt))
+               {
+                  eager.add(bt);
+               }
+               else
+               {
+                  lazyBeans.add(bt);
+               }
+            }
+
+            lazy = lazyBeans.size() > 0;
+
+            for (BeanType bt : lazyBeans)
+            {
+               addLazyBean(url, bt, beans, uninstall, ignoreStops, ignoreDestroys, parent);
+            }
+
+            List<BeanDeployer> deployers = new ArrayList<BeanDeployer>(eager.size());
+            final CountDownLatch beansLatch = new CountDownLatch(eager.size());
+            final CancellationToken token = new CancellationToken();
+
+            for (BeanType bt : eager)
             {
                BeanDeployer deployer = new BeanDeployer(bt, beans, uninstall, ignoreStops, ignoreDestroys, kernel,
-                                                        beansLatch, parent, log);
+                                                        beansLatch, token, parent, log);
                deployers.add(deployer);
 
                kernel.getExecutorService().submit(deployer);
@@ -146,21 +398,115 @@ public final class DeploymentDeployer implements CloneableDeployer
                if (deployer.getDeployException() != null)
                   deployException = deployer.getDeployException();
             }
-
-            if (deployException == null)
-               return new BeanDeployment(url, beans, uninstall, ignoreStops, ignoreDestroys, kernel);
          }
+
+         // The beans that are live - including the ones that were started before a failure
+         kernel.replaceDeployment(current,
+                                  new BeanDeployment(url, beans, uninstall, ignoreStops, ignoreDestroys,
+                                                     signatures, parent, lazy, kernel));
       }
       catch (Throwable t)
       {
          log.log(Level.SEVERE, t.getMessage(), t);
-         throw new DeployException("Deployment " + url + " failed", t);
+         throw new DeployException("Redeployment " + url + " failed", t);
       }
 
       if (deployException != null)
-         throw new DeployException("Deployment " + url + " failed", deployException);
+         throw new DeployException("Redeployment " + url + " failed", deployException);
 
-      return null;
+      return true;
+   }
+
+   /**
+    * Is a bean lazy
+    * @param deployment The deployment
+    * @param bt The bean type
+    * @return True if the bean is created on demand; otherwise false
+    */
+   private boolean isLazy(com.github.fungal.deployment.Deployment deployment, BeanType bt)
+   {
+      if (bt.getLazy() != null)
+         return bt.getLazy().booleanValue();
+
+      return deployment.isLazy();
+   }
+
+   /**
+    * Register a lazy bean with the kernel
+    * @param url The URL of the deployment
+    * @param bt The bean type
+    * @param beans The beans of the deployment
+    * @param uninstall The uninstall methods of the deployment
+    * @param ignoreStops The beans that ignore their stop method
+    * @param ignoreDestroys The beans that ignore their destroy method
+    * @param parent The parent classloader
+    */
+   private void addLazyBean(URL url, BeanType bt, List<String> beans, Map<String, List<Method>> uninstall,
+                            Set<String> ignoreStops, Set<String> ignoreDestroys, ClassLoader parent)
+   {
+      CountDownLatch done = new CountDownLatch(1);
+      BeanDeployer deployer = new BeanDeployer(bt, beans, uninstall, ignoreStops, ignoreDestroys, kernel,
+                                               done, null, parent, log);
+
+      kernel.addLazyBean(new LazyBean(url, bt, parent, deployer, done));
+   }
+
+   /**
+    * Get the uninstall methods for a set of beans
+    * @param deployment The deployment
+    * @param names The bean names
+    * @return The uninstall methods
+    */
+   private Map<String, List<Method>> getUninstall(BeanDeployment deployment, List<String> names)
+   {
+      Map<String, List<Method>> result = new HashMap<String, List<Method>>(names.size());
+
+      for (String name : names)
+      {
+         List<Method> l = deployment.getUninstall(name);
+         if (l != null)
+            result.put(name, l);
+      }
+
+      return result;
+   }
+
+   /**
+    * Get the beans that ignore their stop method
+    * @param deployment The deployment
+    * @param names The bean names
+    * @return The bean names
+    */
+   private Set<String> getIgnoreStops(BeanDeployment deployment, List<String> names)
+   {
+      Set<String> result = new HashSet<String>(names.size());
+
+      for (String name : names)
+      {
+         if (deployment.isIgnoreStop(name))
+            result.add(name);
+      }
+
+      return result;
+   }
+
+   /**
+    * Get the beans that ignore their destroy method
+    * @param deployment The deployment
+    * @param names The bean names
+    * @return The bean names
+    */
+   private Set<String> getIgnoreDestroys(BeanDeployment deployment, List<String> names)
+   {
+      Set<String> result = new HashSet<String>(names.size());
+
+      for (String name : names)
+      {
+         if (deployment.isIgnoreDestroy(name))
+            result.add(name);
+      }
+
+      return result;
    }
 
    /**
@@ -169,7 +515,10 @@ public final class DeploymentDeployer implements CloneableDeployer
    static class BeanDeployer implements Runnable
    {
       /** Supported types by parameters/properties */
-      private static final Set<Class<?>> SUPPORTED_TYPES = new HashSet<Class<?>>(19);
+      private static final Set<Class<?>> SUPPORTED_TYPES = new HashSet<Class<?>>(20);
+
+      /** Container types with an initial capacity constructor; true if hash based */
+      private static final Map<String, Boolean> PRESIZABLE_TYPES = new HashMap<String, Boolean>(13);
 
       /** The bean */
       private BeanType bt;
@@ -192,6 +541,9 @@ public final class DeploymentDeployer implements CloneableDeployer
       /** The bean latch */
       private CountDownLatch beansLatch;
 
+      /** The cancellation token */
+      private CancellationToken token;
+
       /** The classloader */
       private ClassLoader classLoader;
 
@@ -222,6 +574,18 @@ public final class DeploymentDeployer implements CloneableDeployer
          SUPPORTED_TYPES.add(Character.class);
          SUPPORTED_TYPES.add(InetAddress.class);
          SUPPORTED_TYPES.add(Class.class);
+         SUPPORTED_TYPES.add(File.class);
+
+         PRESIZABLE_TYPES.put("java.util.HashMap", Boolean.TRUE);
+         PRESIZABLE_TYPES.put("java.util.Hashtable", Boolean.TRUE);
+         PRESIZABLE_TYPES.put("java.util.LinkedHashMap", Boolean.TRUE);
+         PRESIZABLE_TYPES.put("java.util.WeakHashMap", Boolean.TRUE);
+         PRESIZABLE_TYPES.put("java.util.IdentityHashMap", Boolean.FALSE);
+         PRESIZABLE_TYPES.put("java.util.concurrent.ConcurrentHashMap", Boolean.TRUE);
+         PRESIZABLE_TYPES.put("java.util.HashSet", Boolean.TRUE);
+         PRESIZABLE_TYPES.put("java.util.LinkedHashSet", Boolean.TRUE);
+         PRESIZABLE_TYPES.put("java.util.ArrayList", Boolean.FALSE);
+         PRESIZABLE_TYPES.put("java.util.Vector", Boolean.FALSE);
       }
 
       /**
@@ -233,6 +597,7 @@ public final class DeploymentDeployer implements CloneableDeployer
        * @param ignoreDestroys Ignore destroy methods for beans
        * @param kernel The kernel
        * @param beansLatch The beans latch
+       * @param token The cancellation token of the deployment; <code>null</code> if none
        * @param classLoader The class loader
        * @param log The logger
        */
@@ -243,6 +608,7 @@ public final class DeploymentDeployer implements CloneableDeployer
                           Set<String> ignoreDestroys,
                           KernelImpl kernel,
                           CountDownLatch beansLatch,
+                          CancellationToken token,
                           ClassLoader classLoader,
                           Logger log)
       {
@@ -253,6 +619,7 @@ public final class DeploymentDeployer implements CloneableDeployer
          this.ignoreDestroys = ignoreDestroys;
          this.kernel = kernel;
          this.beansLatch = beansLatch;
+         this.token = token;
          this.classLoader = classLoader;
          this.log = log;
          this.deployException = null;
@@ -263,33 +630,59 @@ public final class DeploymentDeployer implements CloneableDeployer
        */
       public void run()
       {
+         ClassLoader oldClassLoader = SecurityActions.getThreadContextClassLoader();
          SecurityActions.setThreadContextClassLoader(classLoader);
 
          String beanName = bt.getName();
+         Watchdog watchdog = kernel.getWatchdog();
+         boolean cancelled = false;
          try
          {
-            if (kernel.getBean(beanName) == null)
+            if (token != null && token.isCancelled())
+            {
+               cancelled = true;
+            }
+            else if (kernel.getBeanInstance(beanName) == null && kernel.getBeanPoolStatistics(beanName) == null)
             {
                CountDownLatch dependencies = getDependencies(bt);
 
                try
                {
                   if (dependencies != null)
-                     dependencies.await();
+                  {
+                     if (watchdog != null)
+                        watchdog.waiting(beanName, BeanGraph.getDependencies(bt));
+
+                     if (token == null || token.waiting())
+                     {
+                        try
+                        {
+                           dependencies.await();
+                        }
+                        finally
+                        {
+                           if (token != null)
+                              token.done();
+                        }
+                     }
+                  }
                }
                catch (InterruptedException ie)
                {
                   Thread.interrupted();
-               }
-
-               kernel.setBeanStatus(beanName, ServiceLifecycle.STARTING);
 
-               Object bean = createBean(bt, classLoader);
-
-               kernel.addBean(beanName, bean); 
-               beans.add(beanName);
+                  if (token == null || !token.isCancelled())
+                     throw new DeployException("Interrupted while waiting for the dependencies of " + beanName);
+               }
 
-               kernel.setBeanStatus(beanName, ServiceLifecycle.STARTED);
+               if (token != null && token.isCancelled())
+               {
+                  cancelled = true;
+               }
+               else
+               {
+                  installBean(beanName, watchdog);
+               }
             }
             else
             {
@@ -299,13 +692,74 @@ public final class DeploymentDeployer implements CloneableDeployer
          catch (Throwable t)
          {
             deployException = new DeployException("Installing bean " + beanName, t);
+
+            // Cancel before the dependants are released by the error status
+            if (token != null)
+               token.cancel(deployException);
+
             kernel.setBeanStatus(beanName, ServiceLifecycle.ERROR);
             log.log(Level.SEVERE, "Installing bean " + beanName, t);
          }
+         finally
+         {
+            if (watchdog != null)
+               watchdog.done(beanName);
+
+            // Don't pin the class loader to a pooled thread
+            SecurityActions.setThreadContextClassLoader(oldClassLoader);
+         }
+
+         // The deployment was cancelled by another bean
+         if (cancelled)
+            kernel.setBeanStatus(beanName, ServiceLifecycle.ERROR);
 
          beansLatch.countDown();
       }
 
+      /**
+       * Install the bean once its dependencies are started
+       * @param beanName The name of the bean
+       * @param watchdog The watchdog; <code>null</code> if disabled
+       * @exception Throwable Thrown if an error occurs
+       */
+      private void installBean(String beanName, Watchdog watchdog) throws Throwable
+      {
+         if (watchdog != null && !watchdog.creating(beanName))
+            throw new DeployException("Timed out waiting for the dependencies of " + beanName);
+
+         kernel.setBeanStatus(beanName, ServiceLifecycle.STARTING);
+
+         Object bean = null;
+
+         if (bt.getScope() == null || "singleton".equals(bt.getScope()))
+         {
+            bean = createBean(bt, classLoader);
+
+            kernel.addBean(beanName, bean); 
+         }
+         else
+         {
+            BeanPool pool = createBeanPool(bt, classLoader);
+            pool.fill();
+
+            kernel.addBeanPool(beanName, pool);
+         }
+
+         kernel.addPropertyDependants(beanName, getPropertyKeys(bt));
+         beans.add(beanName);
+
+         kernel.setBeanStatus(beanName, ServiceLifecycle.STARTED);
+
+         if (bean != null && isAsyncStart(bt))
+         {
+            kernel.startBean(beanName, new BeanStarter(bt, bean, kernel, classLoader, log));
+         }
+         else
+         {
+            kernel.setBeanStatus(beanName, ServiceLifecycle.READY);
+         }
+      }
+
       /**
        * Get deploy exception
        * @return null if no error; otherwise the exception
@@ -316,83 +770,119 @@ public final class DeploymentDeployer implements CloneableDeployer
       }
 
       /**
-       * Get the dependencies for a bean
-       * @paran bt The bean type
-       * @return The count down latch for the dependencies; <code>null</code> if no dependencies
-       * @exception DeployException Thrown if an error occurs
+       * Get the property keys referenced by a bean
+       * @param bt The bean type
+       * @return The keys; <code>null</code> if none
        */
-      private CountDownLatch getDependencies(BeanType bt) throws DeployException
+      private Set<String> getPropertyKeys(BeanType bt)
       {
-         Set<String> deps = null;
+         Set<String> keys = null;
 
-         List<DependsType> dts = bt.getDepends();
-         if (dts.size() > 0)
+         for (PropertyType pt : bt.getProperty())
          {
-            deps = new HashSet<String>(dts.size());
-            for (DependsType dt : dts)
-            {
-               deps.add(dt.getValue());
-            }
-         }
+            Object element = pt.getContent().size() > 0 ? pt.getContent().get(0) : null;
 
-         List<PropertyType> pts = bt.getProperty();
-         if (pts.size() > 0)
-         {
-            for (PropertyType pt : pts)
+            if (element instanceof MapType)
             {
-               Object element = pt.getContent().get(0);
-
-               if (element != null && element instanceof InjectType)
+               for (EntryType et : ((MapType)element).getEntry())
                {
-                  if (deps == null)
-                     deps = new HashSet<String>(1);
+                  if (et.getKey() != null)
+                     keys = addPropertyKeys(keys, et.getKey().getTemplate());
 
-                  InjectType it = (InjectType)element;
-                  deps.add(it.getBean());
+                  if (et.getValue() != null)
+                     keys = addPropertyKeys(keys, et.getValue().getTemplate());
+               }
+            }
+            else if (element instanceof ListType)
+            {
+               for (ValueType vt : ((ListType)element).getValue())
+               {
+                  keys = addPropertyKeys(keys, vt.getTemplate());
+               }
+            }
+            else if (element instanceof SetType)
+            {
+               for (ValueType vt : ((SetType)element).getValue())
+               {
+                  keys = addPropertyKeys(keys, vt.getTemplate());
                }
             }
+            else if (element instanceof ValueType)
+            {
+               keys = addPropertyKeys(keys, ((ValueType)element).getTemplate());
+            }
+            else
+            {
+               keys = addPropertyKeys(keys, pt.getTemplate());
+            }
          }
 
          ConstructorType ct = bt.getConstructor();
-         if (ct != null)
+         if (ct != null && ct.getParameter() != null)
          {
-            if (ct.getFactory() != null)
+            for (ParameterType pt : ct.getParameter())
             {
-               if (deps == null)
-                  deps = new HashSet<String>(1);
-
-               deps.add(ct.getFactory().getBean());
+               keys = addPropertyKeys(keys, pt.getTemplate());
             }
-            
-            if (ct.getParameter() != null && ct.getParameter().size() > 0)
+         }
+
+         return keys;
+      }
+
+      /**
+       * Add the property keys of a template
+       * @param keys The current keys; can be <code>null</code>
+       * @param template The template; can be <code>null</code>
+       * @return The keys
+       */
+      private Set<String> addPropertyKeys(Set<String> keys, PropertyTemplate template)
+      {
+         if (template == null || template.isConstant())
+            return keys;
+
+         if (keys == null)
+            keys = new HashSet<String>(1);
+
+         keys.addAll(template.getKeys());
+
+         return keys;
+      }
+
+      /**
+       * Get the dependencies for a bean
+       * @paran bt The bean type
+       * @return The count down latch for the dependencies; <code>null</code> if no dependencies
+       * @exception DeployException Thrown if an error occurs
+       */
+      private CountDownLatch getDependencies(BeanType bt) throws DeployException
+      {
+         Set<String> deps = BeanGraph.getDependencies(bt);
+
+         if (deps.size() > 0)
+         {
+            Set<String> ready = null;
+            for (DependsType dt : bt.getDepends())
             {
-               for (ParameterType pt : ct.getParameter())
+               if (dt.getReady() != null && dt.getReady().booleanValue())
                {
-                  Object v = pt.getContent().get(0);
-                  if (v instanceof InjectType)
-                  {
-                     if (deps == null)
-                        deps = new HashSet<String>(1);
+                  if (ready == null)
+                     ready = new HashSet<String>(1);
 
-                     InjectType it = (InjectType)v;
-                     deps.add(it.getBean());
-                  }
+                  ready.add(dt.getValue());
                }
             }
-         }
 
-         if (deps != null && deps.size() > 0)
-         {
             CountDownLatch cdl = new CountDownLatch(deps.size());
 
             for (String dependency : deps)
             {
                ServiceLifecycle dependencyStatus = kernel.getBeanStatus(dependency);
                
-               if (dependencyStatus == null && kernel.isAllBeansRegistered())
+               if (dependencyStatus == null)
                   throw new DeployException("Unknown dependency: " + dependency);
 
-               kernel.addBeanDependants(bt.getName(), dependency, cdl);
+               kernel.addBeanDependants(bt.getName(), dependency, ready != null && ready.contains(dependency), cdl);
+               kernel.activateLazyBean(dependency);
             }
 
             return cdl;
@@ -511,6 +1001,117 @@ public final class DeploymentDeployer implements CloneableDeployer
             }
          }
 
+         // The start of an asynchronous bean is run after the bean is published
+         if (!isAsyncStart(bt))
+            start(bt, instance);
+
+         if (bt.getIgnoreStop() != null)
+            ignoreStops.add(bt.getName());
+
+         if (bt.getIgnoreDestroy() != null)
+            ignoreDestroys.add(bt.getName());
+
+         // Register uninstall methods
+         if (bt.getUninstall() != null && bt.getUninstall().size() > 0)
+         {
+            List<Method> methods = new ArrayList<Method>(bt.getUninstall().size());
+            for (UninstallType ut : bt.getUninstall())
+            {
+               try
+               {
+                  Method method = clz.getMethod(ut.getMethod(), (Class[])null);
+                  method.setAccessible(true);
+                  methods.add(method);
+               }
+               catch (NoSuchMethodException nsme)
+               {
+                  throw new Exception("Unknown uninstall method:" + ut.getMethod());
+               }
+            }
+            uninstall.put(bt.getName(), methods);
+         }
+
+         // Register incallback methods
+         if (bt.getIncallback() != null && bt.getIncallback().size() > 0)
+         {
+            for (IncallbackType it : bt.getIncallback())
+            {
+               List<Method> candidates = new ArrayList<Method>(1);
+               Method[] methods = clz.getMethods();
+
+               for (Method m : methods)
+               {
+                  if (m.getName().equals(it.getMethod()) && m.getParameterTypes().length == 1)
+                     candidates.add(m);
+               }
+
+               if (candidates.size() > 0)
+               {
+                  Method method = candidates.get(0);
+                  method.setAccessible(true);
+
+                  Class<?> parameter = method.getParameterTypes()[0];
+
+                  Callback cb = new Callback(parameter, method, instance);
+
+                  kernel.registerIncallback(cb);
+               }
+            }
+         }
+
+         // Register uncallback methods
+         if (bt.getUncallback() != null && bt.getUncallback().size() > 0)
+         {
+            for (UncallbackType ut : bt.getUncallback())
+            {
+               List<Method> candidates = new ArrayList<Method>(1);
+               Method[] methods = clz.getMethods();
+
+               for (Method m : methods)
+               {
+                  if (m.getName().equals(ut.getMethod()) && m.getParameterTypes().length == 1)
+                     candidates.add(m);
+               }
+
+               if (candidates.size() > 0)
+               {
+                  Method method = candidates.get(0);
+                  method.setAccessible(true);
+
+                  Class<?> parameter = method.getParameterTypes()[0];
+
+                  Callback cb = new Callback(parameter, method, instance);
+
+                  kernel.registerUncallback(cb);
+               }
+            }
+         }
+
+         // Register deployer
+         if (instance instanceof Deployer)
+         {
+            ((MainDeployerImpl)kernel.getMainDeployer()).addDeployer((Deployer)instance);
+         }
+
+         // Register deployer phases
+         if (instance instanceof DeployerPhases)
+         {
+            kernel.addDeployerPhasesBean(bt.getName());
+         }
+
+         return instance;
+      }
+
+      /**
+       * Start a bean; the start method and the install methods are invoked
+       * @param bt The bean type definition
+       * @param instance The bean
+       * @exception Throwable Thrown if an error occurs
+       */
+      static void start(BeanType bt, Object instance) throws Throwable
+      {
+         Class<?> clz = instance.getClass();
+
          if (bt.getIgnoreStart() == null)
          {
             try
@@ -529,12 +1130,6 @@ public final class DeploymentDeployer implements CloneableDeployer
             }
          }
 
-         if (bt.getIgnoreStop() != null)
-            ignoreStops.add(bt.getName());
-
-         if (bt.getIgnoreDestroy() != null)
-            ignoreDestroys.add(bt.getName());
-
          // Invoke install methods
          if (bt.getInstall() != null && bt.getInstall().size() > 0)
          {
@@ -552,96 +1147,170 @@ public final class DeploymentDeployer implements CloneableDeployer
                }
             }
          }
+      }
 
-         // Register uninstall methods
-         if (bt.getUninstall() != null && bt.getUninstall().size() > 0)
+      /**
+       * Is the start of a bean asynchronous
+       * @param bt The bean type definition
+       * @return True if asynchronous; otherwise false
+       */
+      private static boolean isAsyncStart(BeanType bt)
+      {
+         return bt.getAsyncStart() != null && bt.getAsyncStart().booleanValue();
+      }
+
+      /**
+       * Create the pool of a scoped bean
+       * @param bt The bean type definition
+       * @param cl The classloader
+       * @return The pool
+       * @exception Throwable Thrown if an error occurs
+       */
+      private BeanPool createBeanPool(BeanType bt, ClassLoader cl) throws Throwable
+      {
+         String scope = bt.getScope().trim();
+
+         if ("prototype".equals(scope))
+            return new BeanPool(createPlan(bt, cl), 0, 0);
+
+         if (scope.startsWith("pooled(") && scope.endsWith(")"))
          {
-            List<Method> methods = new ArrayList<Method>(bt.getUninstall().size());
-            for (UninstallType ut : bt.getUninstall())
+            String[] sizes = scope.substring(7, scope.length() - 1).split(",");
+
+            if (sizes.length == 2)
             {
                try
                {
-                  Method method = clz.getMethod(ut.getMethod(), (Class[])null);
-                  method.setAccessible(true);
-                  methods.add(method);
+                  int minSize = Integer.parseInt(sizes[0].trim());
+                  int maxSize = Integer.parseInt(sizes[1].trim());
+
+                  if (minSize >= 0 && maxSize > 0 && maxSize >= minSize)
+                     return new BeanPool(createPlan(bt, cl), minSize, maxSize);
                }
-               catch (NoSuchMethodException nsme)
+               catch (NumberFormatException nfe)
                {
-                  throw new Exception("Unknown uninstall method:" + ut.getMethod());
+                  // Invalid scope
                }
             }
-            uninstall.put(bt.getName(), methods);
          }
 
-         // Register incallback methods
-         if (bt.getIncallback() != null && bt.getIncallback().size() > 0)
-         {
-            for (IncallbackType it : bt.getIncallback())
-            {
-               List<Method> candidates = new ArrayList<Method>(1);
-               Method[] methods = clz.getMethods();
+         throw new DeployException("Invalid scope: " + bt.getScope());
+      }
 
-               for (Method m : methods)
-               {
-                  if (m.getName().equals(it.getMethod()) && m.getParameterTypes().length == 1)
-                     candidates.add(m);
-               }
+      /**
+       * Create the construction plan of a scoped bean. The constructor, the arguments
+       * and the injection values are resolved once; the uninstall and callback methods
+       * aren't registered with the kernel
+       * @param bt The bean type definition
+       * @param cl The classloader
+       * @return The plan
+       * @exception Throwable Thrown if an error occurs
+       */
+      private BeanPlan createPlan(final BeanType bt, final ClassLoader cl) throws Throwable
+      {
+         Constructor<?> con = null;
+         Method factoryMethod = null;
+         Object factoryObject = null;
+         Object[] args = null;
 
-               if (candidates.size() > 0)
-               {
-                  Method method = candidates.get(0);
-                  method.setAccessible(true);
+         if (bt.getClazz() != null && bt.getConstructor() == null)
+         {
+            Class<?> clz = Class.forName(bt.getClazz(), true, cl);
 
-                  Class<?> parameter = method.getParameterTypes()[0];
+            con = findConstructor(clz, null, cl);
+         }
+         else
+         {
+            ConstructorType ct = bt.getConstructor();
 
-                  Callback cb = new Callback(parameter, method, instance);
+            Class<?> factoryClass = null;
 
-                  kernel.registerIncallback(cb);
-               }
+            if (ct.getFactory() != null)
+            {
+               factoryObject = kernel.getBean(ct.getFactory().getBean());
+               factoryClass = factoryObject.getClass();
             }
-         }
-
-         // Register uncallback methods
-         if (bt.getUncallback() != null && bt.getUncallback().size() > 0)
-         {
-            for (UncallbackType ut : bt.getUncallback())
+            else
             {
-               List<Method> candidates = new ArrayList<Method>(1);
-               Method[] methods = clz.getMethods();
+               String fcs = ct.getFactoryClass();
 
-               for (Method m : methods)
-               {
-                  if (m.getName().equals(ut.getMethod()) && m.getParameterTypes().length == 1)
-                     candidates.add(m);
-               }
+               if (fcs == null)
+                  fcs = bt.getClazz();
 
-               if (candidates.size() > 0)
-               {
-                  Method method = candidates.get(0);
-                  method.setAccessible(true);
+               factoryClass = Class.forName(fcs, true, cl);
+            }
 
-                  Class<?> parameter = method.getParameterTypes()[0];
+            if (ct.getFactoryMethod() == null)
+            {
+               con = findConstructor(factoryClass, ct.getParameter(), cl);
+               args = getArguments(ct.getParameter(), con.getParameterTypes(), cl);
+            }
+            else
+            {
+               factoryMethod = findMethod(factoryClass, ct.getFactoryMethod(), ct.getParameter(), cl);
+               args = getArguments(ct.getParameter(), factoryMethod.getParameterTypes(), cl);
+            }
+         }
 
-                  Callback cb = new Callback(parameter, method, instance);
+         if (con != null)
+         {
+            con.setAccessible(true);
+         }
+         else
+         {
+            factoryMethod.setAccessible(true);
+         }
 
-                  kernel.registerUncallback(cb);
-               }
+         List<String> installs = new ArrayList<String>(1);
+         if (bt.getInstall() != null)
+         {
+            for (InstallType it : bt.getInstall())
+            {
+               installs.add(it.getMethod());
             }
          }
 
-         // Register deployer
-         if (instance instanceof Deployer)
+         List<String> uninstalls = new ArrayList<String>(1);
+         if (bt.getUninstall() != null)
          {
-            ((MainDeployerImpl)kernel.getMainDeployer()).addDeployer((Deployer)instance);
+            for (UninstallType ut : bt.getUninstall())
+            {
+               uninstalls.add(ut.getMethod());
+            }
          }
 
-         // Register deployer phases
-         if (instance instanceof DeployerPhases)
+         BeanPlan.SetterResolver resolver = new BeanPlan.SetterResolver()
          {
-            kernel.addDeployerPhasesBean(bt.getName());
-         }
+            public BeanPlan.Setter[] resolve(Class<?> clz) throws Throwable
+            {
+               if (bt.getProperty() == null)
+                  return new BeanPlan.Setter[0];
 
-         return instance;
+               BeanPlan.Setter[] setters = new BeanPlan.Setter[bt.getProperty().size()];
+
+               for (int i = 0; i < setters.length; i++)
+               {
+                  PropertyType pt = bt.getProperty().get(i);
+                  Method m = getPropertyMethod(clz, pt);
+
+                  if (pt.getContent().size() > 0 && pt.getContent().get(0) instanceof ThisType)
+                  {
+                     setters[i] = new BeanPlan.Setter(m, null, true);
+                  }
+                  else
+                  {
+                     setters[i] = new BeanPlan.Setter(m, getPropertyValue(null, pt, m.getParameterTypes()[0], cl),
+                                                      false);
+                  }
+               }
+
+               return setters;
+            }
+         };
+
+         return new BeanPlan(bt.getName(), con, factoryMethod, factoryObject, args, resolver, installs, uninstalls,
+                             bt.getIgnoreCreate() != null, bt.getIgnoreStart() != null,
+                             bt.getIgnoreStop() != null, bt.getIgnoreDestroy() != null);
       }
 
       /**
@@ -824,7 +1493,7 @@ public final class DeploymentDeployer implements CloneableDeployer
 
          Object[] args = new Object[types.length];
 
-         Injection injection = new Injection();
+         Injection injection = kernel.getInjection();
          for (int i = 0; i < definitions.size(); i++)
          {
             ParameterType parameter = definitions.get(i);
@@ -841,7 +1510,9 @@ public final class DeploymentDeployer implements CloneableDeployer
             }
             else
             {
-               args[i] = injection.getValue(parameter.toString(), types[i], (String)v, cl);
+               args[i] = injection.getValue(parameter.toString(), 
+                                            injection.getConverterRegistry().getConverter(types[i]),
+                                            parameter.getTemplate(), cl);
             }
          }
 
@@ -913,24 +1584,51 @@ public final class DeploymentDeployer implements CloneableDeployer
        * @param cl The classloader
        * @exception Exception Thrown if an error occurs
        */
-      @SuppressWarnings("unchecked") 
       private void setBeanProperty(Object instance, PropertyType pt, ClassLoader cl) throws Exception
       {
-         Injection injection = new Injection();
+         Method m = getPropertyMethod(instance.getClass(), pt);
+
+         m.invoke(instance, getPropertyValue(instance, pt, m.getParameterTypes()[0], cl));
+      }
 
+      /**
+       * Get the setter method of a property
+       * @param clz The class
+       * @param pt The property type definition
+       * @return The method
+       * @exception Exception Thrown if the property doesn't exist
+       */
+      private Method getPropertyMethod(Class<?> clz, PropertyType pt) throws Exception
+      {
          String name = "set" + pt.getName().substring(0, 1).toUpperCase(Locale.US);
          if (pt.getName().length() > 1)
             name += pt.getName().substring(1);
 
-         Method m = injection.findMethod(instance.getClass(), name, pt.getClazz());
+         Method m = kernel.getInjection().findMethod(clz, name, pt.getClazz());
       
          if (m == null)
-            throw new Exception("Property " + pt.getName() + " not found on " + instance.getClass().getName());
+            throw new Exception("Property " + pt.getName() + " not found on " + clz.getName());
 
          m.setAccessible(true);
 
-         Class<?> parameterClass = m.getParameterTypes()[0];
-      
+         return m;
+      }
+
+      /**
+       * Get the value of a property
+       * @param instance The object instance
+       * @param pt The property type definition
+       * @param parameterClass The parameter class of the setter method
+       * @param cl The classloader
+       * @return The value
+       * @exception Exception Thrown if an error occurs
+       */
+      @SuppressWarnings("unchecked") 
+      private Object getPropertyValue(Object instance, PropertyType pt, Class<?> parameterClass, ClassLoader cl)
+         throws Exception
+      {
+         Injection injection = kernel.getInjection();
+
          Object parameterValue = null;
          Object element = pt.getContent().get(0);
 
@@ -949,34 +1647,20 @@ public final class DeploymentDeployer implements CloneableDeployer
             
             if (mt.getClazz() == null)
             {
-               map = new HashMap<Object, Object>(mt.getEntry().size());
+               map = new HashMap<Object, Object>(getHashCapacity(mt.getEntry().size()));
             }
             else
             {
-               Class<?> mapClass = Class.forName(mt.getClazz(), true, cl);
-
-               if (mt.getClazz().equals("java.util.HashMap") ||
-                   mt.getClazz().equals("java.util.Hashtable") ||
-                   mt.getClazz().equals("java.util.LinkedHashMap") ||
-                   mt.getClazz().equals("java.util.WeakHashMap"))
-               {
-                  Constructor<?> con = mapClass.getConstructor(int.class);
-                  con.setAccessible(true);
-                  map = (Map)con.newInstance(mt.getEntry().size());
-               }
-               else
-               {
-                  map = (Map)mapClass.newInstance();
-               }
+               map = (Map<Object, Object>)createContainer(mt.getClazz(), mt.getEntry().size(), cl);
             }
 
-            Class<?> keyClass = Class.forName(mt.getKeyClass(), true, cl);
-            Class<?> valueClass = Class.forName(mt.getValueClass(), true, cl);
+            Converter keyConverter = getConverter(mt.getKeyClass(), cl);
+            Converter valueConverter = getConverter(mt.getValueClass(), cl);
 
             for (EntryType et : mt.getEntry())
             {
-               Object key = injection.getValue(et.toString(), keyClass, et.getKey().getValue(), cl);
-               Object value = injection.getValue(et.toString(), valueClass, et.getValue().getValue(), cl);
+               Object key = injection.getValue(pt.getName(), keyConverter, et.getKey().getTemplate(), cl);
+               Object value = injection.getValue(pt.getName(), valueConverter, et.getValue().getTemplate(), cl);
 
                map.put(key, value);
             }
@@ -995,26 +1679,14 @@ public final class DeploymentDeployer implements CloneableDeployer
             }
             else
             {
-               Class<?> listClass = Class.forName(lt.getClazz(), true, cl);
-
-               if (lt.getClazz().equals("java.util.ArrayList") ||
-                   lt.getClazz().equals("java.util.Vector"))
-               {
-                  Constructor<?> con = listClass.getConstructor(int.class);
-                  con.setAccessible(true);
-                  list = (List)con.newInstance(lt.getValue().size());
-               }
-               else
-               {
-                  list = (List)listClass.newInstance();
-               }
+               list = (List<Object>)createContainer(lt.getClazz(), lt.getValue().size(), cl);
             }
 
-            Class<?> elementClass = Class.forName(lt.getElementClass(), true, cl);
+            Converter elementConverter = getConverter(lt.getElementClass(), cl);
 
             for (ValueType vt : lt.getValue())
             {
-               Object value = injection.getValue(vt.toString(), elementClass, vt.getValue(), cl);
+               Object value = injection.getValue(pt.getName(), elementConverter, vt.getTemplate(), cl);
                list.add(value);
             }
 
@@ -1028,29 +1700,18 @@ public final class DeploymentDeployer implements CloneableDeployer
             
             if (st.getClazz() == null)
             {
-               set = new HashSet<Object>(st.getValue().size());
+               set = new HashSet<Object>(getHashCapacity(st.getValue().size()));
             }
             else
             {
-               Class<?> setClass = Class.forName(st.getClazz(), true, cl);
-
-               if (st.getClazz().equals("java.util.HashSet"))
-               {
-                  Constructor<?> con = setClass.getConstructor(int.class);
-                  con.setAccessible(true);
-                  set = (Set)con.newInstance(st.getValue().size());
-               }
-               else
-               {
-                  set = (Set)setClass.newInstance();
-               }
+               set = (Set<Object>)createContainer(st.getClazz(), st.getValue().size(), cl);
             }
 
-            Class<?> elementClass = Class.forName(st.getElementClass(), true, cl);
+            Converter elementConverter = getConverter(st.getElementClass(), cl);
 
             for (ValueType vt : st.getValue())
             {
-               Object value = injection.getValue(vt.toString(), elementClass, vt.getValue(), cl);
+               Object value = injection.getValue(pt.getName(), elementConverter, vt.getTemplate(), cl);
                set.add(value);
             }
 
@@ -1066,14 +1727,134 @@ public final class DeploymentDeployer implements CloneableDeployer
          }
          else if (element instanceof ValueType)
          {
-            parameterValue = injection.getValue(pt.getName(), parameterClass, ((ValueType)element).getValue(), cl);
+            parameterValue = injection.getValue(pt.getName(), 
+                                                injection.getConverterRegistry().getConverter(parameterClass),
+                                                ((ValueType)element).getTemplate(), cl);
          }
          else
          {
-            parameterValue = injection.getValue(pt.getName(), parameterClass, (String)element, cl);
+            PropertyTemplate template = pt.getTemplate();
+
+            if (template == null)
+               template = PropertyTemplate.compile((String)element);
+
+            parameterValue = injection.getValue(pt.getName(), 
+                                                injection.getConverterRegistry().getConverter(parameterClass),
+                                                template, cl);
+         }
+
+         return parameterValue;
+      }
+
+      /**
+       * Get the converter for a class
+       * @param className The fully qualified class name
+       * @param cl The class loader
+       * @return The converter; <code>null</code> if the class can't be converted from a string
+       * @exception ClassNotFoundException Thrown if the class can't be loaded
+       */
+      private Converter getConverter(String className, ClassLoader cl) throws ClassNotFoundException
+      {
+         Class<?> clz = Class.forName(className, true, cl);
+
+         return kernel.getInjection().getConverterRegistry().getConverter(clz);
+      }
+
+      /**
+       * Create a container presized for the number of elements, if the container type supports it
+       * @param className The fully qualified class name of the container
+       * @param size The number of elements
+       * @param cl The class loader
+       * @return The container
+       * @exception Exception Thrown if the container can't be created
+       */
+      private Object createContainer(String className, int size, ClassLoader cl) throws Exception
+      {
+         Class<?> clz = Class.forName(className, true, cl);
+         Boolean hashed = PRESIZABLE_TYPES.get(className);
+
+         if (hashed != null)
+         {
+            Constructor<?> con = clz.getConstructor(int.class);
+            return con.newInstance(hashed.booleanValue() ? getHashCapacity(size) : size);
+         }
+
+         return clz.newInstance();
+      }
+
+      /**
+       * Get the initial capacity of a hash based container that holds a number of elements
+       * without rehashing
+       * @param size The number of elements
+       * @return The capacity
+       */
+      private static int getHashCapacity(int size)
+      {
+         return (int)(size / 0.75f) + 1;
+      }
+   }
+
+   /**
+    * Bean starter; runs the start of an asynchronous bean
+    */
+   static class BeanStarter implements Runnable
+   {
+      /** The bean */
+      private BeanType bt;
+
+      /** The bean instance */
+      private Object instance;
+
+      /** The kernel */
+      private KernelImpl kernel;
+
+      /** The classloader */
+      private ClassLoader classLoader;
+
+      /** The log */
+      private Logger log;
+
+      /**
+       * Constructor
+       * @param bt The bean type
+       * @param instance The bean instance
+       * @param kernel The kernel
+       * @param classLoader The class loader
+       * @param log The logger
+       */
+      public BeanStarter(BeanType bt, Object instance, KernelImpl kernel, ClassLoader classLoader, Logger log)
+      {
+         this.bt = bt;
+         this.instance = instance;
+         this.kernel = kernel;
+         this.classLoader = classLoader;
+         this.log = log;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         ClassLoader oldClassLoader = SecurityActions.getThreadContextClassLoader();
+         SecurityActions.setThreadContextClassLoader(classLoader);
+
+         boolean success = false;
+         try
+         {
+            BeanDeployer.start(bt, instance);
+            success = true;
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.SEVERE, "Starting bean " + bt.getName(), t);
          }
+         finally
+         {
+            kernel.beanStartDone(bt.getName(), success);
 
-         m.invoke(instance, parameterValue);
+            SecurityActions.setThreadContextClassLoader(oldClassLoader);
+         }
       }
    }
 
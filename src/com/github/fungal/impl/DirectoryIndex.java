@@ -0,0 +1,585 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.api.util.FileUtil;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An index of a directory tree.
+ *
+ * The tree is walked in parallel, and the index keeps a snapshot of the size, last
+ * modified timestamp and checksum of the files. Subsequent scans only report the
+ * files that were added, changed or removed since the last scan to the listeners.
+ *
+ * A file is considered changed when its size or last modified timestamp differs; if
+ * checksums are enabled the checksum of the content must differ as well. Checksums
+ * are calculated in parallel, and the baseline checksum of a new file is calculated
+ * by the next scan
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class DirectoryIndex
+{
+   /** Descend into all directories */
+   static final FileFilter ALL_DIRECTORIES = new FileFilter()
+   {
+      public boolean accept(File f)
+      {
+         return true;
+      }
+   };
+
+   /** Descend into directories that doesn't have an extension, like an exploded archive */
+   static final FileFilter PLAIN_DIRECTORIES = new FileFilter()
+   {
+      public boolean accept(File f)
+      {
+         return f.getName().indexOf('.') == -1;
+      }
+   };
+
+   /** The logger */
+   private static Logger log = Logger.getLogger(DirectoryIndex.class.getName());
+
+   /** The root directory */
+   private File root;
+
+   /** The directories to descend into; <code>null</code> if only the top level */
+   private FileFilter descend;
+
+   /** Use checksums */
+   private boolean checksums;
+
+   /** The executor service */
+   private ExecutorService executorService;
+
+   /** Path -> state */
+   private ConcurrentMap<String, FileState> entries;
+
+   /** The listeners */
+   private List<DirectoryListener> listeners;
+
+   /**
+    * Constructor
+    * @param root The root directory
+    * @param descend The directories to descend into; <code>null</code> if only the top level
+    * @param checksums Use checksums for the change detection
+    * @param executorService The executor service
+    */
+   DirectoryIndex(File root, FileFilter descend, boolean checksums, ExecutorService executorService)
+   {
+      if (root == null)
+         throw new IllegalArgumentException("Root is null");
+
+      if (executorService == null)
+         throw new IllegalArgumentException("ExecutorService is null");
+
+      this.root = root;
+      this.descend = descend;
+      this.checksums = checksums;
+      this.executorService = executorService;
+      this.entries = new ConcurrentHashMap<String, FileState>();
+      this.listeners = new CopyOnWriteArrayList<DirectoryListener>();
+   }
+
+   /**
+    * Get the root directory
+    * @return The value
+    */
+   File getRoot()
+   {
+      return root;
+   }
+
+   /**
+    * Add a listener
+    * @param listener The listener
+    */
+   void addListener(DirectoryListener listener)
+   {
+      if (listener == null)
+         throw new IllegalArgumentException("Listener is null");
+
+      listeners.add(listener);
+   }
+
+   /**
+    * Remove a listener
+    * @param listener The listener
+    */
+   void removeListener(DirectoryListener listener)
+   {
+      listeners.remove(listener);
+   }
+
+   /**
+    * Get all entries in the index, including the directories that were descended into
+    * @return The entries sorted by path
+    */
+   List<File> getEntries()
+   {
+      List<File> result = new ArrayList<File>(entries.size());
+
+      for (FileState state : entries.values())
+      {
+         result.add(state.getFile());
+      }
+
+      Collections.sort(result);
+
+      return result;
+   }
+
+   /**
+    * Get the files in the index; a directory that wasn't descended into is
+    * considered a file
+    * @return The files sorted by path
+    */
+   List<File> getFiles()
+   {
+      List<File> result = new ArrayList<File>(entries.size());
+
+      for (FileState state : entries.values())
+      {
+         if (!state.isDirectory())
+            result.add(state.getFile());
+      }
+
+      Collections.sort(result);
+
+      return result;
+   }
+
+   /**
+    * Scan the directory tree and notify the listeners of the changes
+    * @return True if there were changes; otherwise false
+    * @exception InterruptedException If the scan is interrupted
+    */
+   synchronized boolean scan() throws InterruptedException
+   {
+      Map<String, File> current = walk();
+
+      List<File> added = new ArrayList<File>(1);
+      List<File> changed = new ArrayList<File>(1);
+      List<File> removed = new ArrayList<File>(1);
+      List<File> candidates = new ArrayList<File>(1);
+
+      for (Map.Entry<String, File> entry : current.entrySet())
+      {
+         File f = entry.getValue();
+         FileState state = entries.get(entry.getKey());
+
+         if (state == null)
+         {
+            boolean directory = isDescended(f);
+            entries.put(entry.getKey(), new FileState(f, directory, null));
+
+            if (!directory)
+               added.add(f);
+         }
+         else if (!state.isDirectory())
+         {
+            if (!state.isSame(f) || (checksums && state.getChecksum() == null))
+               candidates.add(f);
+         }
+      }
+
+      Iterator<Map.Entry<String, FileState>> it = entries.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<String, FileState> entry = it.next();
+         if (!current.containsKey(entry.getKey()))
+         {
+            if (!entry.getValue().isDirectory())
+               removed.add(entry.getValue().getFile());
+
+            it.remove();
+         }
+      }
+
+      if (candidates.size() > 0)
+      {
+         Map<File, String> values = null;
+
+         if (checksums)
+            values = checksum(candidates);
+
+         for (File f : candidates)
+         {
+            String path = f.getPath();
+            FileState state = entries.get(path);
+            String checksum = values != null ? values.get(f) : null;
+
+            if (checksums && state.getChecksum() == null && state.isSame(f))
+            {
+               // Baseline
+               state.setChecksum(checksum);
+            }
+            else if (checksum != null && checksum.equals(state.getChecksum()))
+            {
+               // Only the timestamp changed
+               entries.put(path, new FileState(f, false, checksum));
+            }
+            else
+            {
+               entries.put(path, new FileState(f, false, checksum));
+               changed.add(f);
+            }
+         }
+      }
+
+      if (added.size() == 0 && changed.size() == 0 && removed.size() == 0)
+         return false;
+
+      Collections.sort(added);
+      Collections.sort(changed);
+      Collections.sort(removed);
+
+      for (DirectoryListener listener : listeners)
+      {
+         try
+         {
+            listener.directoryChanged(this, Collections.unmodifiableList(added),
+                                      Collections.unmodifiableList(changed),
+                                      Collections.unmodifiableList(removed));
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.SEVERE, t.getMessage(), t);
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Record the current state of a file in the root directory without notifying the
+    * listeners, such that the next scan doesn't report the file as added or changed
+    * @param name The name of the file
+    * @exception InterruptedException If the checksum calculation is interrupted
+    */
+   synchronized void update(String name) throws InterruptedException
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Name is null");
+
+      File f = new File(root, name);
+
+      if (!f.exists())
+         return;
+
+      String checksum = null;
+
+      if (checksums && !isDescended(f))
+         checksum = checksum(Collections.singletonList(f)).get(f);
+
+      entries.put(f.getPath(), new FileState(f, isDescended(f), checksum));
+   }
+
+   /**
+    * Should a file be descended into
+    * @param f The file
+    * @return True if a directory that should be descended into; otherwise false
+    */
+   private boolean isDescended(File f)
+   {
+      return descend != null && f.isDirectory() && descend.accept(f);
+   }
+
+   /**
+    * Walk the directory tree in parallel
+    * @return Path -> file
+    * @exception InterruptedException If the walk is interrupted
+    */
+   private Map<String, File> walk() throws InterruptedException
+   {
+      ConcurrentMap<String, File> result = new ConcurrentHashMap<String, File>(entries.size() + 16);
+
+      if (root.isDirectory())
+      {
+         AtomicInteger pending = new AtomicInteger(1);
+         CountDownLatch done = new CountDownLatch(1);
+
+         executorService.execute(new Walker(root, result, pending, done));
+
+         done.await();
+      }
+
+      return result;
+   }
+
+   /**
+    * Calculate the checksums of files in parallel
+    * @param files The files
+    * @return The checksums; a file that couldn't be read has no checksum
+    * @exception InterruptedException If the calculation is interrupted
+    */
+   private Map<File, String> checksum(List<File> files) throws InterruptedException
+   {
+      Map<File, String> result = new ConcurrentHashMap<File, String>(files.size());
+
+      int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+      CountDownLatch latch = new CountDownLatch(threads);
+
+      for (int i = 0; i < threads; i++)
+      {
+         executorService.execute(new Checksummer(files, i, threads, result, latch));
+      }
+
+      latch.await();
+
+      return result;
+   }
+
+   /**
+    * Walks a directory, and submits a new walker for each sub-directory
+    */
+   class Walker implements Runnable
+   {
+      /** The directory */
+      private File directory;
+
+      /** The result */
+      private ConcurrentMap<String, File> result;
+
+      /** The number of pending walkers */
+      private AtomicInteger pending;
+
+      /** The done latch */
+      private CountDownLatch done;
+
+      /**
+       * Constructor
+       * @param directory The directory
+       * @param result The result
+       * @param pending The number of pending walkers
+       * @param done The done latch
+       */
+      Walker(File directory, ConcurrentMap<String, File> result, AtomicInteger pending, CountDownLatch done)
+      {
+         this.directory = directory;
+         this.result = result;
+         this.pending = pending;
+         this.done = done;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         try
+         {
+            File[] files = directory.listFiles();
+
+            if (files != null)
+            {
+               for (File f : files)
+               {
+                  result.put(f.getPath(), f);
+
+                  if (isDescended(f))
+                  {
+                     pending.incrementAndGet();
+                     try
+                     {
+                        executorService.execute(new Walker(f, result, pending, done));
+                     }
+                     catch (Throwable t)
+                     {
+                        pending.decrementAndGet();
+                        log.log(Level.WARNING, "Unable to scan " + f, t);
+                     }
+                  }
+               }
+            }
+         }
+         finally
+         {
+            if (pending.decrementAndGet() == 0)
+               done.countDown();
+         }
+      }
+   }
+
+   /**
+    * Calculates the checksums for a stripe of files
+    */
+   static class Checksummer implements Runnable
+   {
+      /** The files */
+      private List<File> files;
+
+      /** The offset */
+      private int offset;
+
+      /** The stride */
+      private int stride;
+
+      /** The result */
+      private Map<File, String> result;
+
+      /** The latch */
+      private CountDownLatch latch;
+
+      /**
+       * Constructor
+       * @param files The files
+       * @param offset The offset
+       * @param stride The stride
+       * @param result The result
+       * @param latch The latch
+       */
+      Checksummer(List<File> files, int offset, int stride, Map<File, String> result, CountDownLatch latch)
+      {
+         this.files = files;
+         this.offset = offset;
+         this.stride = stride;
+         this.result = result;
+         this.latch = latch;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         FileUtil fileUtil = new FileUtil();
+
+         try
+         {
+            for (int i = offset; i < files.size(); i += stride)
+            {
+               File f = files.get(i);
+               try
+               {
+                  result.put(f, fileUtil.checksum(f));
+               }
+               catch (Throwable t)
+               {
+                  // No checksum - the file will be considered changed
+               }
+            }
+         }
+         finally
+         {
+            latch.countDown();
+         }
+      }
+   }
+
+   /**
+    * The state of a file
+    */
+   static final class FileState
+   {
+      /** The file */
+      private File file;
+
+      /** Is a directory that was descended into */
+      private boolean directory;
+
+      /** The size */
+      private long size;
+
+      /** The last modified timestamp */
+      private long lastModified;
+
+      /** The checksum */
+      private volatile String checksum;
+
+      /**
+       * Constructor
+       * @param file The file
+       * @param directory Is a directory that was descended into
+       * @param checksum The checksum; <code>null</code> if unknown
+       */
+      FileState(File file, boolean directory, String checksum)
+      {
+         this.file = file;
+         this.directory = directory;
+         this.size = file.length();
+         this.lastModified = file.lastModified();
+         this.checksum = checksum;
+      }
+
+      /**
+       * Get the file
+       * @return The value
+       */
+      File getFile()
+      {
+         return file;
+      }
+
+      /**
+       * Is a directory that was descended into
+       * @return The value
+       */
+      boolean isDirectory()
+      {
+         return directory;
+      }
+
+      /**
+       * Get the checksum
+       * @return The value; <code>null</code> if unknown
+       */
+      String getChecksum()
+      {
+         return checksum;
+      }
+
+      /**
+       * Set the checksum
+       * @param value The value
+       */
+      void setChecksum(String value)
+      {
+         checksum = value;
+      }
+
+      /**
+       * Does a file still have the size and last modified timestamp of this state
+       * @param f The file
+       * @return True if the same; otherwise false
+       */
+      boolean isSame(File f)
+      {
+         return f.length() == size && f.lastModified() == lastModified;
+      }
+   }
+}
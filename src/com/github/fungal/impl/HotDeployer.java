@@ -21,22 +21,25 @@
 package com.github.fungal.impl;
 
 import java.io.File;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * The hot deployer for Fungal
+ * The hot deployer for Fungal.
+ *
+ * The deploy directory is tracked by a directory index, which reports the added,
+ * changed and removed deployments on each scan. The new and changed deployments are
+ * deployed concurrently group by group as defined by the deployment order
  * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
  */
-public final class HotDeployer implements HotDeployerMBean, Runnable
+public final class HotDeployer implements HotDeployerMBean, DirectoryListener, Runnable
 {
    /** The logger */
    private Logger log = Logger.getLogger(HotDeployer.class.getName());
@@ -45,12 +48,12 @@ public final class HotDeployer implements HotDeployerMBean, Runnable
    private boolean trace = log.isLoggable(Level.FINEST);
 
    private int interval;
-   private File directory;
+   private DirectoryIndex index;
    private KernelImpl kernel;
 
    private AtomicBoolean running;
    private List<URL> deployments;
-   private Map<String, Long> modifiedTimestamp;
+   private Set<URL> excluded;
 
    /**
     * Constructor
@@ -59,22 +62,38 @@ public final class HotDeployer implements HotDeployerMBean, Runnable
     * @param kernel The kernel
     */
    public HotDeployer(int interval, File directory, KernelImpl kernel)
+   {
+      this(interval,
+           directory != null && kernel != null ?
+           new DirectoryIndex(directory, DirectoryIndex.PLAIN_DIRECTORIES, true, kernel.getExecutorService()) : null,
+           kernel);
+   }
+
+   /**
+    * Constructor
+    * @param interval The scan interval in seconds
+    * @param index The index of the directory that should be scanned
+    * @param kernel The kernel
+    */
+   HotDeployer(int interval, DirectoryIndex index, KernelImpl kernel)
    {
       if (interval <= 0)
          throw new IllegalArgumentException("Internal is invalid");
 
-      if (directory == null)
+      if (index == null)
          throw new IllegalArgumentException("Directory is null");
 
       if (kernel == null)
          throw new IllegalArgumentException("Kernel is null");
 
       this.interval = interval;
-      this.directory = directory;
+      this.index = index;
       this.kernel = kernel;
       this.running = new AtomicBoolean(false);
-      this.deployments = new ArrayList<URL>();
-      this.modifiedTimestamp = new HashMap<String, Long>();
+      this.deployments = Collections.synchronizedList(new ArrayList<URL>());
+      this.excluded = Collections.synchronizedSet(new HashSet<URL>());
+
+      index.addListener(this);
    }
 
    /**
@@ -86,17 +105,8 @@ public final class HotDeployer implements HotDeployerMBean, Runnable
       if (deployment == null)
          throw new IllegalArgumentException("Deployment is null");
 
-      deployments.add(deployment);
-
-      try
-      {
-         File f = new File(deployment.toURI());
-         modifiedTimestamp.put(deployment.toString(), Long.valueOf(f.lastModified()));
-      }
-      catch (URISyntaxException use)
-      {
-         // Ignore
-      }
+      if (!deployments.contains(deployment))
+         deployments.add(deployment);
    }
 
    /**
@@ -109,7 +119,39 @@ public final class HotDeployer implements HotDeployerMBean, Runnable
          throw new IllegalArgumentException("Deployment is null");
 
       deployments.remove(deployment);
-      modifiedTimestamp.remove(deployment.toString());
+   }
+
+   /**
+    * Exclude a deployment from hot deployment while it is replaced and deployed by other means
+    * @param deployment The deployment
+    */
+   public void exclude(URL deployment)
+   {
+      if (deployment == null)
+         throw new IllegalArgumentException("Deployment is null");
+
+      excluded.add(deployment);
+   }
+
+   /**
+    * Include a deployment in hot deployment again. The index entry of the deployment is
+    * refreshed, such that the deployed version isn't reported as changed by the next scan
+    * @param deployment The deployment
+    * @exception Throwable If the index entry can't be refreshed
+    */
+   public void include(URL deployment) throws Throwable
+   {
+      if (deployment == null)
+         throw new IllegalArgumentException("Deployment is null");
+
+      try
+      {
+         index.update(new File(deployment.toURI()).getName());
+      }
+      finally
+      {
+         excluded.remove(deployment);
+      }
    }
 
    /**
@@ -166,113 +208,101 @@ public final class HotDeployer implements HotDeployerMBean, Runnable
          long start = System.currentTimeMillis();
          try
          {
-            List<URL> removeDeployments = new ArrayList<URL>(deployments);
-            List<URL> changedDeployments = null;
-            List<URL> newDeployments = null;
-            boolean postDeploy = false;
+            index.scan();
+            
+            long took = System.currentTimeMillis() - start;
+            long sleep = interval * 1000L - took;
 
-            File[] files = directory.listFiles();
+            if (sleep <= 10)
+               sleep = 10;
 
-            for (File f : files)
+            Thread.sleep(sleep);
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.interrupted();
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.SEVERE, t.getMessage(), t);
+         }
+      }
+   }
+
+   /**
+    * The deploy directory changed
+    * @param index The directory index
+    * @param added The added files
+    * @param changed The changed files
+    * @param removed The removed files
+    */
+   public void directoryChanged(DirectoryIndex index, List<File> added, List<File> changed, List<File> removed)
+   {
+      try
+      {
+         for (File f : removed)
+         {
+            URL url = f.toURI().toURL();
+            if (deployments.contains(url) && !excluded.contains(url))
             {
-               URL url = f.toURI().toURL();
-               if (removeDeployments.contains(url))
+               try
                {
-                  long modified = modifiedTimestamp.get(url.toString()).longValue();
-
-                  if (f.lastModified() == modified)
-                  {
-                     removeDeployments.remove(url);
-                  }
-                  else
-                  {
-                     if (changedDeployments == null)
-                        changedDeployments = new ArrayList<URL>(1);
-
-                     changedDeployments.add(url);
-                     postDeploy = true;
-                  }
+                  unregister(url);
+                  kernel.getMainDeployer().undeploy(url);
                }
-               else
+               catch (Throwable undeploy)
                {
-                  if (newDeployments == null)
-                     newDeployments = new ArrayList<URL>(1);
-
-                  newDeployments.add(url);
-                  postDeploy = true;
+                  log.log(Level.SEVERE, undeploy.getMessage(), undeploy);
                }
             }
+         }
 
-            if (removeDeployments.size() > 0)
-            {
-               for (URL url : removeDeployments)
-               {
-                  try
-                  {
-                     unregister(url);
-                     kernel.getMainDeployer().undeploy(url);
-                  }
-                  catch (Throwable undeploy)
-                  {
-                     log.log(Level.SEVERE, undeploy.getMessage(), undeploy);
-                  }
-               }
-            }
+         List<URL> batch = new ArrayList<URL>(added.size() + changed.size());
+         Set<URL> redeploy = null;
 
-            if (changedDeployments != null)
+         for (File f : changed)
+         {
+            URL url = f.toURI().toURL();
+            if (excluded.contains(url))
+               continue;
+
+            if (deployments.contains(url))
             {
-               Collections.sort(changedDeployments, kernel.getKernelConfiguration().getDeploymentOrder());
+               if (redeploy == null)
+                  redeploy = new HashSet<URL>(changed.size());
 
-               for (URL url : changedDeployments)
-               {
-                  try
-                  {
-                     unregister(url);
-                     kernel.getMainDeployer().undeploy(url);
-
-                     register(url);
-                     kernel.getMainDeployer().deploy(url);
-                  }
-                  catch (Throwable deploy)
-                  {
-                     log.log(Level.SEVERE, deploy.getMessage(), deploy);
-                  }
-               }
+               redeploy.add(url);
             }
-
-            if (newDeployments != null)
+            else
             {
-               Collections.sort(newDeployments, kernel.getKernelConfiguration().getDeploymentOrder());
-
-               for (URL url : newDeployments)
-               {
-                  try
-                  {
-                     register(url);
-                     kernel.getMainDeployer().deploy(url);
-                  }
-                  catch (Throwable deploy)
-                  {
-                     log.log(Level.SEVERE, deploy.getMessage(), deploy);
-                  }
-               }
+               register(url);
             }
 
-            if (postDeploy)
-               kernel.postDeploy(true);
-            
-            long took = System.currentTimeMillis() - start;
-            long sleep = interval * 1000L - took;
-
-            if (sleep <= 10)
-               sleep = 10;
+            batch.add(url);
+         }
 
-            Thread.sleep(sleep);
+         for (File f : added)
+         {
+            URL url = f.toURI().toURL();
+            if (!deployments.contains(url) && !excluded.contains(url))
+            {
+               register(url);
+               batch.add(url);
+            }
          }
-         catch (Throwable t)
+
+         if (batch.size() > 0)
          {
-            log.log(Level.SEVERE, t.getMessage(), t);
+            kernel.preDeploy(true);
+
+            kernel.deployUrls(batch, redeploy);
+
+            kernel.postDeploy(true);
          }
       }
+      catch (Throwable t)
+      {
+         log.log(Level.SEVERE, t.getMessage(), t);
+      }
    }
 }
@@ -20,6 +20,11 @@
 
 package com.github.fungal.impl;
 
+import com.github.fungal.api.util.Converter;
+import com.github.fungal.api.util.ConverterRegistry;
+import com.github.fungal.api.util.PropertyResolver;
+import com.github.fungal.api.util.PropertyTemplate;
+
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
@@ -38,6 +43,25 @@ final class Injection extends com.github.fungal.api.util.Injection
       super();
    }
 
+   /**
+    * Constructor
+    * @param converters The converter registry
+    */
+   Injection(ConverterRegistry converters)
+   {
+      super(converters);
+   }
+
+   /**
+    * Constructor
+    * @param converters The converter registry
+    * @param resolver The property resolver
+    */
+   Injection(ConverterRegistry converters, PropertyResolver resolver)
+   {
+      super(converters, resolver);
+   }
+
    /**
     * {@inheritDoc}
     */
@@ -73,4 +97,24 @@ final class Injection extends com.github.fungal.api.util.Injection
    {
       return super.getSubstitutionValue(input);
    }
+
+   /**
+    * Get the value using an already resolved converter
+    * @param name The value name
+    * @param converter The converter; <code>null</code> if the type can't be converted
+    * @param template The precompiled value template
+    * @param cl The class loader
+    * @return The substituted value
+    * @exception Exception Thrown in case of an error
+    */
+   Object getValue(String name, Converter converter, PropertyTemplate template, ClassLoader cl) throws Exception
+   {
+      if (template == null)
+         return null;
+
+      if (converter == null)
+         throw new IllegalArgumentException("Unknown property resolution for property " + name);
+
+      return converter.convert(template.resolve(getPropertyResolver()), cl);
+   }
 }
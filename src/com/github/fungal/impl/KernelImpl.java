@@ -20,48 +20,70 @@
 
 package com.github.fungal.impl;
 
+import com.github.fungal.api.BeanPoolStatistics;
 import com.github.fungal.api.Kernel;
 import com.github.fungal.api.classloading.ClassLoaderFactory;
 import com.github.fungal.api.classloading.KernelClassLoader;
+import com.github.fungal.api.configuration.DeploymentOrder;
 import com.github.fungal.api.configuration.KernelConfiguration;
 import com.github.fungal.api.deployer.MainDeployer;
+import com.github.fungal.api.events.BeanListener;
 import com.github.fungal.api.events.Event;
 import com.github.fungal.api.events.EventListener;
 import com.github.fungal.api.remote.Command;
+import com.github.fungal.api.util.Converter;
+import com.github.fungal.api.util.ConverterRegistry;
+import com.github.fungal.api.util.PropertyResolver;
+import com.github.fungal.api.util.PropertyResolvers;
 import com.github.fungal.bootstrap.Bootstrap;
 import com.github.fungal.impl.netboot.Netboot;
 import com.github.fungal.impl.remote.CommunicationServer;
 import com.github.fungal.impl.remote.commands.Deploy;
+import com.github.fungal.impl.remote.commands.DeployBatch;
 import com.github.fungal.impl.remote.commands.GetCommand;
 import com.github.fungal.impl.remote.commands.Help;
+import com.github.fungal.impl.remote.commands.Leaks;
+import com.github.fungal.impl.remote.commands.Status;
 import com.github.fungal.impl.remote.commands.Undeploy;
+import com.github.fungal.impl.remote.commands.UndeployBatch;
+import com.github.fungal.impl.remote.commands.UploadDeploy;
+import com.github.fungal.spi.deployers.DeployException;
 import com.github.fungal.spi.deployers.DeployerPhases;
 import com.github.fungal.spi.deployers.Deployment;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -89,6 +111,13 @@ public class KernelImpl implements Kernel
    /** Beans */
    private ConcurrentMap<String, Object> beans = new ConcurrentHashMap<String, Object>(1);
 
+   /** Bean types; type to bean names */
+   private ConcurrentMap<Class<?>, Set<String>> beanTypes = new ConcurrentHashMap<Class<?>, Set<String>>(1);
+
+   /** Bean listeners; type to listeners */
+   private ConcurrentMap<Class<?>, List<BeanListener>> beanListeners =
+      new ConcurrentHashMap<Class<?>, List<BeanListener>>(1);
+
    /** Bean status */
    private ConcurrentMap<String, ServiceLifecycle> beanStatus = new ConcurrentHashMap<String, ServiceLifecycle>(1);
 
@@ -99,8 +128,37 @@ public class KernelImpl implements Kernel
    private ConcurrentMap<String, List<CountDownLatch>> beanLatches =
       new ConcurrentHashMap<String, List<CountDownLatch>>(1);
 
-   /** Bean deployments */
-   private AtomicInteger beanDeployments;
+   /** Bean ready latches */
+   private ConcurrentMap<String, List<CountDownLatch>> readyLatches =
+      new ConcurrentHashMap<String, List<CountDownLatch>>(1);
+
+   /** Asynchronous bean starts; bean name to task */
+   private ConcurrentMap<String, Future<?>> beanStarts = new ConcurrentHashMap<String, Future<?>>(1);
+
+   /** Property dependants; property key to bean names */
+   private ConcurrentMap<String, Set<String>> propertyDependants = new ConcurrentHashMap<String, Set<String>>(1);
+
+   /** Bean properties; bean name to property keys */
+   private ConcurrentMap<String, Set<String>> beanProperties = new ConcurrentHashMap<String, Set<String>>(1);
+
+   /** Lazy beans; bean name to lazy bean */
+   private ConcurrentMap<String, LazyBean> lazyBeans = new ConcurrentHashMap<String, LazyBean>(1);
+
+   /** Scoped beans; bean name to pool */
+   private ConcurrentMap<String, BeanPool> beanPools = new ConcurrentHashMap<String, BeanPool>(1);
+
+   /** The bean pool evictor */
+   private BeanPoolEvictor beanPoolEvictor;
+
+   /** The deployment watchdog */
+   private Watchdog watchdog;
+
+   /** The leak detector */
+   private LeakDetector leakDetector;
+
+   /** Prescanned deployment descriptors */
+   private ConcurrentMap<String, com.github.fungal.deployment.Deployment> descriptors =
+      new ConcurrentHashMap<String, com.github.fungal.deployment.Deployment>(1);
 
    /** Kernel thread pool */
    private ThreadPoolExecutor threadPoolExecutor;
@@ -120,6 +178,9 @@ public class KernelImpl implements Kernel
    /** Temporary environment */
    private boolean temporaryEnvironment;
 
+   /** The directory of the exploded archives */
+   private File archiveDirectory;
+
    /** Incallbacks */
    private ConcurrentMap<Class<?>, List<Callback>> incallbacks = new ConcurrentHashMap<Class<?>, List<Callback>>(1);
 
@@ -138,6 +199,12 @@ public class KernelImpl implements Kernel
    /** Hot deployer */
    private HotDeployer hotDeployer;
 
+   /** Injection */
+   private Injection injection;
+
+   /** Class preloader */
+   private ClassPreloader classPreloader;
+
    /**
     * Constructor
     * @param kc The kernel configuration
@@ -161,7 +228,18 @@ public class KernelImpl implements Kernel
       this.beanStatus.clear();
       this.beanDependants.clear();
       this.beanLatches.clear();
-      this.beanDeployments = new AtomicInteger(0);
+      this.readyLatches.clear();
+      this.beanStarts.clear();
+      this.propertyDependants.clear();
+      this.beanProperties.clear();
+      this.descriptors.clear();
+      this.lazyBeans.clear();
+      this.beanTypes.clear();
+      this.beanListeners.clear();
+      this.watchdog = null;
+      this.beanPools.clear();
+      this.beanPoolEvictor = null;
+      this.leakDetector = null;
 
       setExecutorService(null);
 
@@ -176,6 +254,8 @@ public class KernelImpl implements Kernel
       this.deployerPhasesBeans.clear();
       this.newDeployerPhasesBeans.clear();
       this.hotDeployer = null;
+      this.injection = null;
+      this.classPreloader = null;
    }
 
    /**
@@ -277,6 +357,8 @@ public class KernelImpl implements Kernel
 
          if (kernelConfiguration.getDeploy() != null)
             deployDirectory = new File(root, File.separator + kernelConfiguration.getDeploy() + File.separator);
+
+         archiveDirectory = new File(root, "archives");
       }
 
       // PRE_CLASSLOADER
@@ -305,12 +387,15 @@ public class KernelImpl implements Kernel
       }
 
       // Setup kernel classloader
-      URL[] libUrls = getUrls(libDirectory);
-      URL[] confUrls = getUrls(configDirectory);
+      DirectoryIndex libIndex = createIndex(libDirectory, DirectoryIndex.ALL_DIRECTORIES, false);
+      DirectoryIndex confIndex = createIndex(configDirectory, DirectoryIndex.ALL_DIRECTORIES, false);
+
+      URL[] libUrls = getUrls(libIndex);
+      URL[] confUrls = getUrls(confIndex);
 
       URL[] urls = mergeUrls(libUrls, confUrls);
 
-      kernelClassLoader = ClassLoaderFactory.create(kernelConfiguration.getClassLoader(), urls, oldClassLoader);
+      kernelClassLoader = createKernelClassLoader(urls, oldClassLoader, root);
       SecurityActions.setThreadContextClassLoader(kernelClassLoader);
 
       initKernelLogging();
@@ -322,15 +407,43 @@ public class KernelImpl implements Kernel
 
       if (netbooted)
       {
-         libUrls = getUrls(libDirectory);
-         confUrls = getUrls(configDirectory);
+         // Only the changes are scanned
+         if (libIndex != null)
+         {
+            libIndex.scan();
+         }
+         else
+         {
+            libIndex = createIndex(libDirectory, DirectoryIndex.ALL_DIRECTORIES, false);
+         }
+
+         if (confIndex != null)
+         {
+            confIndex.scan();
+         }
+         else
+         {
+            confIndex = createIndex(configDirectory, DirectoryIndex.ALL_DIRECTORIES, false);
+         }
+
+         libUrls = getUrls(libIndex);
+         confUrls = getUrls(confIndex);
 
          urls = mergeUrls(libUrls, confUrls);
 
-         kernelClassLoader = ClassLoaderFactory.create(kernelConfiguration.getClassLoader(), urls, kernelClassLoader);
+         kernelClassLoader = createKernelClassLoader(urls, kernelClassLoader, root);
          SecurityActions.setThreadContextClassLoader(kernelClassLoader);
       }
 
+      // Class preloading
+      CountDownLatch preloaded = null;
+      if (kernelConfiguration.isClassPreload() && root != null && !temporaryEnvironment)
+      {
+         classPreloader = new ClassPreloader(new File(root, "classes.preload"), kernelClassLoader);
+         kernelClassLoader.startRecording();
+         preloaded = classPreloader.preload(getExecutorService());
+      }
+
       // POST_CLASSLOADER
       if (els != null && els.size() > 0)
       {
@@ -346,15 +459,66 @@ public class KernelImpl implements Kernel
                                            kernelConfiguration.getBindAddress().trim());
       }
 
+      // Converters
+      ConverterRegistry converters = new ConverterRegistry();
+
+      for (Map.Entry<Class<?>, Converter> entry : kernelConfiguration.getConverters().entrySet())
+      {
+         converters.register(entry.getKey(), entry.getValue());
+      }
+
+      // Property resolvers
+      List<PropertyResolver> resolvers = new ArrayList<PropertyResolver>(4);
+      resolvers.add(PropertyResolvers.system());
+      resolvers.addAll(kernelConfiguration.getPropertyResolvers());
+
+      if (kernelConfiguration.getProperties() != null && configDirectory != null)
+      {
+         File propertiesFile = new File(configDirectory, kernelConfiguration.getProperties());
+
+         if (propertiesFile.exists() && propertiesFile.isFile())
+            resolvers.add(PropertyResolvers.properties(loadProperties(propertiesFile)));
+      }
+
+      if (kernelConfiguration.isEnvironmentProperties())
+         resolvers.add(PropertyResolvers.environment());
+
+      injection = new Injection(converters, PropertyResolvers.chain(resolvers));
+
       // Main deployer
       mainDeployer = new MainDeployerImpl(this, new Deployers());
 
       // Add the deployment deployer
       mainDeployer.addDeployer(new DeploymentDeployer(this));
 
+      // Add the archive deployer
+      mainDeployer.addDeployer(new ArchiveDeployer(this));
+
+      // Deployment watchdog
+      if (kernelConfiguration.getWatchdogTimeout() > 0)
+      {
+         watchdog = new Watchdog(this, kernelConfiguration.getWatchdogTimeout(), kernelConfiguration.isWatchdogFail());
+         watchdog.start();
+      }
+
+      // Bean pool evictor
+      if (kernelConfiguration.getBeanPoolIdleTimeout() > 0)
+      {
+         beanPoolEvictor = new BeanPoolEvictor(this, kernelConfiguration.getBeanPoolIdleTimeout());
+         beanPoolEvictor.start();
+      }
+
+      // Leak detector
+      if (kernelConfiguration.getLeakDetectionGracePeriod() > 0)
+      {
+         leakDetector = new LeakDetector(this, kernelConfiguration.getLeakDetectionGracePeriod());
+         leakDetector.start();
+      }
+
       // Add the kernel bean reference
       addBean("Kernel", this);
       setBeanStatus("Kernel", ServiceLifecycle.STARTED);
+      setBeanStatus("Kernel", ServiceLifecycle.READY);
 
       // Log version information
       log.info(VERSION + " started");
@@ -380,11 +544,25 @@ public class KernelImpl implements Kernel
                   SecurityActions.getSystemProperty("os.arch"));
       }
 
+      // Wait for the class preloading to finish
+      if (preloaded != null)
+      {
+         try
+         {
+            preloaded.await();
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.interrupted();
+         }
+
+         if (log.isLoggable(Level.FINE))
+            log.fine("Preloaded " + classPreloader.getLoaded() + " classes");
+      }
+
       // Start all URLs defined in bootstrap.xml
       if (bootstrap != null)
       {
-         beanDeployments = new AtomicInteger(bootstrap.getUrl().size());
-
          List<URL> bootstrapUrls = new ArrayList<URL>(bootstrap.getUrl().size());
 
          for (String url : bootstrap.getUrl())
@@ -393,7 +571,7 @@ public class KernelImpl implements Kernel
             bootstrapUrls.add(fullPath);
          }
 
-         deployUrls(bootstrapUrls.toArray(new URL[bootstrapUrls.size()]));
+         deployUrls(bootstrapUrls, null);
       }
       incallback();
 
@@ -401,13 +579,14 @@ public class KernelImpl implements Kernel
       preDeploy(false);
 
       // Deploy all files in system/
-      if (systemDirectory != null && systemDirectory.exists() && systemDirectory.isDirectory())
+      DirectoryIndex systemIndex = createIndex(systemDirectory, DirectoryIndex.PLAIN_DIRECTORIES, false);
+      if (systemIndex != null)
       {
-         File[] files = systemDirectory.listFiles();
+         List<File> files = systemIndex.getFiles();
 
-         if (files != null)
+         if (files.size() > 0)
          {
-            List<URL> l = new ArrayList<URL>(files.length);
+            List<URL> l = new ArrayList<URL>(files.size());
             int counter = 0;
 
             for (File f : files)
@@ -416,25 +595,11 @@ public class KernelImpl implements Kernel
                
                l.add(u);
 
-               if (u.toString().endsWith(".xml"))
+               if (u.toString().endsWith(".xml") || u.toString().endsWith(".jar"))
                   counter++;
             }
 
-            Collections.sort(l, kernelConfiguration.getDeploymentOrder());
-
-            beanDeployments = new AtomicInteger(counter);
-
-            if (kernelConfiguration.isParallelDeploy())
-            {
-               deployUrls(l.toArray(new URL[l.size()]));
-            }
-            else
-            {
-               for (URL u : l)
-               {
-                  deployUrls(new URL[] {u});
-               }
-            }
+            deployUrls(l, null);
 
             if (counter > 0)
                incallback();
@@ -442,21 +607,23 @@ public class KernelImpl implements Kernel
       }
 
       // Deploy all files in deploy/
-      if (deployDirectory != null && deployDirectory.exists() && deployDirectory.isDirectory())
+      DirectoryIndex deployIndex = createIndex(deployDirectory, DirectoryIndex.PLAIN_DIRECTORIES,
+                                               kernelConfiguration.isHotDeployment());
+      if (deployIndex != null)
       {
          // Hot deployer
          if (kernelConfiguration.isHotDeployment())
          {
             hotDeployer = new HotDeployer(kernelConfiguration.getHotDeploymentInterval(),
-                                          deployDirectory,
+                                          deployIndex,
                                           this);
          }
 
-         File[] files = deployDirectory.listFiles();
+         List<File> files = deployIndex.getFiles();
 
-         if (files != null)
+         if (files.size() > 0)
          {
-            List<URL> l = new ArrayList<URL>(files.length);
+            List<URL> l = new ArrayList<URL>(files.size());
             int counter = 0;
 
             for (File f : files)
@@ -465,28 +632,14 @@ public class KernelImpl implements Kernel
                
                l.add(u);
 
-               if (u.toString().endsWith(".xml"))
+               if (u.toString().endsWith(".xml") || u.toString().endsWith(".jar"))
                   counter++;
 
                if (hotDeployer != null)
                   hotDeployer.register(u);
             }
 
-            Collections.sort(l, kernelConfiguration.getDeploymentOrder());
-
-            beanDeployments = new AtomicInteger(counter);
-
-            if (kernelConfiguration.isParallelDeploy())
-            {
-               deployUrls(l.toArray(new URL[l.size()]));
-            }
-            else
-            {
-               for (URL u : l)
-               {
-                  deployUrls(new URL[] {u});
-               }
-            }
+            deployUrls(l, null);
 
             if (counter > 0)
                incallback();
@@ -504,12 +657,24 @@ public class KernelImpl implements Kernel
       {
          remote = new CommunicationServer(this,
                                           kernelConfiguration.getBindAddress(),
-                                          kernelConfiguration.getRemotePort());
+                                          kernelConfiguration.getRemotePort(),
+                                          kernelConfiguration.getRemoteMaxConnections(),
+                                          kernelConfiguration.getRemoteMaxClientCommands(),
+                                          kernelConfiguration.getRemoteQueueDepth());
 
          remote.registerCommand(new Help(remote));
          remote.registerCommand(new GetCommand(remote));
-         remote.registerCommand(new Deploy(getMainDeployer(), getHotDeployer()));
-         remote.registerCommand(new Undeploy(getMainDeployer(), getHotDeployer()));
+         remote.registerCommand(new Status(remote));
+         remote.registerCommand(new Deploy(getMainDeployer(), getHotDeployer()), true);
+         remote.registerCommand(new Undeploy(getMainDeployer(), getHotDeployer()), true);
+         remote.registerCommand(new DeployBatch(this), true);
+         remote.registerCommand(new UndeployBatch(this), true);
+
+         if (deployDirectory != null)
+            remote.registerCommand(new UploadDeploy(this, deployDirectory), true);
+
+         if (leakDetector != null)
+            remote.registerCommand(new Leaks(leakDetector));
 
          List<Command> commands = kernelConfiguration.getCommands();
          if (commands != null && commands.size() > 0)
@@ -525,6 +690,19 @@ public class KernelImpl implements Kernel
          getExecutorService().submit(remote);
       }
 
+      // Record the classes loaded during startup
+      if (classPreloader != null)
+      {
+         try
+         {
+            classPreloader.store(kernelClassLoader.stopRecording());
+         }
+         catch (IOException ioe)
+         {
+            log.log(Level.WARNING, "Unable to store the class preload list", ioe);
+         }
+      }
+
       // STARTED
       if (els != null && els.size() > 0)
       {
@@ -535,6 +713,27 @@ public class KernelImpl implements Kernel
       }
    }
 
+   /**
+    * Create the kernel class loader
+    * @param urls The URLs
+    * @param parent The parent class loader
+    * @param root The home directory; can be <code>null</code>
+    * @return The class loader
+    */
+   private KernelClassLoader createKernelClassLoader(URL[] urls, ClassLoader parent, File root)
+   {
+      if (!kernelConfiguration.isClassLoaderIndex())
+         return ClassLoaderFactory.create(kernelConfiguration.getClassLoader(), urls, parent);
+
+      File indexCache = null;
+
+      if (root != null && !temporaryEnvironment)
+         indexCache = new File(root, "classloader.index");
+
+      return ClassLoaderFactory.create(kernelConfiguration.getClassLoader(), urls, parent, indexCache,
+                                       getExecutorService());
+   }
+
    /**
     * Init kernel logging
     */
@@ -545,10 +744,214 @@ public class KernelImpl implements Kernel
    }
 
    /**
-    * Deploy URLs
+    * Deploy URLs. The bean descriptors are scanned up front and validated as one
+    * dependency graph, and the URLs are deployed group by group as defined by the
+    * deployment order. A descriptor that a group depends on is deployed with the group,
+    * even if it belongs to a later group. In parallel mode the URLs of a group are deployed
+    * at once; otherwise one at a time such that a descriptor follows the descriptors it depends on
+    * @param urls The URLs
+    * @param redeploy The URLs that should be redeployed; can be <code>null</code>
+    */
+   void deployUrls(List<URL> urls, Set<URL> redeploy)
+   {
+      deployUrls(urls, redeploy, null);
+   }
+
+   /**
+    * Deploy URLs, and record the URLs that failed
+    * @param urls The URLs
+    * @param redeploy The URLs that should be redeployed; can be <code>null</code>
+    * @param failures The failures by URL; can be <code>null</code>
+    */
+   void deployUrls(List<URL> urls, Set<URL> redeploy, Map<URL, Throwable> failures)
+   {
+      if (urls == null || urls.size() == 0)
+         return;
+
+      DeploymentOrder deploymentOrder = kernelConfiguration.getDeploymentOrder();
+
+      List<URL> sorted = new ArrayList<URL>(urls);
+      Collections.sort(sorted, deploymentOrder);
+
+      // The URLs that were handed to the deployers; their failures are recorded by them
+      Set<URL> deployed = new HashSet<URL>(sorted.size());
+
+      try
+      {
+         BeanGraph graph = prepare(sorted);
+
+         if (failures != null)
+         {
+            for (Map.Entry<URL, String> failure : graph.getFailures().entrySet())
+            {
+               failures.put(failure.getKey(), new DeployException(failure.getValue()));
+            }
+         }
+
+         int index = 0;
+         while (index < sorted.size())
+         {
+            int group = deploymentOrder.getGroup(sorted.get(index));
+            List<URL> l = new ArrayList<URL>();
+
+            while (index < sorted.size() && deploymentOrder.getGroup(sorted.get(index)) == group)
+            {
+               URL url = sorted.get(index);
+
+               if (!graph.isFailed(url) && !deployed.contains(url))
+                  l.add(url);
+
+               index++;
+            }
+
+            // The descriptors of later groups that the group depends on are deployed with it
+            for (URL url : graph.getRequired(l))
+            {
+               if (!graph.isFailed(url) && !deployed.contains(url))
+                  l.add(url);
+            }
+
+            if (kernelConfiguration.isParallelDeploy())
+            {
+               deployUrls(l.toArray(new URL[l.size()]), redeploy, failures);
+               deployed.addAll(l);
+            }
+            else
+            {
+               for (List<URL> batch : graph.getSchedule(l))
+               {
+                  deployUrls(batch.toArray(new URL[batch.size()]), redeploy, failures);
+                  deployed.addAll(batch);
+               }
+            }
+         }
+      }
+      catch (Throwable t)
+      {
+         log.log(Level.SEVERE, t.getMessage(), t);
+
+         if (failures != null)
+         {
+            for (URL url : sorted)
+            {
+               if (!deployed.contains(url) && !failures.containsKey(url))
+                  failures.put(url, t);
+            }
+         }
+      }
+      finally
+      {
+         for (URL url : sorted)
+         {
+            descriptors.remove(url.toString());
+         }
+      }
+   }
+
+   /**
+    * Scan the bean descriptors in parallel, and validate their dependency graph. The
+    * descriptors of archives are part of the graph, but are deployed by the archive deployer.
+    * The beans of the valid descriptors are registered, such that dependencies across
+    * descriptors can be resolved
+    * @param urls The URLs
+    * @return The graph
+    * @exception InterruptedException If the scan is interrupted
+    */
+   private BeanGraph prepare(List<URL> urls) throws InterruptedException
+   {
+      BeanGraph graph = new BeanGraph();
+
+      // Bean descriptors, and archives whose descriptors are deployed by the archive deployer
+      List<URL> units = new ArrayList<URL>(urls.size());
+      for (URL url : urls)
+      {
+         if (url.toString().endsWith(".xml") || ArchiveDeployer.isArchive(url))
+            units.add(url);
+      }
+
+      if (units.size() == 0)
+         return graph;
+
+      Object[] results = new Object[units.size()];
+      int threads = Math.min(units.size(), Runtime.getRuntime().availableProcessors());
+      CountDownLatch latch = new CountDownLatch(threads);
+
+      for (int i = 0; i < threads; i++)
+      {
+         getExecutorService().execute(new DescriptorScanner(units, i, threads, results, latch));
+      }
+
+      latch.await();
+
+      for (int i = 0; i < units.size(); i++)
+      {
+         URL url = units.get(i);
+
+         if (results[i] instanceof com.github.fungal.deployment.Deployment)
+         {
+            com.github.fungal.deployment.Deployment descriptor = (com.github.fungal.deployment.Deployment)results[i];
+
+            if (descriptor.getBean().size() > 0)
+               graph.add(url, descriptor);
+         }
+         else if (results[i] instanceof Throwable)
+         {
+            Throwable t = (Throwable)results[i];
+            graph.fail(url, "Unable to parse the descriptor: " + t.getMessage());
+         }
+      }
+
+      graph.validate(this);
+
+      for (Map.Entry<URL, String> failure : graph.getFailures().entrySet())
+      {
+         log.severe("Deployment " + failure.getKey() + " failed: " + failure.getValue());
+      }
+
+      for (URL url : units)
+      {
+         boolean failed = graph.isFailed(url);
+
+         for (String bean : graph.getBeans(url))
+         {
+            if (getBeanStatus(bean) == null)
+               setBeanStatus(bean, failed ? ServiceLifecycle.ERROR : ServiceLifecycle.NOT_STARTED);
+         }
+
+         if (!failed && graph.getDescriptor(url) != null && url.toString().endsWith(".xml"))
+            descriptors.put(url.toString(), graph.getDescriptor(url));
+      }
+
+      return graph;
+   }
+
+   /**
+    * Get a prescanned deployment descriptor; the descriptor is removed
+    * @param url The URL of the descriptor
+    * @return The descriptor; <code>null</code> if the descriptor wasn't prescanned
+    */
+   com.github.fungal.deployment.Deployment removeDescriptor(URL url)
+   {
+      return descriptors.remove(url.toString());
+   }
+
+   /**
+    * Deploy URLs concurrently
+    * @param urls The URLs
+    * @param redeploy The URLs that should be redeployed; can be <code>null</code>
+    */
+   void deployUrls(URL[] urls, Set<URL> redeploy)
+   {
+      deployUrls(urls, redeploy, null);
+   }
+
+   /**
+    * Deploy URLs concurrently, and record the URLs that failed
     * @param urls The URLs
+    * @param redeploy The URLs that should be redeployed; can be <code>null</code>
+    * @param failures The failures by URL; can be <code>null</code>
     */
-   private void deployUrls(URL[] urls)
+   private void deployUrls(URL[] urls, Set<URL> redeploy, Map<URL, Throwable> failures)
    {
       if (urls != null && urls.length > 0)
       {
@@ -566,7 +969,9 @@ public class KernelImpl implements Kernel
                      log.fine("URL=" + url.toString());
 
                   MainDeployerImpl deployer = (MainDeployerImpl)mainDeployer.clone();
-                  UnitDeployer unitDeployer = new UnitDeployer(url, deployer, kernelClassLoader, unitLatch);
+                  boolean unitRedeploy = redeploy != null && redeploy.contains(url);
+                  UnitDeployer unitDeployer = new UnitDeployer(url, deployer, kernelClassLoader,
+                                                               unitRedeploy, unitLatch);
                   unitDeployers.add(unitDeployer);
                   
                   getExecutorService().execute(unitDeployer);
@@ -574,6 +979,9 @@ public class KernelImpl implements Kernel
                catch (Throwable deployThrowable)
                {
                   log.log(Level.SEVERE, deployThrowable.getMessage(), deployThrowable);
+
+                  if (failures != null)
+                     failures.put(url, deployThrowable);
                }
             }
 
@@ -587,66 +995,269 @@ public class KernelImpl implements Kernel
                {
                   Throwable t = deployer.getThrowable();
                   log.log(Level.SEVERE, t.getMessage(), t);
+
+                  if (failures != null)
+                     failures.put(deployer.getURL(), t);
                }
             }
          }
          catch (Throwable t)
          {
             log.log(Level.SEVERE, t.getMessage(), t);
+
+            if (failures != null)
+            {
+               for (URL url : urls)
+               {
+                  if (!failures.containsKey(url))
+                     failures.put(url, t);
+               }
+            }
          }
       }
    }
 
    /**
-    * Shutdown
-    * @exception Throwable Thrown if an error occurs
+    * Deploy a batch of URLs. The URLs are deployed group by group as defined by the
+    * deployment order, and the deployer phases and incallbacks are run once for the
+    * batch. URLs that are deployed already are redeployed
+    * @param urls The URLs
+    * @return The failures by URL; empty if all URLs were deployed
+    * @exception Throwable Thrown if a deployer phase fails
     */
-   public void shutdown() throws Throwable
+   public Map<URL, Throwable> deployBatch(List<URL> urls) throws Throwable
    {
-      List<EventListener> els = kernelConfiguration.getEventListeners();
-      // STOPPING
-      if (els != null && els.size() > 0)
+      if (urls == null)
+         throw new IllegalArgumentException("URLs is null");
+
+      List<URL> l = new ArrayList<URL>(new LinkedHashSet<URL>(urls));
+      Map<URL, Throwable> failures = new HashMap<URL, Throwable>();
+      Set<URL> redeploy = null;
+      int counter = 0;
+
+      for (URL url : l)
       {
-         for (EventListener el : els)
+         if (getDeployment(url) != null)
          {
-            el.event(this, Event.STOPPING);
+            if (redeploy == null)
+               redeploy = new HashSet<URL>(l.size());
+
+            redeploy.add(url);
          }
-      }
 
-      SecurityActions.setThreadContextClassLoader(kernelClassLoader);
+         if (url.toString().endsWith(".xml") || url.toString().endsWith(".jar"))
+            counter++;
 
-      // Stop hot deployer
-      if (hotDeployer != null)
-      {
-         hotDeployer.stop();
+         if (hotDeployer != null)
+            hotDeployer.register(url);
       }
 
-      // Stop the remote connector
-      if (remote != null)
-      {
-         remote.stop();
-      }
+      preDeploy(true);
 
-      // PreUndeploy
-      preUndeploy(false);      
+      deployUrls(l, redeploy, failures);
 
-      // Shutdown all deployments
-      if (deployments.size() > 0)
-      {
-         List<Deployment> shutdownDeployments = new LinkedList<Deployment>(deployments);
-         Collections.reverse(shutdownDeployments);
+      postDeploy(true);
 
-         for (Deployment deployment : shutdownDeployments)
-         {
-            if (hotDeployer != null)
-               hotDeployer.unregister(deployment.getURL());
+      if (counter > 0)
+         incallback();
 
-            shutdownDeployment(deployment);
-         }
-      }
+      return failures;
+   }
 
-      // PostUndeploy
-      // We are removing all deployments including all DeployerPhases beans => no postUndeploy call
+   /**
+    * Undeploy a batch of URLs. The URLs are undeployed group by group in the reverse
+    * deployment order, and the deployer phases are run once for the batch
+    * @param urls The URLs
+    * @return The failures by URL; empty if all URLs were undeployed
+    * @exception Throwable Thrown if a deployer phase fails
+    */
+   public Map<URL, Throwable> undeployBatch(List<URL> urls) throws Throwable
+   {
+      if (urls == null)
+         throw new IllegalArgumentException("URLs is null");
+
+      List<URL> l = new ArrayList<URL>(new LinkedHashSet<URL>(urls));
+      Map<URL, Throwable> failures = new HashMap<URL, Throwable>();
+
+      for (URL url : l)
+      {
+         if (hotDeployer != null)
+            hotDeployer.unregister(url);
+      }
+
+      preUndeploy(true);
+
+      undeployUrls(l, failures);
+
+      postUndeploy(true);
+
+      return failures;
+   }
+
+   /**
+    * Undeploy URLs group by group in the reverse deployment order. In parallel mode the
+    * URLs of a group are undeployed at once; otherwise one at a time in reverse order
+    * @param urls The URLs
+    * @param failures The failures by URL
+    */
+   private void undeployUrls(List<URL> urls, Map<URL, Throwable> failures)
+   {
+      DeploymentOrder deploymentOrder = kernelConfiguration.getDeploymentOrder();
+
+      List<URL> sorted = new ArrayList<URL>(urls);
+      Collections.sort(sorted, deploymentOrder);
+      Collections.reverse(sorted);
+
+      try
+      {
+         int index = 0;
+         while (index < sorted.size())
+         {
+            int group = deploymentOrder.getGroup(sorted.get(index));
+            List<Deployment> l = new ArrayList<Deployment>();
+
+            while (index < sorted.size() && deploymentOrder.getGroup(sorted.get(index)) == group)
+            {
+               URL url = sorted.get(index);
+               Deployment deployment = getDeployment(url);
+
+               if (deployment != null)
+               {
+                  l.add(deployment);
+               }
+               else
+               {
+                  failures.put(url, new DeployException("Not deployed: " + url));
+               }
+
+               index++;
+            }
+
+            if (kernelConfiguration.isParallelDeploy() && l.size() > 1)
+            {
+               List<UnitUndeployer> unitUndeployers = new ArrayList<UnitUndeployer>(l.size());
+               CountDownLatch unitLatch = new CountDownLatch(l.size());
+
+               for (Deployment deployment : l)
+               {
+                  MainDeployerImpl deployer = (MainDeployerImpl)mainDeployer.clone();
+                  UnitUndeployer unitUndeployer = new UnitUndeployer(deployment, deployer, unitLatch);
+                  unitUndeployers.add(unitUndeployer);
+
+                  getExecutorService().execute(unitUndeployer);
+               }
+
+               unitLatch.await();
+
+               for (UnitUndeployer unitUndeployer : unitUndeployers)
+               {
+                  if (unitUndeployer.getThrowable() != null)
+                  {
+                     Throwable t = unitUndeployer.getThrowable();
+                     log.log(Level.SEVERE, t.getMessage(), t);
+
+                     failures.put(unitUndeployer.getURL(), t);
+                  }
+               }
+            }
+            else
+            {
+               for (Deployment deployment : l)
+               {
+                  try
+                  {
+                     mainDeployer.unregisterDeployment(deployment);
+                  }
+                  catch (Throwable t)
+                  {
+                     log.log(Level.SEVERE, t.getMessage(), t);
+
+                     failures.put(deployment.getURL(), t);
+                  }
+               }
+            }
+         }
+      }
+      catch (Throwable t)
+      {
+         log.log(Level.SEVERE, t.getMessage(), t);
+
+         for (URL url : sorted)
+         {
+            if (getDeployment(url) != null && !failures.containsKey(url))
+               failures.put(url, t);
+         }
+      }
+   }
+
+   /**
+    * Shutdown
+    * @exception Throwable Thrown if an error occurs
+    */
+   public void shutdown() throws Throwable
+   {
+      List<EventListener> els = kernelConfiguration.getEventListeners();
+      // STOPPING
+      if (els != null && els.size() > 0)
+      {
+         for (EventListener el : els)
+         {
+            el.event(this, Event.STOPPING);
+         }
+      }
+
+      SecurityActions.setThreadContextClassLoader(kernelClassLoader);
+
+      // Stop hot deployer
+      if (hotDeployer != null)
+      {
+         hotDeployer.stop();
+      }
+
+      // Stop the deployment watchdog
+      if (watchdog != null)
+      {
+         watchdog.stop();
+      }
+
+      // Stop the bean pool evictor
+      if (beanPoolEvictor != null)
+      {
+         beanPoolEvictor.stop();
+      }
+
+      // Stop the leak detector
+      if (leakDetector != null)
+      {
+         leakDetector.stop();
+      }
+
+      // Stop the remote connector
+      if (remote != null)
+      {
+         remote.stop();
+      }
+
+      // PreUndeploy
+      preUndeploy(false);      
+
+      // Shutdown all deployments
+      if (deployments.size() > 0)
+      {
+         List<Deployment> shutdownDeployments = new LinkedList<Deployment>(deployments);
+         Collections.reverse(shutdownDeployments);
+
+         for (Deployment deployment : shutdownDeployments)
+         {
+            if (hotDeployer != null)
+               hotDeployer.unregister(deployment.getURL());
+
+            shutdownDeployment(deployment);
+         }
+      }
+
+      // PostUndeploy
+      // We are removing all deployments including all DeployerPhases beans => no postUndeploy call
 
       // Remove kernel bean
       removeBean("Kernel");
@@ -756,6 +1367,117 @@ public class KernelImpl implements Kernel
       }
 
       deployments.remove(deployment);
+
+      ClassLoader cl = deployment.getClassLoader();
+
+      if (cl instanceof KernelClassLoader && cl != kernelClassLoader)
+      {
+         // The resolved converters of the types from the unit refer to its class loader
+         if (injection != null)
+            injection.getConverterRegistry().clear(kernelClassLoader);
+
+         if (leakDetector != null)
+            leakDetector.track(cl, "Class loader of " + deployment.getURL());
+      }
+   }
+
+   /**
+    * Get the leak detector
+    * @return The leak detector; <code>null</code> if disabled
+    */
+   LeakDetector getLeakDetector()
+   {
+      return leakDetector;
+   }
+
+   /**
+    * Find the kernel structures and threads that refer to an object; a class loader
+    * is also referred to through the instances of the classes that it defined
+    * @param target The object
+    * @return The references
+    */
+   List<String> findReferences(Object target)
+   {
+      List<String> result = new ArrayList<String>();
+
+      for (Map.Entry<String, Object> entry : beans.entrySet())
+      {
+         if (refersTo(entry.getValue(), target))
+            result.add("KernelImpl.beans[" + entry.getKey() + "]");
+      }
+
+      for (Object bean : callbackBeans.keySet())
+      {
+         if (refersTo(bean, target))
+            result.add("KernelImpl.callbackBeans[" + bean.getClass().getName() + "]");
+      }
+
+      findCallbackReferences("KernelImpl.incallbacks", incallbacks, target, result);
+      findCallbackReferences("KernelImpl.uncallbacks", uncallbacks, target, result);
+
+      synchronized (deployments)
+      {
+         for (Deployment deployment : deployments)
+         {
+            if (refersTo(deployment, target) || deployment.getClassLoader() == target)
+               result.add("KernelImpl.deployments[" + deployment.getURL() + "]");
+         }
+      }
+
+      for (Thread thread : Thread.getAllStackTraces().keySet())
+      {
+         if (thread.getContextClassLoader() == target)
+            result.add("Thread[" + thread.getName() + "].contextClassLoader");
+      }
+
+      return result;
+   }
+
+   /**
+    * Find the callbacks that refer to an object
+    * @param name The name of the structure
+    * @param callbacks The callbacks by type
+    * @param target The object
+    * @param result The references
+    */
+   private void findCallbackReferences(String name, ConcurrentMap<Class<?>, List<Callback>> callbacks,
+                                       Object target, List<String> result)
+   {
+      for (Map.Entry<Class<?>, List<Callback>> entry : callbacks.entrySet())
+      {
+         if (refersTo(entry.getKey(), target))
+            result.add(name + "[" + entry.getKey().getName() + "]");
+
+         for (Callback cb : entry.getValue())
+         {
+            if (refersTo(cb.getInstance(), target) || refersTo(cb.getMethod().getDeclaringClass(), target))
+               result.add(name + "[" + entry.getKey().getName() + "] -> " + cb);
+         }
+      }
+   }
+
+   /**
+    * Does an object refer to another object
+    * @param o The object
+    * @param target The other object
+    * @return True if the object is the other object, or an instance or class of the
+    *         other object when it is a class loader
+    */
+   private static boolean refersTo(Object o, Object target)
+   {
+      if (o == null)
+         return false;
+
+      if (o == target)
+         return true;
+
+      if (target instanceof ClassLoader)
+      {
+         Class<?> c = o instanceof Class ? (Class<?>)o : o.getClass();
+         return c.getClassLoader() == target;
+      }
+
+      return false;
    }
 
    /**
@@ -800,6 +1522,24 @@ public class KernelImpl implements Kernel
       return kernelConfiguration;
    }
 
+   /**
+    * Get the directory of the exploded archives
+    * @return The directory; <code>null</code> if the kernel isn't started
+    */
+   File getArchiveDirectory()
+   {
+      return archiveDirectory;
+   }
+
+   /**
+    * Get the injection utility
+    * @return The injection utility
+    */
+   Injection getInjection()
+   {
+      return injection;
+   }
+
    /**
     * Get the bean status
     * @param name The bean name
@@ -828,20 +1568,85 @@ public class KernelImpl implements Kernel
             beanLatches.putIfAbsent(name, newList);
          }
       }
-      else if (status == ServiceLifecycle.STARTED || status == ServiceLifecycle.ERROR)
+      else if (status == ServiceLifecycle.STARTED || status == ServiceLifecycle.READY ||
+               status == ServiceLifecycle.ERROR)
       {
-         List<CountDownLatch> l = beanLatches.get(name);
-         if (l != null)
+         release(beanLatches.get(name));
+
+         if (status != ServiceLifecycle.STARTED)
+            release(readyLatches.get(name));
+      }
+   }
+
+   /**
+    * Release the count down latches of a bean. The latches are released once, such that
+    * a bean that moves from started to ready doesn't count down its dependants twice
+    * @param l The latches
+    */
+   private void release(List<CountDownLatch> l)
+   {
+      if (l != null)
+      {
+         synchronized (l)
          {
             for (CountDownLatch cdl : l)
             {
                if (cdl.getCount() > 0)
                   cdl.countDown();
             }
+
+            l.clear();
          }
       }
    }
 
+   /**
+    * Is a status started
+    * @param status The status
+    * @return True if started or ready; otherwise false
+    */
+   static boolean isStarted(ServiceLifecycle status)
+   {
+      return status == ServiceLifecycle.STARTED || status == ServiceLifecycle.READY;
+   }
+
+   /**
+    * Run the start of an asynchronous bean on the executor. The bean is ready once
+    * the start is done
+    * @param name The name of the bean
+    * @param starter The start work
+    */
+   void startBean(String name, Runnable starter)
+   {
+      FutureTask<Object> task = new FutureTask<Object>(starter, null);
+      beanStarts.put(name, task);
+
+      getExecutorService().execute(task);
+   }
+
+   /**
+    * The start of an asynchronous bean is done
+    * @param name The name of the bean
+    * @param success True if the start was successful; otherwise false
+    */
+   void beanStartDone(String name, boolean success)
+   {
+      if (beanStarts.remove(name) != null)
+         setBeanStatus(name, success ? ServiceLifecycle.READY : ServiceLifecycle.ERROR);
+   }
+
+   /**
+    * Cancel the start of an asynchronous bean; the start is interrupted
+    * @param name The name of the bean
+    */
+   void cancelBeanStart(String name)
+   {
+      Future<?> task = beanStarts.remove(name);
+
+      if (task != null)
+         task.cancel(true);
+   }
+
    /**
     * Add a bean
     * @param name The name of the bean
@@ -852,6 +1657,25 @@ public class KernelImpl implements Kernel
       if (!beans.containsKey(name))
       {
          beans.put(name, bean);
+
+         Set<Class<?>> types = getTypes(bean.getClass());
+         synchronized (beanTypes)
+         {
+            for (Class<?> type : types)
+            {
+               Set<String> names = beanTypes.get(type);
+               if (names == null)
+               {
+                  names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(1));
+                  beanTypes.put(type, names);
+               }
+
+               names.add(name);
+            }
+         }
+
+         if (beanListeners.size() > 0)
+            fireBeanListeners(types, name, bean, true);
       }
       else
       {
@@ -902,25 +1726,80 @@ public class KernelImpl implements Kernel
                      }
                   }
                }
+            }
+         }
+      }
+
+      Set<String> keys = beanProperties.remove(name);
+      if (keys != null)
+      {
+         for (String key : keys)
+         {
+            Set<String> dependants = propertyDependants.get(key);
+            if (dependants != null)
+            {
+               synchronized (dependants)
+               {
+                  dependants.remove(name);
 
-               callbackBeans.remove(bean);
+                  if (dependants.isEmpty())
+                     propertyDependants.remove(key, dependants);
+               }
             }
          }
       }
 
+      BeanPool pool = beanPools.remove(name);
+      if (pool != null)
+         pool.close();
+
+      cancelBeanStart(name);
+
+      beanDependants.remove(name);
       deployerPhasesBeans.remove(name);
-      beans.remove(name);
-      beanStatus.remove(name);
-      beanLatches.remove(name);
-   }
 
-   /**
-    * Get a bean
-    * @param name The bean name
-    * @param expectedType The expected type for the bean
-    * @return The bean instance
-    * @exception Throwable If an error occurs
-    */
+      Object removed = beans.remove(name);
+      if (removed != null)
+      {
+         callbackBeans.remove(removed);
+         unregisterCallbacks(incallbacks, removed);
+         unregisterCallbacks(uncallbacks, removed);
+
+         if (leakDetector != null)
+            leakDetector.track(removed, "Bean " + name);
+
+         Set<Class<?>> types = getTypes(removed.getClass());
+         synchronized (beanTypes)
+         {
+            for (Class<?> type : types)
+            {
+               Set<String> names = beanTypes.get(type);
+               if (names != null)
+               {
+                  names.remove(name);
+
+                  if (names.size() == 0)
+                     beanTypes.remove(type);
+               }
+            }
+         }
+
+         if (beanListeners.size() > 0)
+            fireBeanListeners(types, name, removed, false);
+      }
+
+      beanStatus.remove(name);
+      beanLatches.remove(name);
+      readyLatches.remove(name);
+   }
+
+   /**
+    * Get a bean
+    * @param name The bean name
+    * @param expectedType The expected type for the bean
+    * @return The bean instance
+    * @exception Throwable If an error occurs
+    */
    public <T> T getBean(String name, Class<T> expectedType) throws Throwable
    {
       if (name == null)
@@ -933,13 +1812,475 @@ public class KernelImpl implements Kernel
    }
 
    /**
-    * Get a bean
-    * @param name The name of the bean
-    * @return The bean
+    * Get a bean. A lazy bean is created on the first request, and a scoped bean
+    * returns a new instance that isn't pooled
+    * @param name The name of the bean
+    * @return The bean
+    */
+   public Object getBean(String name)
+   {
+      Object bean = beans.get(name);
+
+      if (bean == null && lazyBeans.size() > 0)
+      {
+         LazyBean lazyBean = lazyBeans.get(name);
+         if (lazyBean != null)
+         {
+            lazyBean.activate(getExecutorService());
+
+            try
+            {
+               lazyBean.await();
+            }
+            catch (InterruptedException ie)
+            {
+               Thread.interrupted();
+            }
+
+            bean = beans.get(name);
+         }
+      }
+
+      if (bean == null && beanPools.size() > 0)
+      {
+         BeanPool pool = beanPools.get(name);
+         if (pool != null)
+         {
+            try
+            {
+               bean = pool.getPlan().newInstance();
+            }
+            catch (Throwable t)
+            {
+               log.log(Level.SEVERE, "Creating an instance of " + name, t);
+            }
+         }
+      }
+
+      return bean;
+   }
+
+   /**
+    * Get the beans of a type; the lazy beans of the type are created
+    * @param type The type; a class or an interface
+    * @return A snapshot of the bean names and instances
+    */
+   public <T> Map<String, T> getBeansOfType(Class<T> type)
+   {
+      if (type == null)
+         throw new IllegalArgumentException("Type is null");
+
+      if (lazyBeans.size() > 0)
+         activateLazyBeans(type);
+
+      if (Object.class.equals(type))
+      {
+         Map<String, T> result = new HashMap<String, T>(beans.size());
+         for (Map.Entry<String, Object> entry : beans.entrySet())
+         {
+            result.put(entry.getKey(), type.cast(entry.getValue()));
+         }
+         return result;
+      }
+
+      Set<String> names = beanTypes.get(type);
+
+      if (names == null)
+         return new HashMap<String, T>(1);
+
+      Map<String, T> result = new HashMap<String, T>(names.size());
+      for (String name : names)
+      {
+         Object bean = beans.get(name);
+
+         if (bean != null)
+            result.put(name, type.cast(bean));
+      }
+
+      return result;
+   }
+
+   /**
+    * Add a listener for the beans of a type
+    * @param type The type; a class or an interface
+    * @param listener The listener
+    */
+   public void addBeanListener(Class<?> type, BeanListener listener)
+   {
+      if (type == null)
+         throw new IllegalArgumentException("Type is null");
+
+      if (listener == null)
+         throw new IllegalArgumentException("Listener is null");
+
+      List<BeanListener> listeners = beanListeners.get(type);
+      if (listeners == null)
+      {
+         List<BeanListener> newListeners = new CopyOnWriteArrayList<BeanListener>();
+         listeners = beanListeners.putIfAbsent(type, newListeners);
+         if (listeners == null)
+         {
+            listeners = newListeners;
+         }
+      }
+
+      listeners.add(listener);
+   }
+
+   /**
+    * Remove a listener for the beans of a type
+    * @param type The type
+    * @param listener The listener
+    */
+   public void removeBeanListener(Class<?> type, BeanListener listener)
+   {
+      if (type == null)
+         throw new IllegalArgumentException("Type is null");
+
+      if (listener == null)
+         throw new IllegalArgumentException("Listener is null");
+
+      List<BeanListener> listeners = beanListeners.get(type);
+      if (listeners != null)
+         listeners.remove(listener);
+   }
+
+   /**
+    * Get the classes and interfaces that a class is assignable to; excluding Object
+    * @param clz The class
+    * @return The types
+    */
+   private static Set<Class<?>> getTypes(Class<?> clz)
+   {
+      Set<Class<?>> types = new HashSet<Class<?>>();
+
+      LinkedList<Class<?>> work = new LinkedList<Class<?>>();
+      work.add(clz);
+
+      while (work.size() > 0)
+      {
+         Class<?> c = work.removeFirst();
+
+         if (c != null && !Object.class.equals(c) && types.add(c))
+         {
+            work.add(c.getSuperclass());
+
+            for (Class<?> i : c.getInterfaces())
+            {
+               work.add(i);
+            }
+         }
+      }
+
+      return types;
+   }
+
+   /**
+    * Notify the bean listeners
+    * @param types The types of the bean
+    * @param name The name of the bean
+    * @param bean The bean
+    * @param added True if the bean was added; false if it was removed
+    */
+   private void fireBeanListeners(Set<Class<?>> types, String name, Object bean, boolean added)
+   {
+      Set<BeanListener> notified = null;
+
+      for (Class<?> type : types)
+      {
+         List<BeanListener> listeners = beanListeners.get(type);
+         if (listeners != null)
+         {
+            for (BeanListener listener : listeners)
+            {
+               if (notified == null)
+                  notified = new HashSet<BeanListener>(1);
+
+               if (notified.add(listener))
+               {
+                  try
+                  {
+                     if (added)
+                     {
+                        listener.beanAdded(this, name, bean);
+                     }
+                     else
+                     {
+                        listener.beanRemoved(this, name, bean);
+                     }
+                  }
+                  catch (Throwable t)
+                  {
+                     log.log(Level.WARNING, "BeanListener: " + listener, t);
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Borrow an instance of a pooled, or prototype, scoped bean
+    * @param name The bean name
+    * @param expectedType The expected type for the bean
+    * @return The bean instance
+    * @exception Throwable If an error occurs
+    */
+   public <T> T borrowBean(String name, Class<T> expectedType) throws Throwable
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Name is null");
+
+      if (expectedType == null)
+         throw new IllegalArgumentException("ExpectedType is null");
+
+      BeanPool pool = getBeanPool(name);
+
+      if (pool == null)
+         throw new Exception("Bean " + name + " isn't a pooled or prototype bean");
+
+      return expectedType.cast(pool.borrow());
+   }
+
+   /**
+    * Return an instance of a pooled, or prototype, scoped bean
+    * @param name The bean name
+    * @param bean The bean instance
+    * @exception Throwable If an error occurs
+    */
+   public void returnBean(String name, Object bean) throws Throwable
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Name is null");
+
+      if (bean == null)
+         throw new IllegalArgumentException("Bean is null");
+
+      BeanPool pool = beanPools.get(name);
+
+      if (pool == null)
+         throw new Exception("Bean " + name + " isn't a pooled or prototype bean");
+
+      pool.release(bean);
+   }
+
+   /**
+    * Get the statistics of a pooled, or prototype, scoped bean
+    * @param name The bean name
+    * @return The statistics; <code>null</code> if the bean isn't scoped
+    */
+   public BeanPoolStatistics getBeanPoolStatistics(String name)
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Name is null");
+
+      return beanPools.get(name);
+   }
+
+   /**
+    * Add a pooled, or prototype, scoped bean
+    * @param name The name of the bean
+    * @param pool The pool
+    */
+   void addBeanPool(String name, BeanPool pool)
+   {
+      if (beanPools.putIfAbsent(name, pool) != null)
+      {
+         log.log(Level.SEVERE, "Bean [" + name + "] already exists");
+         pool.close();
+      }
+   }
+
+   /**
+    * Get the pools of the scoped beans
+    * @return The pools
+    */
+   Collection<BeanPool> getBeanPools()
+   {
+      return beanPools.values();
+   }
+
+   /**
+    * Get the pool of a scoped bean; a lazy bean is created
+    * @param name The name of the bean
+    * @return The pool; <code>null</code> if the bean isn't scoped
+    */
+   private BeanPool getBeanPool(String name)
+   {
+      BeanPool pool = beanPools.get(name);
+
+      if (pool == null && activateLazyBean(name))
+      {
+         try
+         {
+            LazyBean lazyBean = lazyBeans.get(name);
+            if (lazyBean != null)
+               lazyBean.await();
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.interrupted();
+         }
+
+         pool = beanPools.get(name);
+      }
+
+      return pool;
+   }
+
+   /**
+    * Get a bean instance without creating lazy beans
+    * @param name The name of the bean
+    * @return The bean; <code>null</code> if the bean hasn't been created
+    */
+   Object getBeanInstance(String name)
+   {
+      return beans.get(name);
+   }
+
+   /**
+    * Add a lazy bean. The bean is created right away if other beans are already
+    * waiting for it
+    * @param lazyBean The lazy bean
+    */
+   void addLazyBean(LazyBean lazyBean)
+   {
+      lazyBeans.put(lazyBean.getName(), lazyBean);
+
+      List<CountDownLatch> l = beanLatches.get(lazyBean.getName());
+      if (l != null)
+      {
+         synchronized (l)
+         {
+            for (CountDownLatch cdl : l)
+            {
+               if (cdl.getCount() > 0)
+               {
+                  activateLazyBean(lazyBean.getName());
+                  return;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Activate a lazy bean, such that it is created
+    * @param name The name of the bean
+    * @return True if the bean is a lazy bean; otherwise false
+    */
+   boolean activateLazyBean(String name)
+   {
+      LazyBean lazyBean = lazyBeans.get(name);
+
+      if (lazyBean == null)
+         return false;
+
+      if (lazyBean.activate(getExecutorService()) && log.isLoggable(Level.FINE))
+         log.fine("Activating lazy bean " + name);
+
+      return true;
+   }
+
+   /**
+    * Remove the lazy beans of a deployment. Lazy beans that haven't been created are
+    * removed from the kernel, while the creation of activated beans is allowed to finish
+    * @param url The URL of the deployment
+    */
+   void removeLazyBeans(URL url)
+   {
+      if (lazyBeans.size() == 0)
+         return;
+
+      Iterator<LazyBean> it = lazyBeans.values().iterator();
+      while (it.hasNext())
+      {
+         LazyBean lazyBean = it.next();
+
+         if (url.equals(lazyBean.getURL()))
+         {
+            it.remove();
+
+            if (lazyBean.cancel())
+            {
+               removeBean(lazyBean.getName());
+            }
+            else
+            {
+               try
+               {
+                  lazyBean.await();
+               }
+               catch (InterruptedException ie)
+               {
+                  Thread.interrupted();
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Register the property keys that a bean depends on
+    * @param name The name of the bean
+    * @param keys The property keys
+    */
+   void addPropertyDependants(String name, Set<String> keys)
+   {
+      if (keys == null || keys.size() == 0)
+         return;
+
+      beanProperties.put(name, keys);
+
+      for (String key : keys)
+      {
+         boolean added = false;
+         while (!added)
+         {
+            Set<String> dependants = propertyDependants.get(key);
+            if (dependants == null)
+            {
+               Set<String> newDependants = Collections.synchronizedSet(new HashSet<String>(1));
+               dependants = propertyDependants.putIfAbsent(key, newDependants);
+               if (dependants == null)
+               {
+                  dependants = newDependants;
+               }
+            }
+
+            // An empty set is pruned by removeBean; retry against the set that replaced it
+            synchronized (dependants)
+            {
+               if (propertyDependants.get(key) == dependants)
+               {
+                  dependants.add(name);
+                  added = true;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Get the beans that depend on a property, such that a change of the property
+    * can target exactly those beans
+    * @param key The property key
+    * @return The bean names
     */
-   public Object getBean(String name)
+   public Set<String> getPropertyDependants(String key)
    {
-      return beans.get(name);
+      if (key == null)
+         throw new IllegalArgumentException("Key is null");
+
+      Set<String> dependants = propertyDependants.get(key);
+
+      if (dependants == null)
+         return Collections.emptySet();
+
+      synchronized (dependants)
+      {
+         return Collections.unmodifiableSet(new HashSet<String>(dependants));
+      }
    }
 
    /**
@@ -952,13 +2293,40 @@ public class KernelImpl implements Kernel
       return beanDependants.get(name);
    }
 
+   /**
+    * Get the beans that depend directly on a bean
+    * @param name The name of the bean
+    * @return The bean names
+    */
+   Set<String> getDependantBeans(String name)
+   {
+      Set<String> result = null;
+
+      for (Map.Entry<String, Set<String>> entry : beanDependants.entrySet())
+      {
+         if (entry.getValue().contains(name))
+         {
+            if (result == null)
+               result = new HashSet<String>(1);
+
+            result.add(entry.getKey());
+         }
+      }
+
+      if (result == null)
+         return Collections.emptySet();
+
+      return result;
+   }
+
    /**
     * Add a bean to the dependants map
     * @param from The name of the from bean
     * @param to The name of the to bean
+    * @param ready Wait for the 'to' bean to be ready, instead of started
     * @param cdl The count down latch that should be notified
     */
-   void addBeanDependants(String from, String to, CountDownLatch cdl)
+   void addBeanDependants(String from, String to, boolean ready, CountDownLatch cdl)
    {
       // Register the 'from' -> 'to' binding
       Set<String> dependants = beanDependants.get(from);
@@ -974,15 +2342,19 @@ public class KernelImpl implements Kernel
       
       dependants.add(to);
 
-      // Register the count down latch if the 'to' hasn't started
+      // Register the count down latch if the 'to' hasn't started, or isn't ready
       ServiceLifecycle slc = getBeanStatus(to);
-      if (slc != ServiceLifecycle.STARTED && slc != ServiceLifecycle.ERROR)
+      boolean done = slc == ServiceLifecycle.READY || slc == ServiceLifecycle.ERROR ||
+         (!ready && slc == ServiceLifecycle.STARTED);
+
+      if (!done)
       {
-         List<CountDownLatch> l = beanLatches.get(to);
+         ConcurrentMap<String, List<CountDownLatch>> latches = ready ? readyLatches : beanLatches;
+         List<CountDownLatch> l = latches.get(to);
          if (l == null)
          {
             List<CountDownLatch> newList = Collections.synchronizedList(new ArrayList<CountDownLatch>(1));
-            l = beanLatches.putIfAbsent(to, newList);
+            l = latches.putIfAbsent(to, newList);
             if (l == null)
             {
                l = newList;
@@ -1007,20 +2379,25 @@ public class KernelImpl implements Kernel
    }
 
    /**
-    * Beans registered
+    * Replace a deployment
+    * @param oldDeployment The current deployment
+    * @param newDeployment The new deployment
     */
-   void beansRegistered()
+   void replaceDeployment(Deployment oldDeployment, Deployment newDeployment)
    {
-      beanDeployments.decrementAndGet();
-   }
+      synchronized (deployments)
+      {
+         int index = deployments.indexOf(oldDeployment);
 
-   /**
-    * Is all beans registered
-    * @return True if all beans have been registered; otherwise false
-    */
-   boolean isAllBeansRegistered()
-   {
-      return beanDeployments.get() <= 0;
+         if (index != -1)
+         {
+            deployments.set(index, newDeployment);
+         }
+         else
+         {
+            deployments.add(newDeployment);
+         }
+      }
    }
 
    /**
@@ -1051,24 +2428,48 @@ public class KernelImpl implements Kernel
       return hotDeployer;
    }
 
+   /**
+    * Get the deployment watchdog
+    * @return The watchdog; <code>null</code> if disabled
+    */
+   Watchdog getWatchdog()
+   {
+      return watchdog;
+   }
+
    /**
     * Register an incallback method with the kernel
     * @param cb The callback structure
     */
    void registerIncallback(Callback cb)
    {
-      List<Callback> callbacks = incallbacks.get(cb.getType());
-      if (callbacks == null)
+      registerCallback(incallbacks, cb);
+   }
+
+   /**
+    * Unregister the callback methods of a bean
+    * @param callbacks The callbacks by type
+    * @param bean The bean
+    */
+   private void unregisterCallbacks(ConcurrentMap<Class<?>, List<Callback>> callbacks, Object bean)
+   {
+      for (Map.Entry<Class<?>, List<Callback>> entry : callbacks.entrySet())
       {
-         List<Callback> newCallbacks = new ArrayList<Callback>(1);
-         callbacks = incallbacks.putIfAbsent(cb.getType(), newCallbacks);
-         if (callbacks == null)
+         List<Callback> l = entry.getValue();
+
+         synchronized (l)
          {
-            callbacks = newCallbacks;
+            for (Callback cb : l)
+            {
+               if (cb.getInstance() == bean)
+                  l.remove(cb);
+            }
+
+            // The type can be defined by the class loader of the bean
+            if (l.size() == 0)
+               callbacks.remove(entry.getKey(), l);
          }
       }
-      
-      callbacks.add(cb);
    }
 
    /**
@@ -1077,18 +2478,39 @@ public class KernelImpl implements Kernel
     */
    void registerUncallback(Callback cb)
    {
-      List<Callback> callbacks = uncallbacks.get(cb.getType());
-      if (callbacks == null)
+      registerCallback(uncallbacks, cb);
+   }
+
+   /**
+    * Register a callback method
+    * @param callbacks The callbacks by type
+    * @param cb The callback structure
+    */
+   private void registerCallback(ConcurrentMap<Class<?>, List<Callback>> callbacks, Callback cb)
+   {
+      while (true)
       {
-         List<Callback> newCallbacks = new ArrayList<Callback>(1);
-         callbacks = uncallbacks.putIfAbsent(cb.getType(), newCallbacks);
-         if (callbacks == null)
+         List<Callback> l = callbacks.get(cb.getType());
+         if (l == null)
+         {
+            List<Callback> newCallbacks = new CopyOnWriteArrayList<Callback>();
+            l = callbacks.putIfAbsent(cb.getType(), newCallbacks);
+            if (l == null)
+            {
+               l = newCallbacks;
+            }
+         }
+
+         synchronized (l)
          {
-            callbacks = newCallbacks;
+            // Retry if the list was removed as empty in the meantime
+            if (callbacks.get(cb.getType()) == l)
+            {
+               l.add(cb);
+               return;
+            }
          }
       }
-      
-      callbacks.add(cb);
    }
 
    /**
@@ -1105,38 +2527,35 @@ public class KernelImpl implements Kernel
 
             Class<?> type = entry.getKey();
             List<Callback> callbacks = entry.getValue();
-            
-            Iterator<Object> bit = beans.values().iterator();
+
+            Iterator<?> bit = getBeansOfType(type).values().iterator();
             while (bit.hasNext())
             {
                Object bean = bit.next();
 
-               if (type.isInstance(bean))
+               for (Callback cb : callbacks)
                {
-                  for (Callback cb : callbacks)
+                  List<Callback> registeredCallbacks = callbackBeans.get(bean);
+                  if (registeredCallbacks == null || !registeredCallbacks.contains(bean))
                   {
-                     List<Callback> registeredCallbacks = callbackBeans.get(bean);
-                     if (registeredCallbacks == null || !registeredCallbacks.contains(bean))
-                     {
-                        if (registeredCallbacks == null)
-                           registeredCallbacks = new ArrayList<Callback>(1);
-
-                        try
-                        {
-                           Method m = cb.getMethod();
-                           Object instance = cb.getInstance();
-                           
-                           m.setAccessible(true);
-                           m.invoke(instance, new Object[] {bean});
+                     if (registeredCallbacks == null)
+                        registeredCallbacks = new ArrayList<Callback>(1);
 
-                           registeredCallbacks.add(cb);
-                           callbackBeans.put(bean, registeredCallbacks);
-                        }
-                        catch (Throwable t)
-                        {
-                           if (log.isLoggable(Level.FINE))
-                              log.fine(cb.toString());
-                        }
+                     try
+                     {
+                        Method m = cb.getMethod();
+                        Object instance = cb.getInstance();
+                        
+                        m.setAccessible(true);
+                        m.invoke(instance, new Object[] {bean});
+
+                        registeredCallbacks.add(cb);
+                        callbackBeans.put(bean, registeredCallbacks);
+                     }
+                     catch (Throwable t)
+                     {
+                        if (log.isLoggable(Level.FINE))
+                           log.fine(cb.toString());
                      }
                   }
                }
@@ -1146,61 +2565,129 @@ public class KernelImpl implements Kernel
    }
 
    /**
-    * Get the URLs for the directory and all libraries located in the directory
-    * @param directrory The directory
-    * @return The URLs
-    * @exception MalformedURLException MalformedURLException
+    * Create the lazy beans of a type, and wait for them
+    * @param type The type
+    */
+   private void activateLazyBeans(Class<?> type)
+   {
+      List<LazyBean> activated = null;
+
+      for (LazyBean lazyBean : lazyBeans.values())
+      {
+         if (!lazyBean.isActivated() && lazyBean.isType(type))
+         {
+            lazyBean.activate(getExecutorService());
+
+            if (activated == null)
+               activated = new ArrayList<LazyBean>(1);
+
+            activated.add(lazyBean);
+         }
+      }
+
+      if (activated != null)
+      {
+         try
+         {
+            for (LazyBean lazyBean : activated)
+            {
+               lazyBean.await();
+            }
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.interrupted();
+         }
+      }
+   }
+
+   /**
+    * Load a properties file
+    * @param file The file
+    * @return The properties
     * @exception IOException IOException
     */
-   private URL[] getUrls(File directory) throws MalformedURLException, IOException
+   private Properties loadProperties(File file) throws IOException
+   {
+      Properties properties = new Properties();
+      InputStream is = null;
+      try
+      {
+         is = new FileInputStream(file);
+         properties.load(is);
+      }
+      finally
+      {
+         if (is != null)
+         {
+            try
+            {
+               is.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+      return properties;
+   }
+
+   /**
+    * Create and scan the index for a directory
+    * @param directory The directory; can be <code>null</code>
+    * @param descend The directories to descend into
+    * @param checksums Use checksums for the change detection
+    * @return The index; <code>null</code> if the directory doesn't exist
+    * @exception InterruptedException If the scan is interrupted
+    */
+   private DirectoryIndex createIndex(File directory, FileFilter descend, boolean checksums)
+      throws InterruptedException
    {
       if (directory != null && directory.exists() && directory.isDirectory())
       {
-         List<URL> result = scanUrls(directory);
-         return result.toArray(new URL[result.size()]);      
+         DirectoryIndex index = new DirectoryIndex(directory, descend, checksums, getExecutorService());
+         index.scan();
+
+         return index;
       }
 
-      return new URL[0];
+      return null;
    }
 
    /**
     * Get the URLs for the directory and all libraries located in the directory and sub-directories
-    * @param f The file handler
+    * @param index The index of the directory; can be <code>null</code>
     * @return The URLs
     * @exception MalformedURLException MalformedURLException
     * @exception IOException IOException
     */
-   private List<URL> scanUrls(File f) throws MalformedURLException, IOException
+   private URL[] getUrls(DirectoryIndex index) throws MalformedURLException, IOException
    {
-      List<URL> result = new LinkedList<URL>();
-
-      if (f != null && f.exists())
+      if (index != null)
       {
-         if (f.isDirectory())
-         {
-            // Add directory
-            result.add(f.toURI().toURL());
+         List<File> entries = index.getEntries();
+         List<URL> result = new ArrayList<URL>(entries.size() + 1);
 
-            // Add the contents of the directory too
-            File[] jars = f.listFiles();
-            
-            if (jars != null)
+         // Add directory
+         result.add(index.getRoot().toURI().toURL());
+
+         for (File f : entries)
+         {
+            if (f.isDirectory())
             {
-               for (int j = 0; j < jars.length; j++)
-               {
-                  List<URL> deeper = scanUrls(jars[j]);
-                  result.addAll(deeper);
-               }
+               result.add(f.toURI().toURL());
             }
-         }
-         else
-         {
-            if (f.getName().endsWith(".jar"))
+            else if (f.getName().endsWith(".jar"))
+            {
                result.add(f.getCanonicalFile().toURI().toURL());
+            }
          }
+
+         return result.toArray(new URL[result.size()]);
       }
 
-      return result;
+      return new URL[0];
    }
 
    /**
@@ -1287,7 +2774,7 @@ public class KernelImpl implements Kernel
       {
          DeployerPhases bean = (DeployerPhases)getBean(beanName);
 
-         if (bean != null && getBeanStatus(beanName) == ServiceLifecycle.STARTED)
+         if (bean != null && isStarted(getBeanStatus(beanName)))
          {
             if (delegate)
             {
@@ -1327,7 +2814,7 @@ public class KernelImpl implements Kernel
       {
          DeployerPhases bean = (DeployerPhases)getBean(beanName);
 
-         if (bean != null && getBeanStatus(beanName) == ServiceLifecycle.STARTED)
+         if (bean != null && isStarted(getBeanStatus(beanName)))
          {
             if (delegate)
             {
@@ -1359,7 +2846,7 @@ public class KernelImpl implements Kernel
       {
          DeployerPhases bean = (DeployerPhases)getBean(beanName);
 
-         if (bean != null && getBeanStatus(beanName) == ServiceLifecycle.STARTED)
+         if (bean != null && isStarted(getBeanStatus(beanName)))
          {
             if (delegate)
             {
@@ -1391,7 +2878,7 @@ public class KernelImpl implements Kernel
       {
          DeployerPhases bean = (DeployerPhases)getBean(beanName);
 
-         if (bean != null && getBeanStatus(beanName) == ServiceLifecycle.STARTED)
+         if (bean != null && isStarted(getBeanStatus(beanName)))
          {
             if (delegate)
             {
@@ -1412,6 +2899,83 @@ public class KernelImpl implements Kernel
       }
    }
 
+   /**
+    * Scans a stripe of deployment descriptors
+    */
+   static class DescriptorScanner implements Runnable
+   {
+      /** The URLs */
+      private List<URL> urls;
+
+      /** The offset */
+      private int offset;
+
+      /** The stride */
+      private int stride;
+
+      /** The results; the descriptor or the error */
+      private Object[] results;
+
+      /** The latch */
+      private CountDownLatch latch;
+
+      /**
+       * Constructor
+       * @param urls The URLs
+       * @param offset The offset
+       * @param stride The stride
+       * @param results The results
+       * @param latch The latch
+       */
+      DescriptorScanner(List<URL> urls, int offset, int stride, Object[] results, CountDownLatch latch)
+      {
+         this.urls = urls;
+         this.offset = offset;
+         this.stride = stride;
+         this.results = results;
+         this.latch = latch;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         try
+         {
+            for (int i = offset; i < urls.size(); i += stride)
+            {
+               try
+               {
+                  URL url = urls.get(i);
+
+                  if (ArchiveDeployer.isArchive(url))
+                  {
+                     File archive = new File(url.toURI());
+
+                     results[i] = archive.isFile() ? ArchiveDeployer.readDescriptors(archive) : null;
+                  }
+                  else
+                  {
+                     com.github.fungal.deployment.Unmarshaller deploymentU =
+                        new com.github.fungal.deployment.Unmarshaller();
+
+                     results[i] = deploymentU.unmarshal(url);
+                  }
+               }
+               catch (Throwable t)
+               {
+                  results[i] = t;
+               }
+            }
+         }
+         finally
+         {
+            latch.countDown();
+         }
+      }
+   }
+
    /**
     * Unit deployer
     */
@@ -1426,6 +2990,9 @@ public class KernelImpl implements Kernel
       /** Class loader */
       private ClassLoader classLoader;
 
+      /** Redeploy */
+      private boolean redeploy;
+
       /** Unit latch */
       private CountDownLatch unitLatch;
 
@@ -1437,16 +3004,19 @@ public class KernelImpl implements Kernel
        * @param url The deployment url
        * @param deployer The main deployer
        * @param classLoader The class loader
+       * @param redeploy Redeploy the unit
        * @param unitLatch The unit latch
        */
       public UnitDeployer(final URL url,
                           final MainDeployerImpl deployer,
                           final ClassLoader classLoader,
+                          final boolean redeploy,
                           final CountDownLatch unitLatch)
       {
          this.url = url;
          this.deployer = deployer;
          this.classLoader = classLoader;
+         this.redeploy = redeploy;
          this.unitLatch = unitLatch;
          this.throwable = null;
       }
@@ -1460,7 +3030,14 @@ public class KernelImpl implements Kernel
 
          try
          {
-            deployer.deploy(url, false, classLoader);
+            if (redeploy)
+            {
+               deployer.redeploy(url, false, classLoader);
+            }
+            else
+            {
+               deployer.deploy(url, false, classLoader);
+            }
          }
          catch (Throwable t)
          {
@@ -1470,6 +3047,15 @@ public class KernelImpl implements Kernel
          unitLatch.countDown();
       }
 
+      /**
+       * Get the unit URL
+       * @return The URL
+       */
+      public URL getURL()
+      {
+         return url;
+      }
+
       /**
        * Get deploy exception
        * @return null if no error; otherwise the exception
@@ -1479,4 +3065,73 @@ public class KernelImpl implements Kernel
          return throwable;
       }
    }
+
+   /**
+    * Unit undeployer
+    */
+   static class UnitUndeployer implements Runnable
+   {
+      /** Deployment */
+      private Deployment deployment;
+
+      /** Main deployer */
+      private MainDeployerImpl deployer;
+
+      /** Unit latch */
+      private CountDownLatch unitLatch;
+
+      /** Throwable */
+      private Throwable throwable;
+
+      /**
+       * Constructor
+       * @param deployment The deployment
+       * @param deployer The main deployer
+       * @param unitLatch The unit latch
+       */
+      public UnitUndeployer(final Deployment deployment,
+                            final MainDeployerImpl deployer,
+                            final CountDownLatch unitLatch)
+      {
+         this.deployment = deployment;
+         this.deployer = deployer;
+         this.unitLatch = unitLatch;
+         this.throwable = null;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         try
+         {
+            deployer.unregisterDeployment(deployment);
+         }
+         catch (Throwable t)
+         {
+            throwable = t;
+         }
+
+         unitLatch.countDown();
+      }
+
+      /**
+       * Get the unit URL
+       * @return The URL
+       */
+      public URL getURL()
+      {
+         return deployment.getURL();
+      }
+
+      /**
+       * Get undeploy exception
+       * @return null if no error; otherwise the exception
+       */
+      public Throwable getThrowable()
+      {
+         return throwable;
+      }
+   }
 }
@@ -0,0 +1,172 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.deployment.BeanType;
+
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A lazy bean.
+ *
+ * The bean is known to the kernel, but isn't created until it is requested through
+ * the kernel, injected into another bean, or matched by a callback. Concurrent
+ * requests share a single creation
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class LazyBean
+{
+   /** The URL of the deployment */
+   private URL url;
+
+   /** The bean type */
+   private BeanType bt;
+
+   /** The class loader */
+   private ClassLoader classLoader;
+
+   /** The bean deployer */
+   private Runnable deployer;
+
+   /** The latch that is released when the bean deployer is done */
+   private CountDownLatch done;
+
+   /** Activated */
+   private AtomicBoolean activated;
+
+   /**
+    * Constructor
+    * @param url The URL of the deployment
+    * @param bt The bean type
+    * @param classLoader The class loader
+    * @param deployer The bean deployer
+    * @param done The latch that the bean deployer releases when it is done
+    */
+   LazyBean(URL url, BeanType bt, ClassLoader classLoader, Runnable deployer, CountDownLatch done)
+   {
+      if (url == null)
+         throw new IllegalArgumentException("Url is null");
+
+      if (bt == null)
+         throw new IllegalArgumentException("BeanType is null");
+
+      if (deployer == null)
+         throw new IllegalArgumentException("Deployer is null");
+
+      if (done == null)
+         throw new IllegalArgumentException("Done is null");
+
+      this.url = url;
+      this.bt = bt;
+      this.classLoader = classLoader;
+      this.deployer = deployer;
+      this.done = done;
+      this.activated = new AtomicBoolean(false);
+   }
+
+   /**
+    * Get the name of the bean
+    * @return The value
+    */
+   String getName()
+   {
+      return bt.getName();
+   }
+
+   /**
+    * Get the URL of the deployment
+    * @return The value
+    */
+   URL getURL()
+   {
+      return url;
+   }
+
+   /**
+    * Is the bean activated
+    * @return True if activated; otherwise false
+    */
+   boolean isActivated()
+   {
+      return activated.get();
+   }
+
+   /**
+    * Is the bean of a type. The class of the bean is resolved without being
+    * initialized; beans created by a factory are never matched
+    * @param type The type
+    * @return True if the bean is of the type; otherwise false
+    */
+   boolean isType(Class<?> type)
+   {
+      if (bt.getClazz() == null)
+         return false;
+
+      try
+      {
+         Class<?> clz = Class.forName(bt.getClazz(), false, classLoader);
+         return type.isAssignableFrom(clz);
+      }
+      catch (Throwable t)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * Activate the bean. Only the first activation creates the bean
+    * @param executorService The executor service
+    * @return True if this call created the bean; otherwise false
+    */
+   boolean activate(ExecutorService executorService)
+   {
+      if (!activated.compareAndSet(false, true))
+         return false;
+
+      executorService.submit(deployer);
+      return true;
+   }
+
+   /**
+    * Cancel the bean, such that it can't be activated
+    * @return True if the bean was cancelled; false if it has been activated
+    */
+   boolean cancel()
+   {
+      if (!activated.compareAndSet(false, true))
+         return false;
+
+      done.countDown();
+      return true;
+   }
+
+   /**
+    * Wait for the creation of an activated bean, or the cancellation, to finish
+    * @exception InterruptedException If the thread is interrupted
+    */
+   void await() throws InterruptedException
+   {
+      done.await();
+   }
+}
@@ -0,0 +1,302 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.github.fungal.impl;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The leak detector.
+ *
+ * The class loaders of the undeployed units, and the removed beans, are tracked through
+ * weak references. When one of them is still reachable after the grace period a garbage
+ * collection is requested, and the ones that survive it are reported together with the
+ * kernel structures and threads that still refer to them
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class LeakDetector implements LeakDetectorMBean, Runnable
+{
+   /** The logger */
+   private static Logger log = Logger.getLogger(LeakDetector.class.getName());
+
+   /** The kernel */
+   private KernelImpl kernel;
+
+   /** The grace period in milliseconds */
+   private long grace;
+
+   /** Running */
+   private AtomicBoolean running;
+
+   /** The reference queue */
+   private ReferenceQueue<Object> queue;
+
+   /** The tracked objects */
+   private Set<Tracked> tracked;
+
+   /** The number of collected objects */
+   private AtomicLong collected;
+
+   /**
+    * Constructor
+    * @param kernel The kernel
+    * @param grace The grace period in seconds
+    */
+   LeakDetector(KernelImpl kernel, int grace)
+   {
+      if (kernel == null)
+         throw new IllegalArgumentException("Kernel is null");
+
+      if (grace <= 0)
+         throw new IllegalArgumentException("Grace is invalid");
+
+      this.kernel = kernel;
+      this.grace = grace * 1000L;
+      this.running = new AtomicBoolean(false);
+      this.queue = new ReferenceQueue<Object>();
+      this.tracked = Collections.newSetFromMap(new ConcurrentHashMap<Tracked, Boolean>());
+      this.collected = new AtomicLong(0);
+   }
+
+   /**
+    * Start
+    */
+   void start()
+   {
+      running.set(true);
+      kernel.getExecutorService().submit(this);
+   }
+
+   /**
+    * Stop
+    */
+   void stop()
+   {
+      running.set(false);
+      tracked.clear();
+   }
+
+   /**
+    * Track an object that should become unreachable
+    * @param o The object
+    * @param description The description
+    */
+   void track(Object o, String description)
+   {
+      if (o != null && running.get())
+         tracked.add(new Tracked(o, description, queue));
+   }
+
+   /**
+    * Get the number of tracked objects that are still reachable
+    * @return The value
+    */
+   public int getTracked()
+   {
+      expunge();
+
+      return tracked.size();
+   }
+
+   /**
+    * Get the number of tracked objects that have been collected
+    * @return The value
+    */
+   public long getCollected()
+   {
+      expunge();
+
+      return collected.get();
+   }
+
+   /**
+    * Get the reports of the leaked objects that are still reachable
+    * @return The reports
+    */
+   public List<String> getLeaks()
+   {
+      expunge();
+
+      List<String> result = new ArrayList<String>();
+
+      for (Tracked t : tracked)
+      {
+         if (t.reported)
+         {
+            String report = report(t);
+            if (report != null)
+               result.add(report);
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Run
+    */
+   public void run()
+   {
+      long interval = Math.max(100L, Math.min(1000L, grace / 4));
+
+      while (running.get())
+      {
+         try
+         {
+            Thread.sleep(interval);
+
+            expunge();
+
+            if (tracked.size() > 0)
+               check();
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.interrupted();
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.WARNING, t.getMessage(), t);
+         }
+      }
+   }
+
+   /**
+    * Check for the tracked objects that are reachable past the grace period
+    */
+   void check()
+   {
+      long now = System.currentTimeMillis();
+      boolean overdue = false;
+
+      for (Tracked t : tracked)
+      {
+         if (!t.reported && now - t.since > grace)
+            overdue = true;
+      }
+
+      if (!overdue)
+         return;
+
+      // Only report the objects that survive a full collection
+      System.gc();
+      expunge();
+
+      for (Tracked t : tracked)
+      {
+         if (!t.reported && now - t.since > grace)
+         {
+            String report = report(t);
+            t.reported = true;
+
+            if (report != null)
+               log.warning(report);
+         }
+      }
+   }
+
+   /**
+    * Remove the collected objects
+    */
+   private void expunge()
+   {
+      Reference<?> r = queue.poll();
+
+      while (r != null)
+      {
+         if (tracked.remove(r))
+            collected.incrementAndGet();
+
+         r = queue.poll();
+      }
+   }
+
+   /**
+    * Report a leaked object
+    * @param t The tracked object
+    * @return The report; <code>null</code> if the object has been collected
+    */
+   private String report(Tracked t)
+   {
+      Object o = t.get();
+
+      if (o == null)
+         return null;
+
+      StringBuilder sb = new StringBuilder();
+      sb.append(t.description).append(" is still reachable ");
+      sb.append((System.currentTimeMillis() - t.since) / 1000L).append("s after it was released");
+
+      List<String> references = kernel.findReferences(o);
+      if (references.size() > 0)
+      {
+         sb.append("\nReferenced by:");
+         for (String reference : references)
+         {
+            sb.append("\n  ").append(reference);
+         }
+      }
+      else
+      {
+         sb.append("\nNo references from the kernel; held by the application or a static field");
+      }
+
+      return sb.toString();
+   }
+
+   /**
+    * A tracked object
+    */
+   static final class Tracked extends WeakReference<Object>
+   {
+      /** The description */
+      private String description;
+
+      /** Since */
+      private long since;
+
+      /** Reported */
+      private volatile boolean reported;
+
+      /**
+       * Constructor
+       * @param o The object
+       * @param description The description
+       * @param queue The reference queue
+       */
+      Tracked(Object o, String description, ReferenceQueue<Object> queue)
+      {
+         super(o, queue);
+         this.description = description;
+         this.since = System.currentTimeMillis();
+         this.reported = false;
+      }
+   }
+}
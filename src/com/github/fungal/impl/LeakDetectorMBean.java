@@ -0,0 +1,48 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import java.util.List;
+
+/**
+ * The leak detector MBean for Fungal
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public interface LeakDetectorMBean
+{
+   /**
+    * Get the number of tracked objects that are still reachable
+    * @return The value
+    */
+   public int getTracked();
+
+   /**
+    * Get the number of tracked objects that have been collected
+    * @return The value
+    */
+   public long getCollected();
+
+   /**
+    * Get the reports of the leaked objects that are still reachable
+    * @return The reports
+    */
+   public List<String> getLeaks();
+}
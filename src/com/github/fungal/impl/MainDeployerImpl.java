@@ -199,6 +199,50 @@ public final class MainDeployerImpl implements Cloneable, MainDeployerImplMBean
       }
    }
 
+   /**
+    * Redeploy; bean deployments are redeployed incrementally, such that only
+    * the changed beans and their dependants are restarted. Otherwise the deployment
+    * is undeployed and deployed again
+    * @param url The URL for the deployment
+    * @param deployerPhases Run DeployerPhases hooks
+    * @param classLoader The parent class loader for the deployment
+    * @exception Throwable If an error occurs
+    */
+   public synchronized void redeploy(URL url, boolean deployerPhases, ClassLoader classLoader) throws Throwable
+   {
+      if (url == null)
+         throw new IllegalArgumentException("URL is null");
+
+      if (classLoader == null)
+         throw new IllegalArgumentException("ClassLoader is null");
+
+      boolean done = false;
+
+      if (deployerPhases)
+         kernel.preDeploy(true);
+
+      Deployment deployment = kernel.getDeployment(url);
+      if (deployment != null && deployment instanceof BeanDeployment)
+      {
+         for (Deployer deployer : deployers.getDeployers())
+         {
+            if (!done && deployer instanceof DeploymentDeployer)
+               done = ((DeploymentDeployer)deployer).redeploy(url, (BeanDeployment)deployment, classLoader);
+         }
+      }
+
+      if (!done)
+      {
+         if (deployment != null)
+            unregisterDeployment(deployment);
+
+         deploy(url, false, classLoader);
+      }
+
+      if (deployerPhases)
+         kernel.postDeploy(true);
+   }
+
    /**
     * Register a deployment -- advanced usage
     * @param deployment The deployment
@@ -34,6 +34,9 @@ public enum ServiceLifecycle
       
    /** Service started */
    STARTED,
+
+   /** Service ready; the start of an asynchronous service is done */
+   READY,
          
    /** Service stopping */
    STOPPING,
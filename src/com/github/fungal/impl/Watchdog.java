@@ -0,0 +1,387 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The deployment watchdog.
+ *
+ * The watchdog maintains the wait-for graph of the beans that are waiting for their
+ * dependencies, or are being created. Dependency cycles, and beans that are stuck past
+ * the timeout, are reported together with the blocked chains and the stacks of the
+ * threads involved. Optionally the waiting beans are failed, such that the deployment
+ * doesn't hang
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class Watchdog implements Runnable
+{
+   /** The logger */
+   private static Logger log = Logger.getLogger(Watchdog.class.getName());
+
+   /** The kernel */
+   private KernelImpl kernel;
+
+   /** The timeout in milliseconds */
+   private long timeout;
+
+   /** Fail stuck beans */
+   private boolean fail;
+
+   /** Running */
+   private AtomicBoolean running;
+
+   /** Bean name -> waiter */
+   private ConcurrentMap<String, Waiter> waiters;
+
+   /**
+    * Constructor
+    * @param kernel The kernel
+    * @param timeout The timeout in seconds
+    * @param fail Fail stuck beans
+    */
+   Watchdog(KernelImpl kernel, int timeout, boolean fail)
+   {
+      if (kernel == null)
+         throw new IllegalArgumentException("Kernel is null");
+
+      if (timeout <= 0)
+         throw new IllegalArgumentException("Timeout is invalid");
+
+      this.kernel = kernel;
+      this.timeout = timeout * 1000L;
+      this.fail = fail;
+      this.running = new AtomicBoolean(false);
+      this.waiters = new ConcurrentHashMap<String, Waiter>();
+   }
+
+   /**
+    * Start
+    */
+   void start()
+   {
+      running.set(true);
+      kernel.getExecutorService().submit(this);
+   }
+
+   /**
+    * Stop
+    */
+   void stop()
+   {
+      running.set(false);
+   }
+
+   /**
+    * A bean is waiting for its dependencies in the current thread
+    * @param bean The name of the bean
+    * @param dependencies The dependencies
+    */
+   void waiting(String bean, Set<String> dependencies)
+   {
+      waiters.put(bean, new Waiter(Thread.currentThread(), dependencies));
+   }
+
+   /**
+    * A bean is being created in the current thread
+    * @param bean The name of the bean
+    * @return False if the watchdog failed the bean while it was waiting; otherwise true
+    */
+   boolean creating(String bean)
+   {
+      Waiter waiter = waiters.get(bean);
+
+      if (waiter == null)
+      {
+         waiters.put(bean, new Waiter(Thread.currentThread(), null));
+         return true;
+      }
+
+      boolean failed;
+      synchronized (waiter)
+      {
+         waiter.waiting = false;
+         waiter.reported = false;
+         waiter.since = System.currentTimeMillis();
+         failed = waiter.failed;
+      }
+
+      // Clear an interrupt that raced with the end of the wait
+      Thread.interrupted();
+
+      return !failed;
+   }
+
+   /**
+    * A bean is done
+    * @param bean The name of the bean
+    */
+   void done(String bean)
+   {
+      waiters.remove(bean);
+   }
+
+   /**
+    * Run
+    */
+   public void run()
+   {
+      long interval = Math.max(100L, Math.min(1000L, timeout / 4));
+
+      while (running.get())
+      {
+         try
+         {
+            Thread.sleep(interval);
+
+            if (waiters.size() > 0)
+               check();
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.interrupted();
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.WARNING, t.getMessage(), t);
+         }
+      }
+   }
+
+   /**
+    * Check the wait-for graph
+    */
+   void check()
+   {
+      long now = System.currentTimeMillis();
+      Map<String, Set<String>> edges = getWaitForGraph();
+
+      for (Set<String> cycle : BeanGraph.getCycles(edges))
+      {
+         boolean reported = true;
+         for (String bean : cycle)
+         {
+            Waiter waiter = waiters.get(bean);
+            if (waiter != null && !waiter.reported)
+               reported = false;
+         }
+
+         if (!reported)
+            report("Dependency cycle between beans " + cycle, new ArrayList<String>(cycle), edges, now);
+      }
+
+      for (Map.Entry<String, Waiter> entry : waiters.entrySet())
+      {
+         Waiter waiter = entry.getValue();
+
+         if (!waiter.reported && now - waiter.since > timeout)
+         {
+            List<String> l = new ArrayList<String>(1);
+            l.add(entry.getKey());
+
+            if (waiter.waiting)
+            {
+               report("Bean " + entry.getKey() + " is stuck waiting for its dependencies", l, edges, now);
+            }
+            else
+            {
+               report("Bean " + entry.getKey() + " is stuck being created", l, edges, now);
+            }
+         }
+      }
+   }
+
+   /**
+    * Get the wait-for graph
+    * @return Bean name -> the dependencies that it is waiting for
+    */
+   private Map<String, Set<String>> getWaitForGraph()
+   {
+      Map<String, Set<String>> result = new HashMap<String, Set<String>>(waiters.size());
+
+      for (Map.Entry<String, Waiter> entry : waiters.entrySet())
+      {
+         Waiter waiter = entry.getValue();
+
+         if (waiter.waiting && waiter.dependencies != null)
+         {
+            Set<String> pending = new HashSet<String>(waiter.dependencies.size());
+
+            for (String dependency : waiter.dependencies)
+            {
+               ServiceLifecycle status = kernel.getBeanStatus(dependency);
+
+               if (!KernelImpl.isStarted(status) && status != ServiceLifecycle.ERROR)
+                  pending.add(dependency);
+            }
+
+            result.put(entry.getKey(), pending);
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Report stuck beans
+    * @param message The message
+    * @param beans The stuck beans
+    * @param edges The wait-for graph
+    * @param now The current time
+    */
+   private void report(String message, List<String> beans, Map<String, Set<String>> edges, long now)
+   {
+      StringBuilder sb = new StringBuilder(message);
+      Set<String> visited = new HashSet<String>();
+
+      sb.append("\nBlocked chains:");
+      for (String bean : beans)
+      {
+         appendChain(sb, bean, edges, visited, 1, now);
+      }
+
+      sb.append("\nThreads:");
+      for (String bean : visited)
+      {
+         Waiter waiter = waiters.get(bean);
+         if (waiter != null)
+         {
+            sb.append("\n  ").append(waiter.thread.getName()).append(" (").append(bean).append(")");
+            for (StackTraceElement ste : waiter.thread.getStackTrace())
+            {
+               sb.append("\n    at ").append(ste);
+            }
+         }
+      }
+
+      log.severe(sb.toString());
+
+      for (String bean : beans)
+      {
+         Waiter waiter = waiters.get(bean);
+         if (waiter != null)
+         {
+            synchronized (waiter)
+            {
+               waiter.reported = true;
+
+               if (fail && waiter.waiting && !waiter.failed)
+               {
+                  waiter.failed = true;
+                  waiter.thread.interrupt();
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Append the blocked chain of a bean
+    * @param sb The builder
+    * @param bean The bean
+    * @param edges The wait-for graph
+    * @param visited The visited beans
+    * @param depth The depth
+    * @param now The current time
+    */
+   private void appendChain(StringBuilder sb, String bean, Map<String, Set<String>> edges,
+                            Set<String> visited, int depth, long now)
+   {
+      sb.append('\n');
+      for (int i = 0; i < depth; i++)
+      {
+         sb.append("  ");
+      }
+
+      sb.append(bean).append(" [").append(kernel.getBeanStatus(bean)).append(']');
+
+      Waiter waiter = waiters.get(bean);
+      if (waiter != null)
+      {
+         sb.append(waiter.waiting ? " waiting " : " creating ");
+         sb.append((now - waiter.since) / 1000L).append('s');
+      }
+
+      if (!visited.add(bean))
+      {
+         sb.append(" (see above)");
+         return;
+      }
+
+      Set<String> pending = edges.get(bean);
+      if (pending != null)
+      {
+         for (String dependency : pending)
+         {
+            appendChain(sb, dependency, edges, visited, depth + 1, now);
+         }
+      }
+   }
+
+   /**
+    * A bean that is waiting for its dependencies, or is being created
+    */
+   static final class Waiter
+   {
+      /** The thread */
+      private Thread thread;
+
+      /** The dependencies */
+      private Set<String> dependencies;
+
+      /** Since */
+      private volatile long since;
+
+      /** Waiting for dependencies; otherwise being created */
+      private volatile boolean waiting;
+
+      /** Reported */
+      private volatile boolean reported;
+
+      /** Failed by the watchdog */
+      private volatile boolean failed;
+
+      /**
+       * Constructor
+       * @param thread The thread
+       * @param dependencies The dependencies; <code>null</code> if being created
+       */
+      Waiter(Thread thread, Set<String> dependencies)
+      {
+         this.thread = thread;
+         this.dependencies = dependencies;
+         this.since = System.currentTimeMillis();
+         this.waiting = dependencies != null;
+         this.reported = false;
+         this.failed = false;
+      }
+   }
+}
@@ -32,6 +32,18 @@ import java.util.Set;
  */
 class ArchiveClassLoader extends KernelClassLoader
 {
+   static
+   {
+      try
+      {
+         ClassLoader.class.getDeclaredMethod("registerAsParallelCapable").invoke(null);
+      }
+      catch (Throwable t)
+      {
+         // Not supported by the platform
+      }
+   }
+
    /** Class loader id */
    private Integer id;
 
@@ -101,6 +113,11 @@ class ArchiveClassLoader extends KernelClassLoader
    {
       // Don't call super.loadClass(String) as it is done in ExportClassLoader
 
+      Class<?> result = findLoadedClass(name);
+
+      if (result != null)
+         return result;
+
       if (isClassRegistered(name))
       {
          return loadClass(name, false);
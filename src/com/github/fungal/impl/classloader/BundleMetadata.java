@@ -0,0 +1,427 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl.classloader;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Enumeration;
+import java.util.StringTokenizer;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The bundle metadata of an archive
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class BundleMetadata
+{
+   /** Metadata for an archive that isn't a bundle */
+   static final BundleMetadata NONE = new BundleMetadata(false, null, null, null, null);
+
+   /** Is a bundle */
+   private boolean bundle;
+
+   /** The bundle version */
+   private String bundleVersion;
+
+   /** The export packages */
+   private Set<String> exportPackages;
+
+   /** The imports: version -> packages; the <code>null</code> version holds the required bundles */
+   private Map<String, List<String>> imports;
+
+   /** The directories that contain resources */
+   private Set<String> directories;
+
+   /**
+    * Constructor
+    * @param bundle Is a bundle
+    * @param bundleVersion The bundle version
+    * @param exportPackages The export packages
+    * @param imports The imports
+    * @param directories The directories that contain resources
+    */
+   private BundleMetadata(boolean bundle, String bundleVersion, 
+                          Set<String> exportPackages, Map<String, List<String>> imports,
+                          Set<String> directories)
+   {
+      this.bundle = bundle;
+      this.bundleVersion = bundleVersion;
+      this.exportPackages = exportPackages;
+      this.imports = imports;
+      this.directories = directories;
+   }
+
+   /**
+    * Is a bundle
+    * @return The value
+    */
+   boolean isBundle()
+   {
+      return bundle;
+   }
+
+   /**
+    * Get the bundle version
+    * @return The value
+    */
+   String getBundleVersion()
+   {
+      return bundleVersion;
+   }
+
+   /**
+    * Get the export packages
+    * @return The value
+    */
+   Set<String> getExportPackages()
+   {
+      if (exportPackages == null)
+         return Collections.emptySet();
+
+      return exportPackages;
+   }
+
+   /**
+    * Get the imports
+    * @return The value
+    */
+   Map<String, List<String>> getImports()
+   {
+      if (imports == null)
+         return Collections.emptyMap();
+
+      return imports;
+   }
+
+   /**
+    * Get the directories that contain resources; the root directory is the empty string
+    * @return The value
+    */
+   Set<String> getDirectories()
+   {
+      if (directories == null)
+         return Collections.emptySet();
+
+      return directories;
+   }
+
+   /**
+    * Parse the metadata of an archive
+    * @param jarFile The archive
+    * @return The metadata
+    * @exception IOException Thrown if the archive can't be read
+    */
+   static BundleMetadata parse(JarFile jarFile) throws IOException
+   {
+      BundleMetadata result = parse(jarFile.getManifest());
+
+      if (result.isBundle())
+      {
+         Set<String> directories = new HashSet<String>();
+
+         Enumeration<JarEntry> entries = jarFile.entries();
+         while (entries.hasMoreElements())
+         {
+            JarEntry entry = entries.nextElement();
+
+            if (!entry.isDirectory())
+            {
+               String name = entry.getName();
+               int index = name.lastIndexOf('/');
+
+               directories.add(index == -1 ? "" : name.substring(0, index));
+            }
+         }
+
+         result.directories = directories;
+      }
+
+      return result;
+   }
+
+   /**
+    * Parse the metadata of a manifest
+    * @param manifest The manifest; can be <code>null</code>
+    * @return The metadata
+    */
+   static BundleMetadata parse(Manifest manifest)
+   {
+      if (manifest == null)
+         return NONE;
+
+      Attributes mainAttributes = manifest.getMainAttributes();
+
+      if (mainAttributes.getValue("Bundle-ManifestVersion") == null)
+         return NONE;
+
+      // Export-Package
+      String input = mainAttributes.getValue("Export-Package");
+
+      if (input == null)
+         return NONE;
+
+      String bundleVersion = mainAttributes.getValue("Bundle-Version");
+
+      boolean semi = false;
+      boolean quote = false;
+      StringBuilder sb = new StringBuilder();
+
+      Set<String> exportPackages = new HashSet<String>(1);
+
+      for (int i = 0; i < input.length(); i++)
+      {
+         char c = input.charAt(i);
+
+         if (c == ',')
+         {
+            if (!quote)
+            {
+               String exportPackage = sb.toString().trim();
+
+               semi = false;
+               quote = false;
+               sb = new StringBuilder();
+
+               if (!exportPackage.equals(""))
+               {
+                  exportPackages.add(exportPackage);
+               }
+            }
+         }
+         else if (c == ';')
+         {
+            semi = true;
+         }
+         else if (c == '\"')
+         {
+            quote = !quote;
+         }
+         else
+         {
+            if (!semi)
+               sb = sb.append(c);
+         }
+      }
+
+      if (sb.length() > 0)
+         exportPackages.add(sb.toString().trim());
+
+      Map<String, List<String>> imports = null;
+
+      // Import-Package
+      input = mainAttributes.getValue("Import-Package");
+
+      if (input != null)
+      {
+         StringTokenizer st = new StringTokenizer(input, ",");
+         while (st.hasMoreTokens())
+         {
+            String token = st.nextToken().trim();
+
+            int versionIndex = token.indexOf(";version=");
+            if (versionIndex != -1)
+            {
+               String pkg = token.substring(0, versionIndex);
+               String ver = token.substring(versionIndex + 9);
+
+               if (pkg.indexOf(";") != -1)
+                  pkg = pkg.substring(0, pkg.indexOf(";"));
+
+               if (ver.startsWith("\""))
+                  ver = ver.substring(1);
+
+               if (ver.endsWith("\""))
+                  ver = ver.substring(0, ver.length() - 1);
+
+               imports = addImport(imports, ver, pkg);
+            }
+         }
+      }
+
+      // Require-Bundle
+      input = mainAttributes.getValue("Require-Bundle");
+
+      if (input != null)
+      {
+         StringTokenizer st = new StringTokenizer(input, ",");
+         while (st.hasMoreTokens())
+         {
+            String token = st.nextToken().trim();
+
+            int delimiter = token.indexOf(";");
+
+            if (delimiter != -1)
+               token = token.substring(0, delimiter);
+
+            imports = addImport(imports, null, token);
+         }
+      }
+
+      return new BundleMetadata(true, bundleVersion, exportPackages, imports, null);
+   }
+
+   /**
+    * Add an import
+    * @param imports The imports; can be <code>null</code>
+    * @param version The version
+    * @param name The name
+    * @return The imports
+    */
+   private static Map<String, List<String>> addImport(Map<String, List<String>> imports, String version, String name)
+   {
+      if (imports == null)
+         imports = new HashMap<String, List<String>>();
+
+      List<String> l = imports.get(version);
+
+      if (l == null)
+      {
+         l = new ArrayList<String>();
+         imports.put(version, l);
+      }
+
+      l.add(name);
+
+      return imports;
+   }
+
+   /**
+    * Write the metadata
+    * @param out The output
+    * @exception IOException Thrown if an error occurs
+    */
+   void write(DataOutput out) throws IOException
+   {
+      out.writeBoolean(bundle);
+
+      if (!bundle)
+         return;
+
+      writeString(out, bundleVersion);
+
+      out.writeInt(getExportPackages().size());
+      for (String s : getExportPackages())
+      {
+         out.writeUTF(s);
+      }
+
+      out.writeInt(getImports().size());
+      for (Map.Entry<String, List<String>> entry : getImports().entrySet())
+      {
+         writeString(out, entry.getKey());
+
+         out.writeInt(entry.getValue().size());
+         for (String s : entry.getValue())
+         {
+            out.writeUTF(s);
+         }
+      }
+
+      out.writeInt(getDirectories().size());
+      for (String s : getDirectories())
+      {
+         out.writeUTF(s);
+      }
+   }
+
+   /**
+    * Read the metadata
+    * @param in The input
+    * @return The metadata
+    * @exception IOException Thrown if an error occurs
+    */
+   static BundleMetadata read(DataInput in) throws IOException
+   {
+      if (!in.readBoolean())
+         return NONE;
+
+      String bundleVersion = readString(in);
+
+      int size = in.readInt();
+      Set<String> exportPackages = new HashSet<String>(size);
+      for (int i = 0; i < size; i++)
+      {
+         exportPackages.add(in.readUTF());
+      }
+
+      Map<String, List<String>> imports = null;
+
+      size = in.readInt();
+      for (int i = 0; i < size; i++)
+      {
+         String version = readString(in);
+
+         int n = in.readInt();
+         for (int j = 0; j < n; j++)
+         {
+            imports = addImport(imports, version, in.readUTF());
+         }
+      }
+
+      size = in.readInt();
+      Set<String> directories = new HashSet<String>(size);
+      for (int i = 0; i < size; i++)
+      {
+         directories.add(in.readUTF());
+      }
+
+      return new BundleMetadata(true, bundleVersion, exportPackages, imports, directories);
+   }
+
+   /**
+    * Write a string that can be <code>null</code>
+    * @param out The output
+    * @param s The string
+    * @exception IOException Thrown if an error occurs
+    */
+   private static void writeString(DataOutput out, String s) throws IOException
+   {
+      out.writeBoolean(s != null);
+
+      if (s != null)
+         out.writeUTF(s);
+   }
+
+   /**
+    * Read a string that can be <code>null</code>
+    * @param in The input
+    * @return The string
+    * @exception IOException Thrown if an error occurs
+    */
+   private static String readString(DataInput in) throws IOException
+   {
+      if (!in.readBoolean())
+         return null;
+
+      return in.readUTF();
+   }
+}
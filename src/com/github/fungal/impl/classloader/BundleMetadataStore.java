@@ -0,0 +1,301 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl.classloader;
+
+import com.github.fungal.api.util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Store for the bundle metadata of archives keyed by the checksum of the archive.
+ *
+ * The checksum of an archive is only recalculated when its size or last modified
+ * timestamp has changed.
+ *
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class BundleMetadataStore
+{
+   /** Format version of the persisted store */
+   private static final int VERSION = 2;
+
+   /** The logger */
+   private Logger log = Logger.getLogger(BundleMetadataStore.class.getName());
+
+   /** The persisted store; <code>null</code> if the store isn't persisted */
+   private File file;
+
+   /** Checksum -> metadata */
+   private ConcurrentMap<String, BundleMetadata> metadata;
+
+   /** Path -> size, last modified, checksum */
+   private ConcurrentMap<String, Checksum> checksums;
+
+   /** Has the store changed */
+   private AtomicBoolean changed;
+
+   /**
+    * Constructor
+    * @param file The persisted store; <code>null</code> if the store shouldn't be persisted
+    */
+   BundleMetadataStore(File file)
+   {
+      this.file = file;
+      this.metadata = new ConcurrentHashMap<String, BundleMetadata>();
+      this.checksums = new ConcurrentHashMap<String, Checksum>();
+      this.changed = new AtomicBoolean(false);
+
+      if (file != null && file.exists())
+         load();
+   }
+
+   /**
+    * Get the metadata of an archive
+    * @param archive The archive
+    * @return The metadata
+    * @exception IOException Thrown if the archive can't be read
+    */
+   BundleMetadata get(File archive) throws IOException
+   {
+      String path = archive.getAbsolutePath();
+      long size = archive.length();
+      long lastModified = archive.lastModified();
+
+      Checksum checksum = checksums.get(path);
+
+      if (checksum == null || checksum.size != size || checksum.lastModified != lastModified)
+      {
+         checksum = new Checksum(size, lastModified, new FileUtil().checksum(archive));
+         checksums.put(path, checksum);
+         changed.set(true);
+      }
+
+      BundleMetadata result = metadata.get(checksum.value);
+
+      if (result == null)
+      {
+         JarFile jarFile = null;
+         try
+         {
+            jarFile = new JarFile(archive);
+            result = BundleMetadata.parse(jarFile);
+         }
+         finally
+         {
+            if (jarFile != null)
+            {
+               try
+               {
+                  jarFile.close();
+               }
+               catch (IOException ioe)
+               {
+                  // Ignore
+               }
+            }
+         }
+
+         metadata.put(checksum.value, result);
+         changed.set(true);
+      }
+
+      return result;
+   }
+
+   /**
+    * Persist the store if it has changed
+    */
+   void store()
+   {
+      if (file == null || !changed.compareAndSet(true, false))
+         return;
+
+      Set<String> used = new HashSet<String>();
+
+      Iterator<Map.Entry<String, Checksum>> it = checksums.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<String, Checksum> entry = it.next();
+
+         if (new File(entry.getKey()).exists())
+         {
+            used.add(entry.getValue().value);
+         }
+         else
+         {
+            it.remove();
+         }
+      }
+
+      metadata.keySet().retainAll(used);
+
+      File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+      DataOutputStream dos = null;
+      try
+      {
+         dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+         dos.writeInt(VERSION);
+
+         dos.writeInt(metadata.size());
+         for (Map.Entry<String, BundleMetadata> entry : metadata.entrySet())
+         {
+            dos.writeUTF(entry.getKey());
+            entry.getValue().write(dos);
+         }
+
+         dos.writeInt(checksums.size());
+         for (Map.Entry<String, Checksum> entry : checksums.entrySet())
+         {
+            dos.writeUTF(entry.getKey());
+            dos.writeLong(entry.getValue().size);
+            dos.writeLong(entry.getValue().lastModified);
+            dos.writeUTF(entry.getValue().value);
+         }
+
+         dos.flush();
+         dos.close();
+         dos = null;
+
+         if (file.exists() && !file.delete())
+            throw new IOException("Could not delete " + file.getAbsolutePath());
+
+         if (!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp.getAbsolutePath());
+      }
+      catch (IOException ioe)
+      {
+         log.log(Level.FINE, "Unable to write bundle metadata: " + file.getAbsolutePath(), ioe);
+      }
+      finally
+      {
+         if (dos != null)
+         {
+            try
+            {
+               dos.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+   }
+
+   /**
+    * Load the persisted store
+    */
+   private void load()
+   {
+      DataInputStream dis = null;
+      try
+      {
+         dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+         if (dis.readInt() != VERSION)
+            return;
+
+         int size = dis.readInt();
+         for (int i = 0; i < size; i++)
+         {
+            String key = dis.readUTF();
+            metadata.put(key, BundleMetadata.read(dis));
+         }
+
+         size = dis.readInt();
+         for (int i = 0; i < size; i++)
+         {
+            String path = dis.readUTF();
+            long length = dis.readLong();
+            long lastModified = dis.readLong();
+            String value = dis.readUTF();
+
+            checksums.put(path, new Checksum(length, lastModified, value));
+         }
+      }
+      catch (IOException ioe)
+      {
+         log.log(Level.FINE, "Unable to read bundle metadata: " + file.getAbsolutePath(), ioe);
+         metadata.clear();
+         checksums.clear();
+      }
+      finally
+      {
+         if (dis != null)
+         {
+            try
+            {
+               dis.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+   }
+
+   /**
+    * The checksum of an archive
+    */
+   static final class Checksum
+   {
+      /** The size */
+      private long size;
+
+      /** The last modified timestamp */
+      private long lastModified;
+
+      /** The value */
+      private String value;
+
+      /**
+       * Constructor
+       * @param size The size
+       * @param lastModified The last modified timestamp
+       * @param value The value
+       */
+      Checksum(long size, long lastModified, String value)
+      {
+         this.size = size;
+         this.lastModified = lastModified;
+         this.value = value;
+      }
+   }
+}
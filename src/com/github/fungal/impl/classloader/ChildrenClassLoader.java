@@ -20,29 +20,49 @@
 
 package com.github.fungal.impl.classloader;
 
+import com.github.fungal.api.classloading.KernelClassLoader;
+
+import java.io.IOException;
 import java.net.URL;
-import java.net.URLClassLoader;
+import java.util.Enumeration;
 
 /**
  * Children class loader
  * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
  */
-class ChildrenClassLoader extends URLClassLoader
+class ChildrenClassLoader extends KernelClassLoader
 {
+   static
+   {
+      try
+      {
+         ClassLoader.class.getDeclaredMethod("registerAsParallelCapable").invoke(null);
+      }
+      catch (Throwable t)
+      {
+         // Not supported by the platform
+      }
+   }
+
    /** Delegate class loader */
    private ParentLastClassLoader delegate;
 
+   /** The index; <code>null</code> if each URL is probed */
+   private JarIndex index;
+
    /**
     * Constructor
     * @param urls The URLs for JAR archives or directories
     * @param parent The parent class loader
     * @param delegate The parent class loader
+    * @param index The index; <code>null</code> if each URL should be probed
     */
-   ChildrenClassLoader(URL[] urls, ClassLoader parent, ParentLastClassLoader delegate)
+   ChildrenClassLoader(URL[] urls, ClassLoader parent, ParentLastClassLoader delegate, JarIndex index)
    {
       super(urls, parent);
 
       this.delegate = delegate;
+      this.index = index;
    }
 
    /**
@@ -51,16 +71,90 @@ class ChildrenClassLoader extends URLClassLoader
    @Override
    public Class<?> loadClass(String name) throws ClassNotFoundException
    {
+      Class<?> result = findLoadedClass(name);
+
+      if (result != null)
+         return delegate.recordClass(result);
+
+      // The delegate asks this class loader first, and then its parent
+      return delegate.loadClass(name);
+   }
+
+   /**
+    * Load a class while holding the lock for the class name only. The delegate is
+    * called without holding the lock, such that the two class loaders can't deadlock
+    * @param name The fully qualified class name
+    * @param resolve Should the class be resolved
+    * @return The class
+    * @throws ClassNotFoundException If the class could not be found 
+    */
+   @Override
+   protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+   {
+      Class<?> result = loadChildClass(name);
+
+      if (result == null)
+         throw new ClassNotFoundException(name);
+
+      if (resolve)
+         resolveClass(result);
+
+      return result;
+   }
+
+   /**
+    * Load a class from the URLs of this class loader or the parent class loader. With a
+    * complete index the URLs are asked first, and the parent only gets the names that
+    * the URLs can't define; otherwise the parent is asked first
+    * @param name The fully qualified class name
+    * @return The class; <code>null</code> if not found
+    */
+   Class<?> loadChildClass(String name)
+   {
+      Object lock = acquireLoadingLock(name);
       try
       {
-         return super.loadClass(name);
+         synchronized (lock)
+         {
+            Class<?> result = findLoadedClass(name);
+
+            if (result != null)
+               return result;
+
+            // The platform classes can only be defined by the platform
+            if (isIndexed() && !name.startsWith("java."))
+            {
+               result = findLocalClass(name);
+
+               if (result != null)
+                  return result;
+
+               try
+               {
+                  return getParent().loadClass(name);
+               }
+               catch (ClassNotFoundException cnfe)
+               {
+                  return null;
+               }
+            }
+
+            try
+            {
+               return getParent().loadClass(name);
+            }
+            catch (ClassNotFoundException cnfe)
+            {
+               // Not found in the parent
+            }
+
+            return findLocalClass(name);
+         }
       }
-      catch (Throwable t)
+      finally
       {
-         // Default to delegate
+         releaseLoadingLock(name, lock);
       }
-
-      return delegate.loadClass(name, false);
    }
 
    /**
@@ -72,15 +166,114 @@ class ChildrenClassLoader extends URLClassLoader
    @Override
    public Class<?> findClass(String name) throws ClassNotFoundException
    {
+      Class<?> result = findLocalClass(name);
+
+      if (result == null)
+         throw new ClassNotFoundException(name);
+
+      return result;
+   }
+
+   /**
+    * Is a class that can't be found in the index known not to be in the URLs
+    * @return True if all the URLs are indexed, otherwise false
+    */
+   boolean isIndexed()
+   {
+      return index != null && index.isComplete();
+   }
+
+   /**
+    * Find a class in the URLs of this class loader. The URLs are probed through the
+    * index, such that a class that isn't there doesn't cost an exception
+    * @param name The fully qualified class name
+    * @return The class; <code>null</code> if not found
+    */
+   Class<?> findLocalClass(String name)
+   {
+      Class<?> result = findLoadedClass(name);
+
+      if (result != null)
+         return result;
+
+      if (index == null || !index.isComplete())
+      {
+         try
+         {
+            return super.findClass(name);
+         }
+         catch (ClassNotFoundException cnfe)
+         {
+            return null;
+         }
+         catch (LinkageError le)
+         {
+            // Defined concurrently through another delegation path
+            result = findLoadedClass(name);
+
+            if (result != null)
+               return result;
+
+            throw le;
+         }
+      }
+
+      JarIndex.Resource resource = null;
       try
       {
-         return super.findClass(name);
+         resource = index.findClass(name);
       }
-      catch (Throwable t)
+      catch (IOException ioe)
       {
-         // Default to delegate
+         return null;
       }
 
-      return delegate.lookup(name);
+      if (resource == null)
+         return null;
+
+      return defineClass(name, resource.getBytes(), resource.getCodeSource(), resource.getManifest());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public URL findResource(String name)
+   {
+      if (index == null || !index.isComplete())
+         return super.findResource(name);
+
+      return index.findResource(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Enumeration<URL> findResources(String name) throws IOException
+   {
+      if (index == null || !index.isComplete())
+         return super.findResources(name);
+
+      return index.findResources(name);
+   }
+
+   /**
+    * Find a class already loaded by this class loader
+    * @param name The fully qualified class name
+    * @return The class; <code>null</code> if not loaded
+    */
+   Class<?> findLoaded(String name)
+   {
+      return findLoadedClass(name);
+   }
+
+   /**
+    * Close the index
+    */
+   void closeIndex()
+   {
+      if (index != null)
+         index.close();
    }
 }
@@ -22,14 +22,20 @@ package com.github.fungal.impl.classloader;
 
 import com.github.fungal.api.classloading.KernelClassLoader;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Export class loader (OSGi like)
@@ -37,12 +43,27 @@ import java.util.Vector;
  */
 public class ExportClassLoader extends KernelClassLoader
 {
+   static
+   {
+      try
+      {
+         ClassLoader.class.getDeclaredMethod("registerAsParallelCapable").invoke(null);
+      }
+      catch (Throwable t)
+      {
+         // Not supported by the platform
+      }
+   }
+
    /** Export class loader repository */
    private ExportClassLoaderRepository eclr;
 
    /** Class Loaders */
    private Set<Integer> classLoaders;
 
+   /** Cached archive resources of the current registration generation */
+   private AtomicReference<ResourcesCache> resourcesCache;
+
    /**
     * Constructor
     * @param urls The URLs for JAR archives or directories
@@ -52,6 +73,7 @@ public class ExportClassLoader extends KernelClassLoader
    {
       super(new URL[0], parent);
 
+      this.resourcesCache = new AtomicReference<ResourcesCache>(new ResourcesCache(-1));
       this.eclr = new ExportClassLoaderRepository();
 
       if (urls != null)
@@ -60,6 +82,47 @@ public class ExportClassLoader extends KernelClassLoader
       }
    }
 
+   /**
+    * Constructor
+    * @param urls The URLs for JAR archives or directories
+    * @param parent The parent class loader
+    * @param indexCache The file that persists the index of the non export archives; 
+    *                   <code>null</code> if it shouldn't be persisted
+    */
+   public ExportClassLoader(URL[] urls, ClassLoader parent, File indexCache)
+   {
+      this(urls, parent, indexCache, null);
+   }
+
+   /**
+    * Constructor
+    * @param urls The URLs for JAR archives or directories
+    * @param parent The parent class loader
+    * @param indexCache The file that persists the index of the non export archives; 
+    *                   <code>null</code> if it shouldn't be persisted
+    * @param executorService The executor service that scans the archives; <code>null</code> if they
+    *                        should be scanned by the calling thread
+    */
+   public ExportClassLoader(URL[] urls, ClassLoader parent, File indexCache, ExecutorService executorService)
+   {
+      super(new URL[0], parent);
+
+      this.resourcesCache = new AtomicReference<ResourcesCache>(new ResourcesCache(-1));
+
+      File metadataCache = null;
+
+      if (indexCache != null)
+         metadataCache = new File(indexCache.getParentFile(), indexCache.getName() + ".bundles");
+
+      this.eclr = new ExportClassLoaderRepository(new JarIndex(indexCache, executorService),
+                                                  new BundleMetadataStore(metadataCache), executorService);
+
+      if (urls != null)
+      {
+         classLoaders = eclr.register(urls);
+      }
+   }
+
    /**
     * {@inheritDoc}
     */
@@ -84,7 +147,7 @@ public class ExportClassLoader extends KernelClassLoader
                   result = acl.loadClass(name);
 
                   if (result != null)
-                     return result;
+                     return record(result);
                }
                catch (ClassNotFoundException cnfe)
                {
@@ -99,14 +162,14 @@ public class ExportClassLoader extends KernelClassLoader
          result = eclr.getNonExportClassLoader().loadClass(name);
 
          if (result != null)
-            return result;
+            return record(result);
       }
       catch (ClassNotFoundException cnfe)
       {
          // Ignore
       }
 
-      return loadClass(name, false);
+      return record(loadClass(name, false));
    }
 
    /**
@@ -117,15 +180,19 @@ public class ExportClassLoader extends KernelClassLoader
    {
       URL resource = null;
 
-      if (classLoaders != null)
+      if (classLoaders != null && classLoaders.size() > 0)
       {
-         for (Integer id : classLoaders)
-         {
-            ArchiveClassLoader acl = eclr.getClassLoader(id);
+         // The archive class loaders delegate to the system class loader first
+         resource = ClassLoader.getSystemClassLoader().getResource(name);
 
-            if (acl != null)
+         if (resource != null)
+            return resource;
+
+         for (ArchiveClassLoader acl : eclr.getResourceClassLoaders(name))
+         {
+            if (classLoaders.contains(acl.getId()))
             {
-               resource = acl.getResource(name);
+               resource = acl.findResource(name);
 
                if (resource != null)
                   return resource;
@@ -147,30 +214,19 @@ public class ExportClassLoader extends KernelClassLoader
    @Override
    public InputStream getResourceAsStream(String name)
    {
-      InputStream is = null;
-
-      if (classLoaders != null)
-      {
-         for (Integer id : classLoaders)
-         {
-            ArchiveClassLoader acl = eclr.getClassLoader(id);
+      URL resource = getResource(name);
 
-            if (acl != null)
-            {
-               is = acl.getResourceAsStream(name);
+      if (resource == null)
+         return null;
 
-               if (is != null)
-                  return is;
-            }
-         }
+      try
+      {
+         return resource.openStream();
+      }
+      catch (IOException ioe)
+      {
+         return null;
       }
-
-      is = eclr.getNonExportClassLoader().getResourceAsStream(name);
-
-      if (is != null)
-         return is;
-
-      return super.getResourceAsStream(name);
    }
 
    /**
@@ -180,28 +236,82 @@ public class ExportClassLoader extends KernelClassLoader
    public Enumeration<URL> getResources(String name)
       throws IOException
    {
-      Vector<URL> v = new Vector<URL>();
-      Enumeration<URL> e = null;
+      return Collections.enumeration(findAllResources(name));
+   }
 
-      if (classLoaders != null)
+   /**
+    * Get the resources with a name from the archive class loaders. The results are
+    * cached per registration generation, as the archive content is indexed
+    * @param name The resource name
+    * @return The resources
+    * @exception IOException Thrown if an error occurs
+    */
+   private List<URL> getArchiveResources(String name) throws IOException
+   {
+      int generation = eclr.getGeneration();
+      ResourcesCache cache = resourcesCache.get();
+
+      if (cache.getGeneration() != generation)
       {
-         for (Integer id : classLoaders)
-         {
-            ArchiveClassLoader acl = eclr.getClassLoader(id);
+         ResourcesCache c = new ResourcesCache(generation);
+         resourcesCache.compareAndSet(cache, c);
+         cache = c;
+      }
 
-            if (acl != null)
+      List<URL> result = cache.get(name);
+
+      if (result == null)
+      {
+         result = new ArrayList<URL>(1);
+
+         for (ArchiveClassLoader acl : eclr.getResourceClassLoaders(name))
+         {
+            if (classLoaders.contains(acl.getId()))
             {
-               e = acl.getResources(name);
+               Enumeration<URL> e = acl.findResources(name);
 
                if (e != null)
                {
                   while (e.hasMoreElements())
                   {
-                     v.add(e.nextElement());
+                     result.add(e.nextElement());
                   }
                }
             }
          }
+
+         result = Collections.unmodifiableList(result);
+         cache.put(name, result);
+      }
+
+      return result;
+   }
+
+   /**
+    * Find all the resources with a name
+    * @param name The resource name
+    * @return The resources
+    * @exception IOException Thrown if an error occurs
+    */
+   private Set<URL> findAllResources(String name) throws IOException
+   {
+      Set<URL> result = new LinkedHashSet<URL>();
+      Enumeration<URL> e = null;
+
+      if (classLoaders != null && classLoaders.size() > 0)
+      {
+         // The archive class loaders delegate to the system class loader first
+         e = ClassLoader.getSystemClassLoader().getResources(name);
+
+         if (e != null)
+         {
+            while (e.hasMoreElements())
+            {
+               result.add(e.nextElement());
+            }
+         }
+
+         result.addAll(getArchiveResources(name));
       }
 
       e = eclr.getNonExportClassLoader().getResources(name);
@@ -210,7 +320,7 @@ public class ExportClassLoader extends KernelClassLoader
       {
          while (e.hasMoreElements())
          {
-            v.add(e.nextElement());
+            result.add(e.nextElement());
          }
       }
 
@@ -220,11 +330,11 @@ public class ExportClassLoader extends KernelClassLoader
       {
          while (e.hasMoreElements())
          {
-            v.add(e.nextElement());
+            result.add(e.nextElement());
          }
       }
 
-      return v.elements();
+      return result;
    }
 
    /**
@@ -402,4 +512,70 @@ public class ExportClassLoader extends KernelClassLoader
 
       return sb.toString();
    }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void shutdown() throws IOException
+   {
+      eclr.getNonExportClassLoader().shutdown();
+
+      super.shutdown();
+   }
+
+   /**
+    * The archive resources cached for a registration generation
+    */
+   private static final class ResourcesCache
+   {
+      /** The maximum number of cached names */
+      private static final int MAX_SIZE = 512;
+
+      /** The registration generation */
+      private int generation;
+
+      /** Name -> resources */
+      private ConcurrentMap<String, List<URL>> resources;
+
+      /**
+       * Constructor
+       * @param generation The registration generation
+       */
+      ResourcesCache(int generation)
+      {
+         this.generation = generation;
+         this.resources = new ConcurrentHashMap<String, List<URL>>();
+      }
+
+      /**
+       * Get the registration generation
+       * @return The value
+       */
+      int getGeneration()
+      {
+         return generation;
+      }
+
+      /**
+       * Get the resources for a name
+       * @param name The resource name
+       * @return The resources; <code>null</code> if not cached
+       */
+      List<URL> get(String name)
+      {
+         return resources.get(name);
+      }
+
+      /**
+       * Cache the resources for a name, unless the cache is full
+       * @param name The resource name
+       * @param urls The resources
+       */
+      void put(String name, List<URL> urls)
+      {
+         if (resources.size() < MAX_SIZE)
+            resources.putIfAbsent(name, urls);
+      }
+   }
 }
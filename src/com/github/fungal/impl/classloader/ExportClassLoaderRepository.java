@@ -21,10 +21,11 @@
 package com.github.fungal.impl.classloader;
 
 import java.io.File;
-import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -32,14 +33,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.jar.Attributes;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Export class loader repository
@@ -47,6 +48,9 @@ import java.util.jar.Manifest;
  */
 class ExportClassLoaderRepository
 {
+   /** The logger */
+   private Logger log = Logger.getLogger(ExportClassLoaderRepository.class.getName());
+
    /** Non export class loader */
    private NonExportClassLoader nonExportClassLoader;
 
@@ -56,18 +60,46 @@ class ExportClassLoaderRepository
    /** Class loaders */
    private ConcurrentMap<Integer, ArchiveClassLoader> classLoaders;
 
+   /** Bundle metadata */
+   private BundleMetadataStore metadataStore;
+
    /** Package + Version mapping */
-   private ConcurrentMap<String, SortedMap<String, Set<Integer>>> packages;
+   private ConcurrentMap<String, SortedMap<Version, Set<Integer>>> packages;
+
+   /** Resource directory -> archive class loader ids in registration order */
+   private volatile Map<String, Integer[]> resources;
+
+   /** Registration generation */
+   private volatile int generation;
+
+   /** The executor service; <code>null</code> if the metadata is read by the calling thread */
+   private ExecutorService executorService;
 
    /**
     * Constructor
     */
    ExportClassLoaderRepository()
    {
-      nonExportClassLoader = SecurityActions.createNonExportClassLoader(this);
+      this(null, new BundleMetadataStore(null), null);
+   }
+
+   /**
+    * Constructor
+    * @param index The index for the non export class loader; <code>null</code> if each URL should be probed
+    * @param metadataStore The bundle metadata store
+    * @param executorService The executor service; <code>null</code> if the metadata should be read
+    *                        by the calling thread
+    */
+   ExportClassLoaderRepository(JarIndex index, BundleMetadataStore metadataStore, ExecutorService executorService)
+   {
+      nonExportClassLoader = SecurityActions.createNonExportClassLoader(this, index);
+      this.metadataStore = metadataStore;
       idCounter = new AtomicInteger(0);
       classLoaders = new ConcurrentHashMap<Integer, ArchiveClassLoader>();
-      packages = new ConcurrentHashMap<String, SortedMap<String, Set<Integer>>>();
+      packages = new ConcurrentHashMap<String, SortedMap<Version, Set<Integer>>>();
+      resources = Collections.emptyMap();
+      generation = 0;
+      this.executorService = executorService;
    }
 
    /**
@@ -89,6 +121,40 @@ class ExportClassLoaderRepository
       return classLoaders.get(id);
    }
 
+   /**
+    * Get the archive class loaders that may contain a resource
+    * @param name The resource name
+    * @return The class loaders in registration order
+    */
+   List<ArchiveClassLoader> getResourceClassLoaders(String name)
+   {
+      int index = name.lastIndexOf('/');
+      Integer[] ids = resources.get(index == -1 ? "" : name.substring(0, index));
+
+      if (ids == null)
+         return Collections.emptyList();
+
+      List<ArchiveClassLoader> result = new ArrayList<ArchiveClassLoader>(ids.length);
+      for (Integer id : ids)
+      {
+         ArchiveClassLoader acl = classLoaders.get(id);
+
+         if (acl != null)
+            result.add(acl);
+      }
+
+      return result;
+   }
+
+   /**
+    * Get the registration generation; changes every time archives are registered
+    * @return The value
+    */
+   int getGeneration()
+   {
+      return generation;
+   }
+
    /**
     * Get archive class loaders
     * @param clz The fully qualified class name
@@ -98,11 +164,11 @@ class ExportClassLoaderRepository
    {
       String pkgName = getPackageName(clz);
 
-      SortedMap<String, Set<Integer>> sm = packages.get(pkgName);
+      SortedMap<Version, Set<Integer>> sm = packages.get(pkgName);
 
       if (sm != null)
       {
-         String lastKey = sm.lastKey();
+         Version lastKey = sm.lastKey();
          return sm.get(lastKey);
       }
 
@@ -117,11 +183,11 @@ class ExportClassLoaderRepository
    {
       Set<Integer> result = new HashSet<Integer>();
 
-      Collection<SortedMap<String, Set<Integer>>> sms = packages.values();
+      Collection<SortedMap<Version, Set<Integer>>> sms = packages.values();
 
-      for (SortedMap<String, Set<Integer>> sm : sms)
+      for (SortedMap<Version, Set<Integer>> sm : sms)
       {
-         String lastKey = sm.lastKey();
+         Version lastKey = sm.lastKey();
          Set<Integer> values = sm.get(lastKey);
 
          if (values != null)
@@ -136,217 +202,188 @@ class ExportClassLoaderRepository
     * @param urls The urls
     * @return The identifiers for the classloaders; <code>null</code> if <code>NonExportClassLoader</code> is used
     */
-   synchronized Set<Integer> register(URL[] urls)
+   Set<Integer> register(URL[] urls)
    {
       if (urls == null)
          return null;
 
-      Set<Integer> result = null;
+      BundleMetadata[] metadata = getMetadata(urls);
 
-      // Classloader id -> Version, Packages
-      Map<Integer, Map<String, List<String>>> imports = new HashMap<Integer, Map<String, List<String>>>();
-
-      for (URL url : urls)
+      synchronized (this)
       {
-         boolean added = false;
+         return merge(urls, metadata);
+      }
+   }
 
-         if ("file".equals(url.getProtocol()))
+   /**
+    * Read the bundle metadata for the URLs in parallel. The calling thread takes part,
+    * and reads the metadata of the URLs that no other thread has started on
+    * @param urls The urls
+    * @return The metadata; <code>null</code> entries for URLs that aren't archives
+    */
+   private BundleMetadata[] getMetadata(URL[] urls)
+   {
+      BundleMetadata[] result = new BundleMetadata[urls.length];
+
+      int threads = Math.min(Runtime.getRuntime().availableProcessors(), urls.length);
+      MetadataReader reader = new MetadataReader(urls, result);
+
+      if (executorService != null)
+      {
+         for (int i = 1; i < threads; i++)
          {
-            JarFile jarFile = null;
             try
             {
-               File f = new File(url.toURI());
+               executorService.execute(reader);
+            }
+            catch (Throwable t)
+            {
+               break;
+            }
+         }
+      }
 
-               if (f.isFile())
-               {
-                  jarFile = new JarFile(f);
+      reader.run();
 
-                  Manifest manifest = jarFile.getManifest();
-                  if (manifest != null)
-                  {
-                     Attributes mainAttributes = manifest.getMainAttributes();
+      try
+      {
+         reader.await();
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.interrupted();
+      }
 
-                     String bundleManifestVersion = mainAttributes.getValue("Bundle-ManifestVersion");
-                     if (bundleManifestVersion != null)
-                     {
-                        Integer identifier = Integer.valueOf(idCounter.getAndIncrement());
-                        String bundleVersion = mainAttributes.getValue("Bundle-Version");
-
-                        // Export-Package
-                        String input = mainAttributes.getValue("Export-Package");
-
-                        boolean semi = false;
-                        boolean quote = false;
-                        StringBuilder sb = new StringBuilder();
-
-                        Set<String> exportPackages = new HashSet<String>(1);
-
-                        for (int i = 0; i < input.length(); i++)
-                        {
-                           char c = input.charAt(i);
-
-                           if (c == ',')
-                           {
-                              if (!quote)
-                              {
-                                 String exportPackage = sb.toString().trim();
-
-                                 semi = false;
-                                 quote = false;
-                                 sb = new StringBuilder();
-
-                                 if (!exportPackage.equals(""))
-                                 {
-                                    exportPackages.add(exportPackage);
-                                 }
-                              }
-                           }
-                           else if (c == ';')
-                           {
-                              semi = true;
-                           }
-                           else if (c == '\"')
-                           {
-                              quote = !quote;
-                           }
-                           else
-                           {
-                              if (!semi)
-                                 sb = sb.append(c);
-                           }
-                        }
-
-                        if (sb.length() > 0)
-                           exportPackages.add(sb.toString().trim());
-
-                        // Import-Package
-                        input = mainAttributes.getValue("Import-Package");
-
-                        if (input != null)
-                        {
-                           StringTokenizer st = new StringTokenizer(input, ",");
-                           while (st.hasMoreTokens())
-                           {
-                              String token = st.nextToken().trim();
-
-                              int versionIndex = token.indexOf(";version=");
-                              if (versionIndex != -1)
-                              {
-                                 String pkg = token.substring(0, versionIndex);
-                                 String ver = token.substring(versionIndex + 9);
-                           
-                                 if (pkg.indexOf(";") != -1)
-                                    pkg = pkg.substring(0, pkg.indexOf(";"));
+      metadataStore.store();
 
-                                 if (ver.startsWith("\""))
-                                    ver = ver.substring(1);
+      return result;
+   }
 
-                                 if (ver.endsWith("\""))
-                                    ver = ver.substring(0, ver.length() - 1);
+   /**
+    * Read the bundle metadata for an URL
+    * @param url The url
+    * @return The metadata; <code>null</code> if the URL isn't an archive
+    */
+   private BundleMetadata getMetadata(URL url)
+   {
+      if ("file".equals(url.getProtocol()))
+      {
+         try
+         {
+            File f = new File(url.toURI());
 
-                                 Map<String, List<String>> value = imports.get(identifier);
-                           
-                                 if (value == null)
-                                    value = new HashMap<String, List<String>>();
-                              
-                                 List<String> l = value.get(ver);
-
-                                 if (l == null)
-                                    l = new ArrayList<String>();
-                              
-                                 l.add(pkg);
-                                 value.put(ver, l);
-                                 imports.put(identifier, value);
-                              }
-                           }
-                        }
-                        // Require-Bundle
-                        input = mainAttributes.getValue("Require-Bundle");
-
-                        if (input != null)
-                        {
-                           StringTokenizer st = new StringTokenizer(input, ",");
-                           while (st.hasMoreTokens())
-                           {
-                              String token = st.nextToken().trim();
-                              
-                              int delimiter = token.indexOf(";");
-
-                              if (delimiter != -1)
-                                 token = token.substring(0, delimiter);
-
-                              Map<String, List<String>> value = imports.get(identifier);
-                           
-                              if (value == null)
-                                 value = new HashMap<String, List<String>>();
-                              
-                              List<String> l = value.get(null);
-
-                              if (l == null)
-                                 l = new ArrayList<String>();
-                              
-                              l.add(token);
-                              value.put(null, l);
-                              imports.put(identifier, value);
-                           }
-                        }
-                     
-                        for (String s : exportPackages)
-                        {
-                           SortedMap<String, Set<Integer>> sm = packages.get(s);
+            if (f.isFile())
+               return metadataStore.get(f);
+         }
+         catch (Throwable t)
+         {
+            log.log(Level.WARNING, "Unable to read the bundle metadata of " + url, t);
+         }
+      }
 
-                           if (sm == null)
-                              sm = new TreeMap<String, Set<Integer>>(new VersionComparator());
+      return null;
+   }
+
+   /**
+    * Merge the bundles into the repository
+    * @param urls The urls
+    * @param metadata The metadata for the urls
+    * @return The identifiers for the classloaders; <code>null</code> if <code>NonExportClassLoader</code> is used
+    */
+   private Set<Integer> merge(URL[] urls, BundleMetadata[] metadata)
+   {
+      Set<Integer> result = null;
+      List<URL> nonExport = null;
+      Map<String, List<Integer>> directories = new HashMap<String, List<Integer>>();
 
-                           Set<Integer> cls = sm.get(bundleVersion);
+      // Classloader id -> Version, Packages
+      Map<Integer, Map<String, List<String>>> imports = new HashMap<Integer, Map<String, List<String>>>();
 
-                           if (cls == null)
-                              cls = new HashSet<Integer>(1);
-                           
-                           cls.add(identifier);
-                           sm.put(bundleVersion, cls);
-                           packages.put(s, sm);
-                        }
-                     
-                        ArchiveClassLoader acl = 
-                           SecurityActions.createArchiveClassLoader(identifier, url, exportPackages, this);
+      for (int i = 0; i < urls.length; i++)
+      {
+         URL url = urls[i];
+         BundleMetadata bm = metadata[i];
 
-                        classLoaders.put(acl.getId(), acl);
+         if (bm != null && bm.isBundle())
+         {
+            Integer identifier = Integer.valueOf(idCounter.getAndIncrement());
+            Version bundleVersion = Version.parse(bm.getBundleVersion());
 
-                        if (result == null)
-                           result = new HashSet<Integer>();
+            if (bm.getImports().size() > 0)
+               imports.put(identifier, bm.getImports());
 
-                        result.add(identifier);
-                        
-                        added = true;
-                     }
-                  }
-               }
-            }
-            catch (Throwable t)
+            for (String s : bm.getExportPackages())
             {
-               System.out.println("REPO: (" + url + ") =");
-               t.printStackTrace(System.out);
+               SortedMap<Version, Set<Integer>> sm = packages.get(s);
+
+               if (sm == null)
+                  sm = new TreeMap<Version, Set<Integer>>();
+
+               Set<Integer> cls = sm.get(bundleVersion);
+
+               if (cls == null)
+                  cls = new HashSet<Integer>(1);
+                           
+               cls.add(identifier);
+               sm.put(bundleVersion, cls);
+               packages.put(s, sm);
             }
-            finally
+                     
+            ArchiveClassLoader acl = 
+               SecurityActions.createArchiveClassLoader(identifier, url, bm.getExportPackages(), this);
+
+            classLoaders.put(acl.getId(), acl);
+
+            for (String directory : bm.getDirectories())
             {
-               if (jarFile != null)
+               List<Integer> l = directories.get(directory);
+
+               if (l == null)
                {
-                  try
-                  {
-                     jarFile.close();
-                  }
-                  catch (IOException ioe)
-                  {
-                     // Ignore
-                  }
+                  l = new ArrayList<Integer>(1);
+                  directories.put(directory, l);
                }
+
+               l.add(identifier);
             }
+
+            if (result == null)
+               result = new HashSet<Integer>();
+
+            result.add(identifier);
+         }
+         else
+         {
+            if (nonExport == null)
+               nonExport = new ArrayList<URL>(urls.length);
+
+            nonExport.add(url);
          }
-         
-         if (!added)
-            nonExportClassLoader.addURL(url);
       }
+
+      if (nonExport != null)
+         nonExportClassLoader.addURLs(nonExport.toArray(new URL[nonExport.size()]));
+
+      if (directories.size() > 0)
+      {
+         Map<String, Integer[]> m = new HashMap<String, Integer[]>(resources);
+
+         for (Map.Entry<String, List<Integer>> entry : directories.entrySet())
+         {
+            List<Integer> l = new ArrayList<Integer>(entry.getValue().size() + 1);
+            Integer[] existing = m.get(entry.getKey());
+
+            if (existing != null)
+               l.addAll(Arrays.asList(existing));
+
+            l.addAll(entry.getValue());
+            m.put(entry.getKey(), l.toArray(new Integer[l.size()]));
+         }
+
+         resources = m;
+      }
+
+      generation++;
       
       if (imports.size() > 0)
       {
@@ -365,12 +402,12 @@ class ExportClassLoaderRepository
             {
                Map.Entry<String, List<String>> vEntry = vit.next();
 
-               String version = vEntry.getKey();
+               Version version = Version.parse(vEntry.getKey());
                List<String> pkgs = vEntry.getValue();
 
                for (String pkg : pkgs)
                {
-                  SortedMap<String, Set<Integer>> sm = packages.get(pkg);
+                  SortedMap<Version, Set<Integer>> sm = packages.get(pkg);
                   
                   if (sm != null)
                   {
@@ -427,4 +464,66 @@ class ExportClassLoaderRepository
 
       return sb.toString();
    }
+
+   /**
+    * Reads the bundle metadata of URLs until all of them have been taken
+    */
+   class MetadataReader implements Runnable
+   {
+      /** The urls */
+      private URL[] urls;
+
+      /** The metadata */
+      private BundleMetadata[] result;
+
+      /** The index of the next url */
+      private AtomicInteger next;
+
+      /** The urls that haven't been read */
+      private CountDownLatch remaining;
+
+      /**
+       * Constructor
+       * @param urls The urls
+       * @param result The metadata
+       */
+      MetadataReader(URL[] urls, BundleMetadata[] result)
+      {
+         this.urls = urls;
+         this.result = result;
+         this.next = new AtomicInteger(0);
+         this.remaining = new CountDownLatch(urls.length);
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         int i = next.getAndIncrement();
+
+         while (i < urls.length)
+         {
+            try
+            {
+               result[i] = getMetadata(urls[i]);
+            }
+            finally
+            {
+               remaining.countDown();
+            }
+
+            i = next.getAndIncrement();
+         }
+      }
+
+      /**
+       * Wait for the metadata of all the urls
+       * @exception InterruptedException If the thread is interrupted
+       */
+      void await() throws InterruptedException
+      {
+         remaining.await();
+      }
+   }
 }
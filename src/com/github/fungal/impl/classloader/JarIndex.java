@@ -0,0 +1,1019 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl.classloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Package to archive index for the URLs of a class loader, such that class and
+ * resource lookups go straight to the archives that contain the package.
+ *
+ * The index of an archive holds every directory that has an entry, including the
+ * directories themselves, so a lookup that misses in a complete index is a miss in
+ * all of the archives. The package sets of the archives are persisted, and reused as
+ * long as the size and the last modified timestamp of the archive are unchanged.
+ * Directory roots aren't indexed, as their content can change, so they are probed
+ * on each lookup.
+ *
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class JarIndex implements Closeable
+{
+   /** Format version of the persisted index */
+   private static final int VERSION = 2;
+
+   /** The logger */
+   private Logger log = Logger.getLogger(JarIndex.class.getName());
+
+   /** The persisted index; <code>null</code> if the index isn't persisted */
+   private File cache;
+
+   /** The executor service; <code>null</code> if the archives are scanned by the calling thread */
+   private ExecutorService executorService;
+
+   /** The persisted entries: path -> entry */
+   private Map<String, Root> persisted;
+
+   /** The roots in class path order */
+   private List<Root> roots;
+
+   /** Package -> archive roots in class path order */
+   private volatile Map<String, Root[]> packages;
+
+   /** The directory roots in class path order */
+   private volatile Root[] directories;
+
+   /** Are all the URLs indexed */
+   private volatile boolean complete;
+
+   /**
+    * Constructor
+    * @param cache The persisted index; <code>null</code> if the index shouldn't be persisted
+    */
+   JarIndex(File cache)
+   {
+      this(cache, null);
+   }
+
+   /**
+    * Constructor
+    * @param cache The persisted index; <code>null</code> if the index shouldn't be persisted
+    * @param executorService The executor service; <code>null</code> if the archives should be
+    *                        scanned by the calling thread
+    */
+   JarIndex(File cache, ExecutorService executorService)
+   {
+      this.cache = cache;
+      this.executorService = executorService;
+      this.persisted = null;
+      this.roots = new ArrayList<Root>();
+      this.packages = Collections.emptyMap();
+      this.directories = new Root[0];
+      this.complete = true;
+   }
+
+   /**
+    * Are all the URLs indexed; if not the index can't be used for lookups
+    * @return True if complete, otherwise false
+    */
+   boolean isComplete()
+   {
+      return complete;
+   }
+
+   /**
+    * Add URLs to the index; the archives are scanned in parallel
+    * @param urls The URLs
+    */
+   synchronized void add(URL[] urls)
+   {
+      if (urls == null || urls.length == 0)
+         return;
+
+      if (cache != null && persisted == null)
+         persisted = load();
+
+      List<Root> added = new ArrayList<Root>(urls.length);
+      List<Root> scan = new ArrayList<Root>(urls.length);
+
+      for (URL url : urls)
+      {
+         File f = null;
+
+         if ("file".equals(url.getProtocol()))
+         {
+            try
+            {
+               f = new File(url.toURI());
+            }
+            catch (Throwable t)
+            {
+               f = null;
+            }
+         }
+
+         if (f == null || !f.exists())
+         {
+            if (f == null)
+               complete = false;
+
+            continue;
+         }
+
+         Root root = new Root(url, f, roots.size() + added.size());
+
+         if (!root.isDirectory() && persisted != null)
+         {
+            Root p = persisted.get(f.getAbsolutePath());
+
+            if (p != null && p.getSize() == root.getSize() && p.getLastModified() == root.getLastModified())
+               root.setPackages(p.getPackages());
+         }
+
+         if (!root.isDirectory() && root.getPackages() == null)
+            scan.add(root);
+
+         added.add(root);
+      }
+
+      scan(scan);
+
+      Map<String, List<Root>> m = new HashMap<String, List<Root>>();
+      List<Root> dirs = new ArrayList<Root>(1);
+
+      roots.addAll(added);
+
+      for (Root root : roots)
+      {
+         if (root.isDirectory())
+         {
+            dirs.add(root);
+            continue;
+         }
+
+         if (root.getPackages() == null)
+         {
+            complete = false;
+            continue;
+         }
+
+         for (String pkg : root.getPackages())
+         {
+            List<Root> l = m.get(pkg);
+
+            if (l == null)
+            {
+               l = new ArrayList<Root>(1);
+               m.put(pkg, l);
+            }
+
+            l.add(root);
+         }
+      }
+
+      Map<String, Root[]> result = new HashMap<String, Root[]>(m.size());
+      for (Map.Entry<String, List<Root>> entry : m.entrySet())
+      {
+         result.put(entry.getKey(), entry.getValue().toArray(new Root[entry.getValue().size()]));
+      }
+
+      packages = result;
+      directories = dirs.toArray(new Root[dirs.size()]);
+
+      if (cache != null)
+      {
+         boolean changed = false;
+
+         for (Root root : scan)
+         {
+            if (!root.isDirectory() && root.getPackages() != null)
+            {
+               persisted.put(root.getFile().getAbsolutePath(), root);
+               changed = true;
+            }
+         }
+
+         if (changed)
+            store();
+      }
+   }
+
+   /**
+    * Find a resource
+    * @param name The resource name
+    * @return The URL; <code>null</code> if not found
+    */
+   URL findResource(String name)
+   {
+      Root[] candidates = getRoots(name);
+
+      if (candidates == null)
+         return null;
+
+      for (Root root : candidates)
+      {
+         if (root.contains(name))
+         {
+            try
+            {
+               return root.getURL(name);
+            }
+            catch (MalformedURLException mue)
+            {
+               // Ignore
+            }
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * Find all resources with a name
+    * @param name The resource name
+    * @return The URLs
+    */
+   Enumeration<URL> findResources(String name)
+   {
+      Root[] candidates = getRoots(name);
+
+      if (candidates == null)
+         return Collections.enumeration(Collections.<URL>emptyList());
+
+      List<URL> result = new ArrayList<URL>(candidates.length);
+
+      for (Root root : candidates)
+      {
+         if (root.contains(name))
+         {
+            try
+            {
+               result.add(root.getURL(name));
+            }
+            catch (MalformedURLException mue)
+            {
+               // Ignore
+            }
+         }
+      }
+
+      return Collections.enumeration(result);
+   }
+
+   /**
+    * Find the class file for a class
+    * @param name The fully qualified class name
+    * @return The class resource; <code>null</code> if not found
+    * @exception IOException Thrown if the class file can't be read
+    */
+   Resource findClass(String name) throws IOException
+   {
+      String path = name.replace('.', '/') + ".class";
+      Root[] candidates = getRoots(path);
+
+      if (candidates == null)
+         return null;
+
+      for (Root root : candidates)
+      {
+         Resource resource = root.getResource(path);
+
+         if (resource != null)
+            return resource;
+      }
+
+      return null;
+   }
+
+   /**
+    * Close the archives
+    */
+   public synchronized void close()
+   {
+      for (Root root : roots)
+      {
+         root.close();
+      }
+   }
+
+   /**
+    * Get the candidate roots for a resource; the archives that contain the package,
+    * and all the directories
+    * @param name The resource name
+    * @return The roots in class path order; <code>null</code> if none
+    */
+   private Root[] getRoots(String name)
+   {
+      int index = name.lastIndexOf('/');
+
+      Root[] archives = packages.get(index == -1 ? "" : name.substring(0, index));
+      Root[] dirs = directories;
+
+      if (dirs.length == 0)
+         return archives;
+
+      if (archives == null)
+         return dirs;
+
+      Root[] result = new Root[archives.length + dirs.length];
+      int a = 0;
+      int d = 0;
+
+      for (int i = 0; i < result.length; i++)
+      {
+         if (d == dirs.length || (a < archives.length && archives[a].getPosition() < dirs[d].getPosition()))
+         {
+            result[i] = archives[a++];
+         }
+         else
+         {
+            result[i] = dirs[d++];
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Scan the roots in parallel. The calling thread takes part in the scan, and scans
+    * the roots that no other thread has started on, such that the scan completes even
+    * if the executor service is saturated
+    * @param scan The roots
+    */
+   private void scan(List<Root> scan)
+   {
+      if (scan.size() == 0)
+         return;
+
+      int threads = Math.min(Runtime.getRuntime().availableProcessors(), scan.size());
+      Scanner scanner = new Scanner(scan);
+
+      if (executorService != null)
+      {
+         for (int i = 1; i < threads; i++)
+         {
+            try
+            {
+               executorService.execute(scanner);
+            }
+            catch (Throwable t)
+            {
+               break;
+            }
+         }
+      }
+
+      scanner.run();
+
+      try
+      {
+         scanner.await();
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.interrupted();
+      }
+   }
+
+   /**
+    * Load the persisted index
+    * @return The entries
+    */
+   private Map<String, Root> load()
+   {
+      Map<String, Root> result = new HashMap<String, Root>();
+
+      if (!cache.exists())
+         return result;
+
+      DataInputStream dis = null;
+      try
+      {
+         dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+
+         if (dis.readInt() != VERSION)
+            return result;
+
+         int count = dis.readInt();
+         for (int i = 0; i < count; i++)
+         {
+            String path = dis.readUTF();
+            long size = dis.readLong();
+            long lastModified = dis.readLong();
+            int n = dis.readInt();
+
+            Set<String> pkgs = new HashSet<String>(n);
+            for (int j = 0; j < n; j++)
+            {
+               pkgs.add(dis.readUTF());
+            }
+
+            result.put(path, new Root(path, size, lastModified, pkgs));
+         }
+      }
+      catch (IOException ioe)
+      {
+         log.log(Level.FINE, "Unable to read class loader index: " + cache.getAbsolutePath(), ioe);
+         result.clear();
+      }
+      finally
+      {
+         if (dis != null)
+         {
+            try
+            {
+               dis.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+
+      return result;
+   }
+
+   /**
+    * Store the persisted index
+    */
+   private void store()
+   {
+      Iterator<Map.Entry<String, Root>> it = persisted.entrySet().iterator();
+      while (it.hasNext())
+      {
+         if (!new File(it.next().getKey()).exists())
+            it.remove();
+      }
+
+      File tmp = new File(cache.getParentFile(), cache.getName() + ".tmp");
+      DataOutputStream dos = null;
+      try
+      {
+         dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+         dos.writeInt(VERSION);
+         dos.writeInt(persisted.size());
+
+         for (Map.Entry<String, Root> entry : persisted.entrySet())
+         {
+            Root root = entry.getValue();
+
+            dos.writeUTF(entry.getKey());
+            dos.writeLong(root.getSize());
+            dos.writeLong(root.getLastModified());
+            dos.writeInt(root.getPackages().size());
+
+            for (String pkg : root.getPackages())
+            {
+               dos.writeUTF(pkg);
+            }
+         }
+
+         dos.flush();
+         dos.close();
+         dos = null;
+
+         if (cache.exists() && !cache.delete())
+            throw new IOException("Could not delete " + cache.getAbsolutePath());
+
+         if (!tmp.renameTo(cache))
+            throw new IOException("Could not rename " + tmp.getAbsolutePath());
+      }
+      catch (IOException ioe)
+      {
+         log.log(Level.FINE, "Unable to write class loader index: " + cache.getAbsolutePath(), ioe);
+      }
+      finally
+      {
+         if (dos != null)
+         {
+            try
+            {
+               dos.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+   }
+
+   /**
+    * Scans roots until all of them have been taken
+    */
+   static class Scanner implements Runnable
+   {
+      /** The roots */
+      private List<Root> roots;
+
+      /** The index of the next root */
+      private AtomicInteger next;
+
+      /** The roots that haven't been scanned */
+      private CountDownLatch remaining;
+
+      /**
+       * Constructor
+       * @param roots The roots
+       */
+      Scanner(List<Root> roots)
+      {
+         this.roots = roots;
+         this.next = new AtomicInteger(0);
+         this.remaining = new CountDownLatch(roots.size());
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         int i = next.getAndIncrement();
+
+         while (i < roots.size())
+         {
+            try
+            {
+               roots.get(i).scan();
+            }
+            finally
+            {
+               remaining.countDown();
+            }
+
+            i = next.getAndIncrement();
+         }
+      }
+
+      /**
+       * Wait for all the roots to be scanned
+       * @exception InterruptedException If the thread is interrupted
+       */
+      void await() throws InterruptedException
+      {
+         remaining.await();
+      }
+   }
+
+   /**
+    * A class file located through the index
+    */
+   static final class Resource
+   {
+      /** The class file */
+      private byte[] bytes;
+
+      /** The code source */
+      private CodeSource codeSource;
+
+      /** The manifest */
+      private Manifest manifest;
+
+      /**
+       * Constructor
+       * @param bytes The class file
+       * @param codeSource The code source
+       * @param manifest The manifest; can be <code>null</code>
+       */
+      Resource(byte[] bytes, CodeSource codeSource, Manifest manifest)
+      {
+         this.bytes = bytes;
+         this.codeSource = codeSource;
+         this.manifest = manifest;
+      }
+
+      /**
+       * Get the class file
+       * @return The value
+       */
+      byte[] getBytes()
+      {
+         return bytes;
+      }
+
+      /**
+       * Get the code source
+       * @return The value
+       */
+      CodeSource getCodeSource()
+      {
+         return codeSource;
+      }
+
+      /**
+       * Get the manifest
+       * @return The value
+       */
+      Manifest getManifest()
+      {
+         return manifest;
+      }
+   }
+
+   /**
+    * An archive or a directory
+    */
+   static final class Root
+   {
+      /** The URL */
+      private URL url;
+
+      /** The file */
+      private File file;
+
+      /** Directory */
+      private boolean directory;
+
+      /** The position in the class path */
+      private int position;
+
+      /** The size */
+      private long size;
+
+      /** The last modified timestamp */
+      private long lastModified;
+
+      /** The packages */
+      private volatile Set<String> packages;
+
+      /** The code source */
+      private CodeSource codeSource;
+
+      /** The archive */
+      private volatile JarFile jarFile;
+
+      /** The manifest */
+      private volatile Manifest manifest;
+
+      /** Has the manifest been read */
+      private volatile boolean manifestRead;
+
+      /**
+       * Constructor
+       * @param url The URL
+       * @param file The file
+       * @param position The position in the class path
+       */
+      Root(URL url, File file, int position)
+      {
+         this.url = url;
+         this.file = file;
+         this.directory = file.isDirectory();
+         this.position = position;
+         this.size = file.length();
+         this.lastModified = file.lastModified();
+         this.packages = null;
+         this.codeSource = new CodeSource(url, (Certificate[])null);
+         this.jarFile = null;
+         this.manifest = null;
+         this.manifestRead = false;
+      }
+
+      /**
+       * Constructor for a persisted entry
+       * @param path The path
+       * @param size The size
+       * @param lastModified The last modified timestamp
+       * @param packages The packages
+       */
+      Root(String path, long size, long lastModified, Set<String> packages)
+      {
+         this.file = new File(path);
+         this.size = size;
+         this.lastModified = lastModified;
+         this.packages = packages;
+      }
+
+      /**
+       * Get the file
+       * @return The value
+       */
+      File getFile()
+      {
+         return file;
+      }
+
+      /**
+       * Is a directory
+       * @return The value
+       */
+      boolean isDirectory()
+      {
+         return directory;
+      }
+
+      /**
+       * Get the position in the class path
+       * @return The value
+       */
+      int getPosition()
+      {
+         return position;
+      }
+
+      /**
+       * Get the size
+       * @return The value
+       */
+      long getSize()
+      {
+         return size;
+      }
+
+      /**
+       * Get the last modified timestamp
+       * @return The value
+       */
+      long getLastModified()
+      {
+         return lastModified;
+      }
+
+      /**
+       * Get the packages
+       * @return The value; <code>null</code> if not scanned
+       */
+      Set<String> getPackages()
+      {
+         return packages;
+      }
+
+      /**
+       * Set the packages
+       * @param v The value
+       */
+      void setPackages(Set<String> v)
+      {
+         packages = v;
+      }
+
+      /**
+       * Scan the packages of the archive
+       */
+      void scan()
+      {
+         Set<String> result = new HashSet<String>();
+
+         try
+         {
+            Enumeration<JarEntry> entries = getJarFile().entries();
+            while (entries.hasMoreElements())
+            {
+               String name = entries.nextElement().getName();
+
+               // A directory is looked up as "name/" in its own directory, and as "name" in its parent
+               if (name.endsWith("/"))
+               {
+                  name = name.substring(0, name.length() - 1);
+                  result.add(name);
+               }
+
+               int index = name.lastIndexOf('/');
+               while (index != -1 && result.add(name.substring(0, index)))
+               {
+                  index = name.lastIndexOf('/', index - 1);
+               }
+            }
+
+            // Top level entries
+            if (getJarFile().size() > 0)
+               result.add("");
+
+            packages = result;
+         }
+         catch (IOException ioe)
+         {
+            // Not an archive - same as for URLClassLoader nothing can be loaded from it
+            Set<String> empty = Collections.emptySet();
+            packages = empty;
+         }
+      }
+
+      /**
+       * Does the root contain a resource
+       * @param name The resource name
+       * @return True if the resource exists, otherwise false
+       */
+      boolean contains(String name)
+      {
+         if (directory)
+            return new File(file, name).exists();
+
+         try
+         {
+            return getJarFile().getEntry(name) != null;
+         }
+         catch (IOException ioe)
+         {
+            return false;
+         }
+      }
+
+      /**
+       * Get the URL of a resource
+       * @param name The resource name
+       * @return The URL
+       * @exception MalformedURLException Thrown if the URL can't be created
+       */
+      URL getURL(String name) throws MalformedURLException
+      {
+         if (directory)
+            return new URL(url, name);
+
+         return new URL("jar:" + url.toExternalForm() + "!/" + name);
+      }
+
+      /**
+       * Get a class file or another resource. The code source of an archive entry
+       * carries the certificates of its signers
+       * @param name The resource name
+       * @return The resource; <code>null</code> if the resource doesn't exist
+       * @exception IOException Thrown if the resource can't be read
+       */
+      Resource getResource(String name) throws IOException
+      {
+         if (directory)
+         {
+            File f = new File(file, name);
+
+            if (!f.isFile())
+               return null;
+
+            return new Resource(read(new FileInputStream(f), (int)f.length()), codeSource, getManifest());
+         }
+
+         JarFile jf = getJarFile();
+         JarEntry entry = jf.getJarEntry(name);
+
+         if (entry == null)
+            return null;
+
+         byte[] bytes = read(jf.getInputStream(entry), (int)entry.getSize());
+
+         // The certificates are known once the entry has been read
+         Certificate[] certificates = entry.getCertificates();
+         CodeSource cs = certificates != null ? new CodeSource(url, certificates) : codeSource;
+
+         return new Resource(bytes, cs, getManifest());
+      }
+
+      /**
+       * Read a stream fully; the stream is closed
+       * @param is The stream
+       * @param size The expected size; a negative value if unknown
+       * @return The data
+       * @exception IOException Thrown if the stream can't be read
+       */
+      private static byte[] read(InputStream is, int size) throws IOException
+      {
+         try
+         {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(size > 0 ? size : 8192);
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while ((n = is.read(buffer)) != -1)
+            {
+               os.write(buffer, 0, n);
+            }
+
+            return os.toByteArray();
+         }
+         finally
+         {
+            try
+            {
+               is.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+
+      /**
+       * Get the manifest
+       * @return The manifest; <code>null</code> if none
+       */
+      Manifest getManifest()
+      {
+         if (manifestRead)
+            return manifest;
+
+         synchronized (this)
+         {
+            if (!manifestRead)
+            {
+               if (!directory)
+               {
+                  try
+                  {
+                     manifest = getJarFile().getManifest();
+                  }
+                  catch (IOException ioe)
+                  {
+                     manifest = null;
+                  }
+               }
+
+               manifestRead = true;
+            }
+
+            return manifest;
+         }
+      }
+
+      /**
+       * Get the archive
+       * @return The archive
+       * @exception IOException Thrown if the archive can't be opened
+       */
+      private JarFile getJarFile() throws IOException
+      {
+         JarFile jf = jarFile;
+
+         if (jf != null)
+            return jf;
+
+         synchronized (this)
+         {
+            if (jarFile == null)
+               jarFile = new JarFile(file);
+
+            return jarFile;
+         }
+      }
+
+      /**
+       * Close the archive
+       */
+      synchronized void close()
+      {
+         if (jarFile != null)
+         {
+            try
+            {
+               jarFile.close();
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+
+            jarFile = null;
+         }
+      }
+   }
+}
@@ -22,7 +22,9 @@ package com.github.fungal.impl.classloader;
 
 import com.github.fungal.api.classloading.KernelClassLoader;
 
+import java.io.IOException;
 import java.net.URL;
+import java.util.Enumeration;
 import java.util.Set;
 
 /**
@@ -31,16 +33,32 @@ import java.util.Set;
  */
 class NonExportClassLoader extends KernelClassLoader
 {
+   static
+   {
+      try
+      {
+         ClassLoader.class.getDeclaredMethod("registerAsParallelCapable").invoke(null);
+      }
+      catch (Throwable t)
+      {
+         // Not supported by the platform
+      }
+   }
+
    /** The repository */
    private ExportClassLoaderRepository eclr;
 
+   /** The index; <code>null</code> if each URL is probed */
+   private JarIndex index;
+
    /**
     * Constructor
     * @param eclr The repository
+    * @param index The index; <code>null</code> if each URL should be probed
     */
-   NonExportClassLoader(ExportClassLoaderRepository eclr)
+   NonExportClassLoader(ExportClassLoaderRepository eclr, JarIndex index)
    {
-      this(new URL[0], ClassLoader.getSystemClassLoader(), eclr);
+      this(new URL[0], ClassLoader.getSystemClassLoader(), eclr, index);
    }
 
    /**
@@ -48,8 +66,9 @@ class NonExportClassLoader extends KernelClassLoader
     * @param urls The URLs
     * @param cl The parent class loader
     * @param eclr The repository
+    * @param index The index; <code>null</code> if each URL should be probed
     */
-   private NonExportClassLoader(URL[] urls, ClassLoader cl, ExportClassLoaderRepository eclr)
+   private NonExportClassLoader(URL[] urls, ClassLoader cl, ExportClassLoaderRepository eclr, JarIndex index)
    {
       super(urls, cl);
 
@@ -57,6 +76,7 @@ class NonExportClassLoader extends KernelClassLoader
          throw new IllegalArgumentException("ECLR is null");
 
       this.eclr = eclr;
+      this.index = index;
    }
 
    /**
@@ -70,6 +90,11 @@ class NonExportClassLoader extends KernelClassLoader
    {
       // Don't call super.loadClass(String) as it is done in ExportClassLoader
 
+      Class<?> result = findLoadedClass(name);
+
+      if (result != null)
+         return result;
+
       try
       {
          return loadClass(name, false);
@@ -139,7 +164,7 @@ class NonExportClassLoader extends KernelClassLoader
    {
       try
       {
-         return super.findClass(name);
+         return findLocalClass(name);
       }
       catch (Throwable t)
       {
@@ -166,6 +191,62 @@ class NonExportClassLoader extends KernelClassLoader
       throw new ClassNotFoundException("Unable to load class: " + name);
    }
 
+   /**
+    * Find a class in the URLs of this class loader
+    * @param name The fully qualified class name
+    * @return The class
+    * @throws ClassNotFoundException If the class could not be found 
+    */
+   private Class<?> findLocalClass(String name) throws ClassNotFoundException
+   {
+      if (index == null || !index.isComplete())
+         return super.findClass(name);
+
+      Class<?> result = findLoadedClass(name);
+
+      if (result != null)
+         return result;
+
+      JarIndex.Resource resource = null;
+      try
+      {
+         resource = index.findClass(name);
+      }
+      catch (IOException ioe)
+      {
+         throw new ClassNotFoundException(name, ioe);
+      }
+
+      if (resource == null)
+         throw new ClassNotFoundException(name);
+
+      return defineClass(name, resource.getBytes(), resource.getCodeSource(), resource.getManifest());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public URL findResource(String name)
+   {
+      if (index == null || !index.isComplete())
+         return super.findResource(name);
+
+      return index.findResource(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Enumeration<URL> findResources(String name) throws IOException
+   {
+      if (index == null || !index.isComplete())
+         return super.findResources(name);
+
+      return index.findResources(name);
+   }
+
    /**
     * {@inheritDoc}
     */
@@ -173,6 +254,36 @@ class NonExportClassLoader extends KernelClassLoader
    public synchronized void addURL(URL url)
    {
       super.addURL(url);
+
+      if (index != null)
+         index.add(new URL[] {url});
+   }
+
+   /**
+    * Add URLs; the index is updated once for all of them
+    * @param urls The URLs
+    */
+   synchronized void addURLs(URL[] urls)
+   {
+      for (URL url : urls)
+      {
+         super.addURL(url);
+      }
+
+      if (index != null)
+         index.add(urls);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void shutdown() throws IOException
+   {
+      if (index != null)
+         index.close();
+
+      super.shutdown();
    }
 
    /**
@@ -22,7 +22,11 @@ package com.github.fungal.impl.classloader;
 
 import com.github.fungal.api.classloading.KernelClassLoader;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Parent first class loader
@@ -30,6 +34,21 @@ import java.net.URL;
  */
 public class ParentFirstClassLoader extends KernelClassLoader
 {
+   static
+   {
+      try
+      {
+         ClassLoader.class.getDeclaredMethod("registerAsParallelCapable").invoke(null);
+      }
+      catch (Throwable t)
+      {
+         // Not supported by the platform
+      }
+   }
+
+   /** The index; <code>null</code> if each URL is probed */
+   private JarIndex index;
+
    /**
     * Constructor
     * @param urls The URLs for JAR archives or directories
@@ -38,6 +57,35 @@ public class ParentFirstClassLoader extends KernelClassLoader
    public ParentFirstClassLoader(URL[] urls, ClassLoader parent)
    {
       super(urls, parent);
+
+      this.index = null;
+   }
+
+   /**
+    * Constructor
+    * @param urls The URLs for JAR archives or directories
+    * @param parent The parent class loader
+    * @param indexCache The file that persists the index; <code>null</code> if it shouldn't be persisted
+    */
+   public ParentFirstClassLoader(URL[] urls, ClassLoader parent, File indexCache)
+   {
+      this(urls, parent, indexCache, null);
+   }
+
+   /**
+    * Constructor
+    * @param urls The URLs for JAR archives or directories
+    * @param parent The parent class loader
+    * @param indexCache The file that persists the index; <code>null</code> if it shouldn't be persisted
+    * @param executorService The executor service that scans the archives; <code>null</code> if they
+    *                        should be scanned by the calling thread
+    */
+   public ParentFirstClassLoader(URL[] urls, ClassLoader parent, File indexCache, ExecutorService executorService)
+   {
+      super(urls, parent);
+
+      this.index = new JarIndex(indexCache, executorService);
+      this.index.add(urls);
    }
 
    /**
@@ -56,13 +104,79 @@ public class ParentFirstClassLoader extends KernelClassLoader
 
       try
       {
-         return loadClass(name, false);
+         return record(loadClass(name, false));
       }
       catch (Throwable t)
       {
          // Ignore
       }
 
-      return getParent().loadClass(name);
+      return record(getParent().loadClass(name));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected Class<?> findClass(String name) throws ClassNotFoundException
+   {
+      if (index == null || !index.isComplete())
+         return super.findClass(name);
+
+      Class<?> result = findLoadedClass(name);
+
+      if (result != null)
+         return result;
+
+      JarIndex.Resource resource = null;
+      try
+      {
+         resource = index.findClass(name);
+      }
+      catch (IOException ioe)
+      {
+         throw new ClassNotFoundException(name, ioe);
+      }
+
+      if (resource == null)
+         throw new ClassNotFoundException(name);
+
+      return defineClass(name, resource.getBytes(), resource.getCodeSource(), resource.getManifest());
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public URL findResource(String name)
+   {
+      if (index == null || !index.isComplete())
+         return super.findResource(name);
+
+      return index.findResource(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Enumeration<URL> findResources(String name) throws IOException
+   {
+      if (index == null || !index.isComplete())
+         return super.findResources(name);
+
+      return index.findResources(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void shutdown() throws IOException
+   {
+      if (index != null)
+         index.close();
+
+      super.shutdown();
    }
 }
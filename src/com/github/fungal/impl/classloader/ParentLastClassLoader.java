@@ -22,13 +22,18 @@ package com.github.fungal.impl.classloader;
 
 import com.github.fungal.api.classloading.KernelClassLoader;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Parent last class loader
@@ -36,19 +41,65 @@ import java.util.Vector;
  */
 public class ParentLastClassLoader extends KernelClassLoader
 {
+   static
+   {
+      try
+      {
+         ClassLoader.class.getDeclaredMethod("registerAsParallelCapable").invoke(null);
+      }
+      catch (Throwable t)
+      {
+         // Not supported by the platform
+      }
+   }
+
+   /** The maximum number of class names remembered as answered by the parent; the least recently used are evicted */
+   private static final int MAX_PARENT_CLASSES = 4096;
+
    /** Children class loader */
    private ChildrenClassLoader children;
 
+   /** Names of the classes the children can't load, and are answered by the parent */
+   private Map<String, Boolean> parentClasses;
+
    /**
     * Constructor
     * @param urls The URLs for JAR archives or directories
     * @param parent The parent class loader
     */
    public ParentLastClassLoader(URL[] urls, ClassLoader parent)
+   {
+      this(urls, parent, null);
+   }
+
+   /**
+    * Constructor
+    * @param urls The URLs for JAR archives or directories
+    * @param parent The parent class loader
+    * @param indexCache The file that persists the index; <code>null</code> if it shouldn't be persisted
+    */
+   public ParentLastClassLoader(URL[] urls, ClassLoader parent, File indexCache)
+   {
+      this(urls, parent, indexCache, null);
+   }
+
+   /**
+    * Constructor
+    * @param urls The URLs for JAR archives or directories
+    * @param parent The parent class loader
+    * @param indexCache The file that persists the index; <code>null</code> if it shouldn't be persisted
+    * @param executorService The executor service that scans the archives; <code>null</code> if they
+    *                        should be scanned by the calling thread
+    */
+   public ParentLastClassLoader(URL[] urls, ClassLoader parent, File indexCache, ExecutorService executorService)
    {
       super(new URL[0], parent);
 
-      this.children = SecurityActions.createChildrenClassLoader(urls, ClassLoader.getSystemClassLoader(), this);
+      JarIndex index = new JarIndex(indexCache, executorService);
+      index.add(urls);
+
+      this.children = SecurityActions.createChildrenClassLoader(urls, ClassLoader.getSystemClassLoader(), this, index);
+      this.parentClasses = Collections.synchronizedMap(new ParentClasses(MAX_PARENT_CLASSES));
    }
 
    /**
@@ -62,20 +113,33 @@ public class ParentLastClassLoader extends KernelClassLoader
       if (result != null)
          return result;
 
-      try
-      {
-         return children.loadClass(name);
-      }
-      catch (ClassNotFoundException cnfe)
-      {
-         // Default to parent
-      }
-      catch (NoClassDefFoundError ncdfe)
+      result = children.findLoaded(name);
+
+      if (result != null)
+         return record(result);
+
+      if (!parentClasses.containsKey(name))
       {
-         // Default to parent
+         try
+         {
+            result = children.loadChildClass(name);
+
+            if (result != null)
+               return record(result);
+
+            if (children.isIndexed())
+               parentClasses.put(name, Boolean.TRUE);
+         }
+         catch (NoClassDefFoundError ncdfe)
+         {
+            // Default to parent
+         }
       }
 
-      return loadClass(name, false);
+      if (getParent() == null)
+         return record(loadClass(name, false));
+
+      return record(getParent().loadClass(name));
    }
 
    /**
@@ -95,9 +159,12 @@ public class ParentLastClassLoader extends KernelClassLoader
    {
       try
       {
-         return children.findClass(name);
+         Class<?> result = children.findLocalClass(name);
+
+         if (result != null)
+            return result;
       }
-      catch (Throwable t)
+      catch (NoClassDefFoundError ncdfe)
       {
          // Default to parent
       }
@@ -106,14 +173,13 @@ public class ParentLastClassLoader extends KernelClassLoader
    }
 
    /**
-    * Lookup a class
-    * @param name The fullt qualified class name
+    * Record a class loaded by the children class loader
+    * @param c The class
     * @return The class
-    * @exception ClassNotFoundException Thrown if the class can't be found
     */
-   Class<?> lookup(String name) throws ClassNotFoundException
+   Class<?> recordClass(Class<?> c)
    {
-      return super.findClass(name);
+      return record(c);
    }
 
    /**
@@ -253,4 +319,48 @@ public class ParentLastClassLoader extends KernelClassLoader
 
       return result.toArray(new URL[result.size()]);
    }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void shutdown() throws IOException
+   {
+      children.closeIndex();
+      parentClasses.clear();
+
+      super.shutdown();
+   }
+
+   /**
+    * The class names answered by the parent, bounded by evicting the least recently used name
+    */
+   private static class ParentClasses extends LinkedHashMap<String, Boolean>
+   {
+      /** Serial version UID */
+      private static final long serialVersionUID = 1L;
+
+      /** The maximum number of names */
+      private int max;
+
+      /**
+       * Constructor
+       * @param max The maximum number of names
+       */
+      ParentClasses(int max)
+      {
+         super(16, 0.75f, true);
+
+         this.max = max;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+      {
+         return size() > max;
+      }
+   }
 }
@@ -67,18 +67,20 @@ class SecurityActions
    /**
     * Create a NonExportClassLoader
     * @param repository The repository
+    * @param index The index; <code>null</code> if each URL should be probed
     * @return The class loader
     */
-   static NonExportClassLoader createNonExportClassLoader(final ExportClassLoaderRepository repository)
+   static NonExportClassLoader createNonExportClassLoader(final ExportClassLoaderRepository repository,
+                                                          final JarIndex index)
    {
       if (System.getSecurityManager() == null)
-         return new NonExportClassLoader(repository);
+         return new NonExportClassLoader(repository, index);
 
       return AccessController.doPrivileged(new PrivilegedAction<NonExportClassLoader>() 
       {
          public NonExportClassLoader run()
          {
-            return new NonExportClassLoader(repository);
+            return new NonExportClassLoader(repository, index);
          }
       });
    }
@@ -108,20 +110,22 @@ class SecurityActions
     * @param urls The URLs
     * @param parent The parent class loader
     * @param delegate The delegate class loader
+    * @param index The index; <code>null</code> if each URL should be probed
     * @return The class loader
     */
    static ChildrenClassLoader createChildrenClassLoader(final URL[] urls, 
                                                         final ClassLoader parent,
-                                                        final ParentLastClassLoader delegate)
+                                                        final ParentLastClassLoader delegate,
+                                                        final JarIndex index)
    {
       if (System.getSecurityManager() == null)
-         return new ChildrenClassLoader(urls, parent, delegate);
+         return new ChildrenClassLoader(urls, parent, delegate, index);
 
       return AccessController.doPrivileged(new PrivilegedAction<ChildrenClassLoader>() 
       {
          public ChildrenClassLoader run()
          {
-            return new ChildrenClassLoader(urls, parent, delegate);
+            return new ChildrenClassLoader(urls, parent, delegate, index);
          }
       });
    }
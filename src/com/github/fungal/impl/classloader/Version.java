@@ -0,0 +1,164 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl.classloader;
+
+import java.io.Serializable;
+
+/**
+ * A parsed bundle version; only the major, minor and patch numbers are significant
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+final class Version implements Comparable<Version>, Serializable
+{
+   /** Serial version UID */
+   private static final long serialVersionUID = 1L;
+
+   /** The empty version */
+   static final Version EMPTY = new Version(null, 0, 0, 0);
+
+   /** The version string */
+   private String value;
+
+   /** Major */
+   private int major;
+
+   /** Minor */
+   private int minor;
+
+   /** Patch */
+   private int patch;
+
+   /**
+    * Constructor
+    * @param value The version string
+    * @param major The major number
+    * @param minor The minor number
+    * @param patch The patch number
+    */
+   private Version(String value, int major, int minor, int patch)
+   {
+      this.value = value;
+      this.major = major;
+      this.minor = minor;
+      this.patch = patch;
+   }
+
+   /**
+    * Parse a version string; the leading digits of the first three components are used, 
+    * and numbers that can't be parsed count as 0
+    * @param value The version string; can be <code>null</code>
+    * @return The version
+    */
+   static Version parse(String value)
+   {
+      if (value == null)
+         return EMPTY;
+
+      int[] numbers = new int[3];
+      int position = 0;
+      String s = value.trim();
+
+      for (int i = 0; i < numbers.length && position < s.length(); i++)
+      {
+         int start = position;
+
+         while (position < s.length() && Character.isDigit(s.charAt(position)))
+         {
+            position++;
+         }
+
+         if (position == start)
+            break;
+
+         try
+         {
+            numbers[i] = Integer.parseInt(s.substring(start, position));
+         }
+         catch (NumberFormatException nfe)
+         {
+            break;
+         }
+
+         if (position >= s.length() || s.charAt(position) != '.')
+            break;
+
+         position++;
+      }
+
+      return new Version(value, numbers[0], numbers[1], numbers[2]);
+   }
+
+   /**
+    * Compare
+    * @param other The other version
+    * @return -1 if less than other; 0 if equal to other; 1 if greater than other
+    */
+   public int compareTo(Version other)
+   {
+      if (major != other.major)
+         return major < other.major ? -1 : 1;
+
+      if (minor != other.minor)
+         return minor < other.minor ? -1 : 1;
+
+      if (patch != other.patch)
+         return patch < other.patch ? -1 : 1;
+
+      return 0;
+   }
+
+   /**
+    * Equals
+    * @param other The other object
+    * @return True if equal; otherwise false
+    */
+   public boolean equals(Object other)
+   {
+      if (other == this)
+         return true;
+
+      if (!(other instanceof Version))
+         return false;
+
+      return compareTo((Version)other) == 0;
+   }
+
+   /**
+    * Hash code
+    * @return The hash
+    */
+   public int hashCode()
+   {
+      return (major * 31 + minor) * 31 + patch;
+   }
+
+   /**
+    * String representation
+    * @return The string
+    */
+   public String toString()
+   {
+      if (value == null)
+         return major + "." + minor + "." + patch;
+
+      return value;
+   }
+}
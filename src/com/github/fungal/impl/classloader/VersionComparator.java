@@ -53,94 +53,7 @@ public class VersionComparator implements Comparator<String>, Serializable
       if (o1 != null && o2 != null && o1.equals(o2))
          return 0;
 
-      int oneMajor = 0;
-      int oneMinor = 0;
-      int onePatch = 0;
-
-      int twoMajor = 0;
-      int twoMinor = 0;
-      int twoPatch = 0;
-
-      if (o1 != null)
-      {
-         int index = o1.indexOf(".");
-
-         if (index != -1)
-         {
-            try
-            {
-               oneMajor = Integer.valueOf(o1.substring(0, index)).intValue();
-               
-               int nextIndex = o1.indexOf(".", index + 1);
-               
-               if (nextIndex != -1)
-               {
-                  oneMinor = Integer.valueOf(o1.substring(index + 1, nextIndex)).intValue();
-
-                  onePatch = Integer.valueOf(o1.substring(nextIndex + 1)).intValue();
-               }
-            }
-            catch (NumberFormatException nfe)
-            {
-               // Ignore
-            }
-         }
-      }
-
-      if (o2 != null)
-      {
-         int index = o2.indexOf(".");
-
-         if (index != -1)
-         {
-            try
-            {
-               twoMajor = Integer.valueOf(o2.substring(0, index)).intValue();
-               
-               int nextIndex = o2.indexOf(".", index + 1);
-               
-               if (nextIndex != -1)
-               {
-                  twoMinor = Integer.valueOf(o2.substring(index + 1, nextIndex)).intValue();
-
-                  twoPatch = Integer.valueOf(o2.substring(nextIndex + 1)).intValue();
-               }
-            }
-            catch (NumberFormatException nfe)
-            {
-               // Ignore
-            }
-         }
-      }
-
-      if (oneMajor < twoMajor)
-      {
-         return -1;
-      }
-      else if (oneMajor > twoMajor)
-      {
-         return 1;
-      }
-
-      if (oneMinor < twoMinor)
-      {
-         return -1;
-      }
-      else if (oneMinor > twoMinor)
-      {
-         return 1;
-      }
-
-      if (onePatch < twoPatch)
-      {
-         return -1;
-      }
-      else if (onePatch > twoPatch)
-      {
-         return 1;
-      }
-
-      return 0;
+      return Version.parse(o1).compareTo(Version.parse(o2));
    }
 
    /**
@@ -50,6 +50,12 @@ public class Communication implements Runnable
    /** The socket */
    private Socket socket;
 
+   /** The command; <code>null</code> until the request is read */
+   private Command command;
+
+   /** The arguments */
+   private Serializable[] arguments;
+
    /**
     * Constructor
     * @param cs The communication server
@@ -59,6 +65,8 @@ public class Communication implements Runnable
    {
       this.cs = cs;
       this.socket = socket;
+      this.command = null;
+      this.arguments = null;
    }
 
    /**
@@ -66,18 +74,23 @@ public class Communication implements Runnable
     */
    public void run()
    {
+      boolean handedOff = false;
       try
       {
-         ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+         if (command == null)
+         {
+            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
 
-         String commandName = ois.readUTF();
-         Command command = cs.getCommand(commandName);
-         Serializable result = null;
+            String commandName = ois.readUTF();
+            Command c = cs.getCommand(commandName);
 
-         if (command != null)
-         {
-            Class[] parameterTypes = command.getParameterTypes();
-            Serializable[] arguments = null;
+            if (c == null)
+            {
+               write(new IOException("Unknown command: " + commandName));
+               return;
+            }
+
+            Class[] parameterTypes = c.getParameterTypes();
 
             if (parameterTypes != null)
             {
@@ -88,16 +101,20 @@ public class Communication implements Runnable
                }
             }
 
-            result = command.invoke(arguments);
-         }
-         else
-         {
-            result = new IOException("Unknown command: " + commandName);
+            command = c;
+
+            if (cs.isDeployCommand(commandName))
+            {
+               handedOff = cs.submitDeployCommand(this);
+
+               if (!handedOff)
+                  write(new IOException("Server busy: Too many pending deploy commands"));
+
+               return;
+            }
          }
 
-         ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-         oos.writeObject(result);
-         oos.flush();
+         write(command.invoke(arguments));
       }
       catch (Throwable t)
       {
@@ -109,9 +126,7 @@ public class Communication implements Runnable
 
             t.printStackTrace(new PrintWriter(sw));
 
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-            oos.writeObject(sw.toString());
-            oos.flush();
+            write(sw.toString());
          }
          catch (IOException ioe)
          {
@@ -120,15 +135,32 @@ public class Communication implements Runnable
       }
       finally
       {
-         try
-         {
-            if (socket != null)
-               socket.close();
-         }
-         catch (IOException ignore)
+         if (!handedOff)
          {
-            // Ignore
+            try
+            {
+               if (socket != null)
+                  socket.close();
+            }
+            catch (IOException ignore)
+            {
+               // Ignore
+            }
+
+            cs.release(socket);
          }
       }
    }
+
+   /**
+    * Write the result
+    * @param result The result
+    * @exception IOException Thrown if the result can't be written
+    */
+   private void write(Serializable result) throws IOException
+   {
+      ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+      oos.writeObject(result);
+      oos.flush();
+   }
 }
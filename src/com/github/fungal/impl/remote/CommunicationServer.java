@@ -23,22 +23,43 @@ package com.github.fungal.impl.remote;
 import com.github.fungal.api.remote.Command;
 import com.github.fungal.impl.KernelImpl;
 
+import com.github.fungal.impl.FungalThreadFactory;
+
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * The communication server
+ * The communication server.
+ *
+ * The server has its own threads, such that remote clients can't exhaust the kernel
+ * thread pool. Connections above the connection limit, or above the limit of commands
+ * in flight per client, are rejected right away with a busy response. Deploy type
+ * commands are executed in a separate lane with a bounded queue, such that they don't
+ * hold up cheap queries
  * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
  */
-public class CommunicationServer implements Runnable
+public class CommunicationServer implements CommunicationServerMBean, Runnable
 {
    /** The logger */
    private Logger log = Logger.getLogger(CommunicationServer.class.getName());
@@ -64,24 +85,77 @@ public class CommunicationServer implements Runnable
    /** The available commands */
    private ConcurrentMap<String, Command> commands;
 
+   /** The names of the deploy type commands */
+   private Set<String> deployCommands;
+
+   /** The maximum number of concurrent connections */
+   private int maxConnections;
+
+   /** The maximum number of commands in flight per client */
+   private int maxClientCommands;
+
+   /** The number of deploy commands that can wait for execution */
+   private int queueDepth;
+
+   /** The open connections */
+   private AtomicInteger connections;
+
+   /** The open connections per client */
+   private ConcurrentMap<InetAddress, AtomicInteger> clients;
+
+   /** The accepted connections */
+   private AtomicLong accepted;
+
+   /** The rejected connections and commands */
+   private AtomicLong rejected;
+
+   /** The executor for the connections */
+   private ThreadPoolExecutor connectionExecutor;
+
+   /** The executor for the deploy type commands */
+   private ThreadPoolExecutor deployExecutor;
+
    /**
     * Constructor
     * @param kernel The kernel
     * @param bindAddress The bind address
     * @param bindPort The bind port
+    * @param maxConnections The maximum number of concurrent connections
+    * @param maxClientCommands The maximum number of commands in flight per client
+    * @param queueDepth The number of deploy commands that can wait for execution
     * @exception IOException Thrown if a server socket can not be created
     */
-   public CommunicationServer(KernelImpl kernel, String bindAddress, int bindPort) throws IOException
+   public CommunicationServer(KernelImpl kernel, String bindAddress, int bindPort,
+                              int maxConnections, int maxClientCommands, int queueDepth) throws IOException
    {
       if (bindAddress == null)
          bindAddress = "localhost";
 
+      if (maxConnections <= 0)
+         throw new IllegalArgumentException("MaxConnections is invalid");
+
+      if (maxClientCommands <= 0)
+         throw new IllegalArgumentException("MaxClientCommands is invalid");
+
+      if (queueDepth < 0)
+         throw new IllegalArgumentException("QueueDepth is invalid");
+
       this.kernel = kernel;
       this.bindAddress = bindAddress;
       this.bindPort = bindPort;
       this.running = new AtomicBoolean(false);
       this.ss = null;
       this.commands = new ConcurrentHashMap<String, Command>();
+      this.deployCommands = Collections.synchronizedSet(new HashSet<String>());
+      this.maxConnections = maxConnections;
+      this.maxClientCommands = maxClientCommands;
+      this.queueDepth = queueDepth;
+      this.connections = new AtomicInteger(0);
+      this.clients = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+      this.accepted = new AtomicLong(0);
+      this.rejected = new AtomicLong(0);
+      this.connectionExecutor = null;
+      this.deployExecutor = null;
    }
 
    /**
@@ -89,6 +163,16 @@ public class CommunicationServer implements Runnable
     * @param command The command
     */
    public void registerCommand(Command command)
+   {
+      registerCommand(command, false);
+   }
+
+   /**
+    * Register command
+    * @param command The command
+    * @param deploy True if the command should be executed in the deploy lane
+    */
+   public void registerCommand(Command command, boolean deploy)
    {
       if (command == null)
          throw new IllegalArgumentException("Command is null");
@@ -96,9 +180,22 @@ public class CommunicationServer implements Runnable
       if (!commands.containsKey(command.getName()))
       {
          commands.put(command.getName(), command);
+
+         if (deploy)
+            deployCommands.add(command.getName());
       }
    }
 
+   /**
+    * Is the command executed in the deploy lane
+    * @param name The name of the command
+    * @return True if a deploy type command; otherwise false
+    */
+   boolean isDeployCommand(String name)
+   {
+      return deployCommands.contains(name);
+   }
+
    /**
     * Get command names
     * @return The command names
@@ -118,6 +215,99 @@ public class CommunicationServer implements Runnable
       return commands.get(name);
    }
 
+   /**
+    * Get the maximum number of concurrent connections
+    * @return The value
+    */
+   public int getMaxConnections()
+   {
+      return maxConnections;
+   }
+
+   /**
+    * Get the maximum number of commands in flight per client
+    * @return The value
+    */
+   public int getMaxClientCommands()
+   {
+      return maxClientCommands;
+   }
+
+   /**
+    * Get the number of deploy commands that can wait for execution
+    * @return The value
+    */
+   public int getQueueDepth()
+   {
+      return queueDepth;
+   }
+
+   /**
+    * Get the number of open connections
+    * @return The value
+    */
+   public int getConnections()
+   {
+      return connections.get();
+   }
+
+   /**
+    * Get the number of clients with open connections
+    * @return The value
+    */
+   public int getClients()
+   {
+      int result = 0;
+
+      for (AtomicInteger count : clients.values())
+      {
+         if (count.get() > 0)
+            result++;
+      }
+
+      return result;
+   }
+
+   /**
+    * Get the number of deploy commands waiting for execution
+    * @return The value
+    */
+   public int getQueuedCommands()
+   {
+      ThreadPoolExecutor executor = deployExecutor;
+
+      return executor != null ? executor.getQueue().size() : 0;
+   }
+
+   /**
+    * Get the number of deploy commands being executed
+    * @return The value
+    */
+   public int getActiveCommands()
+   {
+      ThreadPoolExecutor executor = deployExecutor;
+
+      return executor != null ? executor.getActiveCount() : 0;
+   }
+
+   /**
+    * Get the number of accepted connections
+    * @return The value
+    */
+   public long getAcceptedConnections()
+   {
+      return accepted.get();
+   }
+
+   /**
+    * Get the number of rejected connections and commands
+    * @return The value
+    */
+   public long getRejectedConnections()
+   {
+      return rejected.get();
+   }
+
    /**
     * Start
     * @exception Throwable Thrown if an error occurs
@@ -128,6 +318,33 @@ public class CommunicationServer implements Runnable
       {
          InetSocketAddress address = new InetSocketAddress(bindAddress, bindPort); 
 
+         ThreadGroup tg = new ThreadGroup("fungal-remote");
+
+         // The admission control bounds the number of connections waiting for a thread
+         connectionExecutor = new ThreadPoolExecutor(maxConnections, maxConnections,
+                                                     60, TimeUnit.SECONDS,
+                                                     new LinkedBlockingQueue<Runnable>(),
+                                                     new FungalThreadFactory(tg));
+         connectionExecutor.allowCoreThreadTimeOut(true);
+
+         int deployThreads = Math.min(maxConnections, Runtime.getRuntime().availableProcessors());
+         BlockingQueue<Runnable> deployQueue = null;
+
+         if (queueDepth > 0)
+         {
+            deployQueue = new ArrayBlockingQueue<Runnable>(queueDepth);
+         }
+         else
+         {
+            deployQueue = new SynchronousQueue<Runnable>();
+         }
+
+         deployExecutor = new ThreadPoolExecutor(deployThreads, deployThreads,
+                                                 60, TimeUnit.SECONDS,
+                                                 deployQueue,
+                                                 new FungalThreadFactory(tg));
+         deployExecutor.allowCoreThreadTimeOut(true);
+
          ss = new ServerSocket();
          ss.bind(address);
 
@@ -155,6 +372,12 @@ public class CommunicationServer implements Runnable
                log.fine(ioe.getMessage());
          }
       }
+
+      if (connectionExecutor != null)
+         connectionExecutor.shutdown();
+
+      if (deployExecutor != null)
+         deployExecutor.shutdown();
    }
 
    /**
@@ -168,8 +391,18 @@ public class CommunicationServer implements Runnable
          {
             Socket socket = ss.accept();
 
-            Runnable r = new Communication(this, socket);
-            kernel.getExecutorService().submit(r);
+            if (admit(socket))
+            {
+               try
+               {
+                  connectionExecutor.execute(new Communication(this, socket));
+               }
+               catch (RejectedExecutionException ree)
+               {
+                  release(socket);
+                  reject(socket, "Server is stopping");
+               }
+            }
          }
          catch (IOException ioe)
          {
@@ -178,4 +411,110 @@ public class CommunicationServer implements Runnable
          }
       }
    }
+
+   /**
+    * Admit a connection
+    * @param socket The socket
+    * @return True if the connection was admitted; otherwise the connection is rejected
+    */
+   private boolean admit(Socket socket)
+   {
+      if (connections.incrementAndGet() > maxConnections)
+      {
+         connections.decrementAndGet();
+         reject(socket, "Too many connections");
+         return false;
+      }
+
+      InetAddress client = socket.getInetAddress();
+      AtomicInteger count = clients.get(client);
+      if (count == null)
+      {
+         AtomicInteger newCount = new AtomicInteger(0);
+         count = clients.putIfAbsent(client, newCount);
+         if (count == null)
+            count = newCount;
+      }
+
+      if (count.incrementAndGet() > maxClientCommands)
+      {
+         count.decrementAndGet();
+         connections.decrementAndGet();
+         reject(socket, "Too many commands from " + client.getHostAddress());
+         return false;
+      }
+
+      accepted.incrementAndGet();
+      return true;
+   }
+
+   /**
+    * Release an admitted connection
+    * @param socket The socket
+    */
+   void release(Socket socket)
+   {
+      AtomicInteger count = clients.get(socket.getInetAddress());
+      if (count != null)
+         count.decrementAndGet();
+
+      connections.decrementAndGet();
+   }
+
+   /**
+    * Execute a command in the deploy lane
+    * @param communication The communication
+    * @return True if the command was queued; false if the deploy lane is full
+    */
+   boolean submitDeployCommand(Communication communication)
+   {
+      try
+      {
+         deployExecutor.execute(communication);
+         return true;
+      }
+      catch (RejectedExecutionException ree)
+      {
+         rejected.incrementAndGet();
+         return false;
+      }
+   }
+
+   /**
+    * Reject a connection with a busy response
+    * @param socket The socket
+    * @param reason The reason
+    */
+   private void reject(Socket socket, String reason)
+   {
+      rejected.incrementAndGet();
+
+      if (log.isLoggable(Level.FINE))
+         log.fine("Rejected " + socket.getInetAddress() + ": " + reason);
+
+      try
+      {
+         ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+         oos.writeObject(new IOException("Server busy: " + reason));
+         oos.flush();
+
+         socket.shutdownOutput();
+      }
+      catch (IOException ioe)
+      {
+         if (trace)
+            log.finest(ioe.getMessage());
+      }
+      finally
+      {
+         try
+         {
+            socket.close();
+         }
+         catch (IOException ignore)
+         {
+            // Ignore
+         }
+      }
+   }
 }
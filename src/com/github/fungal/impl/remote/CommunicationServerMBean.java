@@ -0,0 +1,81 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.github.fungal.impl.remote;
+
+/**
+ * The communication server MBean for Fungal
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public interface CommunicationServerMBean
+{
+   /**
+    * Get the maximum number of concurrent connections
+    * @return The value
+    */
+   public int getMaxConnections();
+
+   /**
+    * Get the maximum number of commands in flight per client
+    * @return The value
+    */
+   public int getMaxClientCommands();
+
+   /**
+    * Get the number of deploy commands that can wait for execution
+    * @return The value
+    */
+   public int getQueueDepth();
+
+   /**
+    * Get the number of open connections
+    * @return The value
+    */
+   public int getConnections();
+
+   /**
+    * Get the number of clients with open connections
+    * @return The value
+    */
+   public int getClients();
+
+   /**
+    * Get the number of deploy commands waiting for execution
+    * @return The value
+    */
+   public int getQueuedCommands();
+
+   /**
+    * Get the number of deploy commands being executed
+    * @return The value
+    */
+   public int getActiveCommands();
+
+   /**
+    * Get the number of accepted connections
+    * @return The value
+    */
+   public long getAcceptedConnections();
+
+   /**
+    * Get the number of rejected connections and commands
+    * @return The value
+    */
+   public long getRejectedConnections();
+}
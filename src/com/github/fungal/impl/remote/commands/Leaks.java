@@ -0,0 +1,115 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl.remote.commands;
+
+import com.github.fungal.api.remote.Command;
+import com.github.fungal.impl.LeakDetectorMBean;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the leaks command, which reports the objects tracked by the leak detector
+ * together with the heap usage, so that a redeploy loop can be checked for growth
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public class Leaks implements Command
+{
+   /** Command name */
+   private static final String NAME = "leaks";
+
+   /** The logger */
+   private Logger log = Logger.getLogger(Leaks.class.getName());
+
+   /** Trace logging enabled */
+   private boolean trace = log.isLoggable(Level.FINEST);
+
+   /** The leak detector */
+   private LeakDetectorMBean leakDetector;
+
+   /**
+    * Leaks
+    * @param leakDetector The leak detector
+    */
+   public Leaks(LeakDetectorMBean leakDetector)
+   {
+      this.leakDetector = leakDetector;
+   }
+
+   /**
+    * Get the name of the command
+    * @return The name
+    */
+   public String getName()
+   {
+      return NAME;
+   }
+
+   /**
+    * Get the parameter types of the command; <code>null</code> if none
+    * @return The types
+    */
+   public Class[] getParameterTypes()
+   {
+      return null;
+   }
+
+   /**
+    * Invoke
+    * @param args The arguments
+    * @return The return value
+    */
+   public Serializable invoke(Serializable[] args)
+   {
+      if (args != null)
+         return new IllegalArgumentException("Unsupported argument list: " + Arrays.toString(args));
+
+      Runtime runtime = Runtime.getRuntime();
+      List<String> leaks = leakDetector.getLeaks();
+
+      StringBuilder sb = new StringBuilder();
+
+      sb = sb.append("Tracked: ").append(leakDetector.getTracked()).append("\n");
+      sb = sb.append("Collected: ").append(leakDetector.getCollected()).append("\n");
+      sb = sb.append("Leaked: ").append(leaks.size()).append("\n");
+      sb = sb.append("Heap: ").append((runtime.totalMemory() - runtime.freeMemory()) / 1024L);
+      sb = sb.append("/").append(runtime.maxMemory() / 1024L).append(" KB\n");
+
+      for (String leak : leaks)
+      {
+         sb = sb.append(leak).append("\n");
+      }
+
+      return sb.toString();
+   }
+
+   /**
+    * Is it a public command
+    * @return True if system-wide; false if internal
+    */
+   public boolean isPublic()
+   {
+      return true;
+   }
+}
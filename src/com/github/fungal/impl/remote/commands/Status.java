@@ -0,0 +1,108 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.github.fungal.impl.remote.commands;
+
+import com.github.fungal.api.remote.Command;
+import com.github.fungal.impl.remote.CommunicationServerMBean;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents the status command, which reports the connection and queue metrics
+ * of the communication server
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public class Status implements Command
+{
+   /** Command name */
+   private static final String NAME = "status";
+
+   /** The logger */
+   private Logger log = Logger.getLogger(Status.class.getName());
+
+   /** Trace logging enabled */
+   private boolean trace = log.isLoggable(Level.FINEST);
+
+   /** The communication server */
+   private CommunicationServerMBean cs;
+
+   /**
+    * Status
+    * @param cs The communication server
+    */
+   public Status(CommunicationServerMBean cs)
+   {
+      this.cs = cs;
+   }
+
+   /**
+    * Get the name of the command
+    * @return The name
+    */
+   public String getName()
+   {
+      return NAME;
+   }
+
+   /**
+    * Get the parameter types of the command; <code>null</code> if none
+    * @return The types
+    */
+   public Class[] getParameterTypes()
+   {
+      return null;
+   }
+
+   /**
+    * Invoke
+    * @param args The arguments
+    * @return The return value
+    */
+   public Serializable invoke(Serializable[] args)
+   {
+      if (args != null)
+         return new IllegalArgumentException("Unsupported argument list: " + Arrays.toString(args));
+
+      StringBuilder sb = new StringBuilder();
+
+      sb = sb.append("Connections: ").append(cs.getConnections());
+      sb = sb.append("/").append(cs.getMaxConnections()).append("\n");
+      sb = sb.append("Clients: ").append(cs.getClients());
+      sb = sb.append(" (max commands per client: ").append(cs.getMaxClientCommands()).append(")\n");
+      sb = sb.append("Deploy commands: ").append(cs.getActiveCommands()).append(" active, ");
+      sb = sb.append(cs.getQueuedCommands()).append("/").append(cs.getQueueDepth()).append(" queued\n");
+      sb = sb.append("Accepted: ").append(cs.getAcceptedConnections()).append("\n");
+      sb = sb.append("Rejected: ").append(cs.getRejectedConnections()).append("\n");
+
+      return sb.toString();
+   }
+
+   /**
+    * Is it a public command
+    * @return True if system-wide; false if internal
+    */
+   public boolean isPublic()
+   {
+      return true;
+   }
+}
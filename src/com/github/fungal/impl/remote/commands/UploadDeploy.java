@@ -0,0 +1,289 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.github.fungal.impl.remote.commands;
+
+import com.github.fungal.api.remote.Command;
+import com.github.fungal.api.util.FileUtil;
+import com.github.fungal.impl.HotDeployer;
+import com.github.fungal.impl.KernelImpl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Represents an upload deploy command.
+ *
+ * The artifact is sent in chunks, each with the CRC32 of its data, and appended to a
+ * staging file in the <code>.upload</code> directory of the deploy directory. The result
+ * of a chunk is the offset of the next chunk, so a client can resume an interrupted
+ * upload by sending a chunk without data, which only reports the offset. Once the last
+ * chunk is received the checksum of the staging file is verified, and the file is
+ * renamed into the deploy directory and deployed
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public class UploadDeploy implements Command
+{
+   /** Command name */
+   private static final String NAME = "upload-deploy";
+
+   /** The name of the staging directory */
+   private static final String STAGING = ".upload";
+
+   /** The logger */
+   private Logger log = Logger.getLogger(UploadDeploy.class.getName());
+
+   /** Trace logging enabled */
+   private boolean trace = log.isLoggable(Level.FINEST);
+
+   /** The kernel */
+   private KernelImpl kernel;
+
+   /** The deploy directory */
+   private File deployDirectory;
+
+   /** The upload locks */
+   private ConcurrentMap<String, Object> locks;
+
+   /**
+    * Upload deploy
+    * @param kernel The kernel
+    * @param deployDirectory The deploy directory
+    */
+   public UploadDeploy(KernelImpl kernel, File deployDirectory)
+   {
+      if (kernel == null)
+         throw new IllegalArgumentException("Kernel is null");
+
+      if (deployDirectory == null)
+         throw new IllegalArgumentException("DeployDirectory is null");
+
+      this.kernel = kernel;
+      this.deployDirectory = deployDirectory;
+      this.locks = new ConcurrentHashMap<String, Object>();
+   }
+
+   /**
+    * Get the name of the command
+    * @return The name
+    */
+   public String getName()
+   {
+      return NAME;
+   }
+
+   /**
+    * Get the parameter types of the command; <code>null</code> if none.
+    *
+    * The parameters are the file name, the size and checksum of the artifact, the
+    * offset of the chunk, the data of the chunk and the CRC32 of the data
+    * @return The types
+    */
+   public Class[] getParameterTypes()
+   {
+      return new Class<?>[] {String.class, Long.class, String.class, Long.class, byte[].class, Long.class};
+   }
+
+   /**
+    * Invoke
+    * @param args The arguments
+    * @return The offset of the next chunk; <code>null</code> if the artifact was deployed
+    */
+   public Serializable invoke(Serializable[] args)
+   {
+      if (args == null || args.length != 6 ||
+          !(args[0] instanceof String) || !(args[1] instanceof Long) ||
+          !(args[2] instanceof String) || !(args[3] instanceof Long) ||
+          (args[4] != null && !(args[4] instanceof byte[])) ||
+          (args[4] != null && !(args[5] instanceof Long)))
+         return new IllegalArgumentException("Unsupported argument list: " + Arrays.toString(args));
+
+      String name = (String)args[0];
+      long size = ((Long)args[1]).longValue();
+      String checksum = (String)args[2];
+      long offset = ((Long)args[3]).longValue();
+      byte[] data = (byte[])args[4];
+
+      if (name.length() == 0 || name.startsWith(".") ||
+          name.indexOf('/') != -1 || name.indexOf('\\') != -1 || name.indexOf(File.separatorChar) != -1)
+         return new IllegalArgumentException("Invalid name: " + name);
+
+      if (checksum.indexOf('/') != -1 || checksum.indexOf('\\') != -1 || checksum.indexOf('.') != -1)
+         return new IllegalArgumentException("Invalid checksum: " + checksum);
+
+      if (size < 0 || offset < 0)
+         return new IllegalArgumentException("Invalid size: " + size + " or offset: " + offset);
+
+      Object lock = locks.get(name);
+      if (lock == null)
+      {
+         Object newLock = new Object();
+         lock = locks.putIfAbsent(name, newLock);
+         if (lock == null)
+            lock = newLock;
+      }
+
+      synchronized (lock)
+      {
+         try
+         {
+            File directory = new File(deployDirectory, STAGING);
+            File staging = new File(directory, name + "." + checksum);
+
+            long length = staging.exists() ? staging.length() : 0L;
+
+            if (data == null || offset != length)
+            {
+               if (length == 0L)
+                  removeStaging(directory, name, staging);
+
+               return Long.valueOf(length);
+            }
+
+            if (offset + data.length > size)
+               return new IOException("Chunk at offset " + offset + " exceeds the size " + size + " of " + name);
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+
+            if (crc.getValue() != ((Long)args[5]).longValue())
+               return new IOException("Checksum mismatch for the chunk at offset " + offset + " of " + name);
+
+            if (!directory.exists() && !directory.mkdirs())
+               return new IOException("Could not create " + directory);
+
+            FileOutputStream fos = null;
+            try
+            {
+               fos = new FileOutputStream(staging, true);
+               fos.write(data);
+               fos.flush();
+            }
+            finally
+            {
+               if (fos != null)
+                  fos.close();
+            }
+
+            length = offset + data.length;
+
+            if (length < size)
+               return Long.valueOf(length);
+
+            FileUtil fileUtil = new FileUtil();
+
+            if (!checksum.equals(fileUtil.checksum(staging)))
+            {
+               fileUtil.delete(staging);
+               return new IOException("Checksum mismatch for " + name);
+            }
+
+            File target = new File(deployDirectory, name);
+            URL url = target.toURI().toURL();
+            HotDeployer hotDeployer = kernel.getHotDeployer();
+
+            // Excluded until deployed, such that the hot deployer doesn't deploy it as well
+            if (hotDeployer != null)
+               hotDeployer.exclude(url);
+
+            try
+            {
+               if (target.exists())
+                  fileUtil.delete(target);
+
+               if (!staging.renameTo(target))
+                  return new IOException("Could not rename " + staging + " to " + target);
+
+               if (trace)
+                  log.finest("Uploaded: " + target);
+
+               // Validated against the deployed beans, and redeployed if deployed already
+               Map<URL, Throwable> failures = kernel.deployBatch(Collections.singletonList(url));
+
+               if (failures.containsKey(url))
+                  throw failures.get(url);
+            }
+            finally
+            {
+               if (hotDeployer != null)
+                  hotDeployer.include(url);
+            }
+
+            return null;
+         }
+         catch (Throwable t)
+         {
+            StringWriter sw = new StringWriter();
+            sw.write(t.getMessage() != null ? t.getMessage() : t.toString());
+            sw.write('\n');
+
+            t.printStackTrace(new PrintWriter(sw));
+
+            return new Exception(sw.toString());
+         }
+      }
+   }
+
+   /**
+    * Is it a public command
+    * @return True if system-wide; false if internal
+    */
+   public boolean isPublic()
+   {
+      return true;
+   }
+
+   /**
+    * Remove the staging files of earlier uploads of a file
+    * @param directory The staging directory
+    * @param name The file name
+    * @param staging The current staging file
+    * @exception IOException Thrown if a file can't be deleted
+    */
+   private void removeStaging(File directory, String name, File staging) throws IOException
+   {
+      File[] files = directory.listFiles();
+
+      if (files != null)
+      {
+         FileUtil fileUtil = new FileUtil();
+         String prefix = name + ".";
+
+         for (File f : files)
+         {
+            if (f.getName().startsWith(prefix) && f.getName().indexOf('.', prefix.length()) == -1 &&
+                !f.equals(staging))
+               fileUtil.delete(f);
+         }
+      }
+   }
+}
@@ -0,0 +1,267 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.api.configuration.KernelConfiguration;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The footprint test of the retained bean deployment.
+ *
+ * Units of 10k beans are deployed into bean deployments, and the heap they retain is
+ * measured per bean, next to the heap the deployment collections would retain. The
+ * bean names are shared with the kernel, so they aren't counted. The test exits with
+ * status 1 if a bean costs more than the budget, or if the compacted deployment doesn't
+ * answer like the collections it was built from. The budget assumes 32-bit or compressed
+ * references.
+ *
+ * Usage: FootprintTest [beans]
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public class FootprintTest
+{
+   /** Default number of beans */
+   private static final int DEFAULT_BEANS = 10000;
+
+   /** The budget per bean in bytes */
+   private static final long BUDGET = 24;
+
+   /** The number of retained units in a measurement */
+   private static final int UNITS = 5;
+
+   /** Every n'th bean has an uninstall method */
+   private static final int UNINSTALL = 10;
+
+   /** Every n'th bean ignores stop */
+   private static final int IGNORE_STOP = 3;
+
+   /**
+    * Main
+    * @param args The arguments
+    */
+   public static void main(String[] args)
+   {
+      int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BEANS;
+
+      boolean ok = false;
+      try
+      {
+         KernelConfiguration kc = new KernelConfiguration();
+         kc = kc.home(new File(System.getProperty("java.io.tmpdir")).toURI().toURL());
+         kc = kc.remoteAccess(false).hotDeployment(false).classPreload(false);
+
+         KernelImpl kernel = new KernelImpl(kc);
+
+         // Names in an order that isn't sorted, like the beans of a descriptor
+         String[] names = new String[n];
+         for (int i = 0; i < n; i++)
+         {
+            names[i] = ("bean-" + ((i * 7919L) % n)).intern();
+         }
+
+         Method method = Object.class.getMethod("toString");
+
+         // Warm up
+         measure(kernel, names, method, false);
+         measure(kernel, names, method, true);
+
+         long collections = measure(kernel, names, method, false) / ((long)UNITS * n);
+         long compact = measure(kernel, names, method, true) / ((long)UNITS * n);
+
+         System.out.println("Beans: " + n);
+         System.out.println("Collections: " + collections + " bytes per bean");
+         System.out.println("Deployment: " + compact + " bytes per bean (budget " + BUDGET + ")");
+
+         boolean verified = verify(kernel, names, method);
+         System.out.println("Verified: " + verified);
+
+         ok = verified && compact <= BUDGET;
+      }
+      catch (Throwable t)
+      {
+         t.printStackTrace(System.err);
+      }
+
+      System.out.println(ok ? "PASSED" : "FAILED");
+      System.exit(ok ? 0 : 1);
+   }
+
+   /**
+    * Measure the heap retained by units
+    * @param kernel The kernel
+    * @param names The bean names
+    * @param method The uninstall method
+    * @param deployment Retain bean deployments; otherwise the collections
+    * @return The retained heap in bytes
+    * @exception Exception Thrown if a unit can't be created
+    */
+   private static long measure(KernelImpl kernel, String[] names, Method method, boolean deployment)
+      throws Exception
+   {
+      List<Object> retained = new ArrayList<Object>(UNITS);
+
+      long before = usedHeap();
+
+      for (int i = 0; i < UNITS; i++)
+      {
+         Object[] unit = createCollections(names, method);
+
+         if (deployment)
+         {
+            retained.add(createDeployment(kernel, new URL("file:/unit" + i + ".xml"), unit, false));
+         }
+         else
+         {
+            retained.add(unit);
+         }
+      }
+
+      long result = usedHeap() - before;
+
+      if (retained.size() != UNITS)
+         throw new IllegalStateException("Units not retained");
+
+      return result;
+   }
+
+   /**
+    * Verify that a bean deployment answers like its collections
+    * @param kernel The kernel
+    * @param names The bean names
+    * @param method The uninstall method
+    * @return True if verified, otherwise false
+    * @exception Exception Thrown if a unit can't be created
+    */
+   @SuppressWarnings("unchecked")
+   private static boolean verify(KernelImpl kernel, String[] names, Method method) throws Exception
+   {
+      boolean result = true;
+
+      BeanDeployment bd = createDeployment(kernel, new URL("file:/verify.xml"),
+                                           createCollections(names, method), false);
+
+      for (int i = 0; i < names.length; i++)
+      {
+         result &= bd.isIgnoreStop(names[i]) == (i % IGNORE_STOP == 0);
+         result &= !bd.isIgnoreDestroy(names[i]);
+         result &= (bd.getUninstall(names[i]) != null) == (i % UNINSTALL == 0);
+         result &= names[i].equals(bd.getSignature(names[i]));
+      }
+
+      result &= bd.getSignature("unknown") == null;
+      result &= bd.getBeans().equals(Arrays.asList(names));
+
+      // A lazy bean registers itself after the unit is deployed
+      Object[] unit = createCollections(new String[] {"eager"}, method);
+      BeanDeployment lazy = createDeployment(kernel, new URL("file:/lazy.xml"), unit, true);
+
+      result &= !lazy.isIgnoreStop("lazy");
+
+      ((List<String>)unit[0]).add("lazy");
+      ((Map<String, List<Method>>)unit[1]).put("lazy", Arrays.asList(method));
+      ((Set<String>)unit[2]).add("lazy");
+
+      result &= lazy.isIgnoreStop("lazy") && lazy.getUninstall("lazy") != null;
+      result &= lazy.getBeans().equals(Arrays.asList("eager", "lazy"));
+
+      return result;
+   }
+
+   /**
+    * Create the collections that a unit registers its beans in during deployment
+    * @param names The bean names
+    * @param method The uninstall method
+    * @return The bean names, uninstall methods, ignore stops, ignore destroys and signatures
+    */
+   private static Object[] createCollections(String[] names, Method method)
+   {
+      int n = names.length;
+
+      List<String> beans = Collections.synchronizedList(new ArrayList<String>(n));
+      Map<String, List<Method>> uninstall = new ConcurrentHashMap<String, List<Method>>(n);
+      Set<String> ignoreStops = Collections.synchronizedSet(new HashSet<String>(n));
+      Set<String> ignoreDestroys = Collections.synchronizedSet(new HashSet<String>(n));
+      Map<String, String> signatures = new HashMap<String, String>(n);
+
+      for (int i = 0; i < n; i++)
+      {
+         beans.add(names[i]);
+         signatures.put(names[i], names[i]);
+
+         if (i % UNINSTALL == 0)
+            uninstall.put(names[i], Arrays.asList(method));
+
+         if (i % IGNORE_STOP == 0)
+            ignoreStops.add(names[i]);
+      }
+
+      return new Object[] {beans, uninstall, ignoreStops, ignoreDestroys, signatures};
+   }
+
+   /**
+    * Create a bean deployment from the collections of a unit
+    * @param kernel The kernel
+    * @param url The URL of the unit
+    * @param unit The collections
+    * @param lazy True if lazy beans can register themselves after the unit is deployed
+    * @return The bean deployment
+    */
+   @SuppressWarnings("unchecked")
+   private static BeanDeployment createDeployment(KernelImpl kernel, URL url, Object[] unit, boolean lazy)
+   {
+      return new BeanDeployment(url,
+                                (List<String>)unit[0],
+                                (Map<String, List<Method>>)unit[1],
+                                (Set<String>)unit[2],
+                                (Set<String>)unit[3],
+                                (Map<String, String>)unit[4],
+                                null,
+                                lazy,
+                                kernel);
+   }
+
+   /**
+    * Get the used heap after a garbage collection
+    * @return The value
+    */
+   private static long usedHeap()
+   {
+      for (int i = 0; i < 5; i++)
+      {
+         System.gc();
+      }
+
+      Runtime rt = Runtime.getRuntime();
+      return rt.totalMemory() - rt.freeMemory();
+   }
+}
@@ -0,0 +1,364 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl;
+
+import com.github.fungal.api.classloading.ClassLoaderFactory;
+import com.github.fungal.api.configuration.KernelConfiguration;
+import com.github.fungal.api.util.FileUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * The redeploy soak harness.
+ *
+ * Synthetic archive units are deployed and undeployed thousands of times. Each unit
+ * carries its own copy of the {@link Service} class, so every deploy defines the class
+ * in a new class loader. The growth of the used heap and of the loaded classes is
+ * reported together with the objects that the leak detector still tracks, and the
+ * harness exits with status 1 if the leak detector reports a leak, or if the loaded
+ * classes keep growing with the number of cycles.
+ *
+ * Usage: SoakTest [cycles] [units]
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public class SoakTest
+{
+   /** Default number of cycles */
+   private static final int DEFAULT_CYCLES = 2000;
+
+   /** Default number of units */
+   private static final int DEFAULT_UNITS = 4;
+
+   /** The leak detection grace period in seconds */
+   private static final int GRACE = 1;
+
+   /** The class of the unit beans */
+   private static final String SERVICE = Service.class.getName();
+
+   /**
+    * The bean of a synthetic unit
+    */
+   public static class Service
+   {
+      /** Started */
+      private boolean started;
+
+      /**
+       * Constructor
+       */
+      public Service()
+      {
+         started = false;
+      }
+
+      /**
+       * Start
+       */
+      public void start()
+      {
+         started = true;
+      }
+
+      /**
+       * Stop
+       */
+      public void stop()
+      {
+         started = false;
+      }
+
+      /**
+       * Is started
+       * @return The value
+       */
+      public boolean isStarted()
+      {
+         return started;
+      }
+   }
+
+   /**
+    * Main
+    * @param args The arguments
+    */
+   public static void main(String[] args)
+   {
+      int cycles = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CYCLES;
+      int units = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_UNITS;
+
+      File home = null;
+      KernelImpl kernel = null;
+      boolean ok = false;
+      try
+      {
+         home = File.createTempFile("fungal-soak", "");
+         home.delete();
+         home.mkdirs();
+
+         URL[] urls = new URL[units];
+         for (int i = 0; i < units; i++)
+         {
+            urls[i] = createUnit(new File(home, "soak-" + i + ".jar"), "Soak" + i).toURI().toURL();
+         }
+
+         KernelConfiguration kc = new KernelConfiguration();
+         kc = kc.name("soak").home(home.toURI().toURL());
+         kc = kc.remoteAccess(false).hotDeployment(false).classPreload(false);
+         kc = kc.classLoader(ClassLoaderFactory.TYPE_PARENT_LAST).classLoaderIndex(true);
+         kc = kc.leakDetectionGracePeriod(GRACE);
+
+         kernel = new KernelImpl(kc);
+         kernel.startup();
+
+         // Warm up, such that the kernel classes are loaded before the baseline
+         int warmup = Math.max(1, cycles / 20);
+         for (int i = 0; i < warmup; i++)
+         {
+            cycle(kernel, urls, i == 0);
+         }
+
+         long heap = usedHeap();
+         long classes = loadedClasses(false);
+
+         System.out.println("Cycles: " + cycles + ", units: " + units);
+         System.out.println("Baseline: heap " + heap / 1024 + " KB, classes " + classes);
+
+         int interval = Math.max(1, cycles / 10);
+         for (int i = 1; i <= cycles; i++)
+         {
+            cycle(kernel, urls, false);
+
+            if (i % interval == 0 || i == cycles)
+               report(kernel, "Cycle " + i, heap, classes);
+         }
+
+         // Let the leak detector pass the grace period
+         Thread.sleep((GRACE + 1) * 1000L);
+
+         long heapGrowth = usedHeap() - heap;
+         long classGrowth = loadedClasses(false) - classes;
+
+         report(kernel, "Final", heap, classes);
+         System.out.println("Heap growth per cycle: " + heapGrowth / cycles + " bytes");
+
+         LeakDetector leakDetector = kernel.getLeakDetector();
+         List<String> leaks = leakDetector.getLeaks();
+
+         for (String leak : leaks)
+         {
+            System.out.println(leak);
+         }
+
+         // The classes of the units deployed at the end may not be unloaded yet
+         ok = leaks.size() == 0 && (classes < 0 || classGrowth <= (long)units * warmup);
+      }
+      catch (Throwable t)
+      {
+         t.printStackTrace(System.err);
+      }
+      finally
+      {
+         if (kernel != null)
+         {
+            try
+            {
+               kernel.shutdown();
+            }
+            catch (Throwable t)
+            {
+               // Ignore
+            }
+         }
+
+         if (home != null)
+         {
+            try
+            {
+               new FileUtil().delete(home);
+            }
+            catch (IOException ioe)
+            {
+               // Ignore
+            }
+         }
+      }
+
+      System.out.println(ok ? "PASSED" : "FAILED");
+      System.exit(ok ? 0 : 1);
+   }
+
+   /**
+    * Deploy and undeploy the units once
+    * @param kernel The kernel
+    * @param urls The units
+    * @param verify Verify that the beans are defined by the class loaders of the units
+    * @exception Throwable Thrown if a unit can't be deployed or undeployed
+    */
+   private static void cycle(KernelImpl kernel, URL[] urls, boolean verify) throws Throwable
+   {
+      for (int i = 0; i < urls.length; i++)
+      {
+         kernel.getMainDeployer().deploy(urls[i]);
+
+         if (verify)
+         {
+            Object bean = kernel.getBean("Soak" + i);
+
+            if (bean == null || bean.getClass().getClassLoader() == SoakTest.class.getClassLoader())
+               throw new IllegalStateException("Soak" + i + " isn't defined by its unit");
+         }
+      }
+
+      for (int i = urls.length - 1; i >= 0; i--)
+      {
+         kernel.getMainDeployer().undeploy(urls[i]);
+      }
+   }
+
+   /**
+    * Report the growth since the baseline
+    * @param kernel The kernel
+    * @param label The label
+    * @param heap The baseline heap
+    * @param classes The baseline classes
+    */
+   private static void report(KernelImpl kernel, String label, long heap, long classes)
+   {
+      LeakDetector leakDetector = kernel.getLeakDetector();
+
+      StringBuilder sb = new StringBuilder();
+      sb.append(label).append(": ");
+      sb.append("heap ").append((usedHeap() - heap) / 1024).append(" KB, ");
+      sb.append("classes ").append(classes < 0 ? "n/a" : Long.toString(loadedClasses(false) - classes)).append(", ");
+      sb.append("defined ").append(classes < 0 ? "n/a" : Long.toString(loadedClasses(true))).append(", ");
+      sb.append("tracked ").append(leakDetector.getTracked()).append(", ");
+      sb.append("collected ").append(leakDetector.getCollected());
+
+      System.out.println(sb.toString());
+   }
+
+   /**
+    * Create a unit
+    * @param file The archive
+    * @param name The name of the bean
+    * @return The archive
+    * @exception IOException Thrown if the archive can't be written
+    */
+   private static File createUnit(File file, String name) throws IOException
+   {
+      String clz = SERVICE.replace('.', '/') + ".class";
+
+      JarOutputStream jos = new JarOutputStream(new FileOutputStream(file));
+      try
+      {
+         jos.putNextEntry(new JarEntry(clz));
+         jos.write(read(SoakTest.class.getClassLoader().getResourceAsStream(clz)));
+         jos.closeEntry();
+
+         StringBuilder sb = new StringBuilder();
+         sb.append("<deployment>\n");
+         sb.append("  <bean name=\"").append(name).append("\" class=\"").append(SERVICE).append("\"/>\n");
+         sb.append("</deployment>\n");
+
+         jos.putNextEntry(new JarEntry("META-INF/soak-beans.xml"));
+         jos.write(sb.toString().getBytes("UTF-8"));
+         jos.closeEntry();
+      }
+      finally
+      {
+         jos.close();
+      }
+
+      return file;
+   }
+
+   /**
+    * Read a stream fully; the stream is closed
+    * @param is The stream
+    * @return The data
+    * @exception IOException Thrown if the stream can't be read
+    */
+   private static byte[] read(InputStream is) throws IOException
+   {
+      if (is == null)
+         throw new IOException("Resource not found");
+
+      try
+      {
+         ByteArrayOutputStream os = new ByteArrayOutputStream();
+         byte[] buffer = new byte[8192];
+         int n;
+
+         while ((n = is.read(buffer)) != -1)
+         {
+            os.write(buffer, 0, n);
+         }
+
+         return os.toByteArray();
+      }
+      finally
+      {
+         is.close();
+      }
+   }
+
+   /**
+    * Get the used heap after a garbage collection
+    * @return The value
+    */
+   private static long usedHeap()
+   {
+      for (int i = 0; i < 3; i++)
+      {
+         System.gc();
+      }
+
+      Runtime rt = Runtime.getRuntime();
+      return rt.totalMemory() - rt.freeMemory();
+   }
+
+   /**
+    * Get the number of loaded classes
+    * @param total Include the classes that have been unloaded
+    * @return The value; <code>-1</code> if the platform doesn't provide it
+    */
+   private static long loadedClasses(boolean total)
+   {
+      try
+      {
+         java.lang.management.ClassLoadingMXBean mbean = java.lang.management.ManagementFactory.getClassLoadingMXBean();
+
+         return total ? mbean.getTotalLoadedClassCount() : mbean.getLoadedClassCount();
+      }
+      catch (Throwable t)
+      {
+         return -1;
+      }
+   }
+}
@@ -0,0 +1,365 @@
+/*
+ * The Fungal kernel project
+ * Copyright (C) 2010
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.github.fungal.impl.classloader;
+
+import com.github.fungal.api.classloading.ClassLoaderFactory;
+import com.github.fungal.api.classloading.KernelClassLoader;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * The class loader contention benchmark.
+ *
+ * Many threads, like the bean deployers of a parallel deployment, load disjoint sets of
+ * classes through the same class loader at once, and probe names that don't exist. The
+ * time is reported for each kernel class loader type, with a plain URL class loader as
+ * the reference. Each class has to be defined once, and no class loading lock may be left
+ * behind once the threads are done; otherwise the benchmark exits with status 1.
+ *
+ * Usage: ContentionBenchmark [threads] [classes per thread] [rounds]
+ * @author <a href="mailto:jesper.pedersen@comcast.net">Jesper Pedersen</a>
+ */
+public class ContentionBenchmark
+{
+   /** Default number of threads */
+   private static final int DEFAULT_THREADS = 16;
+
+   /** Default number of classes per thread */
+   private static final int DEFAULT_CLASSES = 500;
+
+   /** Default number of rounds */
+   private static final int DEFAULT_ROUNDS = 5;
+
+   /** The package of the generated classes */
+   private static final String PACKAGE = "bench";
+
+   /** The kernel class loader types */
+   private static final int[] TYPES = {
+      ClassLoaderFactory.TYPE_PARENT_FIRST,
+      ClassLoaderFactory.TYPE_PARENT_LAST,
+      ClassLoaderFactory.TYPE_EXPORT
+   };
+
+   /** The names of the kernel class loader types */
+   private static final String[] NAMES = {"parent first", "parent last", "export"};
+
+   /**
+    * Main
+    * @param args The arguments
+    */
+   public static void main(String[] args)
+   {
+      int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+      int classes = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CLASSES;
+      int rounds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ROUNDS;
+
+      File jar = null;
+      boolean ok = true;
+      try
+      {
+         jar = File.createTempFile("fungal-bench", ".jar");
+         createClasses(jar, threads * classes);
+
+         URL[] urls = new URL[] {jar.toURI().toURL()};
+         ClassLoader parent = ContentionBenchmark.class.getClassLoader();
+
+         System.out.println("Threads: " + threads + ", classes per thread: " + classes + ", rounds: " + rounds);
+
+         for (int round = 1; round <= rounds; round++)
+         {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Round ").append(round).append(":");
+
+            URLClassLoader reference = new URLClassLoader(urls, parent);
+            sb.append(" reference ").append(run(reference, threads, classes, null)).append(" ms");
+
+            for (int i = 0; i < TYPES.length; i++)
+            {
+               KernelClassLoader kcl = ClassLoaderFactory.create(TYPES[i], urls, parent, null);
+               Set<ClassLoader> definers = Collections.newSetFromMap(new IdentityHashMap<ClassLoader, Boolean>());
+
+               long time = run(kcl, threads, classes, definers);
+               sb.append(", ").append(NAMES[i]).append(" ").append(time).append(" ms");
+
+               if (time < 0)
+               {
+                  ok = false;
+               }
+               else
+               {
+                  definers.add(kcl);
+
+                  for (ClassLoader cl : definers)
+                  {
+                     int locks = getLoadingLocks(cl);
+
+                     if (locks != 0)
+                     {
+                        System.out.println(cl.getClass().getSimpleName() + " holds " + locks + " loading locks");
+                        ok = false;
+                     }
+                  }
+               }
+
+               kcl.shutdown();
+            }
+
+            System.out.println(sb.toString());
+         }
+      }
+      catch (Throwable t)
+      {
+         t.printStackTrace(System.err);
+         ok = false;
+      }
+      finally
+      {
+         if (jar != null)
+            jar.delete();
+      }
+
+      System.out.println(ok ? "PASSED" : "FAILED");
+      System.exit(ok ? 0 : 1);
+   }
+
+   /**
+    * Load the classes from all the threads at once
+    * @param cl The class loader
+    * @param threads The number of threads
+    * @param classes The number of classes per thread
+    * @param definers The class loaders that defined the classes; <code>null</code> if not collected
+    * @return The time in milliseconds; <code>-1</code> if the classes weren't loaded correctly
+    * @exception InterruptedException Thrown if interrupted
+    */
+   private static long run(ClassLoader cl, int threads, int classes, Set<ClassLoader> definers)
+      throws InterruptedException
+   {
+      CountDownLatch start = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(threads);
+      ConcurrentMap<String, Class<?>> loaded = new ConcurrentHashMap<String, Class<?>>(threads * classes);
+      AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+      for (int i = 0; i < threads; i++)
+      {
+         Thread t = new Thread(new Loader(cl, i, classes, start, done, loaded, failure), "Loader-" + i);
+         t.setDaemon(true);
+         t.start();
+      }
+
+      long begin = System.nanoTime();
+      start.countDown();
+      done.await();
+      long time = (System.nanoTime() - begin) / 1000000L;
+
+      if (failure.get() != null)
+      {
+         System.out.println(cl.getClass().getSimpleName() + ": " + failure.get());
+         return -1;
+      }
+
+      if (loaded.size() != threads * classes)
+      {
+         System.out.println(cl.getClass().getSimpleName() + ": " + loaded.size() + " classes loaded");
+         return -1;
+      }
+
+      if (definers != null)
+      {
+         for (Class<?> c : loaded.values())
+         {
+            definers.add(c.getClassLoader());
+         }
+      }
+
+      return time;
+   }
+
+   /**
+    * Get the number of class loading locks held by a kernel class loader
+    * @param cl The class loader
+    * @return The value; <code>0</code> if the class loader isn't a kernel class loader
+    * @exception Exception Thrown if the locks can't be accessed
+    */
+   private static int getLoadingLocks(ClassLoader cl) throws Exception
+   {
+      if (!(cl instanceof KernelClassLoader))
+         return 0;
+
+      Field f = KernelClassLoader.class.getDeclaredField("loadingLocks");
+      f.setAccessible(true);
+
+      return ((Map<?, ?>)f.get(cl)).size();
+   }
+
+   /**
+    * Create an archive with empty classes
+    * @param file The archive
+    * @param count The number of classes
+    * @exception IOException Thrown if the archive can't be written
+    */
+   private static void createClasses(File file, int count) throws IOException
+   {
+      JarOutputStream jos = new JarOutputStream(new FileOutputStream(file));
+      try
+      {
+         for (int i = 0; i < count; i++)
+         {
+            String name = PACKAGE + "/C" + i;
+
+            jos.putNextEntry(new JarEntry(name + ".class"));
+
+            // A public class without members that extends java.lang.Object
+            DataOutputStream dos = new DataOutputStream(jos);
+            dos.writeInt(0xCAFEBABE);
+            dos.writeShort(0);
+            dos.writeShort(50);
+            dos.writeShort(5);
+            dos.writeByte(7);
+            dos.writeShort(2);
+            dos.writeByte(1);
+            dos.writeUTF(name);
+            dos.writeByte(7);
+            dos.writeShort(4);
+            dos.writeByte(1);
+            dos.writeUTF("java/lang/Object");
+            dos.writeShort(0x0021);
+            dos.writeShort(1);
+            dos.writeShort(3);
+            dos.writeShort(0);
+            dos.writeShort(0);
+            dos.writeShort(0);
+            dos.writeShort(0);
+            dos.flush();
+
+            jos.closeEntry();
+         }
+      }
+      finally
+      {
+         jos.close();
+      }
+   }
+
+   /**
+    * A thread that loads its own classes, and probes names that don't exist
+    */
+   static class Loader implements Runnable
+   {
+      /** The class loader */
+      private ClassLoader cl;
+
+      /** The index of the thread */
+      private int index;
+
+      /** The number of classes */
+      private int classes;
+
+      /** The start signal */
+      private CountDownLatch start;
+
+      /** The done signal */
+      private CountDownLatch done;
+
+      /** The loaded classes */
+      private ConcurrentMap<String, Class<?>> loaded;
+
+      /** The first failure */
+      private AtomicReference<Throwable> failure;
+
+      /**
+       * Constructor
+       * @param cl The class loader
+       * @param index The index of the thread
+       * @param classes The number of classes
+       * @param start The start signal
+       * @param done The done signal
+       * @param loaded The loaded classes
+       * @param failure The first failure
+       */
+      Loader(ClassLoader cl, int index, int classes, CountDownLatch start, CountDownLatch done,
+             ConcurrentMap<String, Class<?>> loaded, AtomicReference<Throwable> failure)
+      {
+         this.cl = cl;
+         this.index = index;
+         this.classes = classes;
+         this.start = start;
+         this.done = done;
+         this.loaded = loaded;
+         this.failure = failure;
+      }
+
+      /**
+       * Run
+       */
+      public void run()
+      {
+         try
+         {
+            start.await();
+
+            for (int i = 0; i < classes; i++)
+            {
+               String name = PACKAGE + ".C" + (index * classes + i);
+
+               // Alternate between the two entry points of the bean deployers
+               Class<?> c = (i % 2 == 0) ? cl.loadClass(name) : Class.forName(name, false, cl);
+
+               if (loaded.putIfAbsent(name, c) != null)
+                  throw new IllegalStateException("Loaded twice: " + name);
+
+               try
+               {
+                  cl.loadClass(PACKAGE + ".Missing" + index + "_" + i);
+                  throw new IllegalStateException("Found: " + PACKAGE + ".Missing" + index + "_" + i);
+               }
+               catch (ClassNotFoundException cnfe)
+               {
+                  // Expected
+               }
+            }
+         }
+         catch (Throwable t)
+         {
+            failure.compareAndSet(null, t);
+         }
+         finally
+         {
+            done.countDown();
+         }
+      }
+   }
+}